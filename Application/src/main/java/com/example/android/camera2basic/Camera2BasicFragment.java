@@ -17,6 +17,7 @@
 package com.example.android.camera2basic;
 
 import android.Manifest;
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -35,12 +36,15 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.params.InputConfiguration;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -57,22 +61,24 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Camera2BasicFragment extends Fragment
-        implements View.OnClickListener, ActivityCompat.OnRequestPermissionsResultCallback {
+        implements View.OnClickListener, View.OnLongClickListener,
+        ActivityCompat.OnRequestPermissionsResultCallback {
 
     /**
      * Conversion from screen rotation to JPEG orientation.
@@ -94,39 +100,116 @@ public class Camera2BasicFragment extends Fragment
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Camera state: Showing camera preview.
+     * How long to wait for the focus to lock before the picture is taken anyway.
      */
-    private static final int STATE_PREVIEW = 0;
+    private static final long LOCK_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(1000);
 
     /**
-     * Camera state: Waiting for the focus to be locked.
+     * How long to wait for the precapture sequence to start before the picture is taken anyway.
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final long PRECAPTURE_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(500);
 
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * How long to wait for the precapture sequence, which may fire the flash to meter, to end
+     * before the picture is taken anyway.
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final long NON_PRECAPTURE_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(1500);
 
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * Max preview width that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final int MAX_PREVIEW_WIDTH = 1920;
 
     /**
-     * Camera state: Picture was taken.
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * Frame rate the preview is planned for
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int PREVIEW_FPS = 30;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * Frame rate videos are recorded at
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int VIDEO_FPS = 30;
+
+    /**
+     * How long to wait for the encoder to be drained when a recording stops
+     */
+    private static final long RECORDING_STOP_TIMEOUT_MS = 2500;
+
+    /**
+     * How long pausing may wait, in all, for the saves, the metadata, the video and the analysis
+     * to finish; it runs on the UI thread
+     */
+    private static final long DRAIN_TIMEOUT_MS = 2500;
+
+    /**
+     * Indices of the preview and the stills in the streams of {@link #mStreamPlan}
+     */
+    private static final int PREVIEW_STREAM = 0;
+    private static final int STILL_STREAM = 1;
+    private static final int ANALYSIS_STREAM = 2;
+
+    /**
+     * Index of the encoder input in the streams of the recording session
+     */
+    private static final int RECORD_STREAM = 1;
+
+    /**
+     * Largest size of the frames analyzed on the CPU; analyzers rarely need more
+     */
+    private static final int MAX_ANALYSIS_WIDTH = 640;
+    private static final int MAX_ANALYSIS_HEIGHT = 480;
+
+    /**
+     * Number of threads the analyzers share
+     */
+    private static final int ANALYSIS_THREADS = 2;
+
+    /**
+     * Number of still images taken by a burst capture
+     */
+    private static final int BURST_SIZE = 8;
+
+    /**
+     * Number of threads saving the still images
+     */
+    private static final int SAVER_THREADS = 1;
+
+    /**
+     * Images {@link #mImageReader} holds: one for each saver thread and each queued picture,
+     * and one more, so that the picture the full queue rejects can still be acquired
+     */
+    private static final int STILL_MAX_IMAGES = SAVER_THREADS + BURST_SIZE + 1;
+
+    /**
+     * Where {@link #mThumbnailStage} keeps the thumbnails, hidden in the capture directory
+     */
+    private static final String THUMBNAIL_DIRECTORY = ".thumbnails";
+
+    /**
+     * How much disk space the thumbnails may take
+     */
+    private static final long THUMBNAIL_DISK_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Number of full-resolution frames kept for zero-shutter-lag captures
+     */
+    private static final int ZSL_CAPACITY = 4;
+
+    /**
+     * How much older than the newest kept frame a frame may be and still be picked for a
+     * zero-shutter-lag capture
+     */
+    private static final long ZSL_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * Capture reason of zero-shutter-lag pictures in the shutter lag statistics
+     */
+    private static final String ZSL_CAPTURE_REASON = "zsl";
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -181,6 +264,40 @@ public class Camera2BasicFragment extends Fragment
      */
     private Size mPreviewSize;
 
+    /**
+     * The size videos are recorded at, or null if the camera can't feed an encoder.
+     */
+    private Size mVideoSize;
+
+    /**
+     * The size of the preview while recording, planned together with {@link #mVideoSize}.
+     */
+    private Size mRecordingPreviewSize;
+
+    /**
+     * A video being recorded.
+     */
+    private static final class Recording {
+
+        final VideoRecorder mRecorder;
+        final File mFile;
+        final long mTimestamp;
+
+        Recording(VideoRecorder recorder, File file, long timestamp) {
+            mRecorder = recorder;
+            mFile = file;
+            mTimestamp = timestamp;
+        }
+
+    }
+
+    /**
+     * The video being recorded, or null if none is.
+     */
+    private volatile Recording mRecording;
+
+    private Button mRecordButton;
+
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
      */
@@ -189,6 +306,7 @@ public class Camera2BasicFragment extends Fragment
         @Override
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
+            mTrace.end(CameraTrace.OPEN, cameraDevice.getId());
             mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
             createCameraPreviewSession();
@@ -196,6 +314,7 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            mTrace.cancel(CameraTrace.OPEN, cameraDevice.getId());
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
@@ -203,6 +322,7 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            mTrace.cancel(CameraTrace.OPEN, cameraDevice.getId());
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
@@ -224,15 +344,148 @@ public class Camera2BasicFragment extends Fragment
      */
     private Handler mBackgroundHandler;
 
+    /**
+     * Saves captured images off {@link #mBackgroundThread}, so disk writes never delay the
+     * capture callbacks.
+     */
+    private PersistenceExecutor mPersistenceExecutor;
+
+    /**
+     * Writes the metadata of the pictures whose capture result came after they were saved, and
+     * does the other bookkeeping of {@link #mCaptureStore}, apart from the pictures.
+     */
+    private PersistenceExecutor mMetadataExecutor;
+
+    /**
+     * Finishes the recorded videos. Draining the encoder may take seconds, so it runs on its own
+     * lane, where it holds up neither the UI thread nor the pictures.
+     */
+    private PersistenceExecutor mRecordingExecutor;
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * An {@link ImageReader} that receives small {@code YUV_420_888} copies of the preview frames
+     * for {@link #mAnalysisPipeline}.
+     */
+    private ImageReader mAnalysisReader;
+
+    /**
+     * Runs the frame analyzers off {@link #mBackgroundThread}, dropping the frames they are too
+     * slow for.
+     */
+    private FrameAnalysisPipeline mAnalysisPipeline;
+
+    /**
+     * The mean luma of the latest analyzed frame, from 0 to 255.
+     */
+    private volatile int mMeanLuma;
+
+    /**
+     * An example analyzer: meters the mean luma of the frame from a sparse grid of pixels.
+     */
+    private final FrameAnalysisPipeline.Analyzer mLumaAnalyzer
+            = new FrameAnalysisPipeline.Analyzer() {
+
+        private static final int STEP = 8;
+
+        @Override
+        public void analyze(YuvFrame frame) {
+            ByteBuffer luma = frame.getBuffer(YuvFrame.Y);
+            int rowStride = frame.getRowStride(YuvFrame.Y);
+            long sum = 0;
+            int count = 0;
+            for (int y = 0; y < frame.getHeight(); y += STEP) {
+                for (int x = 0; x < frame.getWidth(); x += STEP) {
+                    sum += luma.get(y * rowStride + x) & 0xff;
+                    count++;
+                }
+            }
+            mMeanLuma = count == 0 ? 0 : (int) (sum / count);
+        }
+
+    };
+
+    /**
+     * Hands each analysis frame to {@link #mAnalysisPipeline}.
+     */
+    private final ImageReader.OnImageAvailableListener mOnAnalysisImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // The reader has one image more than the pipeline can hold, so this never fails.
+            Image image = reader.acquireLatestImage();
+            if (null == image) {
+                return;
+            }
+            StreamPlanner.Plan plan = mStreamPlan;
+            if (null != plan) {
+                plan.recordFrame(ANALYSIS_STREAM, System.nanoTime());
+            }
+            mAnalysisPipeline.offer(YuvFrame.of(image));
+        }
+
+    };
+
+    /**
+     * An {@link ImageReader} that receives every full-resolution frame for zero-shutter-lag
+     * captures, or null if the camera can't reprocess them.
+     */
+    private ImageReader mZslReader;
+
+    /**
+     * Sends the frame picked for a zero-shutter-lag capture back to the camera to be
+     * reprocessed into a JPEG.
+     */
+    private ImageWriter mZslWriter;
+
+    /**
+     * The last {@link #ZSL_CAPACITY} frames of {@link #mZslReader} with their capture results.
+     */
+    private final ZslRingBuffer<Image, TotalCaptureResult> mZslBuffer = new ZslRingBuffer<>(
+            ZSL_CAPACITY, new ZslRingBuffer.Listener<Image>() {
+                @Override
+                public void onEvicted(Image image) {
+                    image.close();
+                }
+            });
+
+    /**
+     * Hands every frame of {@link #mZslReader} to {@link #mZslBuffer}.
+     */
+    private final ImageReader.OnImageAvailableListener mOnZslImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (null != image) {
+                mZslBuffer.addImage(image.getTimestamp(), image);
+            }
+        }
+
+    };
+
+    /**
+     * Names and writes our pictures, or null if saving is disabled because the storage is
+     * unavailable.
      */
-    private File mFile;
+    private CaptureStore mCaptureStore;
+
+    /**
+     * Records every picture saved by {@link #mCaptureStore}, or null if it couldn't be opened.
+     */
+    private CaptureJournal mCaptureJournal;
+
+    /**
+     * Makes the thumbnails of the pictures of {@link #mCaptureStore} while they are saved, or
+     * null if there are none.
+     */
+    private ThumbnailStage mThumbnailStage;
 
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
@@ -243,11 +496,95 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            StreamPlanner.Plan plan = mStreamPlan;
+            if (null != plan) {
+                plan.recordFrame(STILL_STREAM, System.nanoTime());
+            }
+            // The reader has a slot more than the saver can hold, so this never fails.
+            Image image = reader.acquireNextImage();
+            if (null == image) {
+                return;
+            }
+            if (!mPersistenceExecutor.submit(new ImageSaver(image, mCaptureStore, mCameraId,
+                    ImageSaver.Mode.ZERO_COPY, mImageSavedCallback, mThumbnailStage))) {
+                Log.w(TAG, "Save queue full, dropping a picture");
+            }
+        }
+
+    };
+
+    /**
+     * Ends the {@link CameraTrace#CAPTURE} span once the first picture of a capture is saved, and
+     * hands every picture to {@link #mMetadataJoiner}.
+     */
+    private final ImageSaver.Callback mImageSavedCallback = new ImageSaver.Callback() {
+
+        @Override
+        public void onImageSaved(File file, long timestamp, long size) {
+            mTrace.end(CameraTrace.CAPTURE, TAG);
+            mMetadataJoiner.offerCapture(mCameraId, timestamp,
+                    new CaptureMetadataJoiner.Saved(mCameraId, file, size));
         }
 
     };
 
+    /**
+     * Joins every saved picture with the {@link TotalCaptureResult} of its still capture, then
+     * writes its metadata sidecar and records it in {@link #mCaptureJournal}. A picture whose
+     * result is already there is joined right after it is saved, on
+     * {@link #mPersistenceExecutor}; a result that comes after its picture is joined on
+     * {@link #mMetadataExecutor}, so that it never takes the queue slot of a picture.
+     */
+    private final CaptureMetadataJoiner<TotalCaptureResult> mMetadataJoiner =
+            new CaptureMetadataJoiner<>(BURST_SIZE, new Executor() {
+
+                @Override
+                public void execute(@NonNull Runnable job) {
+                    PersistenceExecutor executor = mMetadataExecutor;
+                    if (null == executor || !executor.submit(job)) {
+                        // The picture is already out of the joiner: better a write on this
+                        // thread than a picture missing from the journal.
+                        Log.w(TAG, "Metadata queue full, joining on the camera thread");
+                        job.run();
+                    }
+                }
+
+            }, new CaptureMetadataJoiner.Listener<TotalCaptureResult>() {
+
+                @Override
+                public void onJoined(long timestamp, CaptureMetadataJoiner.Saved saved,
+                                     TotalCaptureResult result) {
+                    CaptureMetadata metadata = CaptureMetadata.of(result);
+                    try {
+                        metadata.writeSidecar(saved.getFile());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    record(timestamp, saved, metadata.getExposureTimeNanos(),
+                            metadata.getSensitivity());
+                }
+
+                @Override
+                public void onUnjoined(long timestamp, CaptureMetadataJoiner.Saved saved) {
+                    record(timestamp, saved, -1, -1);
+                }
+
+                private void record(long timestamp, CaptureMetadataJoiner.Saved saved,
+                                    long exposureNanos, int iso) {
+                    CaptureJournal journal = mCaptureJournal;
+                    if (null == journal) {
+                        return;
+                    }
+                    try {
+                        journal.append(saved.getCameraId(), timestamp, saved.getFile(),
+                                saved.getSize(), exposureNanos, iso);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+            });
+
     /**
      * {@link CaptureRequest.Builder} for the camera preview
      */
@@ -259,11 +596,78 @@ public class Camera2BasicFragment extends Fragment
     private CaptureRequest mPreviewRequest;
 
     /**
-     * The current state of camera state for taking pictures.
+     * The focus and exposure lock sequence for taking pictures. Only accessed on
+     * {@link #mBackgroundThread}, where {@link #mCaptureCallback} runs.
      *
      * @see #mCaptureCallback
      */
-    private int mState = STATE_PREVIEW;
+    private final FocusLockStateMachine mFocusLock = new FocusLockStateMachine(
+            new FocusLockStateMachine.Listener() {
+                @Override
+                public void onPrecaptureNeeded() {
+                    runPrecaptureSequence();
+                }
+
+                @Override
+                public void onReadyToCapture(int reason) {
+                    if (reason == FocusLockStateMachine.CAPTURE_TIMED_OUT) {
+                        Log.w(TAG, "Focus/exposure lock timed out, capturing anyway");
+                    }
+                    mCaptureReason = reason;
+                    captureStillPicture();
+                }
+            }, LOCK_TIMEOUT_NS, PRECAPTURE_TIMEOUT_NS, NON_PRECAPTURE_TIMEOUT_NS);
+
+    /**
+     * Enforces the deadlines of {@link #mFocusLock} when no capture results arrive, e.g. because
+     * the camera stalled. Runs on {@link #mBackgroundThread} while a lock sequence is waiting.
+     */
+    private final Runnable mLockWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            long remainingNanos = mFocusLock.checkDeadline(System.nanoTime());
+            if (remainingNanos > 0) {
+                scheduleLockWatchdog(remainingNanos);
+            }
+        }
+    };
+
+    /**
+     * Why {@link #mFocusLock} decided to take the current picture, one of the
+     * {@code FocusLockStateMachine.CAPTURE_*} reasons.
+     */
+    private int mCaptureReason;
+
+    /**
+     * Number of still images to take once focus and exposure are locked: 1 for a single picture,
+     * {@link #BURST_SIZE} for a burst.
+     */
+    private volatile int mShotCount = 1;
+
+    /**
+     * {@link System#nanoTime()} at which the current capture was requested.
+     */
+    private long mCaptureStartNanos;
+
+    /**
+     * Records the latency of each camera lifecycle phase.
+     */
+    private final CameraTrace mTrace = CameraTrace.getInstance();
+
+    /**
+     * Sizes the preview and the stills to a stream combination the camera guarantees.
+     */
+    private StreamPlanner mStreamPlanner;
+
+    /**
+     * The sizes of the current camera's streams, with their measured frame rates.
+     */
+    private volatile StreamPlanner.Plan mStreamPlan;
+
+    /**
+     * Whether the repeating preview request has been set but no frame has been captured yet.
+     */
+    private volatile boolean mAwaitingFirstFrame;
 
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
@@ -286,64 +690,83 @@ public class Camera2BasicFragment extends Fragment
     private CameraCaptureSession.CaptureCallback mCaptureCallback
             = new CameraCaptureSession.CaptureCallback() {
 
+        /**
+         * Advances a lock sequence with every result, partial ones included, so that the
+         * picture is taken as soon as the camera reports the lock.
+         */
         private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null) {
-                        captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
-            }
+            // CONTROL_AF_STATE and CONTROL_AE_STATE can be null on some devices
+            mFocusLock.onResult(stateOf(result, CaptureResult.CONTROL_AF_STATE),
+                    stateOf(result, CaptureResult.CONTROL_AE_STATE), System.nanoTime());
+        }
+
+        /**
+         * Keeps the 3A state of the preview for the shutter's fast path, from completed results
+         * only. The exposure is only looked up when the focus has converged, since the fast path
+         * needs both, so most preview frames cost a single lookup. The shutter sees a state up to
+         * a partial result older than it could, which only matters to the fast path if the
+         * preview converged within that frame.
+         */
+        private void processPreview(CaptureResult result) {
+            int afState = stateOf(result, CaptureResult.CONTROL_AF_STATE);
+            int aeState = FocusLockStateMachine.isFocusConverged(afState)
+                    ? stateOf(result, CaptureResult.CONTROL_AE_STATE)
+                    : FocusLockStateMachine.UNKNOWN;
+            mFocusLock.onResult(afState, aeState, System.nanoTime());
+        }
+
+        private int stateOf(CaptureResult result, CaptureResult.Key<Integer> key) {
+            Integer state = result.get(key);
+            return state == null ? FocusLockStateMachine.UNKNOWN : state;
         }
 
         @Override
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
                                         @NonNull CaptureResult partialResult) {
-            process(partialResult);
+            if (mFocusLock.getState() != FocusLockStateMachine.STATE_PREVIEW) {
+                process(partialResult);
+            }
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
-            process(result);
+            if (mAwaitingFirstFrame) {
+                mAwaitingFirstFrame = false;
+                mTrace.end(CameraTrace.FIRST_FRAME, session.getDevice().getId());
+                long nanos = mTrace.end(CameraTrace.TIME_TO_FIRST_FRAME, TAG);
+                if (nanos >= 0) {
+                    Log.d(TAG, String.format(Locale.US, "Time to first preview frame: %.1f ms",
+                            nanos / 1e6));
+                }
+            }
+            StreamPlanner.Plan plan = mStreamPlan;
+            if (null != plan) {
+                plan.recordFrame(PREVIEW_STREAM, System.nanoTime());
+            }
+            if (null != mZslReader) {
+                addZslResult(result);
+            }
+            if (mFocusLock.getState() == FocusLockStateMachine.STATE_PREVIEW) {
+                processPreview(result);
+            } else {
+                process(result);
+            }
+        }
+
+        private void addZslResult(TotalCaptureResult result) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (null == timestamp) {
+                return;
+            }
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            int score = ZslRingBuffer.score(stateOf(result, CaptureResult.CONTROL_AF_STATE),
+                    stateOf(result, CaptureResult.CONTROL_AE_STATE),
+                    stateOf(result, CaptureResult.LENS_STATE),
+                    null == exposureTime ? -1 : exposureTime);
+            mZslBuffer.addResult(timestamp, result, score);
         }
 
     };
@@ -365,55 +788,6 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value. If such size
-     * doesn't exist, choose the largest one that is at most as large as the respective max size,
-     * and whose aspect ratio matches with the specified value.
-     *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
-     * @param textureViewWidth  The width of the texture view relative to sensor coordinate
-     * @param textureViewHeight The height of the texture view relative to sensor coordinate
-     * @param maxWidth          The maximum width that can be chosen
-     * @param maxHeight         The maximum height that can be chosen
-     * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int textureViewWidth,
-            int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth &&
-                    option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
-        }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
-        }
-    }
-
     public static Camera2BasicFragment newInstance() {
         return new Camera2BasicFragment();
     }
@@ -427,14 +801,73 @@ public class Camera2BasicFragment extends Fragment
     @Override
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         view.findViewById(R.id.picture).setOnClickListener(this);
+        view.findViewById(R.id.picture).setOnLongClickListener(this);
         view.findViewById(R.id.info).setOnClickListener(this);
+        view.findViewById(R.id.info).setOnLongClickListener(this);
+        mRecordButton = (Button) view.findViewById(R.id.record);
+        mRecordButton.setOnClickListener(this);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
-        mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
+        // Null if the shared storage isn't mounted.
+        File directory = getActivity().getExternalFilesDir(null);
+        if (null == directory) {
+            Log.w(TAG, "No storage, saving is disabled");
+            return;
+        }
+        try {
+            mCaptureJournal = new CaptureJournal(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            // Resumes the sequence from the journal rather than listing the directory.
+            mCaptureStore = new CaptureStore(directory, mCaptureJournal);
+        } catch (IOException e) {
+            // The preview still works; pictures are refused until the storage comes back.
+            e.printStackTrace();
+            return;
+        }
+        try {
+            mThumbnailStage = new ThumbnailStage(
+                    new File(mCaptureStore.getDirectory(), THUMBNAIL_DIRECTORY),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE),
+                    THUMBNAIL_DISK_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (null != mThumbnailStage) {
+            mThumbnailStage.getCache().clearMemory();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (null != mThumbnailStage) {
+            if (!mThumbnailStage.shutdown(2500)) {
+                Log.w(TAG, "Timed out waiting for pending thumbnails");
+            }
+            Log.d(TAG, mThumbnailStage.toString());
+            mThumbnailStage = null;
+        }
+        // The pictures were all saved when the background thread stopped.
+        if (null != mCaptureJournal) {
+            try {
+                mCaptureJournal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mCaptureJournal = null;
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -455,8 +888,15 @@ public class Camera2BasicFragment extends Fragment
 
     @Override
     public void onPause() {
+        Log.d(TAG, mTrace.dump());
+        if (null != mStreamPlanner) {
+            Log.d(TAG, mStreamPlanner.report());
+        }
         closeCamera();
+        // The pictures still being saved hold images of the readers, which free their buffers
+        // when closed.
         stopBackgroundThread();
+        closeOutputs();
         super.onPause();
     }
 
@@ -490,38 +930,39 @@ public class Camera2BasicFragment extends Fragment
     @SuppressWarnings("SuspiciousNameCombination")
     private void setUpCameraOutputs(int width, int height) {
         Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        CameraCharacteristicsCache cache = CameraCharacteristicsCache.getInstance(activity);
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
+            for (String cameraId : cache.getCameraIdList()) {
+                CameraCharacteristicsCache.CameraInfo info = cache.get(cameraId);
 
                 // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+                if (info.getLensFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
                     continue;
                 }
 
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
+                if (!info.hasOutputs()) {
                     continue;
                 }
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
+                Size largest = info.getLargestOutputSize(ImageFormat.JPEG);
+
+                // Keep the latest full-resolution frames around if the camera can reprocess
+                // them, so that a picture doesn't need a new exposure.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        && info.getReprocessFormat() != -1) {
+                    Size inputSize = info.getReprocessInputSize();
+                    // One more frame than kept is being acquired before the oldest is evicted,
+                    // and one more is being reprocessed.
+                    mZslReader = ImageReader.newInstance(inputSize.getWidth(),
+                            inputSize.getHeight(), info.getReprocessFormat(), ZSL_CAPACITY + 2);
+                    mZslReader.setOnImageAvailableListener(
+                            mOnZslImageAvailableListener, mBackgroundHandler);
+                }
 
                 // Find out if we need to swap dimension to get the preview size relative to sensor
                 // coordinate.
                 int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                mSensorOrientation = info.getSensorOrientation();
                 boolean swappedDimensions = false;
                 switch (displayRotation) {
                     case Surface.ROTATION_0:
@@ -564,10 +1005,68 @@ public class Camera2BasicFragment extends Fragment
 
                 // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
                 // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+                // garbage capture data. The planner keeps the preview and the stills within a
+                // stream combination the camera guarantees. The ZSL stream isn't in its tables:
+                // it relies on the reprocessing guarantee that comes with the capability.
+                mStreamPlanner = new StreamPlanner(
+                        Math.min(MAX_PREVIEW_WIDTH, Math.max(displaySize.x, displaySize.y)),
+                        Math.min(MAX_PREVIEW_HEIGHT, Math.min(displaySize.x, displaySize.y)),
+                        MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT);
+                SizeSelector.Constraints previewConstraints = new SizeSelector.Constraints(
                         rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
+                        maxPreviewHeight, largest.getWidth(), largest.getHeight());
+                mStreamPlan = mStreamPlanner.plan(cameraId, info.getHardwareLevel(), 1,
+                        new StreamPlanner.Stream("preview", StreamPlanner.PRIV,
+                                info.getPreviewSizeSelector(), previewConstraints, PREVIEW_FPS),
+                        new StreamPlanner.Stream("still", StreamPlanner.JPEG,
+                                info.getOutputSizeSelector(ImageFormat.JPEG),
+                                new SizeSelector.Constraints(Integer.MAX_VALUE,
+                                        Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                                        largest.getWidth(), largest.getHeight()), 0),
+                        new StreamPlanner.Stream("analysis", StreamPlanner.YUV,
+                                info.getOutputSizeSelector(ImageFormat.YUV_420_888),
+                                new SizeSelector.Constraints(MAX_ANALYSIS_WIDTH,
+                                        MAX_ANALYSIS_HEIGHT, MAX_ANALYSIS_WIDTH,
+                                        MAX_ANALYSIS_HEIGHT, largest.getWidth(),
+                                        largest.getHeight()), PREVIEW_FPS));
+                mPreviewSize = info.getPreviewSizes()[mStreamPlan.getSizeIndex(PREVIEW_STREAM)];
+
+                // The recording session has only the preview and the encoder, and is planned on
+                // its own: LIMITED cameras record up to 1080p, LEGACY ones no larger than the
+                // preview. Its plan is dropped from the planner, which reports the session that
+                // streams now.
+                String recordingPlanId = cameraId + "/record";
+                StreamPlanner.Plan recordingPlan = mStreamPlanner.plan(recordingPlanId,
+                        info.getHardwareLevel(), 1,
+                        new StreamPlanner.Stream("preview", StreamPlanner.PRIV,
+                                info.getPreviewSizeSelector(), previewConstraints, PREVIEW_FPS),
+                        new StreamPlanner.Stream("record", StreamPlanner.PRIV,
+                                info.getVideoSizeSelector(), new SizeSelector.Constraints(
+                                MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, MAX_PREVIEW_WIDTH,
+                                MAX_PREVIEW_HEIGHT, mPreviewSize.getWidth(),
+                                mPreviewSize.getHeight()), VIDEO_FPS));
+                mStreamPlanner.remove(recordingPlanId);
+                mRecordingPreviewSize = info.getPreviewSizes()[
+                        recordingPlan.getSizeIndex(PREVIEW_STREAM)];
+                int videoIndex = recordingPlan.getSizeIndex(RECORD_STREAM);
+                mVideoSize = videoIndex == -1 ? null : info.getVideoSizes()[videoIndex];
+
+                // For still image captures, we use the largest size the plan allows.
+                Size stillSize = info.getOutputSizes(ImageFormat.JPEG)[
+                        mStreamPlan.getSizeIndex(STILL_STREAM)];
+                // Leave room for every picture the saver can hold, and one more.
+                mImageReader = ImageReader.newInstance(stillSize.getWidth(),
+                        stillSize.getHeight(), ImageFormat.JPEG, STILL_MAX_IMAGES);
+                mImageReader.setOnImageAvailableListener(
+                        mOnImageAvailableListener, mBackgroundHandler);
+
+                Size analysisSize = info.getOutputSizes(ImageFormat.YUV_420_888)[
+                        mStreamPlan.getSizeIndex(ANALYSIS_STREAM)];
+                mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(),
+                        analysisSize.getHeight(), ImageFormat.YUV_420_888,
+                        mAnalysisPipeline.getMaxFrames() + 1);
+                mAnalysisReader.setOnImageAvailableListener(
+                        mOnAnalysisImageAvailableListener, mBackgroundHandler);
 
                 // We fit the aspect ratio of TextureView to the size of preview we picked.
                 int orientation = getResources().getConfiguration().orientation;
@@ -580,8 +1079,7 @@ public class Camera2BasicFragment extends Fragment
                 }
 
                 // Check if the flash is supported.
-                Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-                mFlashSupported = available == null ? false : available;
+                mFlashSupported = info.isFlashSupported();
 
                 mCameraId = cameraId;
                 return;
@@ -605,6 +1103,7 @@ public class Camera2BasicFragment extends Fragment
             requestCameraPermission();
             return;
         }
+        mTrace.begin(CameraTrace.TIME_TO_FIRST_FRAME, TAG);
         setUpCameraOutputs(width, height);
         configureTransform(width, height);
         Activity activity = getActivity();
@@ -613,6 +1112,7 @@ public class Camera2BasicFragment extends Fragment
             if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
+            mTrace.begin(CameraTrace.OPEN, mCameraId);
             manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -622,7 +1122,8 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Closes the current {@link CameraDevice}. The readers stay open until
+     * {@link #closeOutputs()}.
      */
     private void closeCamera() {
         try {
@@ -631,14 +1132,16 @@ public class Camera2BasicFragment extends Fragment
                 mCaptureSession.close();
                 mCaptureSession = null;
             }
+            Recording recording = mRecording;
+            if (null != recording) {
+                mRecording = null;
+                finishRecording(recording);
+                mRecordButton.setText(R.string.record);
+            }
             if (null != mCameraDevice) {
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
-            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -646,6 +1149,39 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Closes the readers of the camera closed by {@link #closeCamera()}. Only call this once
+     * {@link #stopBackgroundThread()} has waited for the images acquired from them to be saved
+     * or analyzed.
+     */
+    private void closeOutputs() {
+        if (null != mImageReader) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (null != mAnalysisReader) {
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
+        if (null != mZslReader) {
+            closeZsl();
+        }
+    }
+
+    /**
+     * Releases the kept frames and closes {@link #mZslWriter} and {@link #mZslReader}.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void closeZsl() {
+        mZslBuffer.clear();
+        if (null != mZslWriter) {
+            mZslWriter.close();
+            mZslWriter = null;
+        }
+        mZslReader.close();
+        mZslReader = null;
+    }
+
     /**
      * Starts a background thread and its {@link Handler}.
      */
@@ -653,10 +1189,34 @@ public class Camera2BasicFragment extends Fragment
         mBackgroundThread = new HandlerThread("CameraBackground");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        // Every running or queued picture holds an ImageReader slot, and the reader has one
+        // more, so a picture the full queue rejects is acquired and closed instead of
+        // overflowing the reader. The bookkeeping jobs go to their own lane, so that none of
+        // them can crowd a picture out.
+        mPersistenceExecutor = new PersistenceExecutor("ImageSaver", SAVER_THREADS, BURST_SIZE,
+                PersistenceExecutor.Backpressure.REJECT);
+        mMetadataExecutor = new PersistenceExecutor("Metadata", 1, BURST_SIZE,
+                PersistenceExecutor.Backpressure.REJECT);
+        // Only one video is recorded at a time, so its lane rarely holds more than one.
+        mRecordingExecutor = new PersistenceExecutor("Recording", 1, 2,
+                PersistenceExecutor.Backpressure.REJECT);
+        final CaptureStore store = mCaptureStore;
+        if (null != store) {
+            // Lists the directory, once per store.
+            mMetadataExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    store.deleteTempFiles();
+                }
+            });
+        }
+        mAnalysisPipeline = new FrameAnalysisPipeline("FrameAnalysis", ANALYSIS_THREADS);
+        mAnalysisPipeline.addAnalyzer("luma", mLumaAnalyzer);
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Stops the background thread and its {@link Handler}, and drains the other background
+     * stages within {@link #DRAIN_TIMEOUT_MS} in all.
      */
     private void stopBackgroundThread() {
         mBackgroundThread.quitSafely();
@@ -667,6 +1227,50 @@ public class Camera2BasicFragment extends Fragment
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        // A lock sequence that was running can never finish, and its deadlines are stale.
+        resetFocusLock();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        // The camera is closed, so no more results will come for the pictures still waiting.
+        Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                mMetadataJoiner.flush();
+            }
+        };
+        boolean flushQueued = mPersistenceExecutor.submit(flush);
+        if (!mPersistenceExecutor.shutdown(millisUntil(deadline))) {
+            Log.w(TAG, "Timed out waiting for pending images to be saved");
+        }
+        Log.d(TAG, mPersistenceExecutor.toString());
+        mPersistenceExecutor = null;
+        if (!flushQueued) {
+            flush.run();
+        }
+        if (!mMetadataExecutor.shutdown(millisUntil(deadline))) {
+            Log.w(TAG, "Timed out waiting for pending metadata to be written");
+        }
+        Log.d(TAG, mMetadataExecutor.toString());
+        mMetadataExecutor = null;
+        if (!mRecordingExecutor.shutdown(millisUntil(deadline))) {
+            Log.w(TAG, "Timed out waiting for the video to be finished");
+        }
+        Log.d(TAG, mRecordingExecutor.toString());
+        mRecordingExecutor = null;
+        Log.d(TAG, mMetadataJoiner.toString());
+        // closeOutputs() then closes the analysis reader, freeing the buffers of its frames.
+        if (!mAnalysisPipeline.close(millisUntil(deadline))) {
+            Log.w(TAG, "Timed out waiting for frame analysis to finish");
+        }
+        Log.d(TAG, mAnalysisPipeline.toString());
+        mAnalysisPipeline = null;
+    }
+
+    /**
+     * Returns the milliseconds left until a {@link System#nanoTime()} deadline, or 0 if it has
+     * passed.
+     */
+    private static long millisUntil(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
     }
 
     /**
@@ -683,52 +1287,253 @@ public class Camera2BasicFragment extends Fragment
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder
-                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            // We set up a CaptureRequest.Builder with the output Surface. With zero shutter
+            // lag, every frame also goes to the ZSL stream.
+            if (null != mZslReader) {
+                mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(
+                        CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+                mPreviewRequestBuilder.addTarget(mZslReader.getSurface());
+            } else {
+                mPreviewRequestBuilder
+                        = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            }
             mPreviewRequestBuilder.addTarget(surface);
+            mPreviewRequestBuilder.addTarget(mAnalysisReader.getSurface());
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mTrace.begin(CameraTrace.CONFIGURE, mCameraDevice.getId());
+            CameraCaptureSession.StateCallback callback
+                    = new CameraCaptureSession.StateCallback() {
+
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    // The camera is already closed
+                    if (null == mCameraDevice) {
+                        return;
+                    }
+                    mTrace.end(CameraTrace.CONFIGURE, mCameraDevice.getId());
+
+                    // When the session is ready, we start displaying the preview. No lock
+                    // sequence of a previous session can go on in this one.
+                    mCaptureSession = cameraCaptureSession;
+                    resetFocusLock();
+                    if (null != mZslReader) {
+                        mZslWriter = createZslWriter(cameraCaptureSession);
+                    }
+                    try {
+                        // Auto focus should be continuous for camera preview.
+                        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                        // Flash is automatically enabled when necessary.
+                        setAutoFlash(mPreviewRequestBuilder);
+
+                        // Finally, we start displaying the camera preview.
+                        mPreviewRequest = mPreviewRequestBuilder.build();
+                        mTrace.begin(CameraTrace.FIRST_FRAME, mCameraDevice.getId());
+                        mAwaitingFirstFrame = true;
+                        mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                mCaptureCallback, mBackgroundHandler);
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(
+                        @NonNull CameraCaptureSession cameraCaptureSession) {
+                    mTrace.cancel(CameraTrace.CONFIGURE,
+                            cameraCaptureSession.getDevice().getId());
+                    showToast("Failed");
+                }
+            };
+            if (null != mZslReader) {
+                createZslSession(surface, callback);
+            } else {
+                mCameraDevice.createCaptureSession(
+                        Arrays.asList(surface, mImageReader.getSurface(),
+                                mAnalysisReader.getSurface()), callback, null);
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts recording a video: the session is replaced by one with the preview and the input
+     * surface of a {@link VideoRecorder}. The stills, the analysis and the ZSL streams are left
+     * out, and both are sized by the stream planner: a combination the camera guarantees, or
+     * preview sized streams if it guarantees none.
+     */
+    private void startRecording() {
+        Activity activity = getActivity();
+        if (null == activity || null == mCameraDevice || null == mCaptureSession
+                || null == mVideoSize) {
+            return;
+        }
+        if (null == mCaptureStore) {
+            showToast("Saving is disabled");
+            return;
+        }
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        // There is no sensor timestamp before the first frame; name it by the start time.
+        long timestamp = System.nanoTime();
+        File file = mCaptureStore.newFile(mCameraId, timestamp, CaptureStore.MP4);
+        VideoRecorder recorder;
+        try {
+            recorder = new VideoRecorder(VideoRecorder.Config.of(mVideoSize.getWidth(),
+                    mVideoSize.getHeight(), VIDEO_FPS), CaptureStore.tempFileOf(file),
+                    getOrientation(rotation));
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            showToast("Failed");
+            return;
+        }
+        Log.d(TAG, "Recording " + recorder.getConfig());
+        mCaptureSession.close();
+        mCaptureSession = null;
+        // A picture being taken is abandoned with the session.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                resetFocusLock();
+            }
+        });
+        if (null != mZslWriter) {
+            // It feeds the input of the session that was just closed.
+            mZslWriter.close();
+            mZslWriter = null;
+        }
+        mRecording = new Recording(recorder, file, timestamp);
+        mRecordButton.setText(R.string.stop);
+        createRecordingSession(recorder);
+    }
+
+    private void createRecordingSession(final VideoRecorder recorder) {
+        try {
+            SurfaceTexture texture = mTextureView.getSurfaceTexture();
+            assert texture != null;
+            texture.setDefaultBufferSize(mRecordingPreviewSize.getWidth(),
+                    mRecordingPreviewSize.getHeight());
+            Surface previewSurface = new Surface(texture);
+            final CaptureRequest.Builder builder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            builder.addTarget(previewSurface);
+            builder.addTarget(recorder.getInputSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+
+            mTrace.begin(CameraTrace.CONFIGURE, mCameraDevice.getId());
+            mCameraDevice.createCaptureSession(
+                    Arrays.asList(previewSurface, recorder.getInputSurface()),
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
-                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == mCameraDevice) {
+                        public void onConfigured(@NonNull CameraCaptureSession session) {
+                            Recording recording = mRecording;
+                            // The camera is already closed, or the recording stopped.
+                            if (null == mCameraDevice || null == recording
+                                    || recording.mRecorder != recorder) {
+                                session.close();
                                 return;
                             }
-
-                            // When the session is ready, we start displaying the preview.
-                            mCaptureSession = cameraCaptureSession;
+                            mTrace.end(CameraTrace.CONFIGURE, mCameraDevice.getId());
+                            mCaptureSession = session;
                             try {
-                                // Auto focus should be continuous for camera preview.
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                // Flash is automatically enabled when necessary.
-                                setAutoFlash(mPreviewRequestBuilder);
-
-                                // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                        mCaptureCallback, mBackgroundHandler);
+                                // The encoder takes frames only once it is started.
+                                recorder.start();
+                                session.setRepeatingRequest(builder.build(), null,
+                                        mBackgroundHandler);
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
                         }
 
                         @Override
-                        public void onConfigureFailed(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                            mTrace.cancel(CameraTrace.CONFIGURE, session.getDevice().getId());
                             showToast("Failed");
                         }
-                    }, null
-            );
+
+                    }, null);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Stops recording and goes back to the preview session.
+     */
+    private void stopRecording() {
+        Recording recording = mRecording;
+        mRecording = null;
+        mRecordButton.setText(R.string.record);
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        finishRecording(recording);
+        if (null != mCameraDevice) {
+            createCameraPreviewSession();
+        }
+    }
+
+    /**
+     * Drains and releases the recorder of a recording whose session is closed, then commits the
+     * video and records it in {@link #mCaptureJournal}, on {@link #mRecordingExecutor}. This is
+     * called on the UI thread, which must never wait for the encoder.
+     */
+    private void finishRecording(final Recording recording) {
+        Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                File temp = CaptureStore.tempFileOf(recording.mFile);
+                boolean complete = recording.mRecorder.stop(RECORDING_STOP_TIMEOUT_MS);
+                Log.d(TAG, recording.mRecorder.getLoop().toString());
+                if (!complete) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                    showToast("Failed");
+                    return;
+                }
+                try {
+                    CaptureStore.commit(temp, recording.mFile);
+                    CaptureJournal journal = mCaptureJournal;
+                    if (null != journal) {
+                        journal.append(mCameraId, recording.mTimestamp, recording.mFile,
+                                recording.mFile.length(), -1, -1);
+                    }
+                    showToast("Saved to " + recording.mFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        PersistenceExecutor executor = mRecordingExecutor;
+        // The recorder must be released whatever happens to the queue, but not on this thread.
+        if (null == executor || !executor.submit(finish)) {
+            new Thread(finish, "Recording-finish").start();
+        }
+    }
+
+    /**
+     * Creates a reprocessable session whose input takes the frames of {@link #mZslReader}.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void createZslSession(Surface previewSurface,
+                                  CameraCaptureSession.StateCallback callback)
+            throws CameraAccessException {
+        InputConfiguration input = new InputConfiguration(mZslReader.getWidth(),
+                mZslReader.getHeight(), mZslReader.getImageFormat());
+        mCameraDevice.createReprocessableCaptureSession(input, Arrays.asList(previewSurface,
+                mImageReader.getSurface(), mAnalysisReader.getSurface(),
+                mZslReader.getSurface()), callback, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static ImageWriter createZslWriter(CameraCaptureSession session) {
+        return ImageWriter.newInstance(session.getInputSurface(), /*maxImages*/1);
+    }
+
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -766,23 +1571,153 @@ public class Camera2BasicFragment extends Fragment
      * Initiate a still image capture.
      */
     private void takePicture() {
-        lockFocus();
+        takePictures(1);
+    }
+
+    /**
+     * Initiate a burst of {@link #BURST_SIZE} still images, taken back to back with a single
+     * focus and exposure lock.
+     */
+    private void takeBurst() {
+        takePictures(BURST_SIZE);
+    }
+
+    private void takePictures(final int count) {
+        if (null != mRecording) {
+            // The recording session has no still stream.
+            showToast("Recording");
+            return;
+        }
+        if (null == mCaptureStore) {
+            showToast("Saving is disabled");
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        // The lock sequence runs on the thread of mCaptureCallback.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFocusLock.getState() != FocusLockStateMachine.STATE_PREVIEW) {
+                    // A picture is already being taken.
+                    return;
+                }
+                mShotCount = count;
+                mCaptureStartNanos = startNanos;
+                mTrace.begin(CameraTrace.CAPTURE, TAG);
+                // A single picture is reprocessed from a kept frame if one is good enough.
+                if (count == 1 && null != mZslWriter && takeZslPicture()) {
+                    return;
+                }
+                lockFocus();
+            }
+        });
+    }
+
+    /**
+     * Reprocesses the best frame kept in {@link #mZslBuffer} into a JPEG, without any focus or
+     * exposure lock.
+     *
+     * @return Whether a frame was reprocessed; false if none was in focus and well exposed
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean takeZslPicture() {
+        Activity activity = getActivity();
+        if (null == activity || null == mCameraDevice || null == mCaptureSession) {
+            return false;
+        }
+        ZslRingBuffer.Frame<Image, TotalCaptureResult> frame = mZslBuffer.takeBest(ZSL_WINDOW_NS);
+        if (null == frame) {
+            return false;
+        }
+        boolean queued = false;
+        try {
+            // The request carries over the settings the frame was captured with.
+            CaptureRequest.Builder builder =
+                    mCameraDevice.createReprocessCaptureRequest(frame.getResult());
+            builder.addTarget(mImageReader.getSurface());
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            // The writer takes the image over, so it must not be closed here anymore.
+            mZslWriter.queueInputImage(frame.getImage());
+            queued = true;
+            mCaptureSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+
+                @Override
+                public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                             @NonNull CaptureRequest request, long timestamp,
+                                             long frameNumber) {
+                    recordShutterLag(ZSL_CAPTURE_REASON);
+                }
+
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    offerStillResult(result);
+                    showToast("Saved to " + mCaptureStore.getDirectory());
+                    Log.d(TAG, mCaptureStore.getDirectory().toString());
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    mTrace.cancel(CameraTrace.CAPTURE, TAG);
+                    showToast("Failed");
+                }
+
+            }, mBackgroundHandler);
+            return true;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            if (!queued) {
+                frame.getImage().close();
+            }
+            return queued;
+        }
+    }
+
+    /**
+     * Hands the result of a still capture to {@link #mMetadataJoiner}. Its metadata is only read
+     * once the picture is saved, in the persistence stage.
+     */
+    private void offerStillResult(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null != timestamp) {
+            mMetadataJoiner.offerResult(mCameraId, timestamp, result);
+        }
     }
 
     /**
      * Lock the focus as the first step for a still image capture.
      */
     private void lockFocus() {
+        if (null == mCaptureSession) {
+            return;
+        }
+        // Tell #mCaptureCallback to wait for the lock, unless the preview has already converged
+        // and the picture has been taken right away.
+        if (!mFocusLock.onLockRequested(System.nanoTime())) {
+            return;
+        }
         try {
             // This is how to tell the camera to lock focus.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                     CameraMetadata.CONTROL_AF_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
+            scheduleLockWatchdog(LOCK_TIMEOUT_NS);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            abandonCapture();
+        }
+    }
+
+    private void scheduleLockWatchdog(long delayNanos) {
+        if (null != mBackgroundHandler) {
+            // Round up so that the deadline has passed when the watchdog runs.
+            mBackgroundHandler.postDelayed(mLockWatchdog,
+                    TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
         }
     }
 
@@ -791,12 +1726,15 @@ public class Camera2BasicFragment extends Fragment
      * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
      */
     private void runPrecaptureSequence() {
+        if (null == mCaptureSession) {
+            abandonCapture();
+            return;
+        }
         try {
             // This is how to tell the camera to trigger.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
+            // #mCaptureCallback already waits for the precapture sequence to be set.
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -805,13 +1743,14 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     * Capture a still picture, or a burst of {@link #mShotCount} of them. This method should be
+     * called when we get a response in {@link #mCaptureCallback} from both {@link #lockFocus()}.
      */
     private void captureStillPicture() {
         try {
             final Activity activity = getActivity();
-            if (null == activity || null == mCameraDevice) {
+            if (null == activity || null == mCameraDevice || null == mCaptureSession) {
+                abandonCapture();
                 return;
             }
             // This is the CaptureRequest.Builder that we use to take a picture.
@@ -828,27 +1767,96 @@ public class Camera2BasicFragment extends Fragment
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
 
+            final int shotCount = mShotCount;
+            final int reason = mCaptureReason;
             CameraCaptureSession.CaptureCallback CaptureCallback
                     = new CameraCaptureSession.CaptureCallback() {
 
+                private boolean mStarted;
+
+                @Override
+                public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                             @NonNull CaptureRequest request, long timestamp,
+                                             long frameNumber) {
+                    // The shutter lag ends as the exposure of the first picture starts.
+                    if (!mStarted) {
+                        mStarted = true;
+                        recordShutterLag(FocusLockStateMachine.nameOfReason(reason));
+                    }
+                }
+
                 @Override
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
+                    offerStillResult(result);
+                }
+
+                @Override
+                public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                       int sequenceId, long frameNumber) {
+                    long elapsedNanos = System.nanoTime() - mCaptureStartNanos;
+                    Log.d(TAG, String.format(Locale.US, "Captured %d in %.1f ms (%.2f fps)",
+                            shotCount, elapsedNanos / 1e6, shotCount * 1e9 / elapsedNanos));
+                    showToast(shotCount > 1
+                            ? "Saved " + shotCount + " to " + mCaptureStore.getDirectory()
+                            : "Saved to " + mCaptureStore.getDirectory());
+                    Log.d(TAG, mCaptureStore.getDirectory().toString());
+                    unlockFocus();
+                }
+
+                @Override
+                public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                     int sequenceId) {
+                    mTrace.cancel(CameraTrace.CAPTURE, TAG);
                     unlockFocus();
                 }
             };
 
             mCaptureSession.stopRepeating();
             mCaptureSession.abortCaptures();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            if (shotCount > 1) {
+                // The whole burst shares one AF/AE lock and is queued to the camera at once, so
+                // the frames are pipelined instead of paying a 3A round trip each.
+                CaptureRequest request = captureBuilder.build();
+                List<CaptureRequest> burst = new ArrayList<>(shotCount);
+                for (int i = 0; i < shotCount; i++) {
+                    burst.add(request);
+                }
+                mCaptureSession.captureBurst(burst, CaptureCallback, null);
+            } else {
+                mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            abandonCapture();
         }
     }
 
+    /**
+     * Gives up on the picture being taken, e.g. because the session went away during the lock
+     * sequence, and goes back to the preview if the session is still there.
+     */
+    private void abandonCapture() {
+        mTrace.cancel(CameraTrace.CAPTURE, TAG);
+        unlockFocus();
+    }
+
+    /**
+     * Records the time from the shutter press to the start of the exposure, overall and per
+     * capture reason, in {@link #mTrace}. For a zero-shutter-lag capture, the exposure is that
+     * of the reprocessing.
+     *
+     * @param reason The name of the reason, e.g. {@link #ZSL_CAPTURE_REASON}
+     */
+    private void recordShutterLag(String reason) {
+        long lagNanos = System.nanoTime() - mCaptureStartNanos;
+        mTrace.getHistogram(CameraTrace.SHUTTER_LAG).recordNanos(lagNanos);
+        mTrace.getHistogram(CameraTrace.SHUTTER_LAG + '_' + reason).recordNanos(lagNanos);
+        Log.d(TAG, String.format(Locale.US, "Shutter lag: %.1f ms (%s)", lagNanos / 1e6,
+                reason));
+    }
+
     /**
      * Retrieves the JPEG orientation from the specified screen rotation.
      *
@@ -868,6 +1876,13 @@ public class Camera2BasicFragment extends Fragment
      * finished.
      */
     private void unlockFocus() {
+        // The next picture can be taken whatever happens to the session.
+        resetFocusLock();
+        // The session is gone, or it is a recording session without the preview request's
+        // targets.
+        if (null == mCaptureSession || null != mRecording) {
+            return;
+        }
         try {
             // Reset the auto-focus trigger
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
@@ -876,7 +1891,6 @@ public class Camera2BasicFragment extends Fragment
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -884,6 +1898,18 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Puts {@link #mFocusLock} back in its preview state and cancels its watchdog, so that the
+     * next shutter press starts a new lock sequence. Call this on {@link #mBackgroundThread}, or
+     * once it has stopped.
+     */
+    private void resetFocusLock() {
+        if (null != mBackgroundHandler) {
+            mBackgroundHandler.removeCallbacks(mLockWatchdog);
+        }
+        mFocusLock.reset();
+    }
+
     @Override
     public void onClick(View view) {
         switch (view.getId()) {
@@ -891,6 +1917,14 @@ public class Camera2BasicFragment extends Fragment
                 takePicture();
                 break;
             }
+            case R.id.record: {
+                if (null == mRecording) {
+                    startRecording();
+                } else {
+                    stopRecording();
+                }
+                break;
+            }
             case R.id.info: {
                 Activity activity = getActivity();
                 if (null != activity) {
@@ -904,6 +1938,29 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    @Override
+    public boolean onLongClick(View view) {
+        switch (view.getId()) {
+            case R.id.picture: {
+                takeBurst();
+                return true;
+            }
+            case R.id.info: {
+                // Dumps the lifecycle latency histograms on demand.
+                Log.i(TAG, mTrace.dump());
+                if (null != mStreamPlanner) {
+                    Log.i(TAG, mStreamPlanner.report());
+                }
+                if (null != mAnalysisPipeline) {
+                    Log.i(TAG, mAnalysisPipeline + "\n  mean luma " + mMeanLuma);
+                }
+                showToast("Camera trace written to the log");
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
             requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
@@ -911,50 +1968,6 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
-    /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
-     */
-    private static class ImageSaver implements Runnable {
-
-        /**
-         * The JPEG image
-         */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
-
-        ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
-        }
-
-        @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-
-    }
-
     /**
      * Compares two {@code Size}s based on their areas.
      */
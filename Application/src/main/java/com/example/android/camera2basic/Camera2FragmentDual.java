@@ -3,8 +3,8 @@
  * to run and capture images simultaneously.
  *
  * Assumptions:
- * o- The two cameras are front and back cameras on a smartphone with camera IDs 0 and 1.
- *    (Ids can be extracted using android.hardware.camera2.CameraCharacteristics)
+ * o- The cameras are the first ones of CameraManager.getCameraIdList(), one per preview of the
+ *    layout. On a smartphone these are usually the back and front cameras, IDs 0 and 1.
  * o- App will only be used in landscape mode
  * o- Saved pictures will only be viewed in landscape mode
  * o- User has enabled 24 hour format in settings for live datetime to display in 24 hour format
@@ -34,17 +34,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaActionSound;
 import android.os.Bundle;
 import android.os.Environment;
@@ -55,7 +57,9 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
+import android.util.Log;
 import android.util.Size;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.TextureView;
@@ -67,15 +71,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -83,8 +83,8 @@ import java.util.concurrent.TimeUnit;
  * to run and capture images simultaneously.
  *
  * Assumptions:
- * o- The two cameras are front and back cameras on a smartphone with camera IDs 0 and 1.
- *    (Ids can be extracted using android.hardware.camera2.CameraCharacteristics)
+ * o- The cameras are the first ones of CameraManager.getCameraIdList(), one per preview of the
+ *    layout. On a smartphone these are usually the back and front cameras, IDs 0 and 1.
  * o- App will only be used in landscape mode
  * o- Saved pictures will only be viewed in landscape mode
  *
@@ -106,28 +106,80 @@ import java.util.concurrent.TimeUnit;
 public class Camera2FragmentDual extends Fragment
         implements View.OnClickListener, ActivityCompat.OnRequestPermissionsResultCallback {
 
+    private static final String TAG = "Camera2FragmentDual";
+
+    /** Conversion from screen rotation to JPEG orientation. */
+    private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
+
+    static {
+        ORIENTATIONS.append(Surface.ROTATION_0, 90);
+        ORIENTATIONS.append(Surface.ROTATION_90, 0);
+        ORIENTATIONS.append(Surface.ROTATION_180, 270);
+        ORIENTATIONS.append(Surface.ROTATION_270, 180);
+    }
+
     private static final int REQUEST_CAMERA_PERMISSION = 0;
     private static final String FRAGMENT_DIALOG = "dialog";
 
     public static final int REQUEST_SEND_IMAGE = 1;
     public static final int RESULT_PICTURE_SENT = 1;
 
-    // Hardcoded for now. Can be obtained from android.hardware.camera2.CameraCharacteristics
-    private static final String CAM_0_ID = "0";
-    private static final String CAM_1_ID = "1";
+    /**
+     * Views of the preview slots of the layout. The cameras of
+     * {@link CameraManager#getCameraIdList()} are shown one per slot, in order.
+     */
+    private static final int[] TEXTURE_VIEW_IDS = {R.id.texture0, R.id.texture1};
+    private static final int[] TOGGLE_BUTTON_IDS = {R.id.cam0ToggleButton, R.id.cam1ToggleButton};
+    private static final int[] TITLE_VIEW_IDS = {R.id.cam0TitleView, R.id.cam1TitleView};
+    private static final int[] STATUS_VIEW_IDS = {R.id.cam0StatusView, R.id.cam1StatusView};
+
+    /** {@link CameraTrace} key of the capture of a synchronized pair. */
+    private static final String PAIR_TRACE_KEY = "pair";
+
+    /** Largest sensor timestamp difference at which two stills count as one synchronized pair. */
+    private static final long PAIR_TOLERANCE_NS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    /** How long pausing may wait, in all, for the captures and their metadata to be saved. */
+    private static final long DRAIN_TIMEOUT_MS = 2500;
+
+    /** How long a still may wait for its partner before it is saved on its own. */
+    private static final long PAIR_TIMEOUT_MS = 1000;
 
-    /** A {@link Semaphore} to prevent the app from exiting before closing the camera. */
-    private Semaphore mCameraOpenCloseLock0 = new Semaphore(1);
-    private Semaphore mCameraOpenCloseLock1 = new Semaphore(1);
+    /** Largest preview size of each camera. */
+    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
-    /** ID and {@link CameraDevice} map of opened camera devices. */
-    private Map<String, CameraDevice> cameraDeviceMap = new HashMap<>();
+    /** Frame rate the previews are planned for. */
+    private static final int PREVIEW_FPS = 30;
 
-    /** Camera ID and {@link CaptureRequest.Builder} for the camera preview. */
-    private Map<String, CaptureRequest.Builder> cameraCaptureRequestBuilderMap = new HashMap<>();
+    /** Number of threads saving the captures, and how many captures may wait for one. */
+    private static final int SAVER_THREADS = 2;
+    private static final int SAVE_QUEUE = 4;
 
-    /** Camera ID and {@link CameraCaptureSession } map for camera previews. */
-    private Map<String, CameraCaptureSession> cameraCaptureSessionMap = new HashMap<>();
+    /** How many stills of one camera may wait in {@link #mPairMatcher} for their partner. */
+    private static final int PAIR_PENDING = 1;
+
+    /**
+     * Images the still reader of each camera holds: one for each saver thread, queued capture
+     * and still waiting for its partner, and one more, so that the still the full queue rejects
+     * can still be acquired.
+     */
+    private static final int STILL_MAX_IMAGES = SAVER_THREADS + SAVE_QUEUE + PAIR_PENDING + 1;
+
+    /** How many saved captures, and how many still results, may wait to be joined. */
+    private static final int PENDING_METADATA = 8;
+
+    /** Where {@link #mThumbnailStage} keeps the thumbnails, hidden in the gallery directory. */
+    private static final String THUMBNAIL_DIRECTORY = ".thumbnails";
+
+    /** How much disk space the thumbnails may take. */
+    private static final long THUMBNAIL_DISK_BYTES = 16 * 1024 * 1024;
+
+    /** One {@link CameraController} per preview slot with a camera, in slot order. */
+    private final List<CameraController> mControllers = new ArrayList<>();
+
+    /** Opens all cameras in parallel. */
+    private MultiCameraOpener mCameraOpener;
 
     private CameraManager mCameraManager;
 
@@ -137,21 +189,157 @@ public class Camera2FragmentDual extends Fragment
     /** An additional thread for running tasks that shouldn't block the UI. */
     private HandlerThread mBackgroundThread;
 
-    private TextureView mTextureView0;
-    private TextureView mTextureView1;
+    /** Records the latency of each camera lifecycle phase. */
+    private final CameraTrace mTrace = CameraTrace.getInstance();
+
+    /** Encodes and saves captures off the camera threads. */
+    private PersistenceExecutor mPersistenceExecutor;
+
+    /**
+     * Writes the metadata of captures whose still result came after they were saved, and does
+     * the other bookkeeping of {@link #mCaptureStore}, apart from the captures.
+     */
+    private PersistenceExecutor mMetadataExecutor;
+
+    /** Names and writes the captures in the Picture gallery, or null if saving is disabled. */
+    private CaptureStore mCaptureStore;
+
+    /** Records every capture saved by {@link #mCaptureStore}, or null if it couldn't be opened. */
+    private CaptureJournal mCaptureJournal;
+
+    /** Makes the thumbnails of the captures of {@link #mCaptureStore}, or null if there are none. */
+    private ThumbnailStage mThumbnailStage;
+
+    /** Sizes the outputs of the cameras to a stream combination they can all sustain at once. */
+    private StreamPlanner mStreamPlanner;
+
+    /**
+     * Whether stills are currently routed through {@link #mPairMatcher}, i.e. whether exactly
+     * two cameras were running when capture was pressed.
+     */
+    private volatile boolean mPairedCapture;
+
+    /** The two cameras of the last paired capture, as sources 0 and 1 of {@link #mPairMatcher}. */
+    private volatile CameraController[] mPair;
 
-    private Button mStartStopCam0;
-    private Button mStartStopCam1;
+    /** Lends the buffers {@link #mStereoCompositor} builds each pair in. */
+    private final PlaneBufferPool mStereoBuffers =
+            new PlaneBufferPool(/*maxIdlePerSize*/1, null);
+
+    /**
+     * Combines the stills of a synchronized pair into one MPO file. The stills are encoded by
+     * the cameras, and an MPO keeps them as they are rather than decoding them.
+     */
+    private final StereoCompositor mStereoCompositor =
+            new StereoCompositor(mStereoBuffers, /*encoder*/null);
+
+    /** Matches the stills of both cameras by sensor timestamp and saves them together. */
+    private final CapturePairMatcher<Image> mPairMatcher = new CapturePairMatcher<>(
+            PAIR_TOLERANCE_NS, PAIR_PENDING, new CapturePairMatcher.Listener<Image>() {
+                @Override
+                public void onPair(CapturePairMatcher.CapturePair<Image> pair) {
+                    Log.d(TAG, "Paired capture, skew " + pair.getSkewNanos() / 1000 + " us");
+                    CameraController[] cameras = mPair;
+                    save(new StereoSaver(cameras[0].getCameraId(), cameras[1].getCameraId(),
+                            pair.getFirst(), pair.getSecond()), PAIR_TRACE_KEY);
+                }
+
+                @Override
+                public void onUnmatched(int source, long timestamp, Image capture) {
+                    Log.w(TAG, "No partner for still of camera " + source + " at " + timestamp);
+                    mTrace.cancel(CameraTrace.CAPTURE, PAIR_TRACE_KEY);
+                    String cameraId = mPair[source].getCameraId();
+                    save(new GallerySaver(cameraId, capture), cameraId);
+                }
+            });
+
+    /**
+     * Joins every saved capture with the {@link TotalCaptureResult} of its still, by camera and
+     * sensor timestamp, then writes its metadata sidecar and records it in
+     * {@link #mCaptureJournal}. A capture whose result is already there is joined right after it
+     * is saved, on {@link #mPersistenceExecutor}; a result that comes after its capture is joined
+     * on {@link #mMetadataExecutor}, so that it never evicts a queued capture. A pair is joined
+     * with the result of its first camera.
+     */
+    private final CaptureMetadataJoiner<TotalCaptureResult> mMetadataJoiner =
+            new CaptureMetadataJoiner<>(PENDING_METADATA, new Executor() {
+                @Override
+                public void execute(@NonNull Runnable job) {
+                    PersistenceExecutor executor = mMetadataExecutor;
+                    if (null == executor || !executor.submit(job)) {
+                        // The capture is already out of the joiner: better a write on this
+                        // thread than a capture missing from the journal.
+                        Log.w(TAG, "Metadata queue full, joining on the camera thread");
+                        job.run();
+                    }
+                }
+            }, new CaptureMetadataJoiner.Listener<TotalCaptureResult>() {
+                @Override
+                public void onJoined(long timestamp, CaptureMetadataJoiner.Saved saved,
+                                     TotalCaptureResult result) {
+                    CaptureMetadata metadata = CaptureMetadata.of(result);
+                    try {
+                        metadata.writeSidecar(saved.getFile());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    appendToJournal(timestamp, saved, metadata.getExposureTimeNanos(),
+                            metadata.getSensitivity());
+                }
+
+                @Override
+                public void onUnjoined(long timestamp, CaptureMetadataJoiner.Saved saved) {
+                    appendToJournal(timestamp, saved, -1, -1);
+                }
+            });
+
+    /**
+     * Hands the result of every still to {@link #mMetadataJoiner}. Its metadata is only read
+     * once the capture is saved, off the camera thread.
+     */
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    String cameraId = session.getDevice().getId();
+                    CameraController[] pair = mPair;
+                    if (mPairedCapture && pair[1].getCameraId().equals(cameraId)) {
+                        // A pair is saved as one capture, joined with its first camera's result.
+                        return;
+                    }
+                    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                    if (null != timestamp) {
+                        mMetadataJoiner.offerResult(cameraId, timestamp, result);
+                    }
+                }
+            };
+
+    /** Saves any still still waiting for its partner once {@link #PAIR_TIMEOUT_MS} has passed. */
+    private final Runnable mPairTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mPairMatcher.flush();
+        }
+    };
+
+    private TextureView[] mTextureViews;
+    private Button[] mToggleButtons;
+    private TextView[] mTitleViews;
+    private TextView[] mStatusViews;
     private Button mCaptureButton;
 
     private TextClock mDatetimeView;
-    private TextView mCam0StatusView;
-    private TextView mCam1StatusView;
 
-    private boolean mCam0Running;
-    private boolean mCam1Running;
+    /** Whether the camera of each slot should show a preview; survives stopping the cameras. */
+    private boolean[] mSlotRunning;
 
-    private Size mPreviewSize;
+    /**
+     * Whether restarting a camera resumes its configured session rather than creating a new one.
+     * See {@link CameraController#setWarmResume(boolean)}.
+     */
+    private boolean mWarmResume = true;
 
     protected File imageFile;
     private boolean isInPreviewMode;
@@ -166,25 +354,27 @@ public class Camera2FragmentDual extends Fragment
         }
     }
 
-    private TextureView.SurfaceTextureListener mSurfaceTextureListener0 = initSurfaceTextureListener(CAM_0_ID);
-    private TextureView.SurfaceTextureListener mSurfaceTextureListener1 = initSurfaceTextureListener(CAM_1_ID);
-
     /**
-     * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
-     * {@link TextureView}.
+     * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on the
+     * {@link TextureView} of a slot.
      */
-    private TextureView.SurfaceTextureListener initSurfaceTextureListener(final String camId) {
+    private TextureView.SurfaceTextureListener initSurfaceTextureListener(final int slot) {
         return new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture,
                                                   int width, int height) {
-                mCameraManager = (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
-                setUpCamera(camId, width, height);
-                openCamera(camId);
+                CameraController controller = getController(slot);
+                if (null != controller) {
+                    setUpCamera(controller, width, height);
+                    controller.startPreviewIfReady();
+                }
             }
             @Override
             public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {
-                configureTransform(camId, width, height);
+                CameraController controller = getController(slot);
+                if (null != controller) {
+                    configureTransform(controller, width, height);
+                }
             }
             @Override
             public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
@@ -197,38 +387,59 @@ public class Camera2FragmentDual extends Fragment
         };
     }
 
-    private CameraDevice.StateCallback mStateCallback0 = initSateCallback(CAM_0_ID);
-    private CameraDevice.StateCallback mStateCallback1 = initSateCallback(CAM_1_ID);
-
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
+     * {@link MultiCameraOpener.Listener} is called on the thread of each camera as soon as that
+     * camera is open, without waiting for the others.
      */
-    private CameraDevice.StateCallback initSateCallback(final String camId) {
-        final Semaphore camLock = camId.equals(CAM_0_ID)
-                ? mCameraOpenCloseLock0 : mCameraOpenCloseLock1;
-        return new CameraDevice.StateCallback() {
-            @Override
-            public void onOpened(@NonNull CameraDevice cameraDevice) {
-                camLock.release();
-                cameraDeviceMap.put(camId, cameraDevice);
-                if (camId.equals(CAM_0_ID)) createCameraPreviewSession(camId); // don't call cam1 on startup
+    private final MultiCameraOpener.Listener mOpenerListener = new MultiCameraOpener.Listener() {
+        @Override
+        public void onOpened(@NonNull CameraController controller, long openNanos) {
+            if (controller.isRunning()) {
+                controller.startPreviewIfReady();
+            } else {
+                mTrace.cancel(CameraTrace.TIME_TO_FIRST_FRAME, controller.getCameraId());
             }
-            @Override
-            public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-                camLock.release();
-                cameraDevice.close();
-                cameraDeviceMap.put(camId, null);
-            }
-            @Override
-            public void onError(@NonNull CameraDevice cameraDevice, int error) {
-                camLock.release();
-                cameraDevice.close();
-                cameraDeviceMap.put(camId, null);
+        }
+        @Override
+        public void onFailed(@NonNull CameraController controller, int error) {
+            mTrace.cancel(CameraTrace.TIME_TO_FIRST_FRAME, controller.getCameraId());
+            if (error != -1) {
                 Activity activity = getActivity();
                 if (null != activity) {
                     activity.finish();
                 }
             }
+        }
+    };
+
+    /**
+     * {@link ImageReader.OnImageAvailableListener} is called when a JPEG still from the camera
+     * is ready to be saved.
+     */
+    private ImageReader.OnImageAvailableListener initImageAvailableListener(
+            final CameraController controller) {
+        return new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                // The reader has a slot more than the saver and the matcher can hold, so this
+                // never fails.
+                Image image = reader.acquireNextImage();
+                if (null == image) {
+                    return;
+                }
+                StreamPlanner.Plan plan = controller.getStreamPlan();
+                if (plan != null) {
+                    plan.recordFrame(CameraController.STILL_STREAM, System.nanoTime());
+                }
+                CameraController[] pair = mPair;
+                if (mPairedCapture && (controller == pair[0] || controller == pair[1])) {
+                    // The Image timestamp is the SENSOR_TIMESTAMP of the capture result.
+                    mPairMatcher.offer(controller == pair[0] ? 0 : 1, image.getTimestamp(), image);
+                } else {
+                    save(new GallerySaver(controller.getCameraId(), image),
+                            controller.getCameraId());
+                }
+            }
         };
     }
 
@@ -251,27 +462,51 @@ public class Camera2FragmentDual extends Fragment
         mDatetimeView = view.findViewById(R.id.datetimeView);
         mDatetimeView.setFormat24Hour("yyyy-MM-dd HH:mm:ss");
 
-        mStartStopCam0 = view.findViewById(R.id.cam0ToggleButton);
-        mStartStopCam0.setTag(1);
-        mCam0Running = true;
-        mStartStopCam0.setText("Stop");
-        mStartStopCam0.setOnClickListener(this);
-        mCam0StatusView = view.findViewById(R.id.cam0StatusView);
-        mCam0StatusView.setText("On");
-
-        mStartStopCam1 = view.findViewById(R.id.cam1ToggleButton);
-        mStartStopCam1.setTag(0);
-        mCam1Running = false;
-        mStartStopCam1.setText("Start");
-        mStartStopCam1.setOnClickListener(this);
-        mCam1StatusView = view.findViewById(R.id.cam1StatusView);
-        mCam1StatusView.setText("Off");
+        int slots = TEXTURE_VIEW_IDS.length;
+        mTextureViews = new TextureView[slots];
+        mToggleButtons = new Button[slots];
+        mTitleViews = new TextView[slots];
+        mStatusViews = new TextView[slots];
+        mSlotRunning = new boolean[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            mTextureViews[slot] = view.findViewById(TEXTURE_VIEW_IDS[slot]);
+            mToggleButtons[slot] = view.findViewById(TOGGLE_BUTTON_IDS[slot]);
+            mToggleButtons[slot].setOnClickListener(this);
+            mToggleButtons[slot].setOnLongClickListener(mWarmResumeToggle);
+            mTitleViews[slot] = view.findViewById(TITLE_VIEW_IDS[slot]);
+            mStatusViews[slot] = view.findViewById(STATUS_VIEW_IDS[slot]);
+        }
+        // Only the first camera runs on startup.
+        mSlotRunning[0] = true;
+        for (int slot = 0; slot < slots; slot++) {
+            updateSlotViews(slot);
+        }
 
         mCaptureButton = view.findViewById(R.id.capture);
         mCaptureButton.setOnClickListener(this);
 
-        mTextureView0 = (TextureView)view.findViewById(R.id.texture0);
-        mTextureView1 = (TextureView)view.findViewById(R.id.texture1);
+        // Long-pressing the title dumps the camera lifecycle latency histograms.
+        view.findViewById(R.id.titleView).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Log.i(TAG, mTrace.dump());
+                Log.i(TAG, mStereoCompositor.getCompositeTime().toString());
+                if (mStreamPlanner != null) {
+                    Log.i(TAG, mStreamPlanner.report());
+                }
+                Toast.makeText(getActivity(), "Camera trace written to the log",
+                        Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        // Opened once for the life of the fragment rather than on every onResume(), which comes
+        // again after the permission dialog.
+        openStorage();
     }
 
     @Override
@@ -296,57 +531,109 @@ public class Camera2FragmentDual extends Fragment
     }
 
     /**
-     * Sets up member variables related to camera.
-     *
-     * @param width  The width of available size for camera preview
-     * @param height The height of available size for camera preview
+     * Long-pressing a camera toggle switches between resuming the configured session and
+     * creating a new one on restart, to compare their latency in the camera trace.
      */
-    @SuppressWarnings("ConstantConditions")
-    private void setUpCamera(String cameraId, int width, int height) {
+    private final View.OnLongClickListener mWarmResumeToggle = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            mWarmResume = !mWarmResume;
+            for (CameraController controller : mControllers) {
+                controller.setWarmResume(mWarmResume);
+            }
+            Toast.makeText(getActivity(), mWarmResume ? "Warm resume on" : "Warm resume off",
+                    Toast.LENGTH_SHORT).show();
+            return true;
+        }
+    };
+
+    /**
+     * Creates a {@link CameraController} for every preview slot, taking the cameras in the order
+     * of {@link CameraManager#getCameraIdList()}. On API 28+ this includes logical multi-cameras,
+     * which are driven like any other camera. Cameras beyond the number of slots are not used.
+     */
+    private void createControllers() {
+        mControllers.clear();
         try {
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = characteristics.get(
-                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class), width, height);
-            configureTransform(cameraId, width, height);
-            return;
+            CameraCharacteristicsCache cache = CameraCharacteristicsCache.getInstance(getActivity());
+            for (String cameraId : cache.getCameraIdList()) {
+                if (mControllers.size() == mTextureViews.length) {
+                    break;
+                }
+                CameraCharacteristicsCache.CameraInfo info = cache.get(cameraId);
+                if (!info.hasOutputs()) {
+                    continue;
+                }
+                int slot = mControllers.size();
+                CameraController controller =
+                        new CameraController(info, mTextureViews[slot], mTrace);
+                controller.setRunning(mSlotRunning[slot]);
+                controller.setWarmResume(mWarmResume);
+                mControllers.add(controller);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
-        catch (NullPointerException e) {
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the
-            // device this code runs.
-            Camera2BasicFragment.ErrorDialog.newInstance(getString(R.string.camera_error))
-                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        for (int slot = 0; slot < mTextureViews.length; slot++) {
+            CameraController controller = getController(slot);
+            mTitleViews[slot].setText(null == controller
+                    ? "No camera" : "Cam " + controller.getCameraId() + ": ");
+            mToggleButtons[slot].setEnabled(null != controller);
         }
     }
 
     /**
-     * Given {@code outputSizes} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value.
+     * Returns the {@link CameraController} of a slot, or null if the slot has no camera.
+     */
+    private CameraController getController(int slot) {
+        return slot < mControllers.size() ? mControllers.get(slot) : null;
+    }
+
+    /**
+     * Sets up the outputs of a camera.
      *
      * @param width  The width of available size for camera preview
      * @param height The height of available size for camera preview
-     *
-     * https://github.com/matdziu/collage/blob/master/app/src/main/java/pl/collage/camera/CameraFragment.java
-     *
      */
-    private Size chooseOptimalSize(Size[] outputSizes, int width, int height) {
-        double preferredRatio = height / (double) width;
-        Size currentOptimalSize = outputSizes[0];
-        double currentOptimalRatio = currentOptimalSize.getWidth() / (double) currentOptimalSize.getHeight();
-        for (Size currentSize : outputSizes) {
-            double currentRatio = currentSize.getWidth() / (double) currentSize.getHeight();
-            if (Math.abs(preferredRatio - currentRatio) <
-                    Math.abs(preferredRatio - currentOptimalRatio)) {
-                currentOptimalSize = currentSize;
-                currentOptimalRatio = currentRatio;
-            }
+    @SuppressWarnings("ConstantConditions")
+    private void setUpCamera(CameraController controller, int width, int height) {
+        try {
+            CameraCharacteristicsCache.CameraInfo info = controller.getInfo();
+            // With several cameras streaming, each one is held to the concurrent combinations,
+            // which keep the previews at 720p and the stills at 1440p. The previews are drawn at
+            // half the screen each anyway. The view is portrait, the sensor landscape.
+            Size largest = info.getLargestOutputSize(ImageFormat.JPEG);
+            StreamPlanner.Plan plan = mStreamPlanner.plan(controller.getCameraId(),
+                    info.getHardwareLevel(), mControllers.size(),
+                    new StreamPlanner.Stream("preview", StreamPlanner.PRIV,
+                            info.getPreviewSizeSelector(), new SizeSelector.Constraints(height,
+                            width, MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, height, width),
+                            PREVIEW_FPS),
+                    new StreamPlanner.Stream("still", StreamPlanner.JPEG,
+                            info.getOutputSizeSelector(ImageFormat.JPEG),
+                            new SizeSelector.Constraints(Integer.MAX_VALUE, Integer.MAX_VALUE,
+                                    Integer.MAX_VALUE, Integer.MAX_VALUE, largest.getWidth(),
+                                    largest.getHeight()), 0));
+            Size previewSize =
+                    info.getPreviewSizes()[plan.getSizeIndex(CameraController.PREVIEW_STREAM)];
+
+            // For still image captures, we use the largest JPEG size the plan allows, encoded by
+            // the camera hardware rather than read back from the preview.
+            Size stillSize = info.getOutputSizes(ImageFormat.JPEG)[
+                    plan.getSizeIndex(CameraController.STILL_STREAM)];
+            ImageReader imageReader = ImageReader.newInstance(stillSize.getWidth(),
+                    stillSize.getHeight(), ImageFormat.JPEG, STILL_MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(initImageAvailableListener(controller),
+                    controller.getHandler());
+            controller.setOutputs(previewSize, imageReader, plan);
+            configureTransform(controller, width, height);
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            Camera2BasicFragment.ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
         }
-        return currentOptimalSize;
     }
-
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -357,25 +644,25 @@ public class Camera2FragmentDual extends Fragment
      * @param viewWidth  The width of `mTextureView`
      * @param viewHeight The height of `mTextureView`
      */
-    private void configureTransform(String camId, int viewWidth, int viewHeight) {
-        TextureView textureView;
-        textureView = camId.equals(CAM_0_ID) ? mTextureView0 : mTextureView1;
+    private void configureTransform(CameraController controller, int viewWidth, int viewHeight) {
+        TextureView textureView = controller.getTextureView();
+        Size previewSize = controller.getPreviewSize();
         Activity activity = getActivity();
-        if (null == textureView || null == mPreviewSize || null == activity) {
+        if (null == textureView || null == previewSize || null == activity) {
             return;
         }
         int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
         Matrix matrix = new Matrix();
         RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        RectF bufferRect = new RectF(0, 0, previewSize.getHeight(), previewSize.getWidth());
         float centerX = viewRect.centerX();
         float centerY = viewRect.centerY();
         if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
             bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
             matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
             float scale = Math.max(
-                    (float) viewHeight / mPreviewSize.getHeight(),
-                    (float) viewWidth / mPreviewSize.getWidth());
+                    (float) viewHeight / previewSize.getHeight(),
+                    (float) viewWidth / previewSize.getWidth());
             matrix.postScale(scale, scale, centerX, centerY);
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
         } else if (Surface.ROTATION_180 == rotation) {
@@ -384,102 +671,88 @@ public class Camera2FragmentDual extends Fragment
         textureView.setTransform(matrix);
     }
 
+
     /**
-     * Opens the camera specified by camId.
+     * Opens all cameras at once. Each one starts its preview as soon as both the device and its
+     * texture are ready, whichever comes first.
      */
-    private void openCamera(String camId) {
+    private void openCameras() {
         if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
                 != PackageManager.PERMISSION_GRANTED) {
             requestCameraPermission();
             return;
         }
-        try
-        {
-            if (camId.equals(CAM_0_ID)) {
-                if (!mCameraOpenCloseLock0.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                    throw new RuntimeException("Time out waiting to lock camera opening.");
-                }
-                mCameraManager.openCamera(camId, mStateCallback0, mBackgroundHandler);
-            }
-            else {
-                if (!mCameraOpenCloseLock1.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                    throw new RuntimeException("Time out waiting to lock camera opening.");
-                }
-                mCameraManager.openCamera(camId, mStateCallback1, mBackgroundHandler);
-            }
-        }
-        catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
-        catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
-        }
-    }
-
-    /**
-     * Creates a new CameraCaptureSession for camera preview.
-     *
-     * Adapted from https://github.com/googlesamples/android-Camera2Basic
-     *
-     * @param camId  ID of the camera device to create a preview of
-     */
-    private void createCameraPreviewSession(final String camId)
-    {
-        final CameraDevice cameraDevice = cameraDeviceMap.get(camId);
-        SurfaceTexture surfaceTexture;
-        try {
-            surfaceTexture = camId.equals("0")
-                    ? mTextureView0.getSurfaceTexture() : mTextureView1.getSurfaceTexture();
-            assert surfaceTexture != null;
-            surfaceTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            Surface previewSurface = new Surface(surfaceTexture);
-            cameraCaptureRequestBuilderMap.put(camId, cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW));
-            cameraCaptureRequestBuilderMap.get(camId).addTarget(previewSurface);
-
-            cameraDevice.createCaptureSession(Collections.singletonList(previewSurface),
-                new CameraCaptureSession.StateCallback() {
-                    @Override
-                    public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                        if (cameraDevice == null) {
-                            return;
-                        }
-                        cameraCaptureSessionMap.put(camId, cameraCaptureSession); //mCaptureSession0 = cameraCaptureSession;
-                        try {
-                            // Finally, we start displaying the camera preview
-                            cameraCaptureSessionMap.get(camId).setRepeatingRequest(
-                                    cameraCaptureRequestBuilderMap.get(camId).build(),
-                                    null, mBackgroundHandler); // captureCallback?
-                        } catch (CameraAccessException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    @Override
-                    public void onConfigureFailed(
-                            @NonNull CameraCaptureSession cameraCaptureSession) {
-                        // onConfigureFailed()
-                    }
-                }, mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
+        for (CameraController controller : mControllers) {
+            mTrace.begin(CameraTrace.TIME_TO_FIRST_FRAME, controller.getCameraId());
         }
+        mCameraOpener.open(mControllers, mOpenerListener);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         startBackgroundThread();
+        mCameraManager = (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
+        mCameraOpener = new MultiCameraOpener(mCameraManager, mTrace);
+        mStreamPlanner = createStreamPlanner();
+        createControllers();
 
-        if (mTextureView0.isAvailable()) {
-            openCamera(CAM_0_ID);
-        } else {
-            mTextureView0.setSurfaceTextureListener(mSurfaceTextureListener0);
+        // Open the cameras right away rather than once each texture is available: opening is
+        // the slowest step, and it doesn't need a surface.
+        openCameras();
+
+        for (int slot = 0; slot < mControllers.size(); slot++) {
+            CameraController controller = mControllers.get(slot);
+            TextureView textureView = mTextureViews[slot];
+            if (textureView.isAvailable()) {
+                setUpCamera(controller, textureView.getWidth(), textureView.getHeight());
+                controller.startPreviewIfReady();
+            } else {
+                textureView.setSurfaceTextureListener(initSurfaceTextureListener(slot));
+            }
         }
+    }
 
-        if (mTextureView1.isAvailable()) {
-            openCamera(CAM_1_ID);
-        } else {
-            mTextureView1.setSurfaceTextureListener(mSurfaceTextureListener1);
+    /**
+     * Opens the capture store in the Picture gallery, with its journal and thumbnails. Without
+     * the storage permission, or with the storage unmounted, the gallery can't be created:
+     * saving is then disabled, and the cameras still preview.
+     */
+    private void openStorage() {
+        File gallery = getImageGallery();
+        try {
+            mCaptureJournal = new CaptureJournal(gallery);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        try {
+            // Resumes the sequence from the journal rather than listing the gallery.
+            mCaptureStore = new CaptureStore(gallery, mCaptureJournal);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            mThumbnailStage = new ThumbnailStage(
+                    new File(mCaptureStore.getDirectory(), THUMBNAIL_DIRECTORY),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE),
+                    THUMBNAIL_DISK_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a {@link StreamPlanner} whose {@code PREVIEW} size class is the display size, up to
+     * 1080p, and whose {@code RECORD} size class is 1080p.
+     */
+    private StreamPlanner createStreamPlanner() {
+        Point displaySize = new Point();
+        getActivity().getWindowManager().getDefaultDisplay().getSize(displaySize);
+        int longSide = Math.max(displaySize.x, displaySize.y);
+        int shortSide = Math.min(displaySize.x, displaySize.y);
+        return new StreamPlanner(Math.min(MAX_PREVIEW_WIDTH, longSide),
+                Math.min(MAX_PREVIEW_HEIGHT, shortSide), MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT);
     }
 
     /**
@@ -489,43 +762,108 @@ public class Camera2FragmentDual extends Fragment
         mBackgroundThread = new HandlerThread("camera_background_thread");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        // A queued capture was already shot, so the queue refuses new ones rather than dropping
+        // it. Every capture it holds also holds a reader slot, and the readers have one more.
+        mPersistenceExecutor = new PersistenceExecutor("capture_persistence", SAVER_THREADS,
+                SAVE_QUEUE, PersistenceExecutor.Backpressure.REJECT);
+        // The bookkeeping jobs go to their own lane, so that none of them evicts a capture.
+        mMetadataExecutor = new PersistenceExecutor("capture_metadata", 1, PENDING_METADATA,
+                PersistenceExecutor.Backpressure.REJECT);
+        final CaptureStore store = mCaptureStore;
+        if (null != store) {
+            // Lists the gallery, once per store.
+            mMetadataExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    store.deleteTempFiles();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (null != mThumbnailStage) {
+            mThumbnailStage.getCache().clearMemory();
+        }
+    }
+
+    /**
+     * Undoes {@link #onResume()}, which comes again after every pause, e.g. after the permission
+     * dialog: the cameras, their threads and readers, and the executors are all rebuilt there.
+     */
+    @Override
+    public void onPause() {
+        closeCameras();
+        // No more stills come in once the camera threads have stopped. Queue the saves of those
+        // still waiting for their partner, and let the persistence stage drain before the
+        // readers, which own the buffers of their images, are closed.
+        mPairMatcher.flush();
+        stopBackgroundThread();
+        closeOutputs();
+        Log.d(TAG, mPairMatcher.getSkew().toString());
+        Log.d(TAG, mStereoCompositor.getCompositeTime().toString());
+        Log.d(TAG, mTrace.dump());
+        Log.d(TAG, mStreamPlanner.report());
+        super.onPause();
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        closeCamera(CAM_0_ID);
-        closeCamera(CAM_1_ID);
-        stopBackgroundThread();
         if (getActivity() != null) {
             getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_FULL_SENSOR);
         }
     }
 
-    /**
-     * Closes the {@link CameraDevice} specified by camId.
-     */
-    private void closeCamera(String camId) {
-        Semaphore cameraLock = camId.equals("0") ? mCameraOpenCloseLock0 : mCameraOpenCloseLock1;
-        CameraCaptureSession captureSession = cameraCaptureSessionMap.get(camId);
-        CameraDevice cameraDevice = cameraDeviceMap.get(camId);
-        try {
-            cameraLock.acquire();
-            if (null != captureSession) {
-                captureSession.close();
+    @Override
+    public void onDestroy() {
+        if (null != mThumbnailStage) {
+            if (!mThumbnailStage.shutdown(2500)) {
+                Log.w(TAG, "Timed out waiting for pending thumbnails");
             }
-            if (null != cameraDevice) {
-                cameraDevice.close();
+            Log.d(TAG, mThumbnailStage.toString());
+            mThumbnailStage = null;
+        }
+        // Every capture was saved when the background thread stopped.
+        if (null != mCaptureJournal) {
+            try {
+                mCaptureJournal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            cameraLock.release();
+            mCaptureJournal = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Closes every camera and its session, and stops its thread. The readers stay open until
+     * {@link #closeOutputs()}.
+     */
+    private void closeCameras() {
+        for (CameraController controller : mControllers) {
+            controller.close();
+            mStreamPlanner.remove(controller.getCameraId());
         }
+        mCameraOpener = null;
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Closes the readers of every camera closed by {@link #closeCameras()}, once the images
+     * acquired from them have been saved.
+     */
+    private void closeOutputs() {
+        for (CameraController controller : mControllers) {
+            controller.closeOutputs();
+        }
+        mControllers.clear();
+    }
+
+    /**
+     * Stops the background thread and its {@link Handler}, and drains the persistence and the
+     * metadata lanes within {@link #DRAIN_TIMEOUT_MS} in all.
      */
     private void stopBackgroundThread() {
         if (mBackgroundHandler != null) {
@@ -533,136 +871,375 @@ public class Camera2FragmentDual extends Fragment
             mBackgroundThread = null;
             mBackgroundHandler = null;
         }
+        if (mPersistenceExecutor != null) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+            // The cameras are closed, so no more results will come for the captures still
+            // waiting.
+            Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    mMetadataJoiner.flush();
+                }
+            };
+            boolean flushQueued = mPersistenceExecutor.submit(flush);
+            if (!mPersistenceExecutor.shutdown(millisUntil(deadline))) {
+                Log.w(TAG, "Timed out waiting for pending captures to be saved");
+            }
+            Log.d(TAG, mPersistenceExecutor.toString());
+            mPersistenceExecutor = null;
+            if (!flushQueued) {
+                flush.run();
+            }
+            if (!mMetadataExecutor.shutdown(millisUntil(deadline))) {
+                Log.w(TAG, "Timed out waiting for pending metadata to be written");
+            }
+            Log.d(TAG, mMetadataExecutor.toString());
+            mMetadataExecutor = null;
+            Log.d(TAG, mMetadataJoiner.toString());
+        }
+    }
+
+    /**
+     * Returns the milliseconds left until a {@link System#nanoTime()} deadline, or 0 if it has
+     * passed.
+     */
+    private static long millisUntil(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
     }
 
     @Override
     public void onClick(View view) {
-        switch (view.getId()) {
-            case R.id.cam0ToggleButton: {
-                final int status = (Integer)view.getTag();
-                if (status == 1) {  // cam0 already running, so only option is to stop
-                    freezePreview(CAM_0_ID);  // Since preview is stopped,
-                    mCam0Running = false;
-                    mCam0StatusView.setText("Off");
-                    mStartStopCam0.setText("Start");  // button should display start as option
-                    view.setTag(0);
-                }
-                else {  // cam0 already stopped, so only option is to start
-                    createCameraPreviewSession(CAM_0_ID);  // Since new preview session is started,
-                    mCam0Running = true;
-                    mCam0StatusView.setText("On");
-                    mStartStopCam0.setText("Stop");  // button should display stop as option
-                    view.setTag(1);
-                }
-                break;
-            }
-            case R.id.cam1ToggleButton: {
-                final int status = (Integer)view.getTag();
-                if (status == 1) {  // cam1 already running, so only option is to stop
-                    freezePreview(CAM_1_ID);  // Since preview is stopped,
-                    mCam1Running = false;
-                    mCam1StatusView.setText("Off");
-                    mStartStopCam1.setText("Start");  // button should display start as option
-                    view.setTag(0);
-                }
-                else {  // cam1 already stopped, so only option is to start
-                    createCameraPreviewSession(CAM_1_ID); // start new session
-                    mCam1Running = true;
-                    mCam1StatusView.setText("On");
-                    mStartStopCam1.setText("Stop");  // button should display stop as option
-                    view.setTag(1);
-                }
-                break;
+        if (view.getId() == R.id.capture) {
+            captureRunningCameras();
+            return;
+        }
+        for (int slot = 0; slot < TOGGLE_BUTTON_IDS.length; slot++) {
+            if (view.getId() == TOGGLE_BUTTON_IDS[slot]) {
+                toggleCamera(slot);
+                return;
             }
-            case R.id.capture: {
-                // Only capture picture from live/running camera
-                if (mCam0Running && mCam1Running) {
-                    captureImage(CAM_0_ID);
-                    captureImage(CAM_1_ID);
-                }
-                else if (mCam0Running)
-                    captureImage(CAM_0_ID);
-                else if (mCam1Running)
-                    captureImage(CAM_1_ID);
+        }
+    }
 
-                break;
+    /**
+     * Stops the camera of a slot if it is running, and starts it otherwise.
+     */
+    private void toggleCamera(int slot) {
+        CameraController controller = getController(slot);
+        if (null == controller) {
+            return;
+        }
+        boolean running = !mSlotRunning[slot];
+        mSlotRunning[slot] = running;
+        controller.setRunning(running);
+        if (running) {
+            controller.restartPreview();  // resumes the session if it is still configured
+        } else {
+            controller.stopPreview();  // the last frame stays on screen
+        }
+        updateSlotViews(slot);
+    }
+
+    private void updateSlotViews(int slot) {
+        mStatusViews[slot].setText(mSlotRunning[slot] ? "On" : "Off");
+        // The button displays the only other option
+        mToggleButtons[slot].setText(mSlotRunning[slot] ? "Stop" : "Start");
+    }
+
+    /**
+     * Only captures pictures from live/running cameras. Two running cameras are captured as a
+     * synchronized pair, any other number one by one.
+     */
+    private void captureRunningCameras() {
+        if (null == mCaptureStore) {
+            Toast.makeText(getActivity(), "Saving is disabled", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<CameraController> running = new ArrayList<>();
+        for (CameraController controller : mControllers) {
+            if (controller.isRunning()) {
+                running.add(controller);
             }
         }
+        boolean captured = false;
+        if (running.size() == 2) {
+            captured = captureImagePair(running.get(0), running.get(1));
+        } else {
+            for (CameraController controller : running) {
+                captured |= captureImage(controller);
+            }
+        }
+        if (captured) {
+            lock();
+        }
     }
 
-    private void freezePreview(String camId) {
+    /**
+     * Captures a JPEG still from one camera. The image is encoded by the camera and saved to the
+     * Picture gallery from {@link #initImageAvailableListener(CameraController)}.
+     *
+     * @return Whether the capture was issued
+     */
+    private boolean captureImage(CameraController controller) {
+        CameraCaptureSession captureSession = controller.getSession();
         try {
-            cameraCaptureSessionMap.get(camId).stopRepeating();
-        } catch (CameraAccessException cae) {
-            cae.printStackTrace();
-        } catch (IllegalStateException ise) {
-            ise.printStackTrace();
+            CaptureRequest request = createStillRequest(controller);
+            if (null == request || null == captureSession) {
+                return false;
+            }
+            mPairedCapture = false;
+            mTrace.begin(CameraTrace.CAPTURE, controller.getCameraId());
+            captureSession.capture(request, mStillCaptureCallback, controller.getHandler());
+            return true;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
     /**
-     * Captures image from camera specified by camId and saves to Picture gallery.
+     * Captures a JPEG still from two cameras at once. Both requests are built up front and then
+     * issued back to back, and the resulting images are paired by sensor timestamp in
+     * {@link #mPairMatcher} before being saved as one unit.
      *
-     * https://github.com/matdziu/collage/blob/master/app/src/main/java/pl/collage/camera/CameraFragment.java
+     * @return Whether the captures were issued
      */
-    public void captureImage(String camId) {
+    private boolean captureImagePair(CameraController first, CameraController second) {
+        final CameraCaptureSession captureSession0 = first.getSession();
+        final CameraCaptureSession captureSession1 = second.getSession();
         try {
-            imageFile = createImageFile(createImageGallery());
-        } catch (IOException e) {
+            final CaptureRequest request0 = createStillRequest(first);
+            final CaptureRequest request1 = createStillRequest(second);
+            if (null == request0 || null == request1
+                    || null == captureSession0 || null == captureSession1) {
+                return false;
+            }
+            mPair = new CameraController[]{first, second};
+            mPairedCapture = true;
+            mTrace.begin(CameraTrace.CAPTURE, PAIR_TRACE_KEY);
+            // Issue both captures from one thread so nothing else runs between them.
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        captureSession0.capture(request0, mStillCaptureCallback,
+                                mBackgroundHandler);
+                        captureSession1.capture(request1, mStillCaptureCallback,
+                                mBackgroundHandler);
+                    } catch (CameraAccessException | IllegalStateException e) {
+                        e.printStackTrace();
+                    }
+                    mBackgroundHandler.removeCallbacks(mPairTimeout);
+                    mBackgroundHandler.postDelayed(mPairTimeout, PAIR_TIMEOUT_MS);
+                }
+            });
+            return true;
+        } catch (CameraAccessException e) {
             e.printStackTrace();
+            return false;
         }
+    }
 
-        final Bitmap textureViewBitmap;
+    /**
+     * Builds a JPEG still request for a camera.
+     *
+     * @return The request, or null if the camera is not ready
+     */
+    private CaptureRequest createStillRequest(CameraController controller)
+            throws CameraAccessException {
+        Activity activity = getActivity();
+        if (null == activity) {
+            return null;
+        }
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        return controller.createStillRequest(getOrientation(controller, rotation));
+    }
 
-        if (camId.equals("0")) textureViewBitmap = mTextureView0.getBitmap();
-        else textureViewBitmap = mTextureView1.getBitmap();
+    /**
+     * Retrieves the JPEG orientation of a camera from the specified screen rotation.
+     *
+     * @param rotation The screen rotation.
+     * @return The JPEG orientation (one of 0, 90, 270, and 360)
+     */
+    private int getOrientation(CameraController controller, int rotation) {
+        return (ORIENTATIONS.get(rotation)
+                + controller.getInfo().getSensorOrientation() + 270) % 360;
+    }
 
-        lock(textureViewBitmap);
+    /**
+     * Returns the directory of the app in the Picture gallery. {@link CaptureStore} creates it.
+     */
+    protected File getImageGallery() {
+        File storageDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        return new File(storageDirectory, getResources().getString(R.string.app_name));
+    }
 
-        mBackgroundHandler.post(new Runnable() {
-            FileOutputStream outputPhoto = null;
+    /**
+     * Saves the JPEG {@link Image} of one camera to the Picture gallery.
+     */
+    private class GallerySaver implements PersistenceExecutor.Droppable, ImageSaver.Callback {
 
-            @Override
-            public void run() {
-                try {
-                    outputPhoto = new FileOutputStream(imageFile);
-                    textureViewBitmap.compress(Bitmap.CompressFormat.PNG, 100, outputPhoto);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        if (outputPhoto != null) {
-                            outputPhoto.close();
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        /** The camera, also the {@link CameraTrace} key of the capture. */
+        private final String mCameraId;
+        private final Image mImage;
+
+        GallerySaver(String cameraId, Image image) {
+            mCameraId = cameraId;
+            mImage = image;
+        }
+
+        @Override
+        public void run() {
+            new ImageSaver(mImage, mCaptureStore, mCameraId, ImageSaver.Mode.ZERO_COPY, this,
+                    mThumbnailStage).run();
+            mTrace.end(CameraTrace.CAPTURE, mCameraId);
+        }
+
+        @Override
+        public void onImageSaved(File file, long timestamp, long size) {
+            imageFile = file;
+            recordCapture(mCameraId, mCameraId, timestamp, file, size);
+        }
+
+        @Override
+        public void drop() {
+            mImage.close();
+        }
+
+    }
+
+    /**
+     * Saves the stills of a synchronized pair to the Picture gallery as one MPO file, combined
+     * by {@link #mStereoCompositor} on the persistence thread.
+     */
+    private class StereoSaver implements PersistenceExecutor.Droppable {
+
+        /** The IDs of both cameras. */
+        private final String mCameraIds;
+
+        /** The camera of the first still, whose capture result the pair is joined with. */
+        private final String mFirstCameraId;
+        private final Image mFirst;
+        private final Image mSecond;
+
+        StereoSaver(String firstCameraId, String secondCameraId, Image first, Image second) {
+            mCameraIds = firstCameraId + "-" + secondCameraId;
+            mFirstCameraId = firstCameraId;
+            mFirst = first;
+            mSecond = second;
+        }
+
+        @Override
+        public void run() {
+            long timestamp = mFirst.getTimestamp();
+            long start = System.nanoTime();
+            ByteBuffer first = mFirst.getPlanes()[0].getBuffer();
+            // The first picture of the MPO is the one viewers show, so its thumbnail is the pair's.
+            byte[] exifThumbnail = ThumbnailStage.findExifThumbnail(first);
+            PlaneBufferPool.Lease lease;
+            try {
+                lease = mStereoCompositor.composeMpo(first, mSecond.getPlanes()[0].getBuffer());
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                mTrace.cancel(CameraTrace.CAPTURE, PAIR_TRACE_KEY);
+                return;
+            } finally {
+                // Both readers get their slots back before the file is written.
+                drop();
+            }
+            Log.d(TAG, "Composited pair in "
+                    + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us");
+            try {
+                // An MPO is a JPEG to viewers that only show its first picture.
+                long size = lease.getBuffer().remaining();
+                imageFile = mCaptureStore.write(mCameraIds, timestamp, lease.getBuffer());
+                recordCapture(mCameraIds, mFirstCameraId, timestamp, imageFile, size);
+                ThumbnailStage thumbnails = mThumbnailStage;
+                if (null != thumbnails) {
+                    thumbnails.submit(imageFile, exifThumbnail);
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                mStereoBuffers.release(lease);
             }
-        });
+            mTrace.end(CameraTrace.CAPTURE, PAIR_TRACE_KEY);
+        }
+
+        @Override
+        public void drop() {
+            mFirst.close();
+            mSecond.close();
+        }
+
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    protected File createImageGallery() {
-        File storageDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        File imageFolder = new File(storageDirectory, getResources().getString(R.string.app_name));
-        if (!imageFolder.exists()) {
-            imageFolder.mkdirs();
+    /**
+     * Queues a capture to be saved, or tells the user it was dropped if the queue is full.
+     *
+     * @param traceKey The {@link CameraTrace} key of the capture
+     */
+    private void save(PersistenceExecutor.Droppable saver, String traceKey) {
+        if (!mPersistenceExecutor.submit(saver)) {
+            Log.w(TAG, "Save queue full, dropping a capture");
+            mTrace.cancel(CameraTrace.CAPTURE, traceKey);
+            showToast("Capture dropped");
         }
-        return imageFolder;
     }
 
-    protected File createImageFile(File imageFolder) throws IOException {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
-                Locale.getDefault()).format(new Date());
-        String imageFileName = "image_" + timeStamp + "_";
-        return File.createTempFile(imageFileName, ".jpg", imageFolder);
+    /**
+     * Hands a saved capture to {@link #mMetadataJoiner}, on the persistence thread, once its
+     * file is committed.
+     *
+     * @param cameraIds      The cameras of the capture, as recorded in the journal
+     * @param resultCameraId The camera whose capture result the capture is joined with
+     */
+    private void recordCapture(String cameraIds, String resultCameraId, long timestamp,
+                               File file, long size) {
+        showToast("Saved");
+        mMetadataJoiner.offerCapture(resultCameraId, timestamp,
+                new CaptureMetadataJoiner.Saved(cameraIds, file, size));
     }
 
-    private void lock(Bitmap previewImage) {
+    /**
+     * Records a saved capture in {@link #mCaptureJournal}, on the persistence or the metadata
+     * thread. Called before those executors are shut down, and so before the journal is closed.
+     */
+    private void appendToJournal(long timestamp, CaptureMetadataJoiner.Saved saved,
+                                 long exposureNanos, int iso) {
+        CaptureJournal journal = mCaptureJournal;
+        if (null == journal) {
+            return;
+        }
+        try {
+            journal.append(saved.getCameraId(), timestamp, saved.getFile(), saved.getSize(),
+                    exposureNanos, iso);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void lock() {
         isInPreviewMode = true;
+        // "Saved" is shown once the file is committed, by recordCapture().
         sound.play(MediaActionSound.SHUTTER_CLICK);
-        Toast.makeText(getActivity(), "Saved", Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Shows a {@link Toast} on the UI thread.
+     *
+     * @param text The message to show
+     */
+    private void showToast(final String text) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Size;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of {@link CameraCharacteristics} and the values derived from them, keyed
+ * by camera ID. Every {@link CameraManager#getCameraCharacteristics(String)} call is a binder
+ * round trip to the camera service, and the fragments used to make several of them each time a
+ * camera was opened.
+ *
+ * <p>Characteristics of a camera ID never change, so an entry only goes stale when the set of
+ * cameras changes. The cache listens to {@link CameraManager.AvailabilityCallback} and drops the
+ * camera list, and the entry of the camera concerned, whenever a camera it has not seen before
+ * becomes available (e.g. an external camera is plugged in).</p>
+ */
+class CameraCharacteristicsCache {
+
+    private static CameraCharacteristicsCache sInstance;
+
+    private final CameraManager mCameraManager;
+
+    /**
+     * Cached entries, keyed by camera ID. Guarded by {@code this}.
+     */
+    private final Map<String, CameraInfo> mInfos = new HashMap<>();
+
+    /**
+     * Cached result of {@link CameraManager#getCameraIdList()}. Guarded by {@code this}.
+     */
+    private String[] mCameraIds;
+
+    private final CameraManager.AvailabilityCallback mAvailabilityCallback
+            = new CameraManager.AvailabilityCallback() {
+
+        @Override
+        public void onCameraAvailable(@NonNull String cameraId) {
+            synchronized (CameraCharacteristicsCache.this) {
+                if (mCameraIds != null && !Arrays.asList(mCameraIds).contains(cameraId)) {
+                    mCameraIds = null;
+                    mInfos.remove(cameraId);
+                }
+            }
+        }
+
+    };
+
+    /**
+     * Returns the cache shared by the whole process.
+     */
+    static synchronized CameraCharacteristicsCache getInstance(Context context) {
+        if (sInstance == null) {
+            CameraManager manager = (CameraManager) context.getApplicationContext()
+                    .getSystemService(Context.CAMERA_SERVICE);
+            sInstance = new CameraCharacteristicsCache(manager);
+        }
+        return sInstance;
+    }
+
+    private CameraCharacteristicsCache(CameraManager cameraManager) {
+        mCameraManager = cameraManager;
+        mCameraManager.registerAvailabilityCallback(mAvailabilityCallback,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Returns the IDs of the connected cameras, as {@link CameraManager#getCameraIdList()}.
+     */
+    synchronized String[] getCameraIdList() throws CameraAccessException {
+        if (mCameraIds == null) {
+            mCameraIds = mCameraManager.getCameraIdList();
+        }
+        return mCameraIds.clone();
+    }
+
+    /**
+     * Returns the characteristics of a camera, fetching them from the camera service on first
+     * use only.
+     */
+    synchronized CameraInfo get(String cameraId) throws CameraAccessException {
+        CameraInfo info = mInfos.get(cameraId);
+        if (info == null) {
+            info = new CameraInfo(cameraId, mCameraManager.getCameraCharacteristics(cameraId));
+            mInfos.put(cameraId, info);
+        }
+        return info;
+    }
+
+    /**
+     * Forgets everything, e.g. after a camera reported an error.
+     */
+    synchronized void invalidateAll() {
+        mInfos.clear();
+        mCameraIds = null;
+    }
+
+    /**
+     * The {@link CameraCharacteristics} of one camera, with the values the fragments need
+     * computed once.
+     */
+    static final class CameraInfo {
+
+        private final String mCameraId;
+        private final CameraCharacteristics mCharacteristics;
+        private final boolean mFlashSupported;
+        private final int mSensorOrientation;
+        private final int mLensFacing;
+        private final int mHardwareLevel;
+
+        /**
+         * Output sizes by {@link android.graphics.ImageFormat}, sorted by decreasing area.
+         */
+        private final SparseArray<Size[]> mOutputSizes = new SparseArray<>();
+
+        /**
+         * Pickers among {@link #mOutputSizes} by format, built when first needed. Guarded by
+         * {@code this}.
+         */
+        private final SparseArray<SizeSelector> mOutputSizeSelectors = new SparseArray<>();
+
+        /**
+         * Output sizes for a {@link SurfaceTexture}, sorted by decreasing area.
+         */
+        private final Size[] mPreviewSizes;
+
+        /**
+         * Picks among {@link #mPreviewSizes}.
+         */
+        private final SizeSelector mPreviewSizeSelector;
+
+        /**
+         * Output sizes for a {@link MediaCodec} input surface, sorted by decreasing area.
+         */
+        private final Size[] mVideoSizes;
+
+        /**
+         * Picks among {@link #mVideoSizes}.
+         */
+        private final SizeSelector mVideoSizeSelector;
+
+        /**
+         * Input format of the reprocessing this camera supports, or -1 if none.
+         */
+        private int mReprocessFormat = -1;
+
+        /**
+         * Largest input size for {@link #mReprocessFormat}.
+         */
+        private Size mReprocessInputSize;
+
+        CameraInfo(String cameraId, CameraCharacteristics characteristics) {
+            mCameraId = cameraId;
+            mCharacteristics = characteristics;
+
+            Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            mFlashSupported = flash == null ? false : flash;
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            mSensorOrientation = orientation == null ? 0 : orientation;
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            mLensFacing = facing == null ? -1 : facing;
+            Integer level = characteristics.get(
+                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            mHardwareLevel = level == null
+                    ? CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY : level;
+
+            StreamConfigurationMap map = characteristics.get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) {
+                mPreviewSizes = null;
+                mPreviewSizeSelector = null;
+                mVideoSizes = null;
+                mVideoSizeSelector = null;
+                return;
+            }
+            for (int format : map.getOutputFormats()) {
+                mOutputSizes.put(format, sortedByArea(map.getOutputSizes(format)));
+            }
+            mPreviewSizes = sortedByArea(map.getOutputSizes(SurfaceTexture.class));
+            mPreviewSizeSelector = SizeSelector.of(mPreviewSizes);
+            mVideoSizes = sortedByArea(map.getOutputSizes(MediaCodec.class));
+            mVideoSizeSelector = SizeSelector.of(mVideoSizes);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                findReprocessFormat(characteristics, map);
+            }
+        }
+
+        /**
+         * Picks the input format for reprocessing into JPEG, preferring PRIVATE, which stays in
+         * the camera's own buffer format, over YUV.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        private void findReprocessFormat(CameraCharacteristics characteristics,
+                                         StreamConfigurationMap map) {
+            int[] capabilities = characteristics.get(
+                    CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (capabilities == null) {
+                return;
+            }
+            boolean privateReprocessing = false;
+            boolean yuvReprocessing = false;
+            for (int capability : capabilities) {
+                if (capability
+                        == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING) {
+                    privateReprocessing = true;
+                } else if (capability
+                        == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING) {
+                    yuvReprocessing = true;
+                }
+            }
+            if (privateReprocessing && canReprocessToJpeg(map, ImageFormat.PRIVATE)) {
+                mReprocessFormat = ImageFormat.PRIVATE;
+            } else if (yuvReprocessing && canReprocessToJpeg(map, ImageFormat.YUV_420_888)) {
+                mReprocessFormat = ImageFormat.YUV_420_888;
+            } else {
+                return;
+            }
+            mReprocessInputSize = sortedByArea(map.getInputSizes(mReprocessFormat))[0];
+        }
+
+        @TargetApi(Build.VERSION_CODES.M)
+        private static boolean canReprocessToJpeg(StreamConfigurationMap map, int inputFormat) {
+            Size[] inputSizes = map.getInputSizes(inputFormat);
+            int[] outputFormats = map.getValidOutputFormatsForInput(inputFormat);
+            if (inputSizes == null || inputSizes.length == 0 || outputFormats == null) {
+                return false;
+            }
+            for (int outputFormat : outputFormats) {
+                if (outputFormat == ImageFormat.JPEG) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        CameraCharacteristics getCharacteristics() {
+            return mCharacteristics;
+        }
+
+        /**
+         * Returns false if the camera has no stream configuration map, i.e. can't be used.
+         */
+        boolean hasOutputs() {
+            return mPreviewSizes != null;
+        }
+
+        boolean isFlashSupported() {
+            return mFlashSupported;
+        }
+
+        int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        /**
+         * Returns one of the {@code CameraCharacteristics.LENS_FACING_*} values, or -1 if unknown.
+         */
+        int getLensFacing() {
+            return mLensFacing;
+        }
+
+        /**
+         * Returns one of the {@code CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*} values.
+         */
+        int getHardwareLevel() {
+            return mHardwareLevel;
+        }
+
+        /**
+         * Returns the output sizes for {@code format}, largest first, or null if unsupported.
+         * The returned array is shared and must not be modified.
+         */
+        Size[] getOutputSizes(int format) {
+            return mOutputSizes.get(format);
+        }
+
+        /**
+         * Returns the largest output size for {@code format}, or null if unsupported.
+         */
+        Size getLargestOutputSize(int format) {
+            Size[] sizes = mOutputSizes.get(format);
+            return sizes == null || sizes.length == 0 ? null : sizes[0];
+        }
+
+        /**
+         * Returns the selector of the output sizes for {@code format}, or null if unsupported.
+         * Its indices are those of {@link #getOutputSizes(int)}.
+         */
+        synchronized SizeSelector getOutputSizeSelector(int format) {
+            SizeSelector selector = mOutputSizeSelectors.get(format);
+            if (selector == null) {
+                Size[] sizes = mOutputSizes.get(format);
+                if (sizes == null) {
+                    return null;
+                }
+                selector = SizeSelector.of(sizes);
+                mOutputSizeSelectors.put(format, selector);
+            }
+            return selector;
+        }
+
+        /**
+         * Returns the output sizes for a {@link SurfaceTexture}, largest first. The returned
+         * array is shared and must not be modified.
+         */
+        Size[] getPreviewSizes() {
+            return mPreviewSizes;
+        }
+
+        /**
+         * Returns the selector of the output sizes for a {@link SurfaceTexture}. Its indices are
+         * those of {@link #getPreviewSizes()}.
+         */
+        SizeSelector getPreviewSizeSelector() {
+            return mPreviewSizeSelector;
+        }
+
+        /**
+         * Returns the output sizes for a {@link MediaCodec} input surface, largest first. The
+         * returned array is shared and must not be modified.
+         */
+        Size[] getVideoSizes() {
+            return mVideoSizes;
+        }
+
+        /**
+         * Returns the selector of the output sizes for a {@link MediaCodec} input surface. Its
+         * indices are those of {@link #getVideoSizes()}.
+         */
+        SizeSelector getVideoSizeSelector() {
+            return mVideoSizeSelector;
+        }
+
+        /**
+         * Returns the input format that can be reprocessed into a JPEG, {@code PRIVATE} or
+         * {@code YUV_420_888}, or -1 if the camera doesn't support reprocessing.
+         */
+        int getReprocessFormat() {
+            return mReprocessFormat;
+        }
+
+        /**
+         * Returns the largest input size for {@link #getReprocessFormat()}, or null if the
+         * camera doesn't support reprocessing.
+         */
+        Size getReprocessInputSize() {
+            return mReprocessInputSize;
+        }
+
+        private static Size[] sortedByArea(Size[] sizes) {
+            if (sizes == null) {
+                return new Size[0];
+            }
+            Size[] sorted = sizes.clone();
+            Arrays.sort(sorted, Collections.reverseOrder(
+                    new Camera2BasicFragment.CompareSizesByArea()));
+            return sorted;
+        }
+
+    }
+
+}
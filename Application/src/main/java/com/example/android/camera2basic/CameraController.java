@@ -0,0 +1,529 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Size;
+import android.view.Surface;
+import android.view.TextureView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything one camera of a multi-camera preview needs: its {@link CameraDevice}, preview
+ * {@link CameraCaptureSession} and request builder, its output surfaces and the lock guarding
+ * opening and closing. Each controller has its own {@link HandlerThread}, on which all of its
+ * camera callbacks run, so that cameras never queue behind each other.
+ *
+ * <p>A controller lives from {@code onResume()} to {@code onPause()}: it is created, opened (see
+ * {@link MultiCameraOpener}), given its outputs with
+ * {@link #setOutputs(Size, ImageReader, StreamPlanner.Plan)}, and finally
+ * {@link #close() closed}.</p>
+ */
+class CameraController {
+
+    /**
+     * Index of the preview in the streams of the {@link StreamPlanner.Plan} of a controller.
+     */
+    static final int PREVIEW_STREAM = 0;
+
+    /**
+     * Index of the stills in the streams of the {@link StreamPlanner.Plan} of a controller.
+     */
+    static final int STILL_STREAM = 1;
+
+    private final String mCameraId;
+    private final CameraCharacteristicsCache.CameraInfo mInfo;
+    private final TextureView mTextureView;
+    private final CameraTrace mTrace;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /**
+     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     */
+    private final Semaphore mOpenCloseLock = new Semaphore(1);
+
+    /**
+     * Whether {@link #mOpenCloseLock} is held by an open in progress.
+     */
+    private volatile boolean mOpening;
+
+    private volatile CameraDevice mDevice;
+    private volatile CameraCaptureSession mSession;
+    private volatile ImageReader mImageReader;
+
+    /**
+     * Readers replaced by {@link #setOutputs}, left open until {@link #closeOutputs()}: the
+     * session closing on {@link #mHandler} may still target them, and saves may still hold their
+     * images. Only accessed on the thread driving the controller.
+     */
+    private final List<ImageReader> mRetiredReaders = new ArrayList<>();
+    private volatile Size mPreviewSize;
+
+    /**
+     * The plan the output sizes come from, which counts the frames of the streams.
+     */
+    private volatile StreamPlanner.Plan mStreamPlan;
+
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private Surface mPreviewSurface;
+
+    /**
+     * The repeating request of {@link #mSession}, kept to resume the preview without rebuilding
+     * anything. Only accessed on {@link #mHandler}.
+     */
+    private CaptureRequest mPreviewRequest;
+
+    /**
+     * Whether {@link #restartPreview()} may resume the configured session rather than create a
+     * new one.
+     */
+    private volatile boolean mWarmResume = true;
+
+    /**
+     * Whether the user wants this camera to show a preview.
+     */
+    private volatile boolean mRunning;
+
+    /**
+     * Whether a preview session was requested since the camera was opened. Only accessed on
+     * {@link #mHandler}.
+     */
+    private boolean mPreviewRequested;
+
+    /**
+     * Creates a controller and starts its thread.
+     *
+     * @param info        The characteristics of the camera
+     * @param textureView The view showing the preview of the camera
+     * @param trace       Records the latency of the lifecycle of the camera
+     */
+    CameraController(CameraCharacteristicsCache.CameraInfo info, TextureView textureView,
+                     CameraTrace trace) {
+        mCameraId = info.getCameraId();
+        mInfo = info;
+        mTextureView = textureView;
+        mTrace = trace;
+        mThread = new HandlerThread("camera_" + mCameraId);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    CameraCharacteristicsCache.CameraInfo getInfo() {
+        return mInfo;
+    }
+
+    TextureView getTextureView() {
+        return mTextureView;
+    }
+
+    /**
+     * Returns the {@link Handler} of the thread of this camera.
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Returns the opened {@link CameraDevice}, or null if it is not open (yet).
+     */
+    CameraDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Returns the preview session, or null if it is not configured (yet).
+     */
+    CameraCaptureSession getSession() {
+        return mSession;
+    }
+
+    ImageReader getImageReader() {
+        return mImageReader;
+    }
+
+    Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Returns the plan the outputs were sized by, or null if they are not set (yet).
+     */
+    StreamPlanner.Plan getStreamPlan() {
+        return mStreamPlan;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    void setRunning(boolean running) {
+        mRunning = running;
+    }
+
+    /**
+     * Sets whether {@link #restartPreview()} resumes the configured session (the default) or
+     * always creates a new one, e.g. to compare the two.
+     */
+    void setWarmResume(boolean warmResume) {
+        mWarmResume = warmResume;
+    }
+
+    /**
+     * Opens the camera. {@code callback} is called on the thread of this camera once the device
+     * of this controller has been updated.
+     */
+    void open(CameraManager cameraManager, final CameraDevice.StateCallback callback)
+            throws CameraAccessException {
+        try {
+            if (!mOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Time out waiting to lock camera opening.");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+        }
+        mOpening = true;
+        try {
+            cameraManager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(@NonNull CameraDevice cameraDevice) {
+                    mDevice = cameraDevice;
+                    releaseOpenLock();
+                    callback.onOpened(cameraDevice);
+                }
+                @Override
+                public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+                    lost(cameraDevice);
+                    callback.onDisconnected(cameraDevice);
+                }
+                @Override
+                public void onError(@NonNull CameraDevice cameraDevice, int error) {
+                    lost(cameraDevice);
+                    callback.onError(cameraDevice, error);
+                }
+            }, mHandler);
+        } catch (CameraAccessException e) {
+            releaseOpenLock();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the outputs of the camera: the size of its preview, and the reader receiving its
+     * stills. The session that targeted any previous reader is closed, and the next
+     * {@link #startPreviewIfReady()} creates a new one. The previous reader itself is only closed
+     * by {@link #closeOutputs()}, once the session is closed and its images are saved.
+     *
+     * @param streamPlan The plan the sizes come from; its stream {@link #PREVIEW_STREAM} counts
+     *                   the preview frames
+     */
+    void setOutputs(Size previewSize, ImageReader imageReader, StreamPlanner.Plan streamPlan) {
+        mPreviewSize = previewSize;
+        mStreamPlan = streamPlan;
+        ImageReader previous = mImageReader;
+        mImageReader = imageReader;
+        if (previous != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeSession();
+                    mPreviewRequested = false;
+                }
+            });
+            mRetiredReaders.add(previous);
+        }
+    }
+
+    /**
+     * Starts the preview once the camera is open, its outputs are set and it is running,
+     * unless it was already started since the camera was opened. Safe to call from any thread
+     * and as often as any of those conditions may have changed.
+     */
+    void startPreviewIfReady() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPreviewRequested && isReadyForPreview()) {
+                    mPreviewRequested = true;
+                    createPreviewSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the preview again after {@link #stopPreview()}. Session creation is by far the
+     * slowest step, so when warm resume is on and the session is still configured, only its
+     * cached repeating request is submitted again. Otherwise the old session is closed and a
+     * new one is created, or the preview starts as soon as the camera is ready.
+     *
+     * <p>The time until the first frame is recorded as {@link CameraTrace#RESUME_WARM} or
+     * {@link CameraTrace#RESUME_COLD}.</p>
+     */
+    void restartPreview() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isReadyForPreview()) {
+                    mPreviewRequested = false;
+                    return;
+                }
+                if (mWarmResume && resumeSession()) {
+                    return;
+                }
+                mTrace.begin(CameraTrace.RESUME_COLD, mCameraId);
+                closeSession();
+                mPreviewRequested = true;
+                createPreviewSession();
+            }
+        });
+    }
+
+    /**
+     * Stops the preview, leaving the last frame on screen. The session stays configured.
+     */
+    void stopPreview() {
+        CameraCaptureSession session = mSession;
+        if (null == session) {
+            return;
+        }
+        try {
+            session.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Builds a still request targeting the image reader.
+     *
+     * @param jpegOrientation The {@link CaptureRequest#JPEG_ORIENTATION} of the still
+     * @return The request, or null if the camera is not ready
+     */
+    CaptureRequest createStillRequest(int jpegOrientation) throws CameraAccessException {
+        CameraDevice cameraDevice = mDevice;
+        ImageReader imageReader = mImageReader;
+        if (null == cameraDevice || null == imageReader) {
+            return null;
+        }
+        CaptureRequest.Builder captureBuilder =
+                cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(imageReader.getSurface());
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientation);
+        return captureBuilder.build();
+    }
+
+    /**
+     * Closes the session and the camera, and stops the thread once the callbacks already posted
+     * to it have run. The image reader stays open for the images still being saved; close it
+     * with {@link #closeOutputs()} once they are.
+     */
+    void close() {
+        try {
+            mOpenCloseLock.acquire();
+            if (null != mSession) {
+                mSession.close();
+                mSession = null;
+            }
+            if (null != mDevice) {
+                mDevice.close();
+                mDevice = null;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
+        } finally {
+            mOpenCloseLock.release();
+        }
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the image reader, and those it replaced. Closing a reader frees the buffers of every
+     * image acquired from it, so this must only be called after {@link #close()}, once those
+     * images are all saved.
+     */
+    void closeOutputs() {
+        if (null != mImageReader) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        for (ImageReader reader : mRetiredReaders) {
+            reader.close();
+        }
+        mRetiredReaders.clear();
+    }
+
+    private boolean isReadyForPreview() {
+        return mRunning && null != mDevice && null != mImageReader && null != mPreviewSize
+                && null != mTextureView.getSurfaceTexture();
+    }
+
+    private void releaseOpenLock() {
+        if (mOpening) {
+            mOpening = false;
+            mOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Submits the cached preview request to the configured session again.
+     *
+     * @return false if there is no usable session, which must then be rebuilt
+     */
+    private boolean resumeSession() {
+        CameraCaptureSession session = mSession;
+        if (null == session || null == mPreviewRequest) {
+            return false;
+        }
+        mTrace.begin(CameraTrace.RESUME_WARM, mCameraId);
+        try {
+            session.setRepeatingRequest(mPreviewRequest, createPreviewCaptureCallback(), mHandler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            // The session was closed under us, e.g. by another session of the same camera.
+            e.printStackTrace();
+            mTrace.cancel(CameraTrace.RESUME_WARM, mCameraId);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the preview session, if any, so that a new one can be created.
+     */
+    private void closeSession() {
+        CameraCaptureSession session = mSession;
+        mSession = null;
+        mPreviewRequest = null;
+        if (null != session) {
+            session.close();
+        }
+    }
+
+    private void lost(CameraDevice cameraDevice) {
+        releaseOpenLock();
+        cameraDevice.close();
+        mDevice = null;
+        mSession = null;
+    }
+
+    /**
+     * Creates a new {@link CameraCaptureSession} for the preview and starts it.
+     *
+     * Adapted from https://github.com/googlesamples/android-Camera2Basic
+     */
+    private void createPreviewSession() {
+        final CameraDevice cameraDevice = mDevice;
+        SurfaceTexture surfaceTexture = mTextureView.getSurfaceTexture();
+        try {
+            surfaceTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            mPreviewSurface = new Surface(surfaceTexture);
+            mPreviewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequestBuilder.addTarget(mPreviewSurface);
+
+            mTrace.begin(CameraTrace.CONFIGURE, mCameraId);
+            cameraDevice.createCaptureSession(
+                    Arrays.asList(mPreviewSurface, mImageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession session) {
+                            if (null == mDevice) {
+                                return;
+                            }
+                            mTrace.end(CameraTrace.CONFIGURE, mCameraId);
+                            mSession = session;
+                            mPreviewRequest = mPreviewRequestBuilder.build();
+                            try {
+                                // Finally, we start displaying the camera preview
+                                mTrace.begin(CameraTrace.FIRST_FRAME, mCameraId);
+                                session.setRepeatingRequest(mPreviewRequest,
+                                        createPreviewCaptureCallback(), mHandler);
+                            } catch (CameraAccessException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                        @Override
+                        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                            mTrace.cancel(CameraTrace.CONFIGURE, mCameraId);
+                            mTrace.cancel(CameraTrace.RESUME_COLD, mCameraId);
+                        }
+                        @Override
+                        public void onClosed(@NonNull CameraCaptureSession session) {
+                            if (mSession == session) {
+                                mSession = null;
+                                mPreviewRequest = null;
+                            }
+                        }
+                    }, mHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * {@link CameraCaptureSession.CaptureCallback} for the preview. It counts the frames in the
+     * {@link StreamPlanner.Plan}, and looks at the first one to close whichever of the spans
+     * ending there is in progress.
+     */
+    private CameraCaptureSession.CaptureCallback createPreviewCaptureCallback() {
+        return new CameraCaptureSession.CaptureCallback() {
+            private boolean mFirstFrame = true;
+
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                           @NonNull CaptureRequest request,
+                                           @NonNull TotalCaptureResult result) {
+                StreamPlanner.Plan plan = mStreamPlan;
+                if (null != plan) {
+                    plan.recordFrame(PREVIEW_STREAM, System.nanoTime());
+                }
+                if (mFirstFrame) {
+                    mFirstFrame = false;
+                    mTrace.end(CameraTrace.FIRST_FRAME, mCameraId);
+                    mTrace.end(CameraTrace.TIME_TO_FIRST_FRAME, mCameraId);
+                    mTrace.end(CameraTrace.RESUME_WARM, mCameraId);
+                    mTrace.end(CameraTrace.RESUME_COLD, mCameraId);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records how long each phase of the camera lifecycle takes, e.g. from
+ * {@code CameraManager.openCamera()} to {@code onOpened()}, and aggregates the durations of each
+ * phase into a {@link LatencyHistogram}. Timestamps come from the monotonic
+ * {@link System#nanoTime()} clock.
+ *
+ * <p>A phase is started with {@link #begin(String, String)} and finished with
+ * {@link #end(String, String)}; the key tells apart spans of the same phase that may overlap,
+ * such as the opening of two cameras. All methods may be called from any thread.</p>
+ */
+class CameraTrace {
+
+    /**
+     * {@code openCamera()} to {@code StateCallback.onOpened()}.
+     */
+    static final String OPEN = "open";
+
+    /**
+     * From the request to open several cameras at once until all of them are open or failed.
+     */
+    static final String OPEN_ALL = "open_all";
+
+    /**
+     * {@code createCaptureSession()} to {@code StateCallback.onConfigured()}.
+     */
+    static final String CONFIGURE = "configure";
+
+    /**
+     * {@code setRepeatingRequest()} to the first {@code onCaptureCompleted()}.
+     */
+    static final String FIRST_FRAME = "first_frame";
+
+    /**
+     * From the request to open a camera until its first preview frame has been captured.
+     */
+    static final String TIME_TO_FIRST_FRAME = "time_to_first_frame";
+
+    /**
+     * From restarting a stopped preview by resuming its configured session until the first
+     * frame has been captured.
+     */
+    static final String RESUME_WARM = "resume_warm";
+
+    /**
+     * From restarting a stopped preview by creating a new session until the first frame has
+     * been captured.
+     */
+    static final String RESUME_COLD = "resume_cold";
+
+    /**
+     * Shutter press until the picture has been saved.
+     */
+    static final String CAPTURE = "capture";
+
+    /**
+     * Shutter press until the exposure of the picture starts. Also recorded separately for each
+     * reason of the capture, as {@code shutter_lag_<reason>}: the names of
+     * {@link FocusLockStateMachine#nameOfReason(int)}, or {@code zsl} for a picture reprocessed
+     * from a kept frame.
+     */
+    static final String SHUTTER_LAG = "shutter_lag";
+
+    private static final CameraTrace sInstance = new CameraTrace();
+
+    /**
+     * Start times of the spans in progress, keyed by phase and key.
+     */
+    private final ConcurrentMap<String, Long> mOpenSpans = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LatencyHistogram> mHistograms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns the trace shared by the whole process.
+     */
+    static CameraTrace getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts a span of {@code phase}, replacing any unfinished span with the same key.
+     */
+    void begin(String phase, String key) {
+        mOpenSpans.put(spanKey(phase, key), System.nanoTime());
+    }
+
+    /**
+     * Finishes a span of {@code phase} and adds its duration to the histogram of the phase.
+     *
+     * @return The duration in nanoseconds, or -1 if no such span was in progress
+     */
+    long end(String phase, String key) {
+        Long start = mOpenSpans.remove(spanKey(phase, key));
+        if (start == null) {
+            return -1;
+        }
+        long duration = System.nanoTime() - start;
+        getHistogram(phase).recordNanos(duration);
+        return duration;
+    }
+
+    /**
+     * Abandons a span of {@code phase} without recording it, e.g. when the camera failed to open.
+     */
+    void cancel(String phase, String key) {
+        mOpenSpans.remove(spanKey(phase, key));
+    }
+
+    /**
+     * Returns the histogram of the durations of {@code phase}.
+     */
+    LatencyHistogram getHistogram(String phase) {
+        LatencyHistogram histogram = mHistograms.get(phase);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(phase);
+            histogram = mHistograms.putIfAbsent(phase, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the p50/p95/p99 summary of every phase recorded so far, one per line.
+     */
+    String dump() {
+        StringBuilder builder = new StringBuilder("Camera trace:");
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<>(mHistograms).entrySet()) {
+            builder.append("\n  ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Forgets all spans and histograms.
+     */
+    void reset() {
+        mOpenSpans.clear();
+        mHistograms.clear();
+    }
+
+    private static String spanKey(String phase, String key) {
+        return phase + '/' + key;
+    }
+
+}
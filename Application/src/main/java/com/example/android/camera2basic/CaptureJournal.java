@@ -0,0 +1,559 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every capture saved to a directory, so that past captures can be
+ * listed and looked up by time or camera without listing the directory.
+ *
+ * <p>The journal is two files in the directory. {@code .journal} holds one variable-length
+ * {@link Record} per capture, each with a CRC. {@code .journal.idx} is an index of fixed-width
+ * entries, memory-mapped, holding the time, sensor timestamp and camera of each record and where
+ * it is in the journal. Entries are in the order they were appended, and their times never
+ * decrease, so a time range is found by binary search over the mapping. Per camera, the
+ * positions of its entries are kept in memory, built from the index when the journal is opened,
+ * so a range of one camera is a binary search too.</p>
+ *
+ * <p>A record is written to the journal before its entry is added to the index, and the count
+ * of entries in the index header is updated last. If the app dies in between, the records
+ * missing from the index are indexed again when the journal is opened, and a torn record at the
+ * end is cut off. Nothing is forced to storage on append: a capture may be lost with the power,
+ * but the journal stays consistent.</p>
+ *
+ * <p>Uses plain Java I/O only. All methods may be called from any thread.</p>
+ */
+class CaptureJournal {
+
+    /**
+     * A saved capture.
+     */
+    static final class Record {
+
+        private final long mTimeMillis;
+        private final long mSensorTimestamp;
+        private final String mCameraId;
+        private final String mName;
+        private final long mSize;
+        private final long mExposureNanos;
+        private final int mIso;
+
+        /**
+         * @param timeMillis      The wall-clock time it was saved; see {@link #getTimeMillis()}
+         * @param sensorTimestamp The sensor timestamp of the capture
+         * @param cameraId        The camera it came from
+         * @param name            The name of its file, in the directory of the journal
+         * @param size            The size of its file in bytes
+         * @param exposureNanos   Its exposure time, or -1 if unknown
+         * @param iso             Its sensitivity, or -1 if unknown
+         */
+        Record(long timeMillis, long sensorTimestamp, String cameraId, String name, long size,
+               long exposureNanos, int iso) {
+            mTimeMillis = timeMillis;
+            mSensorTimestamp = sensorTimestamp;
+            mCameraId = cameraId;
+            mName = name;
+            mSize = size;
+            mExposureNanos = exposureNanos;
+            mIso = iso;
+        }
+
+        /**
+         * Returns when the capture was saved, in milliseconds since the epoch, raised if need be
+         * to the time of the capture before it so that times never decrease.
+         */
+        long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        long getSensorTimestamp() {
+            return mSensorTimestamp;
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        long getExposureNanos() {
+            return mExposureNanos;
+        }
+
+        int getIso() {
+            return mIso;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " (" + mCameraId + " at " + mSensorTimestamp + ", " + mSize + " B)";
+        }
+
+    }
+
+    static final String JOURNAL_NAME = ".journal";
+    static final String INDEX_NAME = ".journal.idx";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x434a4e4c;  // CJNL
+    private static final int VERSION = 1;
+
+    /**
+     * The index header: magic, version, entry count and a spare int.
+     */
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+
+    /**
+     * An index entry: time, sensor timestamp, journal offset, record length, a spare int, then
+     * the camera ID in UTF-8, padded with zeros.
+     */
+    static final int ENTRY_SIZE = 64;
+    private static final int CAMERA_ID_OFFSET = 32;
+    static final int MAX_CAMERA_ID_BYTES = ENTRY_SIZE - CAMERA_ID_OFFSET;
+
+    /**
+     * A journal record starts with the length of the rest of it, and its CRC.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The fixed part of a record after its header: time, sensor timestamp, size, exposure, ISO,
+     * and the lengths of the camera ID and the name.
+     */
+    private static final int RECORD_FIXED_SIZE = 8 + 8 + 8 + 8 + 4 + 2 + 2;
+
+    /**
+     * How many entries the index has room for when it is created; it doubles when full.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File mDirectory;
+    private final RandomAccessFile mJournalFile;
+    private final FileChannel mJournal;
+    private final RandomAccessFile mIndexFile;
+
+    /**
+     * The index, mapped up to its capacity.
+     */
+    private MappedByteBuffer mIndex;
+    private int mCapacity;
+    private int mCount;
+    private long mJournalLength;
+    private long mLastTimeMillis = Long.MIN_VALUE;
+
+    /**
+     * The positions in the index of the entries of each camera, in order; only the first
+     * {@link #mCameraCounts} of each are used.
+     */
+    private final Map<String, int[]> mCameraEntries = new HashMap<>();
+    private final Map<String, Integer> mCameraCounts = new HashMap<>();
+
+    /**
+     * Reused to encode records.
+     */
+    private ByteBuffer mRecordBuffer = ByteBuffer.allocate(256);
+    private final CRC32 mCrc = new CRC32();
+
+    private boolean mClosed;
+
+    /**
+     * Opens the journal of a directory, creating both if needed, and recovers any records that
+     * were not indexed.
+     */
+    CaptureJournal(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        mDirectory = directory;
+        mJournalFile = new RandomAccessFile(new File(directory, JOURNAL_NAME), "rw");
+        mJournal = mJournalFile.getChannel();
+        mIndexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw");
+        try {
+            open();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        long indexLength = mIndexFile.length();
+        boolean valid = indexLength >= HEADER_SIZE;
+        int count = 0;
+        if (valid) {
+            map((int) Math.max(0, (indexLength - HEADER_SIZE) / ENTRY_SIZE));
+            valid = mIndex.getInt(0) == MAGIC && mIndex.getInt(4) == VERSION;
+            count = mIndex.getInt(COUNT_OFFSET);
+            valid &= count >= 0 && count <= mCapacity;
+        }
+        if (!valid) {
+            // New, or not an index we can read: index the whole journal again.
+            mIndexFile.setLength(0);
+            map(INITIAL_CAPACITY);
+            mIndex.putInt(0, MAGIC).putInt(4, VERSION).putInt(COUNT_OFFSET, 0);
+            count = 0;
+        }
+
+        long journalLength = mJournal.size();
+        // Drop entries whose records didn't make it, e.g. if the journal was cut short.
+        while (count > 0 && endOfRecord(count - 1) > journalLength) {
+            count--;
+        }
+        mCount = count;
+        mIndex.putInt(COUNT_OFFSET, count);
+        mJournalLength = count == 0 ? 0 : endOfRecord(count - 1);
+
+        for (int i = 0; i < count; i++) {
+            addToCamera(cameraIdAt(i), i);
+        }
+        if (count > 0) {
+            mLastTimeMillis = mIndex.getLong(entryOffset(count - 1));
+        }
+
+        // Index the records written after the last entry, up to the first torn one.
+        Record record;
+        while ((record = readRecord(mJournalLength, journalLength)) != null) {
+            int length = RECORD_HEADER_SIZE + recordPayloadSize(record);
+            addEntry(record, mJournalLength, length);
+            mJournalLength += length;
+        }
+        if (mJournalLength < journalLength) {
+            mJournal.truncate(mJournalLength);
+        }
+    }
+
+    /**
+     * Maps the index with room for {@code capacity} entries.
+     */
+    private void map(int capacity) throws IOException {
+        mCapacity = Math.max(capacity, INITIAL_CAPACITY);
+        mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) mCapacity * ENTRY_SIZE);
+    }
+
+    private static int entryOffset(int index) {
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    private long endOfRecord(int index) {
+        int offset = entryOffset(index);
+        return mIndex.getLong(offset + 16) + mIndex.getInt(offset + 24);
+    }
+
+    private String cameraIdAt(int index) {
+        int offset = entryOffset(index) + CAMERA_ID_OFFSET;
+        int length = 0;
+        while (length < MAX_CAMERA_ID_BYTES && mIndex.get(offset + length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mIndex.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private void addToCamera(String cameraId, int index) {
+        int[] entries = mCameraEntries.get(cameraId);
+        Integer count = mCameraCounts.get(cameraId);
+        int used = count == null ? 0 : count;
+        if (entries == null) {
+            entries = new int[16];
+        } else if (used == entries.length) {
+            entries = Arrays.copyOf(entries, used * 2);
+        }
+        entries[used] = index;
+        mCameraEntries.put(cameraId, entries);
+        mCameraCounts.put(cameraId, used + 1);
+    }
+
+    /**
+     * Appends a capture, with the current time.
+     *
+     * @return The record written
+     * @throws IllegalArgumentException If the camera ID is longer than
+     *                                  {@link #MAX_CAMERA_ID_BYTES} in UTF-8
+     */
+    Record append(String cameraId, long sensorTimestamp, File file, long size,
+                  long exposureNanos, int iso) throws IOException {
+        return append(System.currentTimeMillis(), cameraId, sensorTimestamp, file.getName(),
+                size, exposureNanos, iso);
+    }
+
+    /**
+     * Appends a capture saved at {@code timeMillis}, or at the time of the last capture if that
+     * is later, e.g. because the clock was set back.
+     */
+    synchronized Record append(long timeMillis, String cameraId, long sensorTimestamp,
+                               String name, long size, long exposureNanos, int iso)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("Journal is closed");
+        }
+        if (cameraId.getBytes(UTF_8).length > MAX_CAMERA_ID_BYTES) {
+            throw new IllegalArgumentException("Camera ID too long: " + cameraId);
+        }
+        Record record = new Record(Math.max(timeMillis, mLastTimeMillis), sensorTimestamp,
+                cameraId, name, size, exposureNanos, iso);
+        ByteBuffer buffer = encode(record);
+        int length = buffer.remaining();
+        long position = mJournalLength;
+        while (buffer.hasRemaining()) {
+            position += mJournal.write(buffer, position);
+        }
+        addEntry(record, mJournalLength, length);
+        mJournalLength += length;
+        return record;
+    }
+
+    /**
+     * Adds the index entry of a record, and then counts it.
+     */
+    private void addEntry(Record record, long journalOffset, int length) throws IOException {
+        if (mCount == mCapacity) {
+            map(mCapacity * 2);
+        }
+        int offset = entryOffset(mCount);
+        mIndex.putLong(offset, record.getTimeMillis());
+        mIndex.putLong(offset + 8, record.getSensorTimestamp());
+        mIndex.putLong(offset + 16, journalOffset);
+        mIndex.putInt(offset + 24, length);
+        mIndex.putInt(offset + 28, 0);
+        byte[] cameraId = record.getCameraId().getBytes(UTF_8);
+        for (int i = 0; i < MAX_CAMERA_ID_BYTES; i++) {
+            mIndex.put(offset + CAMERA_ID_OFFSET + i, i < cameraId.length ? cameraId[i] : 0);
+        }
+        mIndex.putInt(COUNT_OFFSET, mCount + 1);
+        addToCamera(record.getCameraId(), mCount);
+        mCount++;
+        mLastTimeMillis = record.getTimeMillis();
+    }
+
+    private static int recordPayloadSize(Record record) {
+        return RECORD_FIXED_SIZE + record.getCameraId().getBytes(UTF_8).length
+                + record.getName().getBytes(UTF_8).length;
+    }
+
+    private ByteBuffer encode(Record record) {
+        byte[] cameraId = record.getCameraId().getBytes(UTF_8);
+        byte[] name = record.getName().getBytes(UTF_8);
+        int payload = RECORD_FIXED_SIZE + cameraId.length + name.length;
+        if (mRecordBuffer.capacity() < RECORD_HEADER_SIZE + payload) {
+            mRecordBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        }
+        ByteBuffer buffer = mRecordBuffer;
+        buffer.clear();
+        buffer.position(RECORD_HEADER_SIZE);
+        buffer.putLong(record.getTimeMillis()).putLong(record.getSensorTimestamp())
+                .putLong(record.getSize()).putLong(record.getExposureNanos())
+                .putInt(record.getIso())
+                .putShort((short) cameraId.length).putShort((short) name.length)
+                .put(cameraId).put(name);
+        mCrc.reset();
+        mCrc.update(buffer.array(), RECORD_HEADER_SIZE, payload);
+        buffer.putInt(0, payload).putInt(4, (int) mCrc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the record at {@code position} of the journal.
+     *
+     * @return The record, or null if there is no whole record with a matching CRC there
+     */
+    private Record readRecord(long position, long journalLength) throws IOException {
+        if (position + RECORD_HEADER_SIZE > journalLength) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, position);
+        int payload = header.getInt(0);
+        if (payload < RECORD_FIXED_SIZE
+                || position + RECORD_HEADER_SIZE + payload > journalLength) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(payload);
+        readFully(buffer, position + RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, payload);
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+        buffer.flip();
+        long timeMillis = buffer.getLong();
+        long sensorTimestamp = buffer.getLong();
+        long size = buffer.getLong();
+        long exposureNanos = buffer.getLong();
+        int iso = buffer.getInt();
+        int cameraIdLength = buffer.getShort() & 0xffff;
+        int nameLength = buffer.getShort() & 0xffff;
+        if (RECORD_FIXED_SIZE + cameraIdLength + nameLength != payload) {
+            return null;
+        }
+        String cameraId = new String(buffer.array(), buffer.position(), cameraIdLength, UTF_8);
+        String name = new String(buffer.array(), buffer.position() + cameraIdLength, nameLength,
+                UTF_8);
+        return new Record(timeMillis, sensorTimestamp, cameraId, name, size, exposureNanos,
+                iso);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mJournal.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Journal ends early");
+            }
+            position += read;
+        }
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the number of captures.
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the capture at a position, 0 being the oldest.
+     */
+    synchronized Record get(int index) throws IOException {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("No capture " + index + " of " + mCount);
+        }
+        int offset = entryOffset(index);
+        Record record = readRecord(mIndex.getLong(offset + 16), mJournalLength);
+        if (record == null) {
+            throw new IOException("Corrupt record " + index);
+        }
+        return record;
+    }
+
+    /**
+     * Returns the file of a capture.
+     */
+    File fileOf(Record record) {
+        return new File(mDirectory, record.getName());
+    }
+
+    /**
+     * Returns the last {@code count} captures, newest first.
+     */
+    synchronized List<Record> latest(int count) throws IOException {
+        List<Record> records = new ArrayList<>(Math.min(count, mCount));
+        for (int i = mCount - 1; i >= 0 && records.size() < count; i--) {
+            records.add(get(i));
+        }
+        return records;
+    }
+
+    /**
+     * Returns the captures saved in {@code [fromMillis, toMillis)}, oldest first.
+     */
+    synchronized List<Record> range(long fromMillis, long toMillis) throws IOException {
+        int end = lowerBound(toMillis, null, 0, mCount);
+        List<Record> records = new ArrayList<>();
+        for (int i = lowerBound(fromMillis, null, 0, mCount); i < end; i++) {
+            records.add(get(i));
+        }
+        return records;
+    }
+
+    /**
+     * Returns the captures of one camera saved in {@code [fromMillis, toMillis)}, oldest first.
+     */
+    synchronized List<Record> range(String cameraId, long fromMillis, long toMillis)
+            throws IOException {
+        int[] entries = mCameraEntries.get(cameraId);
+        List<Record> records = new ArrayList<>();
+        if (entries == null) {
+            return records;
+        }
+        int used = mCameraCounts.get(cameraId);
+        int end = lowerBound(toMillis, entries, 0, used);
+        for (int i = lowerBound(fromMillis, entries, 0, used); i < end; i++) {
+            records.add(get(entries[i]));
+        }
+        return records;
+    }
+
+    /**
+     * Returns the number of captures of one camera.
+     */
+    synchronized int countOf(String cameraId) {
+        Integer count = mCameraCounts.get(cameraId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the first position in {@code [from, to)} whose time is at least
+     * {@code timeMillis}, or {@code to}. Positions are those of the index, or of
+     * {@code entries} if given.
+     */
+    private int lowerBound(long timeMillis, int[] entries, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int index = entries == null ? middle : entries[middle];
+            if (mIndex.getLong(entryOffset(index)) < timeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Closes the files. Appending afterwards fails.
+     */
+    synchronized void close() throws IOException {
+        mClosed = true;
+        try {
+            mJournalFile.close();
+        } finally {
+            mIndexFile.close();
+        }
+    }
+
+}
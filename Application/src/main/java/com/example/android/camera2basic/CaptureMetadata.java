@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * The metadata of a capture that is worth keeping with its picture: exposure, sensitivity, lens
+ * and 3A state, taken from its {@link android.hardware.camera2.TotalCaptureResult}.
+ *
+ * <p>It is stored in a sidecar file next to the picture, {@code IMG_....meta} for
+ * {@code IMG_....jpg}, in a compact fixed-size binary form of {@link #SIZE} bytes. Values the
+ * camera didn't report are -1, or NaN for lens values.</p>
+ */
+class CaptureMetadata {
+
+    static final String SIDECAR_EXTENSION = ".meta";
+
+    private static final int MAGIC = 0x434d4554;  // CMET
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the binary form: magic and version, then the fields in the order of the
+     * constructor.
+     */
+    static final int SIZE = 4 + 4 + 8 * 4 + 4 * 4 + 4 * 5;
+
+    private final long mSensorTimestamp;
+    private final long mFrameNumber;
+    private final long mExposureTimeNanos;
+    private final long mFrameDurationNanos;
+    private final int mSensitivity;
+    private final float mAperture;
+    private final float mFocalLength;
+    private final float mFocusDistance;
+    private final int mAfState;
+    private final int mAeState;
+    private final int mAwbState;
+    private final int mFlashState;
+    private final int mJpegOrientation;
+
+    /**
+     * @param focusDistance In diopters, 0 being infinity
+     */
+    CaptureMetadata(long sensorTimestamp, long frameNumber, long exposureTimeNanos,
+                    long frameDurationNanos, int sensitivity, float aperture, float focalLength,
+                    float focusDistance, int afState, int aeState, int awbState, int flashState,
+                    int jpegOrientation) {
+        mSensorTimestamp = sensorTimestamp;
+        mFrameNumber = frameNumber;
+        mExposureTimeNanos = exposureTimeNanos;
+        mFrameDurationNanos = frameDurationNanos;
+        mSensitivity = sensitivity;
+        mAperture = aperture;
+        mFocalLength = focalLength;
+        mFocusDistance = focusDistance;
+        mAfState = afState;
+        mAeState = aeState;
+        mAwbState = awbState;
+        mFlashState = flashState;
+        mJpegOrientation = jpegOrientation;
+    }
+
+    /**
+     * Takes the metadata out of a capture result. This reads the result only; call it off the
+     * camera threads, as the persistence stage does.
+     */
+    static CaptureMetadata of(CaptureResult result) {
+        return new CaptureMetadata(
+                valueOf(result.get(CaptureResult.SENSOR_TIMESTAMP)),
+                result.getFrameNumber(),
+                valueOf(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)),
+                valueOf(result.get(CaptureResult.SENSOR_FRAME_DURATION)),
+                valueOf(result.get(CaptureResult.SENSOR_SENSITIVITY)),
+                valueOf(result.get(CaptureResult.LENS_APERTURE)),
+                valueOf(result.get(CaptureResult.LENS_FOCAL_LENGTH)),
+                valueOf(result.get(CaptureResult.LENS_FOCUS_DISTANCE)),
+                valueOf(result.get(CaptureResult.CONTROL_AF_STATE)),
+                valueOf(result.get(CaptureResult.CONTROL_AE_STATE)),
+                valueOf(result.get(CaptureResult.CONTROL_AWB_STATE)),
+                valueOf(result.get(CaptureResult.FLASH_STATE)),
+                valueOf(result.get(CaptureResult.JPEG_ORIENTATION)));
+    }
+
+    private static long valueOf(Long value) {
+        return value == null ? -1 : value;
+    }
+
+    private static int valueOf(Integer value) {
+        return value == null ? -1 : value;
+    }
+
+    private static float valueOf(Float value) {
+        return value == null ? Float.NaN : value;
+    }
+
+    long getSensorTimestamp() {
+        return mSensorTimestamp;
+    }
+
+    long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    long getExposureTimeNanos() {
+        return mExposureTimeNanos;
+    }
+
+    long getFrameDurationNanos() {
+        return mFrameDurationNanos;
+    }
+
+    /**
+     * Returns the ISO sensitivity.
+     */
+    int getSensitivity() {
+        return mSensitivity;
+    }
+
+    /**
+     * Returns the f-number.
+     */
+    float getAperture() {
+        return mAperture;
+    }
+
+    /**
+     * Returns the focal length in millimeters.
+     */
+    float getFocalLength() {
+        return mFocalLength;
+    }
+
+    /**
+     * Returns the focus distance in diopters, 0 being infinity.
+     */
+    float getFocusDistance() {
+        return mFocusDistance;
+    }
+
+    int getAfState() {
+        return mAfState;
+    }
+
+    int getAeState() {
+        return mAeState;
+    }
+
+    int getAwbState() {
+        return mAwbState;
+    }
+
+    int getFlashState() {
+        return mFlashState;
+    }
+
+    int getJpegOrientation() {
+        return mJpegOrientation;
+    }
+
+    /**
+     * Writes the binary form at the position of {@code dst}, which must have {@link #SIZE} bytes
+     * left.
+     */
+    void writeTo(ByteBuffer dst) {
+        dst.putInt(MAGIC).putInt(VERSION)
+                .putLong(mSensorTimestamp).putLong(mFrameNumber)
+                .putLong(mExposureTimeNanos).putLong(mFrameDurationNanos)
+                .putInt(mSensitivity).putFloat(mAperture).putFloat(mFocalLength)
+                .putFloat(mFocusDistance)
+                .putInt(mAfState).putInt(mAeState).putInt(mAwbState).putInt(mFlashState)
+                .putInt(mJpegOrientation);
+    }
+
+    /**
+     * Reads the binary form at the position of {@code src}.
+     *
+     * @throws IOException If it isn't metadata of a version this can read
+     */
+    static CaptureMetadata readFrom(ByteBuffer src) throws IOException {
+        if (src.remaining() < SIZE || src.getInt() != MAGIC || src.getInt() != VERSION) {
+            throw new IOException("Not capture metadata");
+        }
+        return new CaptureMetadata(src.getLong(), src.getLong(), src.getLong(), src.getLong(),
+                src.getInt(), src.getFloat(), src.getFloat(), src.getFloat(),
+                src.getInt(), src.getInt(), src.getInt(), src.getInt(), src.getInt());
+    }
+
+    /**
+     * Returns the sidecar of a picture: the same name, with {@link #SIDECAR_EXTENSION} in place
+     * of its extension.
+     */
+    static File sidecarOf(File picture) {
+        String name = picture.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(picture.getParentFile(),
+                (dot < 0 ? name : name.substring(0, dot)) + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Writes the sidecar of a picture, atomically as {@link CaptureStore} writes pictures.
+     *
+     * @return The sidecar
+     */
+    File writeSidecar(File picture) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        writeTo(buffer);
+        File sidecar = sidecarOf(picture);
+        File temp = CaptureStore.tempFileOf(sidecar);
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(buffer.array());
+        } catch (IOException e) {
+            output.close();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        output.close();
+        CaptureStore.commit(temp, sidecar);
+        return sidecar;
+    }
+
+    /**
+     * Reads the sidecar of a picture.
+     */
+    static CaptureMetadata readSidecar(File picture) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(sidecarOf(picture), "r");
+        try {
+            byte[] bytes = new byte[SIZE];
+            file.readFully(bytes);
+            return readFrom(ByteBuffer.wrap(bytes));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "exposure " + mExposureTimeNanos + " ns, ISO " + mSensitivity + ", f/" + mAperture
+                + ", " + mFocalLength + " mm, focus " + mFocusDistance + " dpt";
+    }
+
+}
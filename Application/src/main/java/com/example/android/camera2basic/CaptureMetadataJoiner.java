@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Joins saved pictures with the capture results of their frames, by camera and sensor timestamp,
+ * so that the metadata can be written in the persistence stage instead of the capture callback.
+ * Cameras whose sensors are synchronized give their frames the same timestamp, so the timestamp
+ * alone doesn't tell their results apart.
+ *
+ * <p>The capture callback only hands the result over with
+ * {@link #offerResult(String, long, Object)}, which neither formats nor writes anything. The
+ * persistence stage hands every saved picture over with
+ * {@link #offerCapture(String, long, Saved)}. Whichever comes second completes the join: a
+ * picture whose result is already there is joined on the calling thread, and a result whose
+ * picture is already saved is joined on the {@link Executor}, which should be the persistence
+ * stage, so the {@link Listener} never runs on the camera thread.</p>
+ *
+ * <p>At most {@code capacity} results and {@code capacity} pictures wait for each other. The
+ * oldest waiting picture is handed to {@link Listener#onUnjoined(long, Saved)} to make room,
+ * and the oldest waiting result is dropped.</p>
+ *
+ * <p>All methods may be called from any thread.</p>
+ *
+ * @param <R> The type of the capture result, e.g. a
+ *            {@link android.hardware.camera2.TotalCaptureResult}
+ */
+class CaptureMetadataJoiner<R> {
+
+    /**
+     * Receives the saved pictures, with or without their capture result.
+     */
+    interface Listener<R> {
+
+        /**
+         * Called once the picture and the result of a frame have both arrived.
+         */
+        void onJoined(long timestamp, Saved saved, R result);
+
+        /**
+         * Called when a picture is given up on without its result, on {@link #flush()} or to
+         * make room for newer ones.
+         */
+        void onUnjoined(long timestamp, Saved saved);
+
+    }
+
+    /**
+     * A picture that has been saved.
+     */
+    static final class Saved {
+
+        private final String mCameraId;
+        private final File mFile;
+        private final long mSize;
+
+        Saved(String cameraId, File file, long size) {
+            mCameraId = cameraId;
+            mFile = file;
+            mSize = size;
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+    }
+
+    /**
+     * The frame of a result or a picture: its camera and sensor timestamp.
+     */
+    private static final class Key {
+
+        final String mCameraId;
+        final long mTimestamp;
+
+        Key(String cameraId, long timestamp) {
+            mCameraId = cameraId;
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mTimestamp == other.mTimestamp && mCameraId.equals(other.mCameraId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mCameraId.hashCode() + (int) (mTimestamp ^ (mTimestamp >>> 32));
+        }
+
+    }
+
+    private final int mCapacity;
+    private final Executor mExecutor;
+    private final Listener<R> mListener;
+
+    /**
+     * Results waiting for their picture, oldest first.
+     */
+    private final LinkedHashMap<Key, R> mResults;
+
+    /**
+     * Pictures waiting for their result, oldest first.
+     */
+    private final LinkedHashMap<Key, Saved> mCaptures;
+
+    private long mJoinedCount;
+    private long mUnjoinedCount;
+    private long mDroppedResultCount;
+
+    /**
+     * @param capacity How many results, and how many pictures, may wait at once
+     * @param executor Runs the joins completed by {@link #offerResult(String, long, Object)}
+     * @param listener Receives the saved pictures
+     */
+    CaptureMetadataJoiner(int capacity, Executor executor, Listener<R> listener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mExecutor = executor;
+        mListener = listener;
+        mResults = new LinkedHashMap<>(2 * capacity);
+        mCaptures = new LinkedHashMap<>(2 * capacity);
+    }
+
+    /**
+     * Hands over the capture result of a frame. This only stores a reference, so it is cheap
+     * enough for the camera thread.
+     *
+     * @param cameraId  The camera of the result
+     * @param timestamp The sensor timestamp of the result
+     */
+    void offerResult(String cameraId, final long timestamp, final R result) {
+        Key key = new Key(cameraId, timestamp);
+        final Saved saved;
+        synchronized (this) {
+            saved = mCaptures.remove(key);
+            if (null == saved) {
+                mResults.put(key, result);
+                if (mResults.size() > mCapacity) {
+                    removeEldest(mResults);
+                    mDroppedResultCount++;
+                }
+                return;
+            }
+            mJoinedCount++;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onJoined(timestamp, saved, result);
+            }
+        });
+    }
+
+    /**
+     * Hands over a saved picture. If its result has arrived, the {@link Listener} is called on
+     * this thread; otherwise the picture waits for it.
+     *
+     * @param cameraId  The camera whose result the picture is joined with. A picture combining
+     *                  several cameras, whose {@link Saved#getCameraId()} names them all, is
+     *                  joined with the result of one of them.
+     * @param timestamp The sensor timestamp of the picture
+     */
+    void offerCapture(String cameraId, long timestamp, Saved saved) {
+        Key key = new Key(cameraId, timestamp);
+        R result;
+        Map.Entry<Key, Saved> evicted = null;
+        synchronized (this) {
+            result = mResults.remove(key);
+            if (null == result) {
+                mCaptures.put(key, saved);
+                if (mCaptures.size() > mCapacity) {
+                    evicted = removeEldest(mCaptures);
+                    mUnjoinedCount++;
+                }
+            } else {
+                mJoinedCount++;
+            }
+        }
+        if (null != result) {
+            mListener.onJoined(timestamp, saved, result);
+        } else if (null != evicted) {
+            mListener.onUnjoined(evicted.getKey().mTimestamp, evicted.getValue());
+        }
+    }
+
+    /**
+     * Gives up on every waiting picture, on this thread, and drops every waiting result, e.g.
+     * once the camera is closed and no more results will come.
+     */
+    void flush() {
+        List<Map.Entry<Key, Saved>> unjoined;
+        synchronized (this) {
+            unjoined = new ArrayList<>(mCaptures.entrySet());
+            mCaptures.clear();
+            mUnjoinedCount += unjoined.size();
+            mDroppedResultCount += mResults.size();
+            mResults.clear();
+        }
+        for (Map.Entry<Key, Saved> entry : unjoined) {
+            mListener.onUnjoined(entry.getKey().mTimestamp, entry.getValue());
+        }
+    }
+
+    /**
+     * Returns how many pictures were joined with their result.
+     */
+    synchronized long getJoinedCount() {
+        return mJoinedCount;
+    }
+
+    /**
+     * Returns how many pictures were given up on without their result.
+     */
+    synchronized long getUnjoinedCount() {
+        return mUnjoinedCount;
+    }
+
+    /**
+     * Returns how many results were dropped without ever being joined with a picture.
+     */
+    synchronized long getDroppedResultCount() {
+        return mDroppedResultCount;
+    }
+
+    private static <V> Map.Entry<Key, V> removeEldest(LinkedHashMap<Key, V> map) {
+        Iterator<Map.Entry<Key, V>> iterator = map.entrySet().iterator();
+        Map.Entry<Key, V> eldest = iterator.next();
+        Map.Entry<Key, V> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Metadata: " + mJoinedCount + " joined, " + mUnjoinedCount + " unjoined, "
+                + mDroppedResultCount + " results dropped";
+    }
+
+}
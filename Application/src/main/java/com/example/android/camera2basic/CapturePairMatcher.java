@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pairs the captures of two cameras by sensor timestamp. Each capture is offered with the index
+ * of the camera (0 or 1) it came from; when the other camera has a capture within the tolerance,
+ * the two are handed to the {@link Listener} as one {@link CapturePair}. Captures that can no
+ * longer be matched are handed back one by one.
+ *
+ * <p>Timestamps from each camera are expected to be non-decreasing, and both cameras must share
+ * a time base (see {@code CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE}). The listener is
+ * called on the thread that offers or flushes.</p>
+ *
+ * @param <T> The type of the capture, e.g. an {@link android.media.Image}
+ */
+class CapturePairMatcher<T> {
+
+    /**
+     * Receives the output of a {@link CapturePairMatcher}.
+     */
+    interface Listener<T> {
+
+        /**
+         * Called when captures from both cameras were matched.
+         */
+        void onPair(CapturePair<T> pair);
+
+        /**
+         * Called when a capture was evicted or flushed without finding a partner.
+         *
+         * @param source    The index of the camera the capture came from
+         * @param timestamp The sensor timestamp of the capture
+         * @param capture   The capture
+         */
+        void onUnmatched(int source, long timestamp, T capture);
+
+    }
+
+    /**
+     * Two captures, one from each camera, taken within the tolerance of each other.
+     */
+    static final class CapturePair<T> {
+
+        private final T mFirst;
+        private final T mSecond;
+        private final long mFirstTimestamp;
+        private final long mSecondTimestamp;
+
+        CapturePair(T first, long firstTimestamp, T second, long secondTimestamp) {
+            mFirst = first;
+            mSecond = second;
+            mFirstTimestamp = firstTimestamp;
+            mSecondTimestamp = secondTimestamp;
+        }
+
+        /**
+         * Returns the capture of camera 0.
+         */
+        T getFirst() {
+            return mFirst;
+        }
+
+        /**
+         * Returns the capture of camera 1.
+         */
+        T getSecond() {
+            return mSecond;
+        }
+
+        long getFirstTimestamp() {
+            return mFirstTimestamp;
+        }
+
+        long getSecondTimestamp() {
+            return mSecondTimestamp;
+        }
+
+        /**
+         * Returns how far apart the two exposures started, in nanoseconds.
+         */
+        long getSkewNanos() {
+            return Math.abs(mSecondTimestamp - mFirstTimestamp);
+        }
+
+    }
+
+    /**
+     * A capture waiting for its partner.
+     */
+    private static final class Pending<T> {
+
+        final long mTimestamp;
+        final T mCapture;
+
+        Pending(long timestamp, T capture) {
+            mTimestamp = timestamp;
+            mCapture = capture;
+        }
+
+    }
+
+    private final long mToleranceNanos;
+    private final int mMaxPending;
+    private final Listener<T> mListener;
+
+    /**
+     * Captures waiting for a partner, oldest first, indexed by source.
+     */
+    private final ArrayDeque<Pending<T>>[] mPending;
+
+    /**
+     * Skew of every emitted pair.
+     */
+    private final LatencyHistogram mSkew = new LatencyHistogram("pair skew");
+
+    private long mUnmatchedCount;
+
+    /**
+     * @param toleranceNanos Largest timestamp difference at which two captures still pair up
+     * @param maxPending     How many captures of one camera may wait for a partner; older ones
+     *                       are reported as unmatched
+     * @param listener       Receives pairs and unmatched captures
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    CapturePairMatcher(long toleranceNanos, int maxPending, Listener<T> listener) {
+        if (toleranceNanos < 0 || maxPending < 1) {
+            throw new IllegalArgumentException("Invalid tolerance or pending limit");
+        }
+        mToleranceNanos = toleranceNanos;
+        mMaxPending = maxPending;
+        mListener = listener;
+        mPending = new ArrayDeque[]{new ArrayDeque<Pending<T>>(), new ArrayDeque<Pending<T>>()};
+    }
+
+    /**
+     * Offers a capture for pairing.
+     *
+     * @param source    The index of the camera, 0 or 1
+     * @param timestamp The sensor timestamp of the capture, in nanoseconds
+     * @param capture   The capture
+     */
+    synchronized void offer(int source, long timestamp, T capture) {
+        if (source != 0 && source != 1) {
+            throw new IllegalArgumentException("Source must be 0 or 1: " + source);
+        }
+        int other = 1 - source;
+        ArrayDeque<Pending<T>> candidates = mPending[other];
+
+        // Timestamps only grow, so a capture of the other camera that is too old for this one is
+        // too old for any later one too.
+        while (!candidates.isEmpty()
+                && candidates.peekFirst().mTimestamp < timestamp - mToleranceNanos) {
+            unmatched(other, candidates.pollFirst());
+        }
+
+        Pending<T> best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Pending<T> candidate : candidates) {
+            long distance = Math.abs(candidate.mTimestamp - timestamp);
+            if (distance > mToleranceNanos) {
+                break;
+            }
+            if (distance < bestDistance) {
+                best = candidate;
+                bestDistance = distance;
+            }
+        }
+
+        if (best != null) {
+            candidates.remove(best);
+            CapturePair<T> pair = source == 0
+                    ? new CapturePair<>(capture, timestamp, best.mCapture, best.mTimestamp)
+                    : new CapturePair<>(best.mCapture, best.mTimestamp, capture, timestamp);
+            mSkew.recordNanos(pair.getSkewNanos());
+            mListener.onPair(pair);
+            return;
+        }
+
+        ArrayDeque<Pending<T>> own = mPending[source];
+        own.addLast(new Pending<>(timestamp, capture));
+        while (own.size() > mMaxPending) {
+            unmatched(source, own.pollFirst());
+        }
+    }
+
+    /**
+     * Reports every capture still waiting for a partner as unmatched.
+     */
+    synchronized void flush() {
+        for (int source = 0; source < mPending.length; source++) {
+            Iterator<Pending<T>> iterator = mPending[source].iterator();
+            while (iterator.hasNext()) {
+                Pending<T> pending = iterator.next();
+                iterator.remove();
+                unmatched(source, pending);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of captures waiting for a partner.
+     */
+    synchronized int getPendingCount() {
+        return mPending[0].size() + mPending[1].size();
+    }
+
+    /**
+     * Returns the distribution of the skew of every emitted pair.
+     */
+    LatencyHistogram getSkew() {
+        return mSkew;
+    }
+
+    synchronized long getUnmatchedCount() {
+        return mUnmatchedCount;
+    }
+
+    private void unmatched(int source, Pending<T> pending) {
+        mUnmatchedCount++;
+        mListener.onUnmatched(source, pending.mTimestamp, pending.mCapture);
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Names and writes the files of captures in one directory.
+ *
+ * <p>Each file is named {@code IMG_<sequence>_<timestamp>_<camera>.jpg}: a sequence number that
+ * keeps increasing across restarts of the app, so names sort in the order they were taken even
+ * across reboots; the sensor timestamp of the capture, to find it again from its capture result;
+ * and the ID of the camera. Names never collide, however many captures share a timestamp.</p>
+ *
+ * <p>A capture is written to a hidden temporary file next to its final name and renamed once
+ * complete, so the gallery and other readers never see a partial file. Left-over temporary files
+ * of an earlier run are deleted by {@link #deleteTempFiles()}.</p>
+ *
+ * <p>The sequence resumes after the last capture of the {@link CaptureJournal} of the directory,
+ * so a directory with tens of thousands of captures is not listed to find it. It is only listed
+ * when there is no journal, or an empty one, e.g. on the first run with a journal. A capture
+ * the app died before journaling may share its sequence number with a later one; their names
+ * still differ by timestamp. Naming a capture touches neither the file system nor a date
+ * formatter. All methods may be called from
+ * any thread.</p>
+ */
+class CaptureStore {
+
+    static final String JPEG = ".jpg";
+    static final String MP4 = ".mp4";
+
+    private static final String PREFIX = "IMG_";
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Sequence numbers are zero-padded to this many digits, so that names sort as numbers.
+     */
+    private static final int SEQUENCE_DIGITS = 8;
+
+    /**
+     * How much older than the store a temporary file must be to be left over by an earlier run;
+     * some file systems only keep modification times to the second or two.
+     */
+    private static final long LEFT_OVER_AGE_MS = 2000;
+
+    /**
+     * How many of the last captures of a journal are searched for the highest sequence number.
+     * Captures are journalled as they are saved and joined with their metadata, on several
+     * threads, so the journal is only roughly in sequence order; a capture is never journalled
+     * after this many later ones.
+     */
+    static final int JOURNAL_TAIL = 64;
+
+    private final File mDirectory;
+
+    /**
+     * The sequence number of the next capture. Guarded by this.
+     */
+    private long mNextSequence;
+
+    /**
+     * Reused to build the names. Guarded by this.
+     */
+    private final StringBuilder mName = new StringBuilder(64);
+
+    /**
+     * When the store was created, in {@link System#currentTimeMillis()}.
+     */
+    private final long mCreatedMillis = System.currentTimeMillis();
+
+    /**
+     * Whether the left-over temporary files have been deleted.
+     */
+    private volatile boolean mTempFilesDeleted;
+
+    /**
+     * Creates a store that lists the directory to resume the sequence.
+     *
+     * @param directory Where the captures go; created if it doesn't exist
+     * @throws IOException If the directory doesn't exist and can't be created, e.g. because the
+     *                     storage permission is missing or the storage isn't mounted
+     */
+    CaptureStore(File directory) throws IOException {
+        this(directory, null);
+    }
+
+    /**
+     * @param directory Where the captures go; created if it doesn't exist
+     * @param journal   The journal of the directory, whose highest sequence number the sequence
+     *                  resumes after, or null to list the directory
+     * @throws IOException If the directory doesn't exist and can't be created, e.g. because the
+     *                     storage permission is missing or the storage isn't mounted
+     */
+    CaptureStore(File directory, CaptureJournal journal) throws IOException {
+        mDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        long last = null == journal ? -1 : lastSequenceOf(journal);
+        if (last < 0) {
+            last = scan();
+        }
+        mNextSequence = last + 1;
+    }
+
+    /**
+     * Returns the highest sequence number among the last {@link #JOURNAL_TAIL} captures of a
+     * journal, or -1 if it has none.
+     */
+    private static long lastSequenceOf(CaptureJournal journal) {
+        long last = -1;
+        try {
+            for (CaptureJournal.Record record : journal.latest(JOURNAL_TAIL)) {
+                last = Math.max(last, sequenceOf(record.getName()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return last;
+    }
+
+    /**
+     * Lists the directory for the highest sequence number, deleting the left-over temporary
+     * files on the way.
+     */
+    private long scan() {
+        long last = -1;
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (isTempFile(name)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(mDirectory, name).delete();
+                } else {
+                    last = Math.max(last, sequenceOf(name));
+                }
+            }
+        }
+        mTempFilesDeleted = true;
+        return last;
+    }
+
+    private static boolean isTempFile(String name) {
+        return name.startsWith(TEMP_PREFIX + PREFIX) && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Deletes the temporary files left over by an earlier run that died while writing, unless
+     * the directory was already listed. This lists the directory, so it belongs on a background
+     * thread. Only files last modified well before the store was created are deleted, so the
+     * captures being written meanwhile are left alone.
+     */
+    void deleteTempFiles() {
+        if (mTempFilesDeleted) {
+            return;
+        }
+        mTempFilesDeleted = true;
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = new File(mDirectory, name);
+            if (isTempFile(name) && file.lastModified() < mCreatedMillis - LEFT_OVER_AGE_MS) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the sequence number of a capture file, or -1 if the name isn't one of a capture.
+     */
+    static long sequenceOf(String name) {
+        if (!name.startsWith(PREFIX)) {
+            return -1;
+        }
+        int end = name.indexOf('_', PREFIX.length());
+        if (end < 0 || end == PREFIX.length()) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = PREFIX.length(); i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9' || sequence > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return sequence;
+    }
+
+    /**
+     * Reserves the name of the next capture. Nothing is created until it is written, e.g. with
+     * {@link #tempFileOf(File)} and {@link #commit(File, File)}.
+     *
+     * @param cameraId  The camera that took the capture; for a pair, e.g. both IDs
+     * @param timestamp The sensor timestamp of the capture
+     * @param extension The extension of the file, with its dot
+     */
+    synchronized File newFile(String cameraId, long timestamp, String extension) {
+        StringBuilder name = mName;
+        name.setLength(0);
+        name.append(PREFIX);
+        long sequence = mNextSequence++;
+        int digits = 1;
+        for (long bound = 10; sequence >= bound && digits < SEQUENCE_DIGITS; bound *= 10) {
+            digits++;
+        }
+        for (; digits < SEQUENCE_DIGITS; digits++) {
+            name.append('0');
+        }
+        name.append(sequence).append('_').append(timestamp).append('_').append(cameraId)
+                .append(extension);
+        return new File(mDirectory, name.toString());
+    }
+
+    /**
+     * Returns the hidden file {@code file} is written to before it's committed.
+     */
+    static File tempFileOf(File file) {
+        return new File(file.getParentFile(), TEMP_PREFIX + file.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Renames a completely written temporary file to its final name. A rename within a
+     * directory is atomic, so readers see either no file or the whole of it.
+     *
+     * @throws IOException If the file couldn't be renamed; it is deleted
+     */
+    static void commit(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of {@code data} as the next capture, the JPEG of
+     * {@code cameraId} at {@code timestamp}.
+     *
+     * @return The file written
+     */
+    File write(String cameraId, long timestamp, ByteBuffer data) throws IOException {
+        File file = newFile(cameraId, timestamp, JPEG);
+        File temp = tempFileOf(file);
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            ImageSaver.writeDirect(data, output.getChannel());
+        } catch (IOException e) {
+            output.close();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        output.close();
+        commit(temp, file);
+        return file;
+    }
+
+}
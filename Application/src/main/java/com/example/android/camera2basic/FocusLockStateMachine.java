@@ -0,0 +1,360 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+/**
+ * The focus and exposure lock sequence that precedes a still capture: wait for AF to lock, run
+ * the AE precapture sequence if exposure hasn't converged, then capture. It is fed the AF and AE
+ * states of every capture result and tells its {@link Listener} when to trigger precapture and
+ * when to capture.
+ *
+ * <p>When the preview results show that continuous AF and AE have already converged, the
+ * sequence is skipped and the still is captured right away, saving the round trip of the AF
+ * trigger.</p>
+ *
+ * <p>Every waiting state has its own deadline; a result arriving past it captures anyway, so a
+ * device whose AF never reports a locked state can't hang the shutter. Should the results stop
+ * arriving altogether, {@link #checkDeadline(long)} enforces the deadline from a watchdog. Nothing
+ * is allocated per result.</p>
+ *
+ * <p>Not thread-safe: all methods must be called on the thread receiving the capture results.</p>
+ */
+class FocusLockStateMachine {
+
+    /**
+     * Camera state: Showing camera preview.
+     */
+    static final int STATE_PREVIEW = 0;
+
+    /**
+     * Camera state: Waiting for the focus to be locked.
+     */
+    static final int STATE_WAITING_LOCK = 1;
+
+    /**
+     * Camera state: Waiting for the exposure to be precapture state.
+     */
+    static final int STATE_WAITING_PRECAPTURE = 2;
+
+    /**
+     * Camera state: Waiting for the exposure state to be something other than precapture.
+     */
+    static final int STATE_WAITING_NON_PRECAPTURE = 3;
+
+    /**
+     * Camera state: Picture was taken.
+     */
+    static final int STATE_PICTURE_TAKEN = 4;
+
+    /**
+     * AF or AE state of a result that doesn't report it; some devices never do.
+     */
+    static final int UNKNOWN = -1;
+
+    /**
+     * Capture reason: Focus locked and exposure converged.
+     */
+    static final int CAPTURE_LOCKED = 0;
+
+    /**
+     * Capture reason: The preview had already converged, so no lock was requested.
+     */
+    static final int CAPTURE_FAST_PATH = 1;
+
+    /**
+     * Capture reason: A state took longer than its deadline.
+     */
+    static final int CAPTURE_TIMED_OUT = 2;
+
+    /**
+     * How recent the last preview result must be for the fast path; a few frames at 30 fps.
+     */
+    static final long DEFAULT_FAST_PATH_MAX_AGE_NS = 100000000L;
+
+    /**
+     * Receives the actions of the state machine.
+     */
+    interface Listener {
+
+        /**
+         * Called when focus is locked but exposure needs the precapture sequence to be triggered.
+         */
+        void onPrecaptureNeeded();
+
+        /**
+         * Called once per sequence when the still should be captured.
+         *
+         * @param reason One of {@link #CAPTURE_LOCKED}, {@link #CAPTURE_FAST_PATH} and
+         *               {@link #CAPTURE_TIMED_OUT}
+         */
+        void onReadyToCapture(int reason);
+
+    }
+
+    private final Listener mListener;
+
+    /**
+     * How long each state may last, indexed by state.
+     */
+    private final long[] mStateTimeoutNanos = new long[STATE_PICTURE_TAKEN + 1];
+
+    private long mFastPathMaxAgeNanos = DEFAULT_FAST_PATH_MAX_AGE_NS;
+
+    private int mState = STATE_PREVIEW;
+    private long mStateDeadlineNanos;
+
+    /**
+     * 3A state of the last result received while previewing, and when it was received.
+     */
+    private int mLastAfState = UNKNOWN;
+    private int mLastAeState = UNKNOWN;
+    private long mLastResultNanos;
+    private boolean mHasLastResult;
+
+    /**
+     * @param listener          Receives the actions
+     * @param stateTimeoutNanos How long each waiting state may last before capturing anyway
+     */
+    FocusLockStateMachine(Listener listener, long stateTimeoutNanos) {
+        this(listener, stateTimeoutNanos, stateTimeoutNanos, stateTimeoutNanos);
+    }
+
+    /**
+     * @param listener                  Receives the actions
+     * @param lockTimeoutNanos          How long to wait for AF to lock
+     * @param precaptureTimeoutNanos    How long to wait for the precapture sequence to start
+     * @param nonPrecaptureTimeoutNanos How long to wait for the precapture sequence to end
+     */
+    FocusLockStateMachine(Listener listener, long lockTimeoutNanos, long precaptureTimeoutNanos,
+                          long nonPrecaptureTimeoutNanos) {
+        mListener = listener;
+        mStateTimeoutNanos[STATE_WAITING_LOCK] = checkTimeout(lockTimeoutNanos);
+        mStateTimeoutNanos[STATE_WAITING_PRECAPTURE] = checkTimeout(precaptureTimeoutNanos);
+        mStateTimeoutNanos[STATE_WAITING_NON_PRECAPTURE] = checkTimeout(nonPrecaptureTimeoutNanos);
+    }
+
+    private static long checkTimeout(long timeoutNanos) {
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutNanos);
+        }
+        return timeoutNanos;
+    }
+
+    /**
+     * Sets how recent the last preview result must be for the still to be captured without a
+     * lock, or 0 to always run the lock sequence.
+     */
+    void setFastPathMaxAgeNanos(long maxAgeNanos) {
+        if (maxAgeNanos < 0) {
+            throw new IllegalArgumentException("Max age must not be negative: " + maxAgeNanos);
+        }
+        mFastPathMaxAgeNanos = maxAgeNanos;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Returns whether a lock sequence is in progress and waiting for capture results.
+     */
+    boolean isWaiting() {
+        return mState == STATE_WAITING_LOCK || mState == STATE_WAITING_PRECAPTURE
+                || mState == STATE_WAITING_NON_PRECAPTURE;
+    }
+
+    /**
+     * Starts a sequence. If the last preview result is recent and shows AF and AE converged, the
+     * still is captured right away with {@link #CAPTURE_FAST_PATH}; otherwise the caller must
+     * submit the AF trigger.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @return Whether the AF trigger must be submitted
+     */
+    boolean onLockRequested(long nowNanos) {
+        if (canTakeFastPath(nowNanos)) {
+            capture(CAPTURE_FAST_PATH);
+            return false;
+        }
+        moveTo(STATE_WAITING_LOCK, nowNanos);
+        return true;
+    }
+
+    private boolean canTakeFastPath(long nowNanos) {
+        if (mFastPathMaxAgeNanos == 0 || !mHasLastResult
+                || nowNanos - mLastResultNanos > mFastPathMaxAgeNanos) {
+            return false;
+        }
+        boolean afConverged = isFocusConverged(mLastAfState);
+        // FLASH_REQUIRED isn't converged: the flash needs the precapture sequence to fire.
+        boolean aeConverged = mLastAeState == UNKNOWN
+                || mLastAeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || mLastAeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        return afConverged && aeConverged;
+    }
+
+    /**
+     * Returns whether an AF state allows the fast path. The exposure state of a preview result
+     * only matters when this is true.
+     *
+     * @param afState A {@link CaptureResult#CONTROL_AF_STATE}, or {@link #UNKNOWN}
+     */
+    static boolean isFocusConverged(int afState) {
+        return afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+    }
+
+    /**
+     * Captures anyway if the deadline of the current state has passed, for when the capture
+     * results that would normally enforce it stop arriving. Meant to be called from a watchdog.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @return The nanoseconds left until the deadline, or -1 if there is nothing to wait for
+     */
+    long checkDeadline(long nowNanos) {
+        if (!isWaiting()) {
+            return -1;
+        }
+        long remaining = mStateDeadlineNanos - nowNanos;
+        if (remaining <= 0) {
+            capture(CAPTURE_TIMED_OUT);
+            return -1;
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns to {@link #STATE_PREVIEW}, e.g. once the still has been captured and focus unlocked.
+     */
+    void reset() {
+        mState = STATE_PREVIEW;
+        // The results that came during the lock don't describe the preview that resumes.
+        mHasLastResult = false;
+    }
+
+    /**
+     * Advances the state machine with the 3A state of a capture result. While previewing, the
+     * state is remembered to decide whether the next capture can take the fast path.
+     *
+     * @param afState  The {@link CaptureResult#CONTROL_AF_STATE}, or {@link #UNKNOWN}
+     * @param aeState  The {@link CaptureResult#CONTROL_AE_STATE}, or {@link #UNKNOWN}
+     * @param nowNanos The current {@link System#nanoTime()}
+     */
+    void onResult(int afState, int aeState, long nowNanos) {
+        switch (mState) {
+            case STATE_PREVIEW: {
+                // Partial results may leave out either state; keep the last one reported.
+                if (afState != UNKNOWN) {
+                    mLastAfState = afState;
+                    mLastResultNanos = nowNanos;
+                    mHasLastResult = true;
+                }
+                if (aeState != UNKNOWN) {
+                    mLastAeState = aeState;
+                }
+                break;
+            }
+            case STATE_WAITING_LOCK: {
+                if (afState == UNKNOWN) {
+                    // The device has no AF to wait for.
+                    capture(CAPTURE_LOCKED);
+                } else if (afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                        || afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+                    if (aeState == UNKNOWN || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+                        capture(CAPTURE_LOCKED);
+                    } else {
+                        moveTo(STATE_WAITING_PRECAPTURE, nowNanos);
+                        mListener.onPrecaptureNeeded();
+                    }
+                } else if (nowNanos - mStateDeadlineNanos >= 0) {
+                    capture(CAPTURE_TIMED_OUT);
+                }
+                break;
+            }
+            case STATE_WAITING_PRECAPTURE: {
+                if (aeState == UNKNOWN
+                        || aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE
+                        || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+                    moveTo(STATE_WAITING_NON_PRECAPTURE, nowNanos);
+                } else if (nowNanos - mStateDeadlineNanos >= 0) {
+                    capture(CAPTURE_TIMED_OUT);
+                }
+                break;
+            }
+            case STATE_WAITING_NON_PRECAPTURE: {
+                if (aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+                    capture(CAPTURE_LOCKED);
+                } else if (nowNanos - mStateDeadlineNanos >= 0) {
+                    capture(CAPTURE_TIMED_OUT);
+                }
+                break;
+            }
+            default:
+                // Nothing to do while the picture is being taken.
+                break;
+        }
+    }
+
+    private void moveTo(int state, long nowNanos) {
+        mState = state;
+        mStateDeadlineNanos = nowNanos + mStateTimeoutNanos[state];
+    }
+
+    private void capture(int reason) {
+        mState = STATE_PICTURE_TAKEN;
+        mListener.onReadyToCapture(reason);
+    }
+
+    /**
+     * Returns the name of a state, for logging.
+     */
+    static String nameOf(int state) {
+        switch (state) {
+            case STATE_PREVIEW:
+                return "PREVIEW";
+            case STATE_WAITING_LOCK:
+                return "WAITING_LOCK";
+            case STATE_WAITING_PRECAPTURE:
+                return "WAITING_PRECAPTURE";
+            case STATE_WAITING_NON_PRECAPTURE:
+                return "WAITING_NON_PRECAPTURE";
+            case STATE_PICTURE_TAKEN:
+                return "PICTURE_TAKEN";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+
+    /**
+     * Returns the name of a capture reason, for logging.
+     */
+    static String nameOfReason(int reason) {
+        switch (reason) {
+            case CAPTURE_LOCKED:
+                return "locked";
+            case CAPTURE_FAST_PATH:
+                return "fast_path";
+            case CAPTURE_TIMED_OUT:
+                return "timed_out";
+            default:
+                return "unknown(" + reason + ")";
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands camera frames to a set of {@link Analyzer}s running on a worker pool, without ever
+ * holding up the thread that delivers the frames.
+ *
+ * <p>Each analyzer keeps only the latest frame: a frame that arrives while the analyzer is busy
+ * replaces the one waiting for it, which is dropped. A slow analyzer therefore sees fewer frames
+ * rather than older ones, and can't make frames pile up. Each analyzer runs on one worker at a
+ * time; different analyzers run in parallel. A frame is shared by all analyzers and released once
+ * the last one is done with it, so at most {@link #getMaxFrames()} frames are held at once.</p>
+ *
+ * <p>The latency from {@link #offer(YuvFrame)} to the end of the analysis, the time spent
+ * analyzing, and the frames analyzed, dropped and failed are counted per analyzer.</p>
+ */
+class FrameAnalysisPipeline {
+
+    /**
+     * Looks at camera frames, e.g. to meter or detect something.
+     */
+    interface Analyzer {
+
+        /**
+         * Called on a worker thread with the latest frame. The frame is released when this
+         * returns, so its buffers must not be kept.
+         */
+        void analyze(YuvFrame frame);
+
+    }
+
+    /**
+     * An analyzer with the frame waiting for it and its statistics.
+     */
+    static final class Stage implements Runnable {
+
+        private final String mName;
+        private final Analyzer mAnalyzer;
+        private final Executor mExecutor;
+        private final LatencyHistogram mLatency;
+        private final LatencyHistogram mProcessingTime;
+        private final AtomicLong mAnalyzed = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+
+        private YuvFrame mPending;
+        private long mPendingNanos;
+
+        /**
+         * Whether the stage is queued on, or running on, a worker.
+         */
+        private boolean mScheduled;
+
+        /**
+         * Whether the analyzer is inside {@link Analyzer#analyze(YuvFrame)}.
+         */
+        private boolean mAnalyzing;
+
+        Stage(String name, Analyzer analyzer, Executor executor) {
+            mName = name;
+            mAnalyzer = analyzer;
+            mExecutor = executor;
+            mLatency = new LatencyHistogram(name + " latency");
+            mProcessingTime = new LatencyHistogram(name + " processing");
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the time from the arrival of a frame until its analysis was done.
+         */
+        LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Returns the time spent analyzing a frame.
+         */
+        LatencyHistogram getProcessingTime() {
+            return mProcessingTime;
+        }
+
+        long getAnalyzedCount() {
+            return mAnalyzed.get();
+        }
+
+        /**
+         * Returns the number of frames replaced by a newer one before they were analyzed.
+         */
+        long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        /**
+         * Returns the number of frames the analyzer threw on.
+         */
+        long getFailedCount() {
+            return mFailed.get();
+        }
+
+        void offer(YuvFrame frame, long nowNanos) {
+            YuvFrame previous;
+            boolean schedule;
+            synchronized (this) {
+                previous = mPending;
+                mPending = frame.retain();
+                mPendingNanos = nowNanos;
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (previous != null) {
+                mDropped.incrementAndGet();
+                previous.release();
+            }
+            if (schedule) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Shut down; nobody will analyze the frame.
+                    synchronized (this) {
+                        mScheduled = false;
+                    }
+                    clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                YuvFrame frame;
+                long offeredNanos;
+                synchronized (this) {
+                    frame = mPending;
+                    if (frame == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    mPending = null;
+                    offeredNanos = mPendingNanos;
+                    mAnalyzing = true;
+                }
+                long start = System.nanoTime();
+                try {
+                    mAnalyzer.analyze(frame);
+                    mAnalyzed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // One bad frame shouldn't stop the analyzer.
+                    mFailed.incrementAndGet();
+                    e.printStackTrace();
+                } finally {
+                    frame.release();
+                    long end = System.nanoTime();
+                    mProcessingTime.recordNanos(end - start);
+                    mLatency.recordNanos(end - offeredNanos);
+                    synchronized (this) {
+                        mAnalyzing = false;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until the analyzer is done with the frame it is analyzing, if any.
+         *
+         * @param deadlineNanos The {@link System#nanoTime()} to give up at
+         * @return false if the analyzer was still busy at the deadline
+         */
+        synchronized boolean awaitIdle(long deadlineNanos) throws InterruptedException {
+            while (mAnalyzing) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        /**
+         * Releases the frame waiting for the analyzer, if any.
+         */
+        void clear() {
+            YuvFrame pending;
+            synchronized (this) {
+                pending = mPending;
+                mPending = null;
+            }
+            if (pending != null) {
+                pending.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: analyzed=%d dropped=%d failed=%d\n    %s\n    %s",
+                    mName, getAnalyzedCount(), getDroppedCount(), getFailedCount(), mLatency,
+                    mProcessingTime);
+        }
+
+    }
+
+    private final Executor mExecutor;
+
+    /**
+     * The executor to shut down on {@link #close()}, or null if it is not ours.
+     */
+    private final ExecutorService mOwnExecutor;
+
+    private volatile Stage[] mStages = new Stage[0];
+    private volatile boolean mClosed;
+
+    /**
+     * Creates a pipeline with its own worker pool.
+     *
+     * @param name    Name used for the worker threads
+     * @param threads Number of worker threads; more than the number of analyzers is of no use
+     */
+    FrameAnalysisPipeline(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                name + "-" + mCount.getAndIncrement());
+                        // Analysis should never compete with the camera threads.
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        mExecutor = executor;
+        mOwnExecutor = executor;
+    }
+
+    /**
+     * Creates a pipeline that runs its analyzers on {@code executor}.
+     */
+    FrameAnalysisPipeline(Executor executor) {
+        mExecutor = executor;
+        mOwnExecutor = null;
+    }
+
+    /**
+     * Adds an analyzer. Analyzers should be added before the first frame, since
+     * {@link #getMaxFrames()} grows with each one.
+     *
+     * @param name The name of the analyzer in the statistics
+     * @return The stage running the analyzer, with its statistics
+     */
+    synchronized Stage addAnalyzer(String name, Analyzer analyzer) {
+        Stage[] stages = new Stage[mStages.length + 1];
+        System.arraycopy(mStages, 0, stages, 0, mStages.length);
+        Stage stage = new Stage(name, analyzer, mExecutor);
+        stages[mStages.length] = stage;
+        mStages = stages;
+        return stage;
+    }
+
+    /**
+     * Returns the stage of an analyzer, or null if there is no analyzer by that name.
+     */
+    Stage getStage(String name) {
+        for (Stage stage : mStages) {
+            if (stage.getName().equals(name)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    int getAnalyzerCount() {
+        return mStages.length;
+    }
+
+    /**
+     * Returns how many frames the pipeline may hold at once: one being analyzed by each analyzer,
+     * and the latest one waiting. An {@code ImageReader} feeding the pipeline needs one more to
+     * acquire the next frame with.
+     */
+    int getMaxFrames() {
+        return mStages.length + 1;
+    }
+
+    /**
+     * Hands a frame to every analyzer, replacing the frame any of them hasn't started on yet.
+     * Never blocks.
+     *
+     * @param frame The frame; the pipeline takes over the caller's reference
+     * @return false if the pipeline is closed and the frame was released right away
+     */
+    boolean offer(YuvFrame frame) {
+        try {
+            if (mClosed) {
+                return false;
+            }
+            long now = System.nanoTime();
+            for (Stage stage : mStages) {
+                stage.offer(frame, now);
+            }
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Releases the waiting frames, stops the worker pool, if it is ours, and waits for the
+     * frames being analyzed. Once this returns true no analyzer reads a frame anymore, so the
+     * {@code ImageReader} the frames came from can be closed.
+     *
+     * @param timeoutMs How long to wait for the analyses in progress
+     * @return false if an analyzer was still busy when the timeout expired
+     */
+    boolean close(long timeoutMs) {
+        mClosed = true;
+        for (Stage stage : mStages) {
+            stage.clear();
+        }
+        if (mOwnExecutor != null) {
+            mOwnExecutor.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            for (Stage stage : mStages) {
+                if (!stage.awaitIdle(deadline)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Frame analysis:");
+        for (Stage stage : mStages) {
+            builder.append("\n  ").append(stage);
+        }
+        return builder.toString();
+    }
+
+}
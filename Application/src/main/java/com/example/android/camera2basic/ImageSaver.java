@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves a JPEG {@link Image} as the next capture of a {@link CaptureStore}.
+ */
+class ImageSaver implements PersistenceExecutor.Droppable {
+
+    /**
+     * How the encoded bytes get from the {@link Image} plane to disk.
+     */
+    enum Mode {
+        /**
+         * Copies the plane into a new {@code byte[]} and writes it with a
+         * {@link FileOutputStream}.
+         */
+        COPY,
+        /**
+         * Writes the plane {@link ByteBuffer} straight to a {@link FileChannel}, without an
+         * intermediate array.
+         */
+        ZERO_COPY
+    }
+
+    /**
+     * Notified on the saving thread once an image has been written.
+     */
+    interface Callback {
+        /**
+         * @param file      The file the image was written to
+         * @param timestamp The {@link Image#getTimestamp()} of the image
+         * @param size      The size of the file in bytes
+         */
+        void onImageSaved(File file, long timestamp, long size);
+    }
+
+    /**
+     * The JPEG image
+     */
+    private final Image mImage;
+    /**
+     * Names the file and commits it once written.
+     */
+    private final CaptureStore mStore;
+    /**
+     * The camera that took the image.
+     */
+    private final String mCameraId;
+    /**
+     * How the image is written out.
+     */
+    private final Mode mMode;
+    /**
+     * Notified once the image has been written, or null.
+     */
+    private final Callback mCallback;
+    /**
+     * Makes the thumbnail of the image once it has been written, or null.
+     */
+    private final ThumbnailStage mThumbnails;
+
+    ImageSaver(Image image, CaptureStore store, String cameraId) {
+        this(image, store, cameraId, Mode.ZERO_COPY, null);
+    }
+
+    ImageSaver(Image image, CaptureStore store, String cameraId, Mode mode, Callback callback) {
+        this(image, store, cameraId, mode, callback, null);
+    }
+
+    ImageSaver(Image image, CaptureStore store, String cameraId, Mode mode, Callback callback,
+               ThumbnailStage thumbnails) {
+        mImage = image;
+        mStore = store;
+        mCameraId = cameraId;
+        mMode = mode;
+        mCallback = callback;
+        mThumbnails = thumbnails;
+    }
+
+    @Override
+    public void run() {
+        long timestamp = mImage.getTimestamp();
+        ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
+        File file = mStore.newFile(mCameraId, timestamp, CaptureStore.JPEG);
+        File temp = CaptureStore.tempFileOf(file);
+        FileOutputStream output = null;
+        // The Image is closed as soon as its plane is no longer needed, so that the ImageReader
+        // slot is handed back to the camera before we pay for closing the file.
+        boolean imageClosed = false;
+        long size = buffer.remaining();
+        // The embedded thumbnail is copied out while the plane is still mapped.
+        byte[] exifThumbnail = null == mThumbnails ? null
+                : ThumbnailStage.findExifThumbnail(buffer);
+        try {
+            output = new FileOutputStream(temp);
+            if (mMode == Mode.ZERO_COPY) {
+                writeDirect(buffer, output.getChannel());
+                mImage.close();
+                imageClosed = true;
+            } else {
+                byte[] bytes = copy(buffer);
+                mImage.close();
+                imageClosed = true;
+                output.write(bytes);
+            }
+            output.close();
+            output = null;
+            CaptureStore.commit(temp, file);
+            if (mCallback != null) {
+                mCallback.onImageSaved(file, timestamp, size);
+            }
+            if (mThumbnails != null) {
+                mThumbnails.submit(file, exifThumbnail);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        } finally {
+            if (!imageClosed) {
+                mImage.close();
+            }
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the image without saving it, when the persistence queue is full.
+     */
+    @Override
+    public void drop() {
+        mImage.close();
+    }
+
+    /**
+     * Copies the remaining bytes of {@code buffer} into a new array. This is the original save
+     * path, kept for comparison.
+     *
+     * @param buffer The encoded image
+     * @return A heap copy of the encoded image
+     */
+    static byte[] copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to {@code channel}. When the buffer is direct,
+     * as {@link Image} planes are, the bytes never pass through the Java heap.
+     *
+     * @param buffer  The encoded image
+     * @param channel The channel to write into
+     * @return The number of bytes written
+     */
+    static long writeDirect(ByteBuffer buffer, FileChannel channel) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes {@link YuvFrame}s as baseline JFIF JPEGs with 4:2:0 chroma, which is the sampling the
+ * frames come in, so no color conversion or resampling is needed.
+ *
+ * <p>The image is split into strips of whole MCU rows, separated by restart markers. Since a
+ * restart resets all state of the entropy coder, the strips are encoded independently, in
+ * parallel on a {@link ForkJoinPool}, and then simply concatenated. The result is a single
+ * standard file; decoders need no support beyond restart intervals, which every baseline decoder
+ * has.</p>
+ *
+ * <p>The quantization tables are those of the JPEG standard scaled to a quality from 1 to 100,
+ * as libjpeg does, and the Huffman tables are the standard ones.</p>
+ *
+ * <p>An encoder can encode several frames at once, from any thread.</p>
+ */
+class JpegEncoder {
+
+    /**
+     * The size of an MCU: 16x16 luma pixels, with one 8x8 block of each chroma component.
+     */
+    private static final int MCU_SIZE = 16;
+
+    /**
+     * The natural (row-major) index of each coefficient, in zigzag order.
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    /**
+     * The example quantization tables of the standard (Annex K.1), in natural order.
+     */
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99,
+    };
+
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+    };
+
+    /**
+     * The standard Huffman tables (Annex K.3): the number of codes of each length from 1 to 16,
+     * then the symbols in order of their codes.
+     */
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+
+    private static final int[] AC_CHROMA_BITS =
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+
+    /**
+     * The scale factors of the AAN forward DCT, by row and by column.
+     */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379,
+    };
+
+    /**
+     * The largest restart interval, in MCUs.
+     */
+    private static final int MAX_RESTART_INTERVAL = 0xffff;
+
+    private static final HuffmanTable DC_LUMA = new HuffmanTable(DC_LUMA_BITS, DC_VALUES);
+    private static final HuffmanTable AC_LUMA = new HuffmanTable(AC_LUMA_BITS, AC_LUMA_VALUES);
+    private static final HuffmanTable DC_CHROMA = new HuffmanTable(DC_CHROMA_BITS, DC_VALUES);
+    private static final HuffmanTable AC_CHROMA =
+            new HuffmanTable(AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+    private final int mQuality;
+    private final ForkJoinPool mPool;
+
+    /**
+     * The quantization tables, in natural order.
+     */
+    private final int[] mLumaQuantization;
+    private final int[] mChromaQuantization;
+
+    /**
+     * The reciprocals of the quantizer steps, with the scaling of the AAN DCT folded in.
+     */
+    private final float[] mLumaScale;
+    private final float[] mChromaScale;
+
+    /**
+     * @param quality From 1 (smallest file) to 100 (best image)
+     * @param pool    Encodes the strips, or null to encode them on the calling thread
+     */
+    JpegEncoder(int quality, ForkJoinPool pool) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be from 1 to 100: " + quality);
+        }
+        mQuality = quality;
+        mPool = pool;
+        mLumaQuantization = scaleQuantization(LUMA_QUANTIZATION, quality);
+        mChromaQuantization = scaleQuantization(CHROMA_QUANTIZATION, quality);
+        mLumaScale = divisorsOf(mLumaQuantization);
+        mChromaScale = divisorsOf(mChromaQuantization);
+    }
+
+    int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Encodes a frame, in as many strips as it takes to keep every worker of the pool busy.
+     */
+    void encode(YuvFrame frame, OutputStream out) throws IOException {
+        int mcuRows = (frame.getHeight() + MCU_SIZE - 1) / MCU_SIZE;
+        // A few strips per worker evens out strips that take longer than others.
+        int strips = mPool == null ? 1 : mPool.getParallelism() * 4;
+        encode(frame, (mcuRows + strips - 1) / strips, out);
+    }
+
+    /**
+     * Encodes a frame in strips of {@code stripMcuRows} MCU rows, each 16 pixels high. The output
+     * is the same whether or not the strips are encoded in parallel.
+     */
+    void encode(YuvFrame frame, int stripMcuRows, OutputStream out) throws IOException {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (width < 1 || height < 1 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("Can't encode " + width + "x" + height);
+        }
+        int mcusPerRow = (width + MCU_SIZE - 1) / MCU_SIZE;
+        int mcuRows = (height + MCU_SIZE - 1) / MCU_SIZE;
+        stripMcuRows = Math.max(1, Math.min(stripMcuRows, mcuRows));
+        stripMcuRows = Math.min(stripMcuRows, Math.max(1, MAX_RESTART_INTERVAL / mcusPerRow));
+        int strips = (mcuRows + stripMcuRows - 1) / stripMcuRows;
+
+        List<Callable<byte[]>> tasks = new ArrayList<>(strips);
+        for (int i = 0; i < strips; i++) {
+            tasks.add(new Strip(frame, i * stripMcuRows,
+                    Math.min(mcuRows, (i + 1) * stripMcuRows)));
+        }
+        byte[][] encoded = new byte[strips][];
+        if (mPool == null || strips == 1) {
+            for (int i = 0; i < strips; i++) {
+                encoded[i] = ((Strip) tasks.get(i)).call();
+            }
+        } else {
+            List<Future<byte[]>> futures = mPool.invokeAll(tasks);
+            for (int i = 0; i < strips; i++) {
+                try {
+                    encoded[i] = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while encoding", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Encoding failed", e.getCause());
+                }
+            }
+        }
+
+        writeHeaders(out, width, height, strips > 1 ? mcusPerRow * stripMcuRows : 0);
+        for (int i = 0; i < strips; i++) {
+            out.write(encoded[i]);
+            if (i < strips - 1) {
+                // RST0 to RST7, in turn.
+                out.write(0xff);
+                out.write(0xd0 + (i & 7));
+            }
+        }
+        out.write(0xff);
+        out.write(0xd9);
+    }
+
+    private void writeHeaders(OutputStream out, int width, int height, int restartInterval)
+            throws IOException {
+        // SOI, then APP0 with a JFIF header: version 1.01, no density, no thumbnail.
+        out.write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16,
+                'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        // DQT: both tables, 8-bit, in zigzag order.
+        writeMarker(out, 0xdb, 2 + 2 * 65);
+        out.write(0);
+        for (int i = 0; i < 64; i++) {
+            out.write(mLumaQuantization[ZIGZAG[i]]);
+        }
+        out.write(1);
+        for (int i = 0; i < 64; i++) {
+            out.write(mChromaQuantization[ZIGZAG[i]]);
+        }
+
+        // SOF0: 8-bit samples; Y at 2x2 with table 0, Cb and Cr at 1x1 with table 1.
+        writeMarker(out, 0xc0, 17);
+        out.write(new byte[]{8, (byte) (height >> 8), (byte) height, (byte) (width >> 8),
+                (byte) width, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        // DHT: the four standard tables.
+        writeMarker(out, 0xc4, 2 + 4 * 17 + 2 * DC_VALUES.length + AC_LUMA_VALUES.length
+                + AC_CHROMA_VALUES.length);
+        writeHuffmanTable(out, 0x00, DC_LUMA_BITS, DC_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        writeHuffmanTable(out, 0x01, DC_CHROMA_BITS, DC_VALUES);
+        writeHuffmanTable(out, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+        if (restartInterval > 0) {
+            writeMarker(out, 0xdd, 4);
+            out.write(restartInterval >> 8);
+            out.write(restartInterval);
+        }
+
+        // SOS: all three components, Y with tables 0, Cb and Cr with tables 1.
+        writeMarker(out, 0xda, 12);
+        out.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeMarker(OutputStream out, int marker, int length)
+            throws IOException {
+        out.write(0xff);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length);
+    }
+
+    private static void writeHuffmanTable(OutputStream out, int classAndId, int[] bits,
+                                          int[] values) throws IOException {
+        out.write(classAndId);
+        for (int count : bits) {
+            out.write(count);
+        }
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+
+    /**
+     * Scales a quantization table to a quality as libjpeg does, limited to baseline's 8 bits.
+     */
+    static int[] scaleQuantization(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    private static float[] divisorsOf(int[] quantization) {
+        float[] scale = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int column = 0; column < 8; column++) {
+                int i = row * 8 + column;
+                scale[i] = (float) (1.0
+                        / (quantization[i] * AAN_SCALE[row] * AAN_SCALE[column] * 8.0));
+            }
+        }
+        return scale;
+    }
+
+    /**
+     * The code and length of each symbol of a Huffman table (Annex C).
+     */
+    private static final class HuffmanTable {
+
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code;
+                    mLengths[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+    }
+
+    /**
+     * Encodes the MCU rows {@code [mFirstRow, mEndRow)} into the bytes of one restart interval.
+     */
+    private final class Strip implements Callable<byte[]> {
+
+        private final YuvFrame mFrame;
+        private final int mFirstRow;
+        private final int mEndRow;
+
+        private final float[] mBlock = new float[64];
+        private final int[] mCoefficients = new int[64];
+
+        private byte[] mBytes;
+        private int mLength;
+        private int mBitBuffer;
+        private int mBitCount;
+
+        Strip(YuvFrame frame, int firstRow, int endRow) {
+            mFrame = frame;
+            mFirstRow = firstRow;
+            mEndRow = endRow;
+        }
+
+        @Override
+        public byte[] call() {
+            YuvFrame frame = mFrame;
+            int mcusPerRow = (frame.getWidth() + MCU_SIZE - 1) / MCU_SIZE;
+            // About a bit per pixel to start with.
+            mBytes = new byte[Math.max(1024,
+                    (mEndRow - mFirstRow) * MCU_SIZE * frame.getWidth() / 8)];
+            int lumaPredictor = 0;
+            int cbPredictor = 0;
+            int crPredictor = 0;
+            for (int mcuRow = mFirstRow; mcuRow < mEndRow; mcuRow++) {
+                for (int mcu = 0; mcu < mcusPerRow; mcu++) {
+                    int x = mcu * MCU_SIZE;
+                    int y = mcuRow * MCU_SIZE;
+                    for (int block = 0; block < 4; block++) {
+                        loadBlock(YuvFrame.Y, x + (block & 1) * 8, y + (block >> 1) * 8,
+                                frame.getWidth(), frame.getHeight());
+                        lumaPredictor = encodeBlock(lumaPredictor, mLumaScale, DC_LUMA,
+                                AC_LUMA);
+                    }
+                    int chromaWidth = (frame.getWidth() + 1) / 2;
+                    int chromaHeight = (frame.getHeight() + 1) / 2;
+                    loadBlock(YuvFrame.U, x / 2, y / 2, chromaWidth, chromaHeight);
+                    cbPredictor = encodeBlock(cbPredictor, mChromaScale, DC_CHROMA, AC_CHROMA);
+                    loadBlock(YuvFrame.V, x / 2, y / 2, chromaWidth, chromaHeight);
+                    crPredictor = encodeBlock(crPredictor, mChromaScale, DC_CHROMA, AC_CHROMA);
+                }
+            }
+            // Pad the last byte with ones.
+            if (mBitCount > 0) {
+                writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+            }
+            byte[] result = new byte[mLength];
+            System.arraycopy(mBytes, 0, result, 0, mLength);
+            return result;
+        }
+
+        /**
+         * Reads the 8x8 block at {@code (x, y)} of a plane, level shifted, repeating the last
+         * column and row past the edges.
+         */
+        private void loadBlock(int plane, int x, int y, int width, int height) {
+            ByteBuffer buffer = mFrame.getBuffer(plane);
+            int rowStride = mFrame.getRowStride(plane);
+            int pixelStride = mFrame.getPixelStride(plane);
+            float[] block = mBlock;
+            for (int row = 0; row < 8; row++) {
+                int start = Math.min(y + row, height - 1) * rowStride;
+                for (int column = 0; column < 8; column++) {
+                    int index = start + Math.min(x + column, width - 1) * pixelStride;
+                    block[row * 8 + column] = (buffer.get(index) & 0xff) - 128;
+                }
+            }
+        }
+
+        /**
+         * Transforms, quantizes and entropy codes the loaded block.
+         *
+         * @return The quantized DC coefficient, to predict the next one of the component
+         */
+        private int encodeBlock(int predictor, float[] scale, HuffmanTable dc, HuffmanTable ac) {
+            float[] block = mBlock;
+            forwardDct(block);
+            int[] coefficients = mCoefficients;
+            for (int i = 0; i < 64; i++) {
+                coefficients[i] = Math.round(block[ZIGZAG[i]] * scale[ZIGZAG[i]]);
+            }
+
+            int dcValue = coefficients[0];
+            writeCoefficient(dc, 0, dcValue - predictor);
+
+            int run = 0;
+            for (int i = 1; i < 64; i++) {
+                int value = coefficients[i];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    // ZRL: sixteen zeros.
+                    writeBits(ac.mCodes[0xf0], ac.mLengths[0xf0]);
+                    run -= 16;
+                }
+                writeCoefficient(ac, run, value);
+                run = 0;
+            }
+            if (run > 0) {
+                // EOB: the rest are zeros.
+                writeBits(ac.mCodes[0], ac.mLengths[0]);
+            }
+            return dcValue;
+        }
+
+        /**
+         * Writes the symbol for {@code run} zeros and the size of {@code value}, then the bits
+         * of {@code value}, negative ones as their ones' complement.
+         */
+        private void writeCoefficient(HuffmanTable table, int run, int value) {
+            int magnitude = value < 0 ? -value : value;
+            int size = magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+            int symbol = (run << 4) | size;
+            writeBits(table.mCodes[symbol], table.mLengths[symbol]);
+            if (size > 0) {
+                writeBits(value < 0 ? value - 1 : value, size);
+            }
+        }
+
+        private void writeBits(int bits, int count) {
+            mBitBuffer = (mBitBuffer << count) | (bits & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                int value = (mBitBuffer >> mBitCount) & 0xff;
+                writeByte(value);
+                if (value == 0xff) {
+                    // Stuffed, so that it can't be taken for a marker.
+                    writeByte(0);
+                }
+            }
+        }
+
+        private void writeByte(int value) {
+            if (mLength == mBytes.length) {
+                byte[] bytes = new byte[mBytes.length * 2];
+                System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                mBytes = bytes;
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+    }
+
+    /**
+     * The AAN forward DCT of libjpeg's {@code jfdctflt.c}, in place. The outputs are scaled by
+     * 8 and the {@link #AAN_SCALE} factors of their row and column, which the quantizer divides
+     * out.
+     */
+    static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // Rows first, then columns.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0, base = 0; line < 8; line++, base += next) {
+                float tmp0 = data[base] + data[base + 7 * step];
+                float tmp7 = data[base] - data[base + 7 * step];
+                float tmp1 = data[base + step] + data[base + 6 * step];
+                float tmp6 = data[base + step] - data[base + 6 * step];
+                float tmp2 = data[base + 2 * step] + data[base + 5 * step];
+                float tmp5 = data[base + 2 * step] - data[base + 5 * step];
+                float tmp3 = data[base + 3 * step] + data[base + 4 * step];
+                float tmp4 = data[base + 3 * step] - data[base + 4 * step];
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[base] = tmp10 + tmp11;
+                data[base + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[base + 2 * step] = tmp13 + z1;
+                data[base + 6 * step] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[base + 5 * step] = z13 + z2;
+                data[base + 3 * step] = z13 - z2;
+                data[base + step] = z11 + z4;
+                data[base + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+}
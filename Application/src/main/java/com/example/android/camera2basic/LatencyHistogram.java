@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies. Values are kept in microseconds in log-linear
+ * buckets (16 sub-buckets per power of two), so any percentile is accurate to about 6%.
+ * Recording never allocates and can be called from any thread.
+ */
+class LatencyHistogram {
+
+    /**
+     * Number of linear sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest exponent tracked; values above 2^40 us (about 12 days) share the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKET_COUNT = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos The latency in nanoseconds, as a difference of {@link System#nanoTime()}s
+     */
+    void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxMicros.get())) {
+            if (mMaxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    long getMeanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumMicros.get() / count;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the recorded values fall.
+     *
+     * @param fraction A value in [0, 1], e.g. 0.95 for the 95th percentile
+     * @return The percentile in microseconds, or 0 if nothing has been recorded
+     */
+    long getPercentileMicros(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s: n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                mName, getCount(), getMeanMicros() / 1000f,
+                getPercentileMicros(0.50) / 1000f, getPercentileMicros(0.95) / 1000f,
+                getPercentileMicros(0.99) / 1000f, getMaxMicros() / 1000f);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (micros >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (shift + 1) + mantissa;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the cameras of several {@link CameraController}s at the same time. Every controller has
+ * its own thread, which receives its {@link CameraDevice.StateCallback}, so that one camera
+ * coming up never waits behind another. Cold start then costs the slowest open rather than the
+ * sum of all of them.
+ */
+class MultiCameraOpener {
+
+    private static final String TAG = "MultiCameraOpener";
+
+    /**
+     * Receives the state of the cameras being opened.
+     */
+    interface Listener {
+
+        /**
+         * Called on the camera's own thread as soon as it is open; sessions can be configured
+         * from here without waiting for the other cameras.
+         *
+         * @param controller The controller of the opened camera
+         * @param openNanos  How long the camera took to open
+         */
+        void onOpened(@NonNull CameraController controller, long openNanos);
+
+        /**
+         * Called on the camera's own thread when a camera is disconnected or fails. The device
+         * has already been closed.
+         *
+         * @param controller The controller of the camera
+         * @param error      The {@link CameraDevice.StateCallback} error code, or -1 if the
+         *                   camera was disconnected
+         */
+        void onFailed(@NonNull CameraController controller, int error);
+
+    }
+
+    private final CameraManager mCameraManager;
+    private final CameraTrace mTrace;
+
+    private final List<CameraController> mControllers = new ArrayList<>();
+    private final ConcurrentMap<String, Long> mOpenNanos = new ConcurrentHashMap<>();
+    private final AtomicInteger mUnsettled = new AtomicInteger();
+    private long mStartNanos;
+
+    MultiCameraOpener(CameraManager cameraManager, CameraTrace trace) {
+        mCameraManager = cameraManager;
+        mTrace = trace;
+    }
+
+    /**
+     * Opens the cameras of all the given controllers concurrently. The caller must hold the
+     * camera permission.
+     *
+     * @param controllers The controllers of the cameras to open
+     * @param listener    Notified as each camera comes up or fails
+     */
+    void open(List<CameraController> controllers, Listener listener) {
+        mControllers.clear();
+        mControllers.addAll(controllers);
+        mOpenNanos.clear();
+        mStartNanos = System.nanoTime();
+        mUnsettled.set(mControllers.size());
+        mTrace.begin(CameraTrace.OPEN_ALL, TAG);
+        // CameraManager.openCamera() only queues the request, so issuing all of them back to
+        // back lets the camera service open the devices in parallel.
+        for (CameraController controller : mControllers) {
+            mTrace.begin(CameraTrace.OPEN, controller.getCameraId());
+            try {
+                controller.open(mCameraManager,
+                        createStateCallback(controller, System.nanoTime(), listener));
+            } catch (CameraAccessException e) {
+                // No callback will come, so fail the camera here. The other cameras are opened
+                // regardless.
+                e.printStackTrace();
+                failOpen(controller, listener);
+            }
+        }
+    }
+
+    /**
+     * Returns how long a camera took to open in nanoseconds, or -1 if it is not open (yet).
+     */
+    long getOpenNanos(String cameraId) {
+        Long openNanos = mOpenNanos.get(cameraId);
+        return openNanos == null ? -1 : openNanos;
+    }
+
+    private CameraDevice.StateCallback createStateCallback(final CameraController controller,
+                                                           final long startNanos,
+                                                           final Listener listener) {
+        return new CameraDevice.StateCallback() {
+
+            private boolean mSettled;
+
+            @Override
+            public void onOpened(@NonNull CameraDevice cameraDevice) {
+                long openNanos = System.nanoTime() - startNanos;
+                mOpenNanos.put(controller.getCameraId(), openNanos);
+                mTrace.end(CameraTrace.OPEN, controller.getCameraId());
+                listener.onOpened(controller, openNanos);
+                settle();
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+                fail(-1);
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice cameraDevice, int error) {
+                fail(error);
+            }
+
+            private void fail(int error) {
+                mTrace.cancel(CameraTrace.OPEN, controller.getCameraId());
+                listener.onFailed(controller, error);
+                if (!mSettled) {
+                    settle();
+                }
+            }
+
+            private void settle() {
+                mSettled = true;
+                MultiCameraOpener.this.settle();
+            }
+
+        };
+    }
+
+    private void failOpen(final CameraController controller, final Listener listener) {
+        mTrace.cancel(CameraTrace.OPEN, controller.getCameraId());
+        controller.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFailed(controller, CameraDevice.StateCallback.ERROR_CAMERA_SERVICE);
+                settle();
+            }
+        });
+    }
+
+    /**
+     * Logs the total and per-camera open times once every camera is either open or has failed.
+     */
+    private void settle() {
+        if (mUnsettled.decrementAndGet() == 0) {
+            long totalNanos = System.nanoTime() - mStartNanos;
+            mTrace.end(CameraTrace.OPEN_ALL, TAG);
+            StringBuilder perCamera = new StringBuilder();
+            for (CameraController controller : mControllers) {
+                long openNanos = getOpenNanos(controller.getCameraId());
+                perCamera.append(' ').append(controller.getCameraId()).append('=').append(
+                        openNanos < 0 ? "failed"
+                                : String.format(Locale.US, "%.1fms", openNanos / 1e6));
+            }
+            Log.d(TAG, String.format(Locale.US, "Opened %d cameras in %.1f ms:%s",
+                    mControllers.size(), totalNanos / 1e6, perCamera));
+        }
+    }
+
+}
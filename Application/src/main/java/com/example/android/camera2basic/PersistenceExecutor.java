@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs image persistence jobs (encoding, disk writes) on its own bounded worker pool, so that a
+ * slow write never holds up the camera {@link android.os.Handler} thread that delivers capture
+ * and state callbacks.
+ */
+class PersistenceExecutor {
+
+    /**
+     * What {@link #submit(Runnable)} does when the queue is full.
+     */
+    enum Backpressure {
+        /**
+         * Wait until a worker frees a queue slot.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued job to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new job.
+         */
+        REJECT
+    }
+
+    /**
+     * A job that holds on to a resource, such as an {@link android.media.Image}, which must be
+     * released if the job is dropped without being run.
+     */
+    interface Droppable extends Runnable {
+        void drop();
+    }
+
+    private final String mName;
+    private final Backpressure mBackpressure;
+    private final BlockingQueue<Runnable> mQueue;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Time from {@link #submit(Runnable)} until the job has finished running.
+     */
+    private final LatencyHistogram mLatency;
+
+    /**
+     * Time the job spends running on a worker.
+     */
+    private final LatencyHistogram mServiceTime;
+
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * @param name         Name used for the worker threads and the statistics
+     * @param threads      Number of worker threads
+     * @param capacity     Maximum number of jobs waiting for a worker
+     * @param backpressure What to do when {@code capacity} jobs are already waiting
+     */
+    PersistenceExecutor(final String name, int threads, int capacity, Backpressure backpressure) {
+        mName = name;
+        mBackpressure = backpressure;
+        mLatency = new LatencyHistogram(name + " latency");
+        mServiceTime = new LatencyHistogram(name + " service");
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, mQueue,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                name + "-" + mCount.getAndIncrement());
+                        // Persistence should never compete with the camera threads.
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable job, ThreadPoolExecutor executor) {
+                        onQueueFull((TimedJob) job, executor);
+                    }
+                });
+    }
+
+    /**
+     * Queues a job for a worker thread.
+     *
+     * @param job The job to run
+     * @return false if the job (not an older one) was dropped because of backpressure or shutdown
+     */
+    boolean submit(Runnable job) {
+        TimedJob timed = new TimedJob(job, System.nanoTime());
+        mExecutor.execute(timed);
+        return !timed.mWasDropped;
+    }
+
+    /**
+     * Returns the number of jobs waiting for a worker.
+     */
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the number of jobs being run right now.
+     */
+    int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    LatencyHistogram getServiceTime() {
+        return mServiceTime;
+    }
+
+    long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * Returns the number of queued jobs evicted by {@link Backpressure#DROP_OLDEST}.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the number of new jobs refused by {@link Backpressure#REJECT} or after shutdown.
+     */
+    long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Stops accepting jobs and waits for queued ones to finish.
+     *
+     * @param timeoutMs How long to wait for the queue to drain
+     * @return true if every queued job finished in time
+     */
+    boolean shutdown(long timeoutMs) {
+        mExecutor.shutdown();
+        try {
+            return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s[%s]: queued=%d active=%d completed=%d dropped=%d rejected=%d\n  %s\n  %s",
+                mName, mBackpressure, getQueueDepth(), getActiveCount(), getCompletedCount(),
+                getDroppedCount(), getRejectedCount(), mLatency, mServiceTime);
+    }
+
+    private void onQueueFull(TimedJob job, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            mRejected.incrementAndGet();
+            job.drop();
+            return;
+        }
+        switch (mBackpressure) {
+            case BLOCK: {
+                try {
+                    mQueue.put(job);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mRejected.incrementAndGet();
+                    job.drop();
+                }
+                break;
+            }
+            case DROP_OLDEST: {
+                while (!mQueue.offer(job)) {
+                    Runnable oldest = mQueue.poll();
+                    if (oldest != null) {
+                        mDropped.incrementAndGet();
+                        ((TimedJob) oldest).drop();
+                    }
+                }
+                break;
+            }
+            case REJECT: {
+                mRejected.incrementAndGet();
+                job.drop();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Wraps a job with the time it was submitted.
+     */
+    private final class TimedJob implements Runnable {
+
+        private final Runnable mJob;
+        private final long mSubmitNanos;
+        private volatile boolean mWasDropped;
+
+        TimedJob(Runnable job, long submitNanos) {
+            mJob = job;
+            mSubmitNanos = submitNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                mJob.run();
+            } finally {
+                long end = System.nanoTime();
+                mServiceTime.recordNanos(end - start);
+                mLatency.recordNanos(end - mSubmitNanos);
+                mCompleted.incrementAndGet();
+            }
+        }
+
+        void drop() {
+            mWasDropped = true;
+            if (mJob instanceof Droppable) {
+                ((Droppable) mJob).drop();
+            }
+        }
+
+    }
+
+}
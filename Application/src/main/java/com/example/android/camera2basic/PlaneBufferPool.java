@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Direct {@link ByteBuffer}s for copies of camera planes, kept by size and handed out again once
+ * returned, so that copying a plane out of an {@link android.media.Image} before it is closed
+ * allocates nothing once the pool has warmed up.
+ *
+ * <p>A buffer is borrowed with {@link #acquire(int)} and given back with
+ * {@link #release(Lease)}. A buffer that is never given back leaks: {@link #checkLeaks(long,
+ * long)} reports each buffer held for longer than expected, once, to the {@link LeakListener},
+ * along with where it was borrowed if {@link #setTrackBorrowSites(boolean)} is on.</p>
+ *
+ * <p>{@link #packPlane} and {@link #packI420} copy planes with any row and pixel stride into
+ * tightly packed ones.</p>
+ *
+ * <p>All methods may be called from any thread.</p>
+ */
+class PlaneBufferPool {
+
+    /**
+     * Told about the buffers that were not given back in time.
+     */
+    interface LeakListener {
+
+        /**
+         * @param size       The size of the buffer
+         * @param heldNanos  How long the buffer has been borrowed for
+         * @param borrowSite Where the buffer was borrowed, or null if not tracked
+         */
+        void onLeak(int size, long heldNanos, Throwable borrowSite);
+
+    }
+
+    /**
+     * A borrowed buffer.
+     */
+    static final class Lease {
+
+        private final PlaneBufferPool mPool;
+        private final ByteBuffer mBuffer;
+        private boolean mBorrowed;
+        private long mBorrowNanos;
+        private Throwable mBorrowSite;
+        private boolean mLeakReported;
+
+        Lease(PlaneBufferPool pool, int size) {
+            mPool = pool;
+            mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Returns the buffer, positioned at 0 with its limit at its size when borrowed. It must
+         * not be used after the lease is released.
+         */
+        ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        int getSize() {
+            return mBuffer.capacity();
+        }
+
+    }
+
+    private final int mMaxIdlePerSize;
+    private final LeakListener mLeakListener;
+
+    /**
+     * The sizes buffers were asked for, each with the returned buffers of that size.
+     */
+    private int[] mSizes = new int[4];
+    private final ArrayList<ArrayDeque<Lease>> mIdle = new ArrayList<>();
+
+    /**
+     * Every buffer, borrowed or not.
+     */
+    private final ArrayList<Lease> mLeases = new ArrayList<>();
+
+    private boolean mTrackBorrowSites;
+    private int mBorrowedCount;
+    private long mAcquireCount;
+    private long mAllocationCount;
+    private long mAllocatedBytes;
+    private long mLeakCount;
+
+    /**
+     * @param maxIdlePerSize How many returned buffers of each size are kept; more are freed
+     * @param leakListener   Told about the buffers {@link #checkLeaks(long, long)} finds, or null
+     */
+    PlaneBufferPool(int maxIdlePerSize, LeakListener leakListener) {
+        mMaxIdlePerSize = maxIdlePerSize;
+        mLeakListener = leakListener;
+    }
+
+    /**
+     * Sets whether to remember where each buffer is borrowed, for the leak reports. This costs an
+     * allocation per {@link #acquire(int)}, so it's meant for debugging.
+     */
+    synchronized void setTrackBorrowSites(boolean track) {
+        mTrackBorrowSites = track;
+    }
+
+    /**
+     * Borrows a buffer of {@code size} bytes, allocating it only if none was returned.
+     */
+    synchronized Lease acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        ArrayDeque<Lease> idle = idleOf(size);
+        Lease lease = idle.pollFirst();
+        if (lease == null) {
+            lease = new Lease(this, size);
+            mLeases.add(lease);
+            mAllocationCount++;
+            mAllocatedBytes += size;
+        }
+        lease.mBuffer.clear();
+        lease.mBorrowed = true;
+        lease.mBorrowNanos = System.nanoTime();
+        lease.mBorrowSite = mTrackBorrowSites ? new Throwable("Borrowed here") : null;
+        lease.mLeakReported = false;
+        mBorrowedCount++;
+        mAcquireCount++;
+        return lease;
+    }
+
+    /**
+     * Gives a buffer back.
+     *
+     * @throws IllegalStateException If the buffer was already given back, or is from another pool
+     */
+    synchronized void release(Lease lease) {
+        if (lease.mPool != this) {
+            throw new IllegalStateException("Buffer is from another pool");
+        }
+        if (!lease.mBorrowed) {
+            throw new IllegalStateException("Buffer was already released");
+        }
+        lease.mBorrowed = false;
+        lease.mBorrowSite = null;
+        mBorrowedCount--;
+        ArrayDeque<Lease> idle = idleOf(lease.getSize());
+        if (idle.size() < mMaxIdlePerSize) {
+            idle.addFirst(lease);
+        } else {
+            // Let the collector free it.
+            mLeases.remove(lease);
+            mAllocatedBytes -= lease.getSize();
+        }
+    }
+
+    /**
+     * Reports the buffers borrowed for longer than {@code maxHoldNanos}, each one once.
+     *
+     * @param nowNanos     The current {@link System#nanoTime()}
+     * @param maxHoldNanos How long a buffer is expected to be borrowed for at most
+     * @return The number of buffers held too long, reported before or not
+     */
+    int checkLeaks(long nowNanos, long maxHoldNanos) {
+        int leaks = 0;
+        ArrayList<Lease> reported = null;
+        synchronized (this) {
+            for (int i = 0; i < mLeases.size(); i++) {
+                Lease lease = mLeases.get(i);
+                if (!lease.mBorrowed || nowNanos - lease.mBorrowNanos <= maxHoldNanos) {
+                    continue;
+                }
+                leaks++;
+                if (!lease.mLeakReported) {
+                    lease.mLeakReported = true;
+                    mLeakCount++;
+                    if (reported == null) {
+                        reported = new ArrayList<>();
+                    }
+                    reported.add(lease);
+                }
+            }
+        }
+        // Not under the lock, in case the listener gives the buffers back.
+        if (reported != null && mLeakListener != null) {
+            for (Lease lease : reported) {
+                mLeakListener.onLeak(lease.getSize(), nowNanos - lease.mBorrowNanos,
+                        lease.mBorrowSite);
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Returns the number of buffers borrowed and not given back yet.
+     */
+    synchronized int getBorrowedCount() {
+        return mBorrowedCount;
+    }
+
+    synchronized long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * Returns how many buffers were allocated, which stops growing once the pool has warmed up.
+     */
+    synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Returns the size of all buffers the pool holds or has lent.
+     */
+    synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Returns how many buffers {@link #checkLeaks(long, long)} reported.
+     */
+    synchronized long getLeakCount() {
+        return mLeakCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "PlaneBufferPool: borrowed=%d acquired=%d allocated=%d (%d KiB) leaked=%d",
+                mBorrowedCount, mAcquireCount, mAllocationCount, mAllocatedBytes / 1024,
+                mLeakCount);
+    }
+
+    private ArrayDeque<Lease> idleOf(int size) {
+        int count = mIdle.size();
+        for (int i = 0; i < count; i++) {
+            if (mSizes[i] == size) {
+                return mIdle.get(i);
+            }
+        }
+        if (count == mSizes.length) {
+            int[] sizes = new int[count * 2];
+            System.arraycopy(mSizes, 0, sizes, 0, count);
+            mSizes = sizes;
+        }
+        mSizes[count] = size;
+        ArrayDeque<Lease> idle = new ArrayDeque<>(mMaxIdlePerSize);
+        mIdle.add(idle);
+        return idle;
+    }
+
+    /**
+     * Returns the size of a tightly packed {@code I420} frame: the Y plane, then the U and V
+     * planes at half the width and height, rounded up.
+     */
+    static int sizeOfI420(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        return width * height + 2 * chromaWidth * chromaHeight;
+    }
+
+    /**
+     * Borrows a buffer and copies a frame into it as a tightly packed {@code I420} frame.
+     */
+    Lease packI420(YuvFrame frame) {
+        Lease lease = acquire(sizeOfI420(frame.getWidth(), frame.getHeight()));
+        packI420(frame, lease.getBuffer());
+        return lease;
+    }
+
+    /**
+     * Copies a frame into {@code dst} as a tightly packed {@code I420} frame, starting at index 0.
+     * Neither the planes of the frame nor {@code dst} have their position or limit changed.
+     *
+     * @return The number of bytes written, {@link #sizeOfI420(int, int)}
+     */
+    static int packI420(YuvFrame frame, ByteBuffer dst) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int offset = packPlane(frame.getBuffer(YuvFrame.Y), frame.getRowStride(YuvFrame.Y),
+                frame.getPixelStride(YuvFrame.Y), width, height, dst, 0);
+        offset += packPlane(frame.getBuffer(YuvFrame.U), frame.getRowStride(YuvFrame.U),
+                frame.getPixelStride(YuvFrame.U), chromaWidth, chromaHeight, dst, offset);
+        offset += packPlane(frame.getBuffer(YuvFrame.V), frame.getRowStride(YuvFrame.V),
+                frame.getPixelStride(YuvFrame.V), chromaWidth, chromaHeight, dst, offset);
+        return offset;
+    }
+
+    /**
+     * Copies a plane into {@code dst} without the row padding and the bytes between pixels, using
+     * absolute gets and puts only, so that other threads may read the plane at the same time and
+     * nothing is allocated. Neither the plane nor {@code dst} has its position or limit changed.
+     *
+     * @param src         The plane
+     * @param rowStride   The distance in bytes between rows of the plane
+     * @param pixelStride The distance in bytes between pixels of a row of the plane
+     * @param width       The width of the plane in pixels
+     * @param height      The height of the plane in pixels
+     * @param dst         The buffer to copy into
+     * @param offset      Where in {@code dst} to copy to
+     * @return The number of bytes written, {@code width * height}
+     */
+    static int packPlane(ByteBuffer src, int rowStride, int pixelStride, int width, int height,
+                         ByteBuffer dst, int offset) {
+        return packPlane(src, rowStride, pixelStride, width, height, dst, offset, width);
+    }
+
+    /**
+     * Copies a plane into a region of {@code dst} whose rows are {@code dstRowStride} bytes
+     * apart, as {@link #packPlane(ByteBuffer, int, int, int, int, ByteBuffer, int)} does. This
+     * places a plane inside a larger one.
+     *
+     * @return The number of bytes written, {@code width * height}
+     */
+    static int packPlane(ByteBuffer src, int rowStride, int pixelStride, int width, int height,
+                         ByteBuffer dst, int offset, int dstRowStride) {
+        boolean swap = src.order() != dst.order();
+        int out = offset;
+        for (int y = 0; y < height; y++) {
+            int in = y * rowStride;
+            int x = 0;
+            if (pixelStride == 1) {
+                // Eight bytes at a time; the last row may end right after its last pixel.
+                for (; x + 8 <= width; x += 8) {
+                    long value = src.getLong(in + x);
+                    dst.putLong(out + x, swap ? Long.reverseBytes(value) : value);
+                }
+                for (; x < width; x++) {
+                    dst.put(out + x, src.get(in + x));
+                }
+            } else {
+                for (; x < width; x++) {
+                    dst.put(out + x, src.get(in + x * pixelStride));
+                }
+            }
+            out += dstRowStride;
+        }
+        return width * height;
+    }
+
+}
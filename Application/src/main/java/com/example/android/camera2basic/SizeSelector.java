@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks output sizes out of the sizes a camera supports for one output class or format. The
+ * sizes are grouped by exact aspect ratio and sorted by area once, when the selector is built;
+ * every query is then a handful of binary searches instead of a scan of all sizes.
+ *
+ * <p>A query prefers the requested aspect ratio, falling back to the closest one that has a size
+ * within the limits, and within a ratio picks the smallest size at least as large as the minimum,
+ * or the largest size below it if none is. {@link #selectAll(SizeSelector[], Constraints[], long)}
+ * does this for several streams sharing a pixel budget, e.g. the bandwidth of one camera bus.</p>
+ *
+ * <p>Sizes are identified by their index in the array the selector was built from. Immutable and
+ * thread-safe.</p>
+ */
+class SizeSelector {
+
+    /**
+     * What a stream needs from its size.
+     */
+    static final class Constraints {
+
+        final int mMinWidth;
+        final int mMinHeight;
+        final int mMaxWidth;
+        final int mMaxHeight;
+        final int mRatioWidth;
+        final int mRatioHeight;
+
+        /**
+         * @param minWidth    The width the size should reach, e.g. that of the view
+         * @param minHeight   The height the size should reach
+         * @param maxWidth    The largest width allowed
+         * @param maxHeight   The largest height allowed
+         * @param ratioWidth  The width of the preferred aspect ratio
+         * @param ratioHeight The height of the preferred aspect ratio
+         */
+        Constraints(int minWidth, int minHeight, int maxWidth, int maxHeight, int ratioWidth,
+                    int ratioHeight) {
+            if (ratioWidth <= 0 || ratioHeight <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid aspect ratio " + ratioWidth + ":" + ratioHeight);
+            }
+            mMinWidth = minWidth;
+            mMinHeight = minHeight;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+            mRatioWidth = ratioWidth;
+            mRatioHeight = ratioHeight;
+        }
+
+    }
+
+    private final int[] mWidths;
+    private final int[] mHeights;
+
+    /**
+     * The reduced aspect ratio of each group, groups sorted by increasing ratio.
+     */
+    private final int[] mRatioWidths;
+    private final int[] mRatioHeights;
+    private final double[] mLogRatios;
+
+    /**
+     * Per group, the indices, widths, heights and areas of its sizes, sorted by increasing area.
+     * Within a group, width and height grow with the area too.
+     */
+    private final int[][] mGroupIndices;
+    private final int[][] mGroupWidths;
+    private final int[][] mGroupHeights;
+    private final long[][] mGroupAreas;
+
+    /**
+     * Index of the size with the smallest area, or -1 if there are no sizes.
+     */
+    private final int mSmallest;
+
+    /**
+     * @param widths  The widths of the sizes
+     * @param heights The heights of the sizes, in the same order
+     */
+    SizeSelector(int[] widths, int[] heights) {
+        if (widths.length != heights.length) {
+            throw new IllegalArgumentException("Widths and heights differ in length");
+        }
+        mWidths = widths.clone();
+        mHeights = heights.clone();
+
+        Integer[] order = new Integer[mWidths.length];
+        for (int i = 0; i < order.length; i++) {
+            if (mWidths[i] <= 0 || mHeights[i] <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid size " + mWidths[i] + "x" + mHeights[i]);
+            }
+            order[i] = i;
+        }
+        // By ratio, then by area.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int byRatio = Long.signum((long) mWidths[lhs] * mHeights[rhs]
+                        - (long) mWidths[rhs] * mHeights[lhs]);
+                return byRatio != 0 ? byRatio : Long.signum(areaOf(lhs) - areaOf(rhs));
+            }
+        });
+
+        List<int[]> groups = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= order.length; i++) {
+            if (i == order.length || (long) mWidths[order[i]] * mHeights[order[start]]
+                    != (long) mWidths[order[start]] * mHeights[order[i]]) {
+                int[] group = new int[i - start];
+                for (int j = 0; j < group.length; j++) {
+                    group[j] = order[start + j];
+                }
+                groups.add(group);
+                start = i;
+            }
+        }
+
+        int groupCount = groups.size();
+        mRatioWidths = new int[groupCount];
+        mRatioHeights = new int[groupCount];
+        mLogRatios = new double[groupCount];
+        mGroupIndices = new int[groupCount][];
+        mGroupWidths = new int[groupCount][];
+        mGroupHeights = new int[groupCount][];
+        mGroupAreas = new long[groupCount][];
+        int smallest = -1;
+        for (int g = 0; g < groupCount; g++) {
+            int[] group = groups.get(g);
+            int divisor = gcd(mWidths[group[0]], mHeights[group[0]]);
+            mRatioWidths[g] = mWidths[group[0]] / divisor;
+            mRatioHeights[g] = mHeights[group[0]] / divisor;
+            mLogRatios[g] = Math.log((double) mRatioWidths[g] / mRatioHeights[g]);
+            mGroupIndices[g] = group;
+            mGroupWidths[g] = new int[group.length];
+            mGroupHeights[g] = new int[group.length];
+            mGroupAreas[g] = new long[group.length];
+            for (int j = 0; j < group.length; j++) {
+                mGroupWidths[g][j] = mWidths[group[j]];
+                mGroupHeights[g][j] = mHeights[group[j]];
+                mGroupAreas[g][j] = areaOf(group[j]);
+            }
+            if (smallest == -1 || areaOf(group[0]) < areaOf(smallest)) {
+                smallest = group[0];
+            }
+        }
+        mSmallest = smallest;
+    }
+
+    /**
+     * Builds a selector for the sizes of a camera output.
+     */
+    static SizeSelector of(Size[] sizes) {
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
+        }
+        return new SizeSelector(widths, heights);
+    }
+
+    /**
+     * Returns the number of sizes.
+     */
+    int size() {
+        return mWidths.length;
+    }
+
+    int getWidth(int index) {
+        return mWidths[index];
+    }
+
+    int getHeight(int index) {
+        return mHeights[index];
+    }
+
+    /**
+     * Returns the area of a size in pixels.
+     */
+    long areaOf(int index) {
+        return (long) mWidths[index] * mHeights[index];
+    }
+
+    /**
+     * Returns the number of distinct aspect ratios.
+     */
+    int getRatioCount() {
+        return mRatioWidths.length;
+    }
+
+    /**
+     * Picks a size for one stream. Of the aspect ratios that have a size within the maximum
+     * width, height and pixel count, the one closest to the requested ratio is used; within it,
+     * the smallest size reaching the minimum width and height, or failing that the largest one.
+     * If no size is within the limits at all, the smallest size is returned.
+     *
+     * @param constraints What the stream needs
+     * @param maxPixels   The largest area allowed, e.g. the share of a bandwidth budget
+     * @return The index of the size, or -1 if there are no sizes
+     */
+    int select(Constraints constraints, long maxPixels) {
+        if (mSmallest == -1) {
+            return -1;
+        }
+        double target = Math.log((double) constraints.mRatioWidth / constraints.mRatioHeight);
+        // Visit the ratios outward from the target, closest first.
+        int above = firstAtLeast(mLogRatios, target);
+        int below = above - 1;
+        while (below >= 0 || above < mLogRatios.length) {
+            int group;
+            if (below < 0) {
+                group = above++;
+            } else if (above >= mLogRatios.length) {
+                group = below--;
+            } else if (mLogRatios[above] - target <= target - mLogRatios[below]) {
+                group = above++;
+            } else {
+                group = below--;
+            }
+            int index = selectInGroup(group, constraints, maxPixels);
+            if (index != -1) {
+                return index;
+            }
+        }
+        return mSmallest;
+    }
+
+    private int selectInGroup(int group, Constraints constraints, long maxPixels) {
+        int[] widths = mGroupWidths[group];
+        int[] heights = mGroupHeights[group];
+        // The largest size within all the limits.
+        int upper = Math.min(lastAtMost(widths, constraints.mMaxWidth),
+                Math.min(lastAtMost(heights, constraints.mMaxHeight),
+                        lastAtMost(mGroupAreas[group], maxPixels)));
+        if (upper < 0) {
+            return -1;
+        }
+        // The smallest size reaching the minimum.
+        int lower = Math.max(firstAtLeast(widths, constraints.mMinWidth),
+                firstAtLeast(heights, constraints.mMinHeight));
+        return mGroupIndices[group][lower <= upper ? lower : upper];
+    }
+
+    /**
+     * Picks the sizes of several streams that run at the same time, keeping their total area
+     * within {@code pixelBudget}. Each stream first gets the size {@link #select} would pick for
+     * it alone; while the total is over the budget, the largest stream that can shrink moves
+     * down to its next smaller size.
+     *
+     * @param selectors   The selector of each stream
+     * @param constraints The constraints of each stream, in the same order
+     * @param pixelBudget The largest total area
+     * @return The index of the size of each stream, or -1 for a stream without sizes. If the
+     * budget can't be met, every stream has its smallest size.
+     */
+    static int[] selectAll(SizeSelector[] selectors, Constraints[] constraints,
+                           long pixelBudget) {
+        if (selectors.length != constraints.length) {
+            throw new IllegalArgumentException("Selectors and constraints differ in length");
+        }
+        int[] chosen = new int[selectors.length];
+        long total = 0;
+        for (int i = 0; i < chosen.length; i++) {
+            chosen[i] = selectors[i].select(constraints[i], Long.MAX_VALUE);
+            if (chosen[i] != -1) {
+                total += selectors[i].areaOf(chosen[i]);
+            }
+        }
+        while (total > pixelBudget) {
+            int largest = -1;
+            int replacement = -1;
+            long largestArea = 0;
+            for (int i = 0; i < chosen.length; i++) {
+                if (chosen[i] == -1) {
+                    continue;
+                }
+                long area = selectors[i].areaOf(chosen[i]);
+                if (area <= largestArea) {
+                    continue;
+                }
+                int smaller = selectors[i].select(constraints[i], area - 1);
+                if (selectors[i].areaOf(smaller) < area) {
+                    largest = i;
+                    replacement = smaller;
+                    largestArea = area;
+                }
+            }
+            if (largest == -1) {
+                // Every stream is at its smallest size.
+                break;
+            }
+            total -= largestArea - selectors[largest].areaOf(replacement);
+            chosen[largest] = replacement;
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the index of the first value at least {@code key} in an ascending array, or its
+     * length if there is none.
+     */
+    private static int firstAtLeast(int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int firstAtLeast(double[] values, double key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the last value at most {@code key} in an ascending array, or -1 if
+     * there is none.
+     */
+    private static int lastAtMost(int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private static int lastAtMost(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
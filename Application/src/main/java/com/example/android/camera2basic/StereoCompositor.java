@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Combines the two pictures of a synchronized pair into a single stereo file, one of the
+ * {@link Layout}s.
+ *
+ * <p>Pairs of JPEG stills are combined into a Multi-Picture Object (CIPA DC-007), which only
+ * needs the encoded bytes to be copied, so the hardware encoding of the camera is kept. Pairs of
+ * YUV frames can also be composited into a single picture, side by side or one above the other,
+ * which is then encoded with a {@link JpegEncoder}.</p>
+ *
+ * <p>The result is built in a buffer of a {@link PlaneBufferPool}. How long each pair took is
+ * recorded in {@link #getCompositeTime()}. All methods may be called from any thread.</p>
+ */
+class StereoCompositor {
+
+    /**
+     * How the two pictures are arranged.
+     */
+    enum Layout {
+        /**
+         * One picture, the first on the left and the second on the right.
+         */
+        SIDE_BY_SIDE,
+        /**
+         * One picture, the first above the second.
+         */
+        TOP_BOTTOM,
+        /**
+         * Both pictures one after the other, as a multi-view disparity MPO. Viewers that don't
+         * know the format show the first one, as it is a complete JPEG by itself.
+         */
+        MPO
+    }
+
+    /**
+     * Buffers for MPOs are allocated in multiples of this, so that pairs of slightly different
+     * sizes can use the same ones.
+     */
+    private static final int MPO_SIZE_CLASS = 1 << 20;
+
+    /**
+     * The APP2 segment inserted into the first picture of an MPO: the MP index IFD with the
+     * version, the number of pictures and the entry of each picture.
+     */
+    private static final int INDEX_SEGMENT_SIZE = 90;
+
+    /**
+     * The APP2 segment inserted into the second picture of an MPO: the MP attribute IFD with the
+     * version and the number of the picture.
+     */
+    private static final int ATTRIBUTE_SEGMENT_SIZE = 46;
+
+    /**
+     * Where the TIFF header starts in the APP2 segments: after the marker, the length and the
+     * {@code MPF} identifier. MPO offsets count from there.
+     */
+    private static final int TIFF_HEADER_OFFSET = 8;
+
+    /**
+     * Type codes of the MP entries: disparity pictures of a multi-frame picture, the first one
+     * flagged as the picture to show.
+     */
+    private static final int ATTRIBUTE_DISPARITY = 0x020002;
+    private static final int ATTRIBUTE_REPRESENTATIVE = 0x20000000;
+
+    private static final byte BLACK = 0;
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private final PlaneBufferPool mPool;
+    private final JpegEncoder mEncoder;
+    private final LatencyHistogram mCompositeTime = new LatencyHistogram("stereo composite");
+
+    /**
+     * @param pool    Lends the buffers the pairs are combined in
+     * @param encoder Encodes pairs of frames, or null if only JPEG stills are combined
+     */
+    StereoCompositor(PlaneBufferPool pool, JpegEncoder encoder) {
+        mPool = pool;
+        mEncoder = encoder;
+    }
+
+    /**
+     * Returns how long each pair took to combine, including encoding for frames.
+     */
+    LatencyHistogram getCompositeTime() {
+        return mCompositeTime;
+    }
+
+    /**
+     * Combines two JPEG stills into an MPO, in a buffer borrowed from the pool. The buffer is
+     * positioned at 0 with its limit at the end of the MPO; the caller writes it out and then
+     * gives it back with {@link PlaneBufferPool#release(PlaneBufferPool.Lease)}.
+     *
+     * @param first  The remaining bytes of the first still, e.g. a JPEG image plane. Its
+     *               position and limit are not changed.
+     * @param second The remaining bytes of the second still
+     * @throws IllegalArgumentException If either still is not a JPEG
+     */
+    PlaneBufferPool.Lease composeMpo(ByteBuffer first, ByteBuffer second) {
+        long start = System.nanoTime();
+        PlaneBufferPool.Lease lease = borrowMpo(first, second);
+        mCompositeTime.recordNanos(System.nanoTime() - start);
+        return lease;
+    }
+
+    private PlaneBufferPool.Lease borrowMpo(ByteBuffer first, ByteBuffer second) {
+        int size = sizeOfMpo(first, second);
+        int classes = (size + MPO_SIZE_CLASS - 1) / MPO_SIZE_CLASS;
+        PlaneBufferPool.Lease lease = mPool.acquire(classes * MPO_SIZE_CLASS);
+        ByteBuffer buffer = lease.getBuffer();
+        writeMpo(first, second, buffer);
+        buffer.flip();
+        return lease;
+    }
+
+    /**
+     * Combines two frames in {@code layout} and writes the result to {@code out}. Side by side
+     * and one above the other, the pictures are aligned to the top and left, and the rest of the
+     * picture is black when they differ in size.
+     */
+    void writeFrames(YuvFrame first, YuvFrame second, Layout layout, OutputStream out)
+            throws IOException {
+        if (mEncoder == null) {
+            throw new IllegalStateException("No encoder for frames");
+        }
+        long start = System.nanoTime();
+        if (layout == Layout.MPO) {
+            ByteArrayOutputStream firstJpeg = new ByteArrayOutputStream();
+            mEncoder.encode(first, firstJpeg);
+            ByteArrayOutputStream secondJpeg = new ByteArrayOutputStream();
+            mEncoder.encode(second, secondJpeg);
+            PlaneBufferPool.Lease lease = borrowMpo(ByteBuffer.wrap(firstJpeg.toByteArray()),
+                    ByteBuffer.wrap(secondJpeg.toByteArray()));
+            try {
+                WritableByteChannel channel = Channels.newChannel(out);
+                ByteBuffer buffer = lease.getBuffer();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                mPool.release(lease);
+            }
+        } else {
+            boolean sideBySide = layout == Layout.SIDE_BY_SIDE;
+            // The second picture starts on an even pixel, to line up with the chroma.
+            int width = sideBySide
+                    ? roundUpToEven(first.getWidth()) + second.getWidth()
+                    : Math.max(first.getWidth(), second.getWidth());
+            int height = sideBySide
+                    ? Math.max(first.getHeight(), second.getHeight())
+                    : roundUpToEven(first.getHeight()) + second.getHeight();
+            PlaneBufferPool.Lease lease =
+                    mPool.acquire(PlaneBufferPool.sizeOfI420(width, height));
+            try {
+                YuvFrame composite = composite(first, second, sideBySide, width, height,
+                        lease.getBuffer());
+                mEncoder.encode(composite, out);
+            } finally {
+                mPool.release(lease);
+            }
+        }
+        mCompositeTime.recordNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Copies both frames into {@code dst} as one {@code I420} frame of {@code width x height},
+     * and returns that frame.
+     */
+    static YuvFrame composite(YuvFrame first, YuvFrame second, boolean sideBySide, int width,
+                              int height, ByteBuffer dst) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int[] offsets = {0, width * height, width * height + chromaWidth * chromaHeight};
+        int[] rowStrides = {width, chromaWidth, chromaWidth};
+        if ((long) first.getWidth() * first.getHeight()
+                + (long) second.getWidth() * second.getHeight() != (long) width * height) {
+            fill(dst, 0, offsets[1], BLACK);
+            fill(dst, offsets[1], PlaneBufferPool.sizeOfI420(width, height), NEUTRAL_CHROMA);
+        }
+        int secondX = sideBySide ? roundUpToEven(first.getWidth()) : 0;
+        int secondY = sideBySide ? 0 : roundUpToEven(first.getHeight());
+        for (int plane = YuvFrame.Y; plane <= YuvFrame.V; plane++) {
+            int shift = plane == YuvFrame.Y ? 0 : 1;
+            copyPlane(first, plane, shift, dst, offsets[plane], rowStrides[plane]);
+            copyPlane(second, plane, shift, dst, offsets[plane]
+                    + (secondY >> shift) * rowStrides[plane] + (secondX >> shift),
+                    rowStrides[plane]);
+        }
+
+        ByteBuffer[] planes = new ByteBuffer[3];
+        for (int plane = YuvFrame.Y; plane <= YuvFrame.V; plane++) {
+            ByteBuffer slice = dst.duplicate();
+            slice.position(offsets[plane]);
+            slice.limit(plane == YuvFrame.V
+                    ? PlaneBufferPool.sizeOfI420(width, height) : offsets[plane + 1]);
+            planes[plane] = slice.slice();
+        }
+        return new YuvFrame(width, height, first.getTimestamp(), planes, rowStrides,
+                new int[]{1, 1, 1}, null);
+    }
+
+    private static void copyPlane(YuvFrame frame, int plane, int shift, ByteBuffer dst,
+                                  int offset, int dstRowStride) {
+        int width = (frame.getWidth() + shift) >> shift;
+        int height = (frame.getHeight() + shift) >> shift;
+        PlaneBufferPool.packPlane(frame.getBuffer(plane), frame.getRowStride(plane),
+                frame.getPixelStride(plane), width, height, dst, offset, dstRowStride);
+    }
+
+    private static void fill(ByteBuffer dst, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            dst.put(i, value);
+        }
+    }
+
+    private static int roundUpToEven(int value) {
+        return (value + 1) & ~1;
+    }
+
+    /**
+     * Returns the size of the MPO of two stills.
+     */
+    static int sizeOfMpo(ByteBuffer first, ByteBuffer second) {
+        checkJpeg(first);
+        checkJpeg(second);
+        return first.remaining() + INDEX_SEGMENT_SIZE + second.remaining()
+                + ATTRIBUTE_SEGMENT_SIZE;
+    }
+
+    /**
+     * Writes the MPO of two stills into {@code dst}, from its position on: each still with an
+     * APP2 segment inserted after its APP0 and APP1 segments, which hold the JFIF and Exif
+     * headers that must come first.
+     *
+     * @return The number of bytes written, {@link #sizeOfMpo(ByteBuffer, ByteBuffer)}
+     */
+    static int writeMpo(ByteBuffer first, ByteBuffer second, ByteBuffer dst) {
+        int start = dst.position();
+        // The MPF segments are big-endian whatever the order of the buffer.
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        int firstSize = first.remaining() + INDEX_SEGMENT_SIZE;
+        int secondSize = second.remaining() + ATTRIBUTE_SEGMENT_SIZE;
+        int firstInsert = insertionPoint(first);
+        // Offsets are from the TIFF header in the first still.
+        int secondOffset = firstSize - firstInsert - TIFF_HEADER_OFFSET;
+
+        putRange(dst, first, 0, firstInsert);
+        dst.putShort((short) 0xffe2).putShort((short) (INDEX_SEGMENT_SIZE - 2));
+        putTiffHeader(dst);
+        dst.putShort((short) 3);
+        putVersion(dst);
+        putEntry(dst, 0xb001, 4, 1, 2);                    // NumberOfImages
+        putEntry(dst, 0xb002, 7, 2 * 16, 8 + 2 + 3 * 12 + 4); // MPEntry, right after the IFD
+        dst.putInt(0);
+        dst.putInt(ATTRIBUTE_REPRESENTATIVE | ATTRIBUTE_DISPARITY).putInt(firstSize).putInt(0)
+                .putShort((short) 0).putShort((short) 0);
+        dst.putInt(ATTRIBUTE_DISPARITY).putInt(secondSize).putInt(secondOffset)
+                .putShort((short) 0).putShort((short) 0);
+        putRange(dst, first, firstInsert, first.remaining());
+
+        int secondInsert = insertionPoint(second);
+        putRange(dst, second, 0, secondInsert);
+        dst.putShort((short) 0xffe2).putShort((short) (ATTRIBUTE_SEGMENT_SIZE - 2));
+        putTiffHeader(dst);
+        dst.putShort((short) 2);
+        putVersion(dst);
+        putEntry(dst, 0xb101, 4, 1, 2);                    // MPIndividualNum
+        dst.putInt(0);
+        putRange(dst, second, secondInsert, second.remaining());
+        dst.order(order);
+        return dst.position() - start;
+    }
+
+    /**
+     * Writes the {@code MPF} identifier and a big-endian TIFF header pointing at an IFD right
+     * after it.
+     */
+    private static void putTiffHeader(ByteBuffer dst) {
+        dst.put((byte) 'M').put((byte) 'P').put((byte) 'F').put((byte) 0);
+        dst.put((byte) 'M').put((byte) 'M').putShort((short) 0x2a).putInt(8);
+    }
+
+    private static void putVersion(ByteBuffer dst) {
+        dst.putShort((short) 0xb000).putShort((short) 7).putInt(4);  // MPFVersion
+        dst.put((byte) '0').put((byte) '1').put((byte) '0').put((byte) '0');
+    }
+
+    private static void putEntry(ByteBuffer dst, int tag, int type, int count, int value) {
+        dst.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+
+    /**
+     * Copies {@code [from, to)} of the remaining bytes of {@code src} into {@code dst}.
+     */
+    private static void putRange(ByteBuffer dst, ByteBuffer src, int from, int to) {
+        ByteBuffer range = src.duplicate();
+        range.position(src.position() + from);
+        range.limit(src.position() + to);
+        dst.put(range);
+    }
+
+    /**
+     * Returns where the APP2 segment goes: after the SOI marker and any APP0 and APP1 segments.
+     */
+    private static int insertionPoint(ByteBuffer jpeg) {
+        int base = jpeg.position();
+        int offset = 2;
+        while (offset + 4 <= jpeg.remaining()
+                && (jpeg.get(base + offset) & 0xff) == 0xff
+                && ((jpeg.get(base + offset + 1) & 0xff) == 0xe0
+                || (jpeg.get(base + offset + 1) & 0xff) == 0xe1)) {
+            offset += 2 + ((jpeg.get(base + offset + 2) & 0xff) << 8
+                    | (jpeg.get(base + offset + 3) & 0xff));
+        }
+        return Math.min(offset, jpeg.remaining());
+    }
+
+    private static void checkJpeg(ByteBuffer jpeg) {
+        if (jpeg.remaining() < 4 || (jpeg.get(jpeg.position()) & 0xff) != 0xff
+                || (jpeg.get(jpeg.position() + 1) & 0xff) != 0xd8) {
+            throw new IllegalArgumentException("Not a JPEG");
+        }
+    }
+
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraMetadata;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sizes the outputs of the cameras so that every session is one of the stream combinations the
+ * camera guarantees to sustain for its hardware level (see
+ * {@code CameraDevice.createCaptureSession()}), and of those the one that allows the highest
+ * resolutions. A combination bounds each stream by a size class, e.g. {@code PRIV PREVIEW +
+ * JPEG MAXIMUM}; when several cameras stream at once, the tighter per-camera concurrent
+ * combinations apply.
+ *
+ * <p>Each {@link Plan} predicts the pixel throughput of its streams from their sizes and frame
+ * rates, and measures the actual one from the frames recorded with
+ * {@link Plan#recordFrame(int, long)}. {@link #report()} lists both for every camera planned.</p>
+ *
+ * <p>All methods may be called from any thread.</p>
+ */
+class StreamPlanner {
+
+    /**
+     * Stream kind: A {@code PRIVATE} output, e.g. a {@code SurfaceTexture} for the preview.
+     */
+    static final int PRIV = 0;
+
+    /**
+     * Stream kind: A {@code YUV_420_888} output.
+     */
+    static final int YUV = 1;
+
+    /**
+     * Stream kind: A {@code JPEG} output.
+     */
+    static final int JPEG = 2;
+
+    private static final String[] KIND_NAMES = {"PRIV", "YUV", "JPEG"};
+
+    /**
+     * Size classes of the stream combination tables.
+     */
+    private static final int PREVIEW = 0;
+    private static final int RECORD = 1;
+    private static final int MAXIMUM = 2;
+    private static final int VGA = 3;
+    private static final int S720P = 4;
+    private static final int S1440P = 5;
+
+    private static final String[] SIZE_CLASS_NAMES =
+            {"PREVIEW", "RECORD", "MAXIMUM", "VGA", "s720p", "s1440p"};
+
+    private static final int PRIV_PREVIEW = stream(PRIV, PREVIEW);
+    private static final int PRIV_RECORD = stream(PRIV, RECORD);
+    private static final int PRIV_MAXIMUM = stream(PRIV, MAXIMUM);
+    private static final int YUV_PREVIEW = stream(YUV, PREVIEW);
+    private static final int YUV_RECORD = stream(YUV, RECORD);
+    private static final int YUV_MAXIMUM = stream(YUV, MAXIMUM);
+    private static final int YUV_VGA = stream(YUV, VGA);
+    private static final int JPEG_RECORD = stream(JPEG, RECORD);
+    private static final int JPEG_MAXIMUM = stream(JPEG, MAXIMUM);
+
+    /**
+     * Combinations every camera supports.
+     */
+    private static final int[][] LEGACY_COMBINATIONS = {
+            {PRIV_MAXIMUM},
+            {JPEG_MAXIMUM},
+            {YUV_MAXIMUM},
+            {PRIV_PREVIEW, JPEG_MAXIMUM},
+            {YUV_PREVIEW, JPEG_MAXIMUM},
+            {PRIV_PREVIEW, PRIV_PREVIEW},
+            {PRIV_PREVIEW, YUV_PREVIEW},
+            {PRIV_PREVIEW, YUV_PREVIEW, JPEG_MAXIMUM},
+    };
+
+    /**
+     * Combinations added by {@code LIMITED} cameras.
+     */
+    private static final int[][] LIMITED_COMBINATIONS = {
+            {PRIV_PREVIEW, PRIV_RECORD},
+            {PRIV_PREVIEW, YUV_RECORD},
+            {YUV_PREVIEW, YUV_RECORD},
+            {PRIV_PREVIEW, PRIV_RECORD, JPEG_RECORD},
+            {PRIV_PREVIEW, YUV_RECORD, JPEG_RECORD},
+            {YUV_PREVIEW, YUV_PREVIEW, JPEG_MAXIMUM},
+    };
+
+    /**
+     * Combinations added by {@code FULL} cameras. {@code LEVEL_3} only adds combinations with a
+     * RAW stream.
+     */
+    private static final int[][] FULL_COMBINATIONS = {
+            {PRIV_PREVIEW, PRIV_MAXIMUM},
+            {PRIV_PREVIEW, YUV_MAXIMUM},
+            {YUV_PREVIEW, YUV_MAXIMUM},
+            {PRIV_PREVIEW, PRIV_PREVIEW, JPEG_MAXIMUM},
+            {YUV_VGA, PRIV_PREVIEW, YUV_MAXIMUM},
+            {YUV_VGA, YUV_PREVIEW, YUV_MAXIMUM},
+    };
+
+    /**
+     * Combinations each camera supports while other cameras stream at the same time.
+     */
+    private static final int[][] CONCURRENT_COMBINATIONS = {
+            {stream(YUV, S1440P)},
+            {stream(PRIV, S1440P)},
+            {stream(JPEG, S1440P)},
+            {stream(YUV, S720P), stream(JPEG, S1440P)},
+            {stream(PRIV, S720P), stream(JPEG, S1440P)},
+            {stream(YUV, S720P), stream(YUV, S1440P)},
+            {stream(YUV, S720P), stream(PRIV, S1440P)},
+            {stream(PRIV, S720P), stream(YUV, S1440P)},
+            {stream(PRIV, S720P), stream(PRIV, S1440P)},
+    };
+
+    /**
+     * An output a camera is asked for.
+     */
+    static final class Stream {
+
+        final String mName;
+        final int mKind;
+        final SizeSelector mSelector;
+        final SizeSelector.Constraints mConstraints;
+        final int mFps;
+
+        /**
+         * @param name        The name of the stream in the report
+         * @param kind        {@link #PRIV}, {@link #YUV} or {@link #JPEG}
+         * @param selector    The sizes the camera supports for the output
+         * @param constraints What the stream needs from its size
+         * @param fps         The frame rate the stream runs at, or 0 for stills taken on demand
+         */
+        Stream(String name, int kind, SizeSelector selector,
+               SizeSelector.Constraints constraints, int fps) {
+            if (kind < PRIV || kind > JPEG) {
+                throw new IllegalArgumentException("Unknown stream kind: " + kind);
+            }
+            mName = name;
+            mKind = kind;
+            mSelector = selector;
+            mConstraints = constraints;
+            mFps = fps;
+        }
+
+    }
+
+    /**
+     * The sizes chosen for the streams of one camera, and their throughput.
+     */
+    static final class Plan {
+
+        private final String mCameraId;
+        private final Stream[] mStreams;
+        private final int[] mSizes;
+        private final int[] mCombination;
+
+        /**
+         * Frame count, first and last frame time of each stream.
+         */
+        private final AtomicLongArray mFrameCounts;
+        private final AtomicLongArray mFirstFrameNanos;
+        private final AtomicLongArray mLastFrameNanos;
+
+        Plan(String cameraId, Stream[] streams, int[] sizes, int[] combination) {
+            mCameraId = cameraId;
+            mStreams = streams;
+            mSizes = sizes;
+            mCombination = combination;
+            mFrameCounts = new AtomicLongArray(streams.length);
+            mFirstFrameNanos = new AtomicLongArray(streams.length);
+            mLastFrameNanos = new AtomicLongArray(streams.length);
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        /**
+         * Returns whether the sizes form a combination the camera guarantees. If not, no
+         * combination matched the streams and each one was bounded to the preview size class.
+         */
+        boolean isGuaranteed() {
+            return mCombination != null;
+        }
+
+        /**
+         * Returns the index of the size of a stream in its {@link SizeSelector}, or -1 if the
+         * stream has no sizes.
+         */
+        int getSizeIndex(int stream) {
+            return mSizes[stream];
+        }
+
+        int getWidth(int stream) {
+            return mSizes[stream] == -1 ? 0 : mStreams[stream].mSelector.getWidth(mSizes[stream]);
+        }
+
+        int getHeight(int stream) {
+            return mSizes[stream] == -1 ? 0 : mStreams[stream].mSelector.getHeight(mSizes[stream]);
+        }
+
+        /**
+         * Returns the pixels per second the streams are expected to produce, stills excluded.
+         */
+        long getPredictedPixelRate() {
+            long rate = 0;
+            for (int i = 0; i < mStreams.length; i++) {
+                rate += (long) getWidth(i) * getHeight(i) * mStreams[i].mFps;
+            }
+            return rate;
+        }
+
+        /**
+         * Counts a frame of a stream, e.g. from {@code onCaptureCompleted()} or
+         * {@code onImageAvailable()}.
+         *
+         * @param stream   The index of the stream
+         * @param nowNanos The current {@link System#nanoTime()}
+         */
+        void recordFrame(int stream, long nowNanos) {
+            if (mFrameCounts.getAndIncrement(stream) == 0) {
+                mFirstFrameNanos.set(stream, nowNanos);
+            }
+            mLastFrameNanos.set(stream, nowNanos);
+        }
+
+        long getFrameCount(int stream) {
+            return mFrameCounts.get(stream);
+        }
+
+        /**
+         * Returns the frame rate measured between the first and the last frame of a stream, or 0
+         * if fewer than two were recorded.
+         */
+        double getMeasuredFps(int stream) {
+            long frames = mFrameCounts.get(stream);
+            long elapsed = mLastFrameNanos.get(stream) - mFirstFrameNanos.get(stream);
+            return frames < 2 || elapsed <= 0 ? 0 : (frames - 1) * 1e9 / elapsed;
+        }
+
+        /**
+         * Returns the pixels per second the streams were measured to produce.
+         */
+        long getMeasuredPixelRate() {
+            double rate = 0;
+            for (int i = 0; i < mStreams.length; i++) {
+                rate += (double) getWidth(i) * getHeight(i) * getMeasuredFps(i);
+            }
+            return (long) rate;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Camera ").append(mCameraId).append(": ")
+                    .append(isGuaranteed() ? nameOf(mCombination) : "no guaranteed combination");
+            for (int i = 0; i < mStreams.length; i++) {
+                builder.append(String.format(Locale.US,
+                        "\n    %s %dx%d, predicted %d fps, measured %.1f fps (%d frames)",
+                        mStreams[i].mName, getWidth(i), getHeight(i), mStreams[i].mFps,
+                        getMeasuredFps(i), getFrameCount(i)));
+            }
+            builder.append(String.format(Locale.US,
+                    "\n    predicted %.1f Mpx/s, measured %.1f Mpx/s",
+                    getPredictedPixelRate() / 1e6, getMeasuredPixelRate() / 1e6));
+            return builder.toString();
+        }
+
+    }
+
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mRecordWidth;
+    private final int mRecordHeight;
+
+    private final ConcurrentMap<String, Plan> mPlans = new ConcurrentHashMap<>();
+
+    /**
+     * @param previewWidth  The width of the {@code PREVIEW} size class: that of the display, at
+     *                      most 1920
+     * @param previewHeight The height of the {@code PREVIEW} size class, at most 1080
+     * @param recordWidth   The width of the {@code RECORD} size class: the largest video size
+     * @param recordHeight  The height of the {@code RECORD} size class
+     */
+    StreamPlanner(int previewWidth, int previewHeight, int recordWidth, int recordHeight) {
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mRecordWidth = recordWidth;
+        mRecordHeight = recordHeight;
+    }
+
+    /**
+     * Sizes the streams of one camera, replacing its previous plan.
+     *
+     * @param cameraId          The ID of the camera
+     * @param hardwareLevel     The {@code INFO_SUPPORTED_HARDWARE_LEVEL} of the camera
+     * @param concurrentCameras How many cameras, this one included, stream at the same time
+     * @param streams           The outputs of the session
+     * @return The plan
+     */
+    Plan plan(String cameraId, int hardwareLevel, int concurrentCameras, Stream... streams) {
+        int[][][] tables;
+        if (concurrentCameras > 1) {
+            tables = new int[][][]{CONCURRENT_COMBINATIONS};
+        } else {
+            switch (rankOf(hardwareLevel)) {
+                case 0:
+                    tables = new int[][][]{LEGACY_COMBINATIONS};
+                    break;
+                case 1:
+                    tables = new int[][][]{LEGACY_COMBINATIONS, LIMITED_COMBINATIONS};
+                    break;
+                default:
+                    tables = new int[][][]{LEGACY_COMBINATIONS, LIMITED_COMBINATIONS,
+                            FULL_COMBINATIONS};
+                    break;
+            }
+        }
+
+        Search search = new Search(streams);
+        for (int[][] table : tables) {
+            for (int[] combination : table) {
+                if (combination.length >= streams.length) {
+                    search.tryCombination(combination);
+                }
+            }
+        }
+
+        Plan plan;
+        if (search.mBestCombination != null) {
+            plan = new Plan(cameraId, streams, search.mBestSizes, search.mBestCombination);
+        } else {
+            // Not a combination the camera knows; keep every stream as small as a preview.
+            int[] sizes = new int[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                sizes[i] = select(streams[i], PREVIEW);
+            }
+            plan = new Plan(cameraId, streams, sizes, null);
+        }
+        mPlans.put(cameraId, plan);
+        return plan;
+    }
+
+    /**
+     * Forgets the plan of a camera, e.g. when it is closed.
+     */
+    void remove(String cameraId) {
+        mPlans.remove(cameraId);
+    }
+
+    /**
+     * Returns the pixels per second all planned cameras are expected to produce.
+     */
+    long getPredictedPixelRate() {
+        long rate = 0;
+        for (Plan plan : mPlans.values()) {
+            rate += plan.getPredictedPixelRate();
+        }
+        return rate;
+    }
+
+    /**
+     * Returns the pixels per second all planned cameras were measured to produce.
+     */
+    long getMeasuredPixelRate() {
+        long rate = 0;
+        for (Plan plan : mPlans.values()) {
+            rate += plan.getMeasuredPixelRate();
+        }
+        return rate;
+    }
+
+    /**
+     * Returns the plan of every camera with its predicted and measured throughput.
+     */
+    String report() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                "Stream plan: predicted %.1f Mpx/s, measured %.1f Mpx/s",
+                getPredictedPixelRate() / 1e6, getMeasuredPixelRate() / 1e6));
+        for (Map.Entry<String, Plan> entry : new TreeMap<>(mPlans).entrySet()) {
+            builder.append("\n  ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Finds the assignment of streams to the slots of a combination that yields the largest
+     * total area.
+     */
+    private final class Search {
+
+        private final Stream[] mStreams;
+        private final int[] mSlots;
+        private final boolean[] mSlotUsed = new boolean[4];
+
+        int[] mBestCombination;
+        int[] mBestSizes;
+        long mBestArea = -1;
+
+        Search(Stream[] streams) {
+            mStreams = streams;
+            mSlots = new int[streams.length];
+        }
+
+        void tryCombination(int[] combination) {
+            assign(combination, 0);
+        }
+
+        private void assign(int[] combination, int stream) {
+            if (stream == mStreams.length) {
+                evaluate(combination);
+                return;
+            }
+            for (int slot = 0; slot < combination.length; slot++) {
+                if (!mSlotUsed[slot] && kindOf(combination[slot]) == mStreams[stream].mKind) {
+                    mSlotUsed[slot] = true;
+                    mSlots[stream] = combination[slot];
+                    assign(combination, stream + 1);
+                    mSlotUsed[slot] = false;
+                }
+            }
+        }
+
+        private void evaluate(int[] combination) {
+            int[] sizes = new int[mStreams.length];
+            long area = 0;
+            for (int i = 0; i < mStreams.length; i++) {
+                int sizeClass = sizeClassOf(mSlots[i]);
+                sizes[i] = select(mStreams[i], sizeClass);
+                if (sizes[i] == -1) {
+                    continue;
+                }
+                int width = mStreams[i].mSelector.getWidth(sizes[i]);
+                int height = mStreams[i].mSelector.getHeight(sizes[i]);
+                if (width > boundWidthOf(sizeClass) || height > boundHeightOf(sizeClass)) {
+                    // Even the smallest size is too large for the slot.
+                    return;
+                }
+                area += (long) width * height;
+            }
+            if (area > mBestArea) {
+                mBestArea = area;
+                mBestSizes = sizes;
+                mBestCombination = combination;
+            }
+        }
+
+    }
+
+    private int select(Stream stream, int sizeClass) {
+        SizeSelector.Constraints constraints = stream.mConstraints;
+        int maxWidth = Math.min(constraints.mMaxWidth, boundWidthOf(sizeClass));
+        int maxHeight = Math.min(constraints.mMaxHeight, boundHeightOf(sizeClass));
+        return stream.mSelector.select(new SizeSelector.Constraints(constraints.mMinWidth,
+                constraints.mMinHeight, maxWidth, maxHeight, constraints.mRatioWidth,
+                constraints.mRatioHeight), Long.MAX_VALUE);
+    }
+
+    private int boundWidthOf(int sizeClass) {
+        switch (sizeClass) {
+            case PREVIEW:
+                return mPreviewWidth;
+            case RECORD:
+                return mRecordWidth;
+            case VGA:
+                return 640;
+            case S720P:
+                return 1280;
+            case S1440P:
+                return 1920;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    private int boundHeightOf(int sizeClass) {
+        switch (sizeClass) {
+            case PREVIEW:
+                return mPreviewHeight;
+            case RECORD:
+                return mRecordHeight;
+            case VGA:
+                return 480;
+            case S720P:
+                return 720;
+            case S1440P:
+                return 1440;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Orders the hardware levels by the combinations they support: 0 for {@code LEGACY} and
+     * {@code EXTERNAL}, 1 for {@code LIMITED}, 2 for {@code FULL} and 3 for {@code LEVEL_3}.
+     */
+    static int rankOf(int hardwareLevel) {
+        switch (hardwareLevel) {
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED:
+                return 1;
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL:
+                return 2;
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    private static int stream(int kind, int sizeClass) {
+        return kind << 4 | sizeClass;
+    }
+
+    private static int kindOf(int stream) {
+        return stream >> 4;
+    }
+
+    private static int sizeClassOf(int stream) {
+        return stream & 0xf;
+    }
+
+    private static String nameOf(int[] combination) {
+        StringBuilder builder = new StringBuilder();
+        for (int stream : combination) {
+            if (builder.length() > 0) {
+                builder.append(" + ");
+            }
+            builder.append(KIND_NAMES[kindOf(stream)]).append(' ')
+                    .append(SIZE_CLASS_NAMES[sizeClassOf(stream)]);
+        }
+        return builder.toString();
+    }
+
+}
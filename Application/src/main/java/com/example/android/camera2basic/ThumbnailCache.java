@@ -0,0 +1,392 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the thumbnails of captures, keyed by capture ID, e.g. the name of the capture file, so
+ * that browsing recent captures never decodes a full-resolution picture.
+ *
+ * <p>Thumbnails are kept decoded in a memory cache bounded in bytes, backed by a disk cache of
+ * their encoded bytes bounded in bytes too. Both evict the least recently used thumbnail first.
+ * The disk cache survives restarts of the app; its files are written to a hidden temporary file
+ * and renamed, as {@link CaptureStore} writes captures, and are listed once, when the cache is
+ * created.</p>
+ *
+ * <p>All methods may be called from any thread. {@link #get(String)} and
+ * {@link #put(String, byte[])} may read or write a file and should not be called from the UI
+ * thread; {@link #peek(String)} never does.</p>
+ *
+ * @param <T> The type of a decoded thumbnail, e.g. an {@link android.graphics.Bitmap}
+ */
+class ThumbnailCache<T> {
+
+    private static final String SUFFIX = ".thumb";
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Decodes the thumbnails kept on disk.
+     */
+    interface Codec<T> {
+
+        /**
+         * @return The thumbnail, or null if the data isn't one
+         */
+        T decode(byte[] data);
+
+        /**
+         * Returns how many bytes of memory a thumbnail takes.
+         */
+        int sizeOf(T thumbnail);
+
+    }
+
+    private final File mDirectory;
+    private final int mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+    private final Codec<T> mCodec;
+
+    /**
+     * Decoded thumbnails, least recently used first. Guarded by this.
+     */
+    private final LinkedHashMap<String, T> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The size of every thumbnail on disk, least recently used first. Guarded by this.
+     */
+    private final LinkedHashMap<String, Long> mDisk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mMemoryBytes;
+    private long mDiskBytes;
+
+    private long mHitCount;
+    private long mDiskHitCount;
+    private long mMissCount;
+    private long mMemoryEvictionCount;
+    private long mDiskEvictionCount;
+
+    /**
+     * @param directory      Where the thumbnails are kept on disk; created if it doesn't exist
+     * @param maxMemoryBytes How much memory the decoded thumbnails may take
+     * @param maxDiskBytes   How much disk space the encoded thumbnails may take
+     * @param codec          Decodes the thumbnails
+     * @throws IOException If the directory doesn't exist and can't be created
+     */
+    ThumbnailCache(File directory, int maxMemoryBytes, long maxDiskBytes, Codec<T> codec)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        mDirectory = directory;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        mCodec = codec;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // The files were touched when last used, so the oldest is the least recently used.
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (Integer i : order) {
+            String name = files[i].getName();
+            if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                files[i].delete();
+            } else if (name.endsWith(SUFFIX)) {
+                long length = files[i].length();
+                mDisk.put(name.substring(0, name.length() - SUFFIX.length()), length);
+                mDiskBytes += length;
+            }
+        }
+        trimDisk();
+    }
+
+    /**
+     * Returns the thumbnail of a capture if it is in memory, without touching the disk.
+     *
+     * @return The thumbnail, or null
+     */
+    synchronized T peek(String captureId) {
+        T thumbnail = mMemory.get(captureId);
+        if (null != thumbnail) {
+            mHitCount++;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns the thumbnail of a capture, from memory, or else decoded from disk.
+     *
+     * @return The thumbnail, or null if there is none
+     */
+    T get(String captureId) {
+        synchronized (this) {
+            T thumbnail = mMemory.get(captureId);
+            if (null != thumbnail) {
+                mHitCount++;
+                return thumbnail;
+            }
+            if (!mDisk.containsKey(captureId)) {
+                mMissCount++;
+                return null;
+            }
+        }
+        File file = fileOf(captureId);
+        byte[] data;
+        try {
+            data = read(file);
+        } catch (IOException e) {
+            // Deleted from under the cache; forget it.
+            e.printStackTrace();
+            synchronized (this) {
+                forgetOnDisk(captureId);
+                mMissCount++;
+            }
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        T thumbnail = mCodec.decode(data);
+        synchronized (this) {
+            // Marks it as used, unless it was removed meanwhile.
+            if (null == mDisk.get(captureId) || null == thumbnail) {
+                mMissCount++;
+                return null;
+            }
+            mDiskHitCount++;
+            putInMemory(captureId, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Adds the thumbnail of a capture, replacing any it had.
+     *
+     * @param data The encoded thumbnail, as the {@link Codec} decodes it
+     * @return The decoded thumbnail, or null if the data isn't one; it is kept on disk anyway
+     */
+    T put(String captureId, byte[] data) throws IOException {
+        return put(captureId, data, mCodec.decode(data));
+    }
+
+    /**
+     * Adds the thumbnail of a capture, replacing any it had, when it is already decoded.
+     *
+     * @param data      The encoded thumbnail, as the {@link Codec} decodes it
+     * @param thumbnail The decoded thumbnail, or null to only keep it on disk
+     * @return The thumbnail
+     */
+    T put(String captureId, byte[] data, T thumbnail) throws IOException {
+        File file = fileOf(captureId);
+        File temp = CaptureStore.tempFileOf(file);
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(data);
+        } catch (IOException e) {
+            output.close();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        output.close();
+        CaptureStore.commit(temp, file);
+        synchronized (this) {
+            forgetOnDisk(captureId);
+            mDisk.put(captureId, (long) data.length);
+            mDiskBytes += data.length;
+            trimDisk();
+            T old = mMemory.remove(captureId);
+            if (null != old) {
+                mMemoryBytes -= mCodec.sizeOf(old);
+            }
+            if (null != thumbnail) {
+                putInMemory(captureId, thumbnail);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns whether there is a thumbnail of a capture, in memory or on disk.
+     */
+    synchronized boolean contains(String captureId) {
+        return mMemory.containsKey(captureId) || mDisk.containsKey(captureId);
+    }
+
+    /**
+     * Removes the thumbnail of a capture, e.g. once the capture is deleted.
+     */
+    synchronized void remove(String captureId) {
+        T thumbnail = mMemory.remove(captureId);
+        if (null != thumbnail) {
+            mMemoryBytes -= mCodec.sizeOf(thumbnail);
+        }
+        if (forgetOnDisk(captureId)) {
+            //noinspection ResultOfMethodCallIgnored
+            fileOf(captureId).delete();
+        }
+    }
+
+    /**
+     * Drops every thumbnail from memory, e.g. when the system runs low on memory. They stay on
+     * disk.
+     */
+    synchronized void clearMemory() {
+        mMemory.clear();
+        mMemoryBytes = 0;
+    }
+
+    synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    /**
+     * Returns how many thumbnails were found in memory.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns how many thumbnails were not in memory but were decoded from disk.
+     */
+    synchronized long getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    /**
+     * Returns how many thumbnails {@link #get(String)} found neither in memory nor on disk.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns how many thumbnails were evicted from memory to make room for others.
+     */
+    synchronized long getMemoryEvictionCount() {
+        return mMemoryEvictionCount;
+    }
+
+    /**
+     * Returns how many thumbnails were deleted from disk to make room for others.
+     */
+    synchronized long getDiskEvictionCount() {
+        return mDiskEvictionCount;
+    }
+
+    private File fileOf(String captureId) {
+        if (captureId.isEmpty() || captureId.indexOf(File.separatorChar) >= 0
+                || captureId.startsWith(TEMP_PREFIX)) {
+            throw new IllegalArgumentException("Not a capture ID: " + captureId);
+        }
+        return new File(mDirectory, captureId + SUFFIX);
+    }
+
+    private void putInMemory(String captureId, T thumbnail) {
+        int size = mCodec.sizeOf(thumbnail);
+        if (size > mMaxMemoryBytes) {
+            // It would evict everything else and then itself.
+            return;
+        }
+        T old = mMemory.put(captureId, thumbnail);
+        mMemoryBytes += size;
+        if (null != old) {
+            mMemoryBytes -= mCodec.sizeOf(old);
+        }
+        Iterator<T> iterator = mMemory.values().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes) {
+            T eldest = iterator.next();
+            iterator.remove();
+            mMemoryBytes -= mCodec.sizeOf(eldest);
+            mMemoryEvictionCount++;
+        }
+    }
+
+    /**
+     * Forgets a thumbnail on disk, without deleting its file.
+     *
+     * @return Whether there was one
+     */
+    private boolean forgetOnDisk(String captureId) {
+        Long length = mDisk.remove(captureId);
+        if (null == length) {
+            return false;
+        }
+        mDiskBytes -= length;
+        return true;
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = mDisk.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mDiskBytes -= eldest.getValue();
+            mDiskEvictionCount++;
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, eldest.getKey() + SUFFIX).delete();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) input.length()];
+            input.readFully(data);
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Thumbnails: %d hits, %d disk hits, %d misses; memory %d KB (%d evicted), "
+                        + "disk %d KB (%d evicted)",
+                mHitCount, mDiskHitCount, mMissCount, mMemoryBytes / 1024,
+                mMemoryEvictionCount, mDiskBytes / 1024, mDiskEvictionCount);
+    }
+
+}
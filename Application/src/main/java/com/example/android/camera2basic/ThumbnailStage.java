@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Makes the thumbnails of captures in the background, while they are being saved, and keeps
+ * them in a {@link ThumbnailCache} keyed by the name of the capture file.
+ *
+ * <p>A thumbnail is the one the camera embedded in the Exif segment of the JPEG, which costs
+ * nothing but a small copy, found by {@link #findExifThumbnail(ByteBuffer)} before the
+ * {@link android.media.Image} is closed. Failing that, the saved picture is decoded at the
+ * largest power-of-two subsampling that still covers {@link #MAX_SIZE}, so a full-resolution
+ * frame is never decoded.</p>
+ */
+class ThumbnailStage {
+
+    /**
+     * The longest side of a thumbnail that is not the camera's own, in pixels.
+     */
+    static final int MAX_SIZE = 320;
+
+    private static final int QUALITY = 85;
+
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+
+    private static final ThumbnailCache.Codec<Bitmap> BITMAP_CODEC =
+            new ThumbnailCache.Codec<Bitmap>() {
+
+                @Override
+                public Bitmap decode(byte[] data) {
+                    return BitmapFactory.decodeByteArray(data, 0, data.length);
+                }
+
+                @Override
+                public int sizeOf(Bitmap thumbnail) {
+                    return thumbnail.getByteCount();
+                }
+
+            };
+
+    private final ThumbnailCache<Bitmap> mCache;
+
+    /**
+     * Thumbnails are a convenience: when captures come faster than they can be made, the
+     * oldest pending ones are given up and made again by {@link #load(File)} when needed.
+     */
+    private final PersistenceExecutor mExecutor = new PersistenceExecutor("Thumbnails", 1, 4,
+            PersistenceExecutor.Backpressure.DROP_OLDEST);
+
+    /**
+     * @param directory      Where the thumbnails are kept on disk
+     * @param maxMemoryBytes How much memory the decoded thumbnails may take
+     * @param maxDiskBytes   How much disk space the encoded thumbnails may take
+     * @throws IOException If the directory doesn't exist and can't be created
+     */
+    ThumbnailStage(File directory, int maxMemoryBytes, long maxDiskBytes) throws IOException {
+        mCache = new ThumbnailCache<>(directory, maxMemoryBytes, maxDiskBytes, BITMAP_CODEC);
+    }
+
+    ThumbnailCache<Bitmap> getCache() {
+        return mCache;
+    }
+
+    /**
+     * Makes the thumbnail of a saved capture in the background.
+     *
+     * @param picture       The saved JPEG
+     * @param exifThumbnail Its embedded thumbnail, or null to decode the picture
+     */
+    void submit(final File picture, final byte[] exifThumbnail) {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    create(picture, exifThumbnail);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the thumbnail of a saved capture, making it if it was never made. Call it off the
+     * UI thread.
+     *
+     * @return The thumbnail, or null if the picture can't be decoded
+     */
+    Bitmap load(File picture) throws IOException {
+        Bitmap thumbnail = mCache.get(picture.getName());
+        return null != thumbnail ? thumbnail : create(picture, null);
+    }
+
+    private Bitmap create(File picture, byte[] exifThumbnail) throws IOException {
+        if (null != exifThumbnail) {
+            Bitmap thumbnail = mCache.put(picture.getName(), exifThumbnail);
+            if (null != thumbnail) {
+                return thumbnail;
+            }
+        }
+        Bitmap thumbnail = decodeSubsampled(picture, MAX_SIZE);
+        if (null == thumbnail) {
+            return null;
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(16 * 1024);
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, QUALITY, encoded);
+        return mCache.put(picture.getName(), encoded.toByteArray(), thumbnail);
+    }
+
+    /**
+     * Stops making thumbnails and waits for the pending ones.
+     *
+     * @return true if every pending thumbnail was made in time
+     */
+    boolean shutdown(long timeoutMs) {
+        return mExecutor.shutdown(timeoutMs);
+    }
+
+    /**
+     * Decodes a JPEG at a reduced size whose longest side is {@code maxSize}.
+     *
+     * @return The picture, or null if it can't be decoded
+     */
+    static Bitmap decodeSubsampled(File picture, int maxSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(picture.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, maxSize);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = BitmapFactory.decodeFile(picture.getPath(), options);
+        if (null == sampled) {
+            return null;
+        }
+        int longSide = Math.max(sampled.getWidth(), sampled.getHeight());
+        if (longSide <= maxSize) {
+            return sampled;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+                Math.max(1, sampled.getWidth() * maxSize / longSide),
+                Math.max(1, sampled.getHeight() * maxSize / longSide), true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Returns the largest power-of-two subsampling of a {@code width} x {@code height} picture
+     * whose longest side is still at least {@code maxSize}.
+     */
+    static int sampleSizeFor(int width, int height, int maxSize) {
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Copies the thumbnail embedded in the Exif segment of a JPEG, the JPEGInterchangeFormat of
+     * its IFD1. Reads from the position of {@code jpeg} without moving it.
+     *
+     * @return The thumbnail JPEG, or null if there is none
+     */
+    static byte[] findExifThumbnail(ByteBuffer jpeg) {
+        int base = jpeg.position();
+        int limit = jpeg.limit();
+        if (limit - base < 4 || (jpeg.get(base) & 0xff) != 0xff
+                || (jpeg.get(base + 1) & 0xff) != 0xd8) {
+            return null;
+        }
+        int offset = base + 2;
+        // The Exif segment is one of the first, before any table or frame segment.
+        while (offset + 4 <= limit && (jpeg.get(offset) & 0xff) == 0xff) {
+            int marker = jpeg.get(offset + 1) & 0xff;
+            if (marker < 0xe0 || marker > 0xef) {
+                return null;
+            }
+            int end = offset + 2 + readUnsignedShort(jpeg, offset + 2, true);
+            if (end > limit) {
+                return null;
+            }
+            if (marker == 0xe1 && isExif(jpeg, offset + 4, end)) {
+                return findIfd1Thumbnail(jpeg, offset + 10, end);
+            }
+            offset = end;
+        }
+        return null;
+    }
+
+    private static boolean isExif(ByteBuffer jpeg, int offset, int end) {
+        return end - offset >= 6 + 8 && jpeg.get(offset) == 'E' && jpeg.get(offset + 1) == 'x'
+                && jpeg.get(offset + 2) == 'i' && jpeg.get(offset + 3) == 'f'
+                && jpeg.get(offset + 4) == 0 && jpeg.get(offset + 5) == 0;
+    }
+
+    /**
+     * @param tiff Where the TIFF header of the Exif segment starts
+     * @param end  Where the Exif segment ends
+     */
+    private static byte[] findIfd1Thumbnail(ByteBuffer jpeg, int tiff, int end) {
+        boolean bigEndian;
+        if (jpeg.get(tiff) == 'M' && jpeg.get(tiff + 1) == 'M') {
+            bigEndian = true;
+        } else if (jpeg.get(tiff) == 'I' && jpeg.get(tiff + 1) == 'I') {
+            bigEndian = false;
+        } else {
+            return null;
+        }
+        long ifd0 = readUnsignedInt(jpeg, tiff + 4, bigEndian);
+        if (ifd0 < 8 || tiff + ifd0 + 2 > end) {
+            return null;
+        }
+        int ifd0Count = readUnsignedShort(jpeg, tiff + (int) ifd0, bigEndian);
+        int next = tiff + (int) ifd0 + 2 + 12 * ifd0Count;
+        if (next + 4 > end) {
+            return null;
+        }
+        long ifd1 = readUnsignedInt(jpeg, next, bigEndian);
+        if (ifd1 < 8 || tiff + ifd1 + 2 > end) {
+            return null;
+        }
+        int entry = tiff + (int) ifd1 + 2;
+        int count = readUnsignedShort(jpeg, entry - 2, bigEndian);
+        long thumbnailOffset = -1;
+        long thumbnailLength = -1;
+        for (int i = 0; i < count && entry + 12 <= end; i++, entry += 12) {
+            int tag = readUnsignedShort(jpeg, entry, bigEndian);
+            if (tag != TAG_JPEG_INTERCHANGE_FORMAT && tag != TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                continue;
+            }
+            long value = readUnsignedShort(jpeg, entry + 2, bigEndian) == TYPE_SHORT
+                    ? readUnsignedShort(jpeg, entry + 8, bigEndian)
+                    : readUnsignedInt(jpeg, entry + 8, bigEndian);
+            if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbnailOffset = value;
+            } else {
+                thumbnailLength = value;
+            }
+        }
+        if (thumbnailOffset < 0 || thumbnailLength < 4
+                || tiff + thumbnailOffset + thumbnailLength > end) {
+            return null;
+        }
+        int start = tiff + (int) thumbnailOffset;
+        if ((jpeg.get(start) & 0xff) != 0xff || (jpeg.get(start + 1) & 0xff) != 0xd8) {
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) thumbnailLength];
+        ByteBuffer source = jpeg.duplicate();
+        source.position(start);
+        source.get(thumbnail);
+        return thumbnail;
+    }
+
+    private static int readUnsignedShort(ByteBuffer buffer, int offset, boolean bigEndian) {
+        int first = buffer.get(offset) & 0xff;
+        int second = buffer.get(offset + 1) & 0xff;
+        return bigEndian ? first << 8 | second : second << 8 | first;
+    }
+
+    private static long readUnsignedInt(ByteBuffer buffer, int offset, boolean bigEndian) {
+        long high = readUnsignedShort(buffer, bigEndian ? offset : offset + 2, bigEndian);
+        long low = readUnsignedShort(buffer, bigEndian ? offset + 2 : offset, bigEndian);
+        return high << 16 | low;
+    }
+
+    @Override
+    public String toString() {
+        return mExecutor + "\n" + mCache;
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the output of a video encoder into a muxer, on a thread of its own.
+ *
+ * <p>The camera renders straight into the input surface of the encoder, and each output buffer
+ * of the encoder is handed to the muxer as it is, so no frame is ever copied through Java. The
+ * encoder and the muxer are behind {@link Encoder} and {@link Muxer}, implemented over
+ * {@link android.media.MediaCodec} and {@link android.media.MediaMuxer} by
+ * {@link VideoRecorder}, so the loop can run against fakes on the JVM.</p>
+ *
+ * <p>The muxer is started once the encoder reports its output format. Codec config buffers are
+ * not written: their data is in that format. {@link #requestStop()} makes the loop signal the
+ * end of the input stream and drain until the encoder's last buffer, or until it gives up after
+ * {@link #END_OF_STREAM_TIMEOUT_US}; the muxer is then stopped.</p>
+ *
+ * <p>Frames the camera or the encoder dropped are counted from the gaps between presentation
+ * times, relative to the configured frame rate, so recording needs a fixed frame rate for the
+ * count to be meaningful. Samples that could not be muxed are counted separately.</p>
+ *
+ * @param <F> The type of the output format, e.g. {@link android.media.MediaFormat}
+ */
+class VideoEncoderLoop<F> implements Runnable {
+
+    /**
+     * Returned by {@link Encoder#dequeueOutputBuffer} when no output is ready yet.
+     */
+    static final int INFO_TRY_AGAIN_LATER = -1;
+
+    /**
+     * Returned by {@link Encoder#dequeueOutputBuffer} when the output format is known.
+     */
+    static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+
+    /**
+     * Flags of a {@link Sample}, with the values of {@code MediaCodec.BUFFER_FLAG_*}.
+     */
+    static final int FLAG_KEY_FRAME = 1;
+    static final int FLAG_CODEC_CONFIG = 2;
+    static final int FLAG_END_OF_STREAM = 4;
+
+    /**
+     * How long one {@link Encoder#dequeueOutputBuffer} call may wait for output.
+     */
+    static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    /**
+     * How long to wait for the last buffer once the end of the input has been signalled.
+     */
+    static final long END_OF_STREAM_TIMEOUT_US = 2000000;
+
+    /**
+     * Describes an output buffer of the encoder, as {@code MediaCodec.BufferInfo} does. One is
+     * reused for every buffer.
+     */
+    static final class Sample {
+
+        int mOffset;
+        int mSize;
+        long mPresentationTimeUs;
+        int mFlags;
+
+        void set(int offset, int size, long presentationTimeUs, int flags) {
+            mOffset = offset;
+            mSize = size;
+            mPresentationTimeUs = presentationTimeUs;
+            mFlags = flags;
+        }
+
+    }
+
+    /**
+     * The output side of a video encoder fed through a surface.
+     */
+    interface Encoder<F> {
+
+        /**
+         * Waits for an output buffer.
+         *
+         * @param sample Set to describe the buffer
+         * @return The index of the buffer, {@link #INFO_TRY_AGAIN_LATER},
+         * {@link #INFO_OUTPUT_FORMAT_CHANGED}, or another negative value to be ignored
+         */
+        int dequeueOutputBuffer(Sample sample, long timeoutUs);
+
+        ByteBuffer getOutputBuffer(int index);
+
+        F getOutputFormat();
+
+        void releaseOutputBuffer(int index);
+
+        /**
+         * Tells the encoder no more frames will come through its input surface.
+         */
+        void signalEndOfInputStream();
+
+    }
+
+    /**
+     * Writes the encoded samples of one video track to a file.
+     */
+    interface Muxer<F> {
+
+        /**
+         * @return The track index
+         */
+        int addTrack(F format);
+
+        void start();
+
+        /**
+         * Writes the {@link Sample#mSize} bytes at {@link Sample#mOffset} of {@code data}.
+         */
+        void writeSampleData(int track, ByteBuffer data, Sample sample);
+
+        void stop();
+
+    }
+
+    private static final int MAX_EMPTY_DEQUEUES_AFTER_STOP =
+            (int) (END_OF_STREAM_TIMEOUT_US / DEQUEUE_TIMEOUT_US);
+
+    private final Encoder<F> mEncoder;
+    private final Muxer<F> mMuxer;
+
+    /**
+     * The time between two frames at the configured frame rate.
+     */
+    private final long mFrameIntervalUs;
+
+    private final Sample mSample = new Sample();
+
+    private volatile boolean mStopRequested;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+
+    private final LatencyHistogram mFrameInterval = new LatencyHistogram("Video frame interval");
+    private final AtomicLong mEncodedFrameCount = new AtomicLong();
+    private final AtomicLong mKeyFrameCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+    private final AtomicLong mDiscardedSampleCount = new AtomicLong();
+    private final AtomicLong mFirstPresentationTimeUs = new AtomicLong(-1);
+    private final AtomicLong mLastPresentationTimeUs = new AtomicLong(-1);
+
+    private volatile boolean mReachedEndOfStream;
+    private volatile boolean mFailed;
+
+    /**
+     * @param encoder   The encoder, already started
+     * @param muxer     The muxer, not started
+     * @param frameRate The frame rate the encoder was configured for
+     */
+    VideoEncoderLoop(Encoder<F> encoder, Muxer<F> muxer, int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + frameRate);
+        }
+        mEncoder = encoder;
+        mMuxer = muxer;
+        mFrameIntervalUs = 1000000 / frameRate;
+    }
+
+    @Override
+    public void run() {
+        int track = -1;
+        try {
+            boolean endOfInputSignalled = false;
+            int emptyDequeues = 0;
+            while (true) {
+                if (mStopRequested && !endOfInputSignalled) {
+                    mEncoder.signalEndOfInputStream();
+                    endOfInputSignalled = true;
+                }
+                int index = mEncoder.dequeueOutputBuffer(mSample, DEQUEUE_TIMEOUT_US);
+                if (index == INFO_TRY_AGAIN_LATER) {
+                    if (endOfInputSignalled && ++emptyDequeues > MAX_EMPTY_DEQUEUES_AFTER_STOP) {
+                        break;
+                    }
+                    continue;
+                }
+                emptyDequeues = 0;
+                if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (track == -1) {
+                        track = mMuxer.addTrack(mEncoder.getOutputFormat());
+                        mMuxer.start();
+                    }
+                    continue;
+                }
+                if (index < 0) {
+                    continue;
+                }
+                try {
+                    if ((mSample.mFlags & FLAG_CODEC_CONFIG) == 0 && mSample.mSize > 0) {
+                        write(track, mEncoder.getOutputBuffer(index));
+                    }
+                } finally {
+                    mEncoder.releaseOutputBuffer(index);
+                }
+                if ((mSample.mFlags & FLAG_END_OF_STREAM) != 0) {
+                    mReachedEndOfStream = true;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // The codec or the muxer failed; what was written so far is still finished.
+            e.printStackTrace();
+            mFailed = true;
+        } finally {
+            if (track != -1) {
+                try {
+                    mMuxer.stop();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    mFailed = true;
+                }
+            }
+            mFinished.countDown();
+        }
+    }
+
+    private void write(int track, ByteBuffer data) {
+        long presentationTimeUs = mSample.mPresentationTimeUs;
+        long last = mLastPresentationTimeUs.get();
+        // A muxer needs the format first, and presentation times that keep increasing.
+        if (track == -1 || presentationTimeUs <= last) {
+            mDiscardedSampleCount.incrementAndGet();
+            return;
+        }
+        data.position(mSample.mOffset);
+        data.limit(mSample.mOffset + mSample.mSize);
+        mMuxer.writeSampleData(track, data, mSample);
+
+        if (last == -1) {
+            mFirstPresentationTimeUs.set(presentationTimeUs);
+        } else {
+            long intervalUs = presentationTimeUs - last;
+            mFrameInterval.recordMicros(intervalUs);
+            // Half an interval of jitter is not a drop.
+            long missed = (intervalUs + mFrameIntervalUs / 2) / mFrameIntervalUs - 1;
+            if (missed > 0) {
+                mDroppedFrameCount.addAndGet(missed);
+            }
+        }
+        mLastPresentationTimeUs.set(presentationTimeUs);
+        mEncodedFrameCount.incrementAndGet();
+        mByteCount.addAndGet(mSample.mSize);
+        if ((mSample.mFlags & FLAG_KEY_FRAME) != 0) {
+            mKeyFrameCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Makes the loop end the stream, drain it, stop the muxer and return. May be called from
+     * any thread.
+     */
+    void requestStop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Waits for {@link #run()} to return.
+     *
+     * @return Whether it returned in time
+     */
+    boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mFinished.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns whether the encoder's last buffer was reached, rather than given up on.
+     */
+    boolean hasReachedEndOfStream() {
+        return mReachedEndOfStream;
+    }
+
+    /**
+     * Returns whether the encoder or the muxer threw; the file may then be cut short or unusable.
+     */
+    boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Returns the time between consecutive muxed frames.
+     */
+    LatencyHistogram getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    long getEncodedFrameCount() {
+        return mEncodedFrameCount.get();
+    }
+
+    long getKeyFrameCount() {
+        return mKeyFrameCount.get();
+    }
+
+    /**
+     * Returns the size of the muxed samples, in bytes.
+     */
+    long getByteCount() {
+        return mByteCount.get();
+    }
+
+    /**
+     * Returns how many frames are missing from the gaps between presentation times.
+     */
+    long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    /**
+     * Returns how many encoded samples could not be muxed: before the output format, or out of
+     * order.
+     */
+    long getDiscardedSampleCount() {
+        return mDiscardedSampleCount.get();
+    }
+
+    /**
+     * Returns the time between the first and the last muxed frame.
+     */
+    long getDurationUs() {
+        long first = mFirstPresentationTimeUs.get();
+        return first == -1 ? 0 : mLastPresentationTimeUs.get() - first;
+    }
+
+    @Override
+    public String toString() {
+        long durationUs = getDurationUs();
+        return String.format(Locale.US,
+                "Video: %d frames (%d key) in %.1f s, %.2f Mbps, %d dropped, %d discarded\n  %s",
+                getEncodedFrameCount(), getKeyFrameCount(), durationUs / 1e6,
+                durationUs == 0 ? 0 : getByteCount() * 8.0 / durationUs, getDroppedFrameCount(),
+                getDiscardedSampleCount(), mFrameInterval);
+    }
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Records H.264 video from the camera into an MP4 file.
+ *
+ * <p>The camera renders into {@link #getInputSurface()}, an input surface of a
+ * {@link MediaCodec} encoder, which is added to the capture session as one more output. A
+ * {@link VideoEncoderLoop} on its own thread drains the encoder into a {@link MediaMuxer}, so
+ * neither the camera threads nor the UI thread ever touch a frame.</p>
+ */
+class VideoRecorder {
+
+    static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+    /**
+     * How a recording is encoded.
+     */
+    static final class Config {
+
+        /**
+         * Bits per pixel and frame of {@link #defaultBitRate}, about what phones record at.
+         */
+        static final float DEFAULT_BITS_PER_PIXEL = 0.25f;
+
+        /**
+         * Seconds between key frames, i.e. the GOP length, of {@link #of(int, int, int)}.
+         */
+        static final int DEFAULT_KEY_FRAME_INTERVAL = 1;
+
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFrameRate;
+        private final int mBitRate;
+        private final int mKeyFrameInterval;
+
+        /**
+         * @param bitRate          The target bit rate, in bits per second
+         * @param keyFrameInterval The seconds between key frames; 0 for key frames only
+         */
+        Config(int width, int height, int frameRate, int bitRate, int keyFrameInterval) {
+            if (width <= 0 || height <= 0 || frameRate <= 0 || bitRate <= 0
+                    || keyFrameInterval < 0) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "Invalid video config: %dx%d at %d fps, %d bps, key frame every %d s",
+                        width, height, frameRate, bitRate, keyFrameInterval));
+            }
+            mWidth = width;
+            mHeight = height;
+            mFrameRate = frameRate;
+            mBitRate = bitRate;
+            mKeyFrameInterval = keyFrameInterval;
+        }
+
+        /**
+         * Returns a config with the {@link #defaultBitRate} and
+         * {@link #DEFAULT_KEY_FRAME_INTERVAL}.
+         */
+        static Config of(int width, int height, int frameRate) {
+            return new Config(width, height, frameRate, defaultBitRate(width, height, frameRate),
+                    DEFAULT_KEY_FRAME_INTERVAL);
+        }
+
+        /**
+         * Returns {@link #DEFAULT_BITS_PER_PIXEL} for every pixel of every frame, e.g. about
+         * 15.6 Mbps for 1080p at 30 fps.
+         */
+        static int defaultBitRate(int width, int height, int frameRate) {
+            return (int) Math.min(Integer.MAX_VALUE,
+                    (long) width * height * frameRate * DEFAULT_BITS_PER_PIXEL);
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        int getFrameRate() {
+            return mFrameRate;
+        }
+
+        int getBitRate() {
+            return mBitRate;
+        }
+
+        int getKeyFrameInterval() {
+            return mKeyFrameInterval;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d at %d fps, %.1f Mbps, key frame every %d s",
+                    mWidth, mHeight, mFrameRate, mBitRate / 1e6, mKeyFrameInterval);
+        }
+
+    }
+
+    private final Config mConfig;
+    private final MediaCodec mCodec;
+    private final Surface mInputSurface;
+    private final MediaMuxer mMuxer;
+    private final VideoEncoderLoop<MediaFormat> mLoop;
+
+    private Thread mThread;
+
+    /**
+     * Sets up the encoder and the muxer. Nothing is encoded until {@link #start()}.
+     *
+     * @param output          The MP4 file to write
+     * @param orientationHint How much the video should be rotated clockwise to be upright: 0,
+     *                        90, 180 or 270
+     */
+    VideoRecorder(Config config, File output, int orientationHint) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, config.getWidth(),
+                config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getKeyFrameInterval());
+
+        MediaCodec codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        Surface inputSurface = null;
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = codec.createInputSurface();
+            mMuxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            if (null != inputSurface) {
+                inputSurface.release();
+            }
+            codec.release();
+            throw e;
+        }
+        mMuxer.setOrientationHint(orientationHint);
+        mConfig = config;
+        mCodec = codec;
+        mInputSurface = inputSurface;
+        mLoop = new VideoEncoderLoop<>(new CodecEncoder(codec), new MuxerSink(mMuxer),
+                config.getFrameRate());
+    }
+
+    Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Returns the surface the camera renders the frames to record into.
+     */
+    Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * Returns the loop, for its frame counts.
+     */
+    VideoEncoderLoop<MediaFormat> getLoop() {
+        return mLoop;
+    }
+
+    /**
+     * Starts the encoder and the thread that drains it.
+     */
+    void start() {
+        mCodec.start();
+        mThread = new Thread(mLoop, "VideoEncoder");
+        mThread.start();
+    }
+
+    /**
+     * Ends the recording and releases the encoder and the muxer. Call it once the camera no
+     * longer renders into the input surface, e.g. once the session is closed.
+     *
+     * @param timeoutMs How long to wait for the encoder to be drained
+     * @return Whether the file was finished in time and holds at least one frame
+     */
+    boolean stop(long timeoutMs) {
+        boolean finished = false;
+        if (null != mThread) {
+            mLoop.requestStop();
+            try {
+                finished = mLoop.awaitTermination(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            // A loop that is still running fails on the stopped codec, stops the muxer and
+            // ends. The muxer isn't thread-safe, so it is only released once the loop is gone.
+            joinUninterruptibly(mThread);
+        }
+        mCodec.release();
+        mInputSurface.release();
+        mMuxer.release();
+        return finished && !mLoop.hasFailed() && mLoop.getEncodedFrameCount() > 0;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The output side of a {@link MediaCodec}. Its {@code INFO_*} values are those of
+     * {@link VideoEncoderLoop}.
+     */
+    private static final class CodecEncoder implements VideoEncoderLoop.Encoder<MediaFormat> {
+
+        private final MediaCodec mCodec;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        CodecEncoder(MediaCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(VideoEncoderLoop.Sample sample, long timeoutUs) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            sample.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+            return index;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mCodec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+
+    }
+
+    /**
+     * Writes to a {@link MediaMuxer}.
+     */
+    private static final class MuxerSink implements VideoEncoderLoop.Muxer<MediaFormat> {
+
+        private final MediaMuxer mMuxer;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        MuxerSink(MediaMuxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, VideoEncoderLoop.Sample sample) {
+            mInfo.set(sample.mOffset, sample.mSize, sample.mPresentationTimeUs, sample.mFlags);
+            mMuxer.writeSampleData(track, data, mInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+    }
+
+}
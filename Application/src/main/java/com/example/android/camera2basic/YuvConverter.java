@@ -0,0 +1,404 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts {@link YuvFrame}s with any row and pixel strides to {@code NV21} or {@code I420}
+ * bytes, or to {@code ARGB_8888} pixels, optionally scaled down by an integer factor on the way.
+ *
+ * <p>Each row of a plane is first read into an array with a bulk get, so the per-pixel loops
+ * only index arrays, which the JIT can check the bounds of once per row. The rows of the output
+ * are split into stripes that are converted in parallel, one on the calling thread and the others
+ * on the converter's own workers. Scaling down samples every {@code scale}-th pixel.</p>
+ *
+ * <p>{@code ARGB} uses the full-range BT.601 matrix of JPEG, which is what cameras deliver
+ * {@code YUV_420_888} in.</p>
+ *
+ * <p>Conversions are serialized; the methods may be called from any thread.</p>
+ */
+class YuvConverter {
+
+    private static final int NV21 = 0;
+    private static final int I420 = 1;
+    private static final int ARGB = 2;
+
+    /**
+     * BT.601 full-range coefficients in 16.16 fixed point.
+     */
+    private static final int R_V = 91881;
+    private static final int G_U = 22554;
+    private static final int G_V = 46802;
+    private static final int B_U = 116130;
+    private static final int HALF = 1 << 15;
+
+    private final Stripe[] mStripes;
+
+    /**
+     * The workers for all stripes but the first, or null if there is only one stripe.
+     */
+    private final ExecutorService mExecutor;
+
+    private final Future<?>[] mFutures;
+
+    /**
+     * @param name    Name used for the worker threads
+     * @param threads How many stripes to convert in parallel, the calling thread included
+     */
+    YuvConverter(final String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        mStripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mFutures = new Future<?>[threads];
+        if (threads == 1) {
+            mExecutor = null;
+            return;
+        }
+        mExecutor = new ThreadPoolExecutor(threads - 1, threads - 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                name + "-" + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the length of a side of the output, scaled down by {@code scale}.
+     */
+    static int scaled(int length, int scale) {
+        return length / scale;
+    }
+
+    /**
+     * Converts a frame to {@code NV21}: the Y plane, then rows of interleaved V and U at half
+     * the width and height, rounded up.
+     *
+     * @param scale How much to scale down by, 1 for not at all
+     * @param out   At least {@link PlaneBufferPool#sizeOfI420(int, int)} bytes for the scaled
+     *              size
+     */
+    void toNv21(YuvFrame frame, int scale, byte[] out) {
+        convert(NV21, frame, scale, out, null);
+    }
+
+    /**
+     * Converts a frame to {@code I420}: the Y plane, then the U plane and the V plane at half the
+     * width and height, rounded up.
+     *
+     * @param scale How much to scale down by, 1 for not at all
+     * @param out   At least {@link PlaneBufferPool#sizeOfI420(int, int)} bytes for the scaled
+     *              size
+     */
+    void toI420(YuvFrame frame, int scale, byte[] out) {
+        convert(I420, frame, scale, out, null);
+    }
+
+    /**
+     * Converts a frame to opaque {@code ARGB_8888} pixels, as {@code Bitmap.setPixels()} takes
+     * them.
+     *
+     * @param scale How much to scale down by, 1 for not at all
+     * @param out   At least as many pixels as the scaled size
+     */
+    void toArgb(YuvFrame frame, int scale, int[] out) {
+        convert(ARGB, frame, scale, null, out);
+    }
+
+    /**
+     * Stops the workers.
+     */
+    void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private synchronized void convert(int format, YuvFrame frame, int scale, byte[] bytes,
+                                      int[] pixels) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Scale must be positive: " + scale);
+        }
+        int width = scaled(frame.getWidth(), scale);
+        int height = scaled(frame.getHeight(), scale);
+        int needed = format == ARGB ? width * height : PlaneBufferPool.sizeOfI420(width, height);
+        int length = format == ARGB ? pixels.length : bytes.length;
+        if (length < needed) {
+            throw new IllegalArgumentException("Output holds " + length + " of " + needed);
+        }
+
+        // Stripes start on even rows, so that each chroma row belongs to one stripe.
+        int stripes = Math.max(1, Math.min(mStripes.length, height / 2));
+        for (int i = 0; i < stripes; i++) {
+            int start = (int) ((long) height * i / stripes) & ~1;
+            int end = i == stripes - 1 ? height : (int) ((long) height * (i + 1) / stripes) & ~1;
+            mStripes[i].set(format, frame, scale, width, height, start, end, bytes, pixels);
+        }
+        for (int i = 1; i < stripes; i++) {
+            mFutures[i] = mExecutor.submit(mStripes[i]);
+        }
+        RuntimeException failure = null;
+        try {
+            mStripes[0].run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (int i = 1; i < stripes; i++) {
+            try {
+                mFutures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IllegalStateException("Interrupted while converting", e);
+            } catch (ExecutionException e) {
+                failure = new IllegalStateException("Conversion failed", e.getCause());
+            }
+            mFutures[i] = null;
+        }
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i].clear();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Converts the output rows {@code [mStart, mEnd)}.
+     */
+    private static final class Stripe implements Runnable {
+
+        private int mFormat;
+        private YuvFrame mFrame;
+        private int mScale;
+        private int mWidth;
+        private int mHeight;
+        private int mStart;
+        private int mEnd;
+        private byte[] mBytes;
+        private int[] mPixels;
+
+        /**
+         * One source row of each plane.
+         */
+        private byte[] mY = new byte[0];
+        private byte[] mU = new byte[0];
+        private byte[] mV = new byte[0];
+
+        void set(int format, YuvFrame frame, int scale, int width, int height, int start, int end,
+                 byte[] bytes, int[] pixels) {
+            mFormat = format;
+            mFrame = frame;
+            mScale = scale;
+            mWidth = width;
+            mHeight = height;
+            mStart = start;
+            mEnd = end;
+            mBytes = bytes;
+            mPixels = pixels;
+        }
+
+        void clear() {
+            mFrame = null;
+            mBytes = null;
+            mPixels = null;
+        }
+
+        @Override
+        public void run() {
+            YuvFrame frame = mFrame;
+            // Views of our own, since their positions change with every row.
+            ByteBuffer y = frame.getBuffer(YuvFrame.Y).duplicate();
+            ByteBuffer u = frame.getBuffer(YuvFrame.U).duplicate();
+            ByteBuffer v = frame.getBuffer(YuvFrame.V).duplicate();
+            int yRowStride = frame.getRowStride(YuvFrame.Y);
+            int yPixelStride = frame.getPixelStride(YuvFrame.Y);
+            int uRowStride = frame.getRowStride(YuvFrame.U);
+            int vRowStride = frame.getRowStride(YuvFrame.V);
+            int uPixelStride = frame.getPixelStride(YuvFrame.U);
+            int vPixelStride = frame.getPixelStride(YuvFrame.V);
+            int scale = mScale;
+            int width = mWidth;
+            int chromaWidth = (width + 1) / 2;
+
+            // The source bytes each row needs: up to the last pixel sampled. ARGB samples the
+            // chroma of every output pixel, the others that of every other one.
+            int lastChroma = mFormat == ARGB
+                    ? ((width - 1) * scale) >> 1 : (chromaWidth - 1) * scale;
+            int yLength = ((width - 1) * scale) * yPixelStride + 1;
+            int uLength = lastChroma * uPixelStride + 1;
+            int vLength = lastChroma * vPixelStride + 1;
+            if (mY.length < yLength) {
+                mY = new byte[yLength];
+            }
+            if (mU.length < uLength) {
+                mU = new byte[uLength];
+            }
+            if (mV.length < vLength) {
+                mV = new byte[vLength];
+            }
+            byte[] yRow = mY;
+            byte[] uRow = mU;
+            byte[] vRow = mV;
+
+            int lumaSize = width * mHeight;
+            int chromaSize = chromaWidth * ((mHeight + 1) / 2);
+            int chromaRow = -1;
+            for (int row = mStart; row < mEnd; row++) {
+                int sourceRow = row * scale;
+                int sourceChromaRow = sourceRow / 2;
+                boolean chromaRowWritten = (row & 1) == 0;
+                if (mFormat == ARGB || chromaRowWritten) {
+                    if (sourceChromaRow != chromaRow) {
+                        read(u, sourceChromaRow * uRowStride, uRow, uLength);
+                        read(v, sourceChromaRow * vRowStride, vRow, vLength);
+                        chromaRow = sourceChromaRow;
+                    }
+                }
+                switch (mFormat) {
+                    case ARGB: {
+                        read(y, sourceRow * yRowStride, yRow, yLength);
+                        argbRow(yRow, yPixelStride * scale, uRow, vRow, uPixelStride,
+                                vPixelStride, scale, width, mPixels, row * width);
+                        break;
+                    }
+                    case NV21: {
+                        lumaRow(y, sourceRow * yRowStride, yRow, yLength, yPixelStride * scale,
+                                width, mBytes, row * width);
+                        if (chromaRowWritten) {
+                            int out = lumaSize + (row / 2) * chromaWidth * 2;
+                            int uStep = uPixelStride * scale;
+                            int vStep = vPixelStride * scale;
+                            byte[] bytes = mBytes;
+                            for (int x = 0, ui = 0, vi = 0; x < chromaWidth;
+                                 x++, ui += uStep, vi += vStep) {
+                                bytes[out + 2 * x] = vRow[vi];
+                                bytes[out + 2 * x + 1] = uRow[ui];
+                            }
+                        }
+                        break;
+                    }
+                    default: {
+                        lumaRow(y, sourceRow * yRowStride, yRow, yLength, yPixelStride * scale,
+                                width, mBytes, row * width);
+                        if (chromaRowWritten) {
+                            int out = lumaSize + (row / 2) * chromaWidth;
+                            sampleRow(uRow, uPixelStride * scale, chromaWidth, mBytes, out);
+                            sampleRow(vRow, vPixelStride * scale, chromaWidth, mBytes,
+                                    out + chromaSize);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static void read(ByteBuffer plane, int start, byte[] row, int length) {
+            plane.position(start);
+            plane.get(row, 0, length);
+        }
+
+        /**
+         * Copies a luma row to {@code out}, straight from the plane if it needs no sampling.
+         */
+        private static void lumaRow(ByteBuffer plane, int start, byte[] row, int length, int step,
+                                    int width, byte[] out, int offset) {
+            if (step == 1) {
+                plane.position(start);
+                plane.get(out, offset, width);
+            } else {
+                read(plane, start, row, length);
+                sampleRow(row, step, width, out, offset);
+            }
+        }
+
+        private static void sampleRow(byte[] row, int step, int width, byte[] out, int offset) {
+            if (step == 1) {
+                System.arraycopy(row, 0, out, offset, width);
+                return;
+            }
+            for (int x = 0, i = 0; x < width; x++, i += step) {
+                out[offset + x] = row[i];
+            }
+        }
+
+        private static void argbRow(byte[] yRow, int yStep, byte[] uRow, byte[] vRow,
+                                    int uPixelStride, int vPixelStride, int scale, int width,
+                                    int[] out, int offset) {
+            int x = 0;
+            if (scale == 1) {
+                // Two pixels per chroma sample, whose contributions are worked out once.
+                for (int ui = 0, vi = 0; x + 1 < width;
+                     x += 2, ui += uPixelStride, vi += vPixelStride) {
+                    int cb = (uRow[ui] & 0xff) - 128;
+                    int cr = (vRow[vi] & 0xff) - 128;
+                    int red = R_V * cr + HALF;
+                    int green = HALF - G_U * cb - G_V * cr;
+                    int blue = B_U * cb + HALF;
+                    int luma = (yRow[x * yStep] & 0xff) << 16;
+                    out[offset + x] = argb(luma + red, luma + green, luma + blue);
+                    luma = (yRow[(x + 1) * yStep] & 0xff) << 16;
+                    out[offset + x + 1] = argb(luma + red, luma + green, luma + blue);
+                }
+            }
+            for (int yi = x * yStep; x < width; x++, yi += yStep) {
+                // The chroma of the source pixel, which covers two source columns.
+                int chroma = (x * scale) >> 1;
+                int cb = (uRow[chroma * uPixelStride] & 0xff) - 128;
+                int cr = (vRow[chroma * vPixelStride] & 0xff) - 128;
+                int luma = ((yRow[yi] & 0xff) << 16) + HALF;
+                out[offset + x] = argb(luma + R_V * cr, luma - G_U * cb - G_V * cr,
+                        luma + B_U * cb);
+            }
+        }
+
+        /**
+         * Packs 16.16 fixed-point channels into an opaque pixel.
+         */
+        private static int argb(int red, int green, int blue) {
+            return 0xff000000 | clamp(red >> 16) << 16 | clamp(green >> 16) << 8
+                    | clamp(blue >> 16);
+        }
+
+        /**
+         * Clamps to [0, 255] without branches, which noisy frames would mispredict.
+         */
+        private static int clamp(int value) {
+            value &= ~(value >> 31);
+            return (value | ((255 - value) >> 31)) & 0xff;
+        }
+
+    }
+
+}
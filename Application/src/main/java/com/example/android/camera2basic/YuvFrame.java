@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@code YUV_420_888} frame: a full-resolution Y plane and U and V planes subsampled by two in
+ * both directions, each described by its buffer, row stride and pixel stride. The planes usually
+ * come from an {@link Image}, but can be any buffers, e.g. synthetic ones in tests.
+ *
+ * <p>A frame is reference counted so that several consumers can read it at once: it starts with
+ * one reference, each {@link #retain()} adds one and each {@link #release()} drops one, and the
+ * owner of the planes, e.g. the {@link Image}, is closed along with the last one. The buffers must
+ * not be read after releasing the frame.</p>
+ */
+class YuvFrame {
+
+    static final int Y = 0;
+    static final int U = 1;
+    static final int V = 2;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestamp;
+    private final ByteBuffer[] mBuffers;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+    private final AutoCloseable mOwner;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    /**
+     * @param width        The width of the Y plane
+     * @param height       The height of the Y plane
+     * @param timestamp    The sensor timestamp of the frame
+     * @param buffers      The Y, U and V planes
+     * @param rowStrides   The distance in bytes between rows of each plane
+     * @param pixelStrides The distance in bytes between pixels of a row of each plane
+     * @param owner        Closed when the last reference is released, or null
+     */
+    YuvFrame(int width, int height, long timestamp, ByteBuffer[] buffers, int[] rowStrides,
+             int[] pixelStrides, AutoCloseable owner) {
+        if (buffers.length != 3 || rowStrides.length != 3 || pixelStrides.length != 3) {
+            throw new IllegalArgumentException("A YUV_420_888 frame has 3 planes");
+        }
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        mBuffers = buffers;
+        mRowStrides = rowStrides;
+        mPixelStrides = pixelStrides;
+        mOwner = owner;
+    }
+
+    /**
+     * Wraps a {@code YUV_420_888} {@link Image}, which is closed with the last reference.
+     */
+    static YuvFrame of(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        int[] rowStrides = new int[3];
+        int[] pixelStrides = new int[3];
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = planes[i].getBuffer();
+            rowStrides[i] = planes[i].getRowStride();
+            pixelStrides[i] = planes[i].getPixelStride();
+        }
+        return new YuvFrame(image.getWidth(), image.getHeight(), image.getTimestamp(), buffers,
+                rowStrides, pixelStrides, image);
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns a plane of the frame. The buffer is shared by every reader of the frame, so it
+     * must only be read with absolute gets, or through a {@link ByteBuffer#duplicate()}.
+     *
+     * @param plane {@link #Y}, {@link #U} or {@link #V}
+     */
+    ByteBuffer getBuffer(int plane) {
+        return mBuffers[plane];
+    }
+
+    int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    /**
+     * Adds a reference to the frame.
+     *
+     * @return This frame
+     * @throws IllegalStateException If the frame was already released
+     */
+    YuvFrame retain() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame " + mTimestamp + " was released");
+            }
+        } while (!mRefCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference to the frame, closing its owner if it was the last one.
+     *
+     * @throws IllegalStateException If the frame was already released
+     */
+    void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count < 0) {
+            throw new IllegalStateException("Frame " + mTimestamp + " was released");
+        }
+        if (count == 0 && mOwner != null) {
+            try {
+                mOwner.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the last reference to the frame was released.
+     */
+    boolean isReleased() {
+        return mRefCount.get() <= 0;
+    }
+
+}
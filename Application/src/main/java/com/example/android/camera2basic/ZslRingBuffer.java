@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The last few full-resolution frames of a zero-shutter-lag stream, each paired with its capture
+ * result. Images and results arrive separately, in either order, and are matched by their sensor
+ * timestamp, which is identical for the image and the result of the same frame. On a shutter
+ * press, {@link #takeBest(long)} hands out the best frame among the most recent ones so that it
+ * can be reprocessed into a still without waiting for a new exposure.
+ *
+ * <p>At most {@code capacity} images are held; the oldest one is handed to the {@link Listener}
+ * to be released when a new one arrives, so an {@code ImageReader} with a few more than
+ * {@code capacity} images never runs dry. Results that never get an image, e.g. those of requests
+ * that don't target the ZSL stream, are dropped the same way. Frames are kept in preallocated
+ * slots, so nothing is allocated per frame once the buffer is full.</p>
+ *
+ * <p>All methods may be called from any thread.</p>
+ *
+ * @param <I> The type of the image, e.g. an {@link android.media.Image}
+ * @param <R> The type of the capture result, e.g. a
+ *            {@link android.hardware.camera2.TotalCaptureResult}
+ */
+class ZslRingBuffer<I, R> {
+
+    /**
+     * Score of a frame that must not be used for a still, e.g. because it was exposed while
+     * the lens was moving.
+     */
+    static final int UNUSABLE = -1;
+
+    /**
+     * Releases the images that are evicted from a {@link ZslRingBuffer}.
+     */
+    interface Listener<I> {
+
+        /**
+         * Called when an image leaves the buffer without being taken, e.g. to close it.
+         */
+        void onEvicted(I image);
+
+    }
+
+    /**
+     * A frame taken out of the buffer. The caller owns its image.
+     */
+    static final class Frame<I, R> {
+
+        private final long mTimestamp;
+        private final I mImage;
+        private final R mResult;
+        private final int mScore;
+
+        Frame(long timestamp, I image, R result, int score) {
+            mTimestamp = timestamp;
+            mImage = image;
+            mResult = result;
+            mScore = score;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        I getImage() {
+            return mImage;
+        }
+
+        R getResult() {
+            return mResult;
+        }
+
+        int getScore() {
+            return mScore;
+        }
+
+    }
+
+    /**
+     * A frame whose image, result, or both have arrived.
+     */
+    private static final class Slot<I, R> {
+
+        long mTimestamp;
+        I mImage;
+        R mResult;
+        int mScore;
+        boolean mHasResult;
+
+        void clear() {
+            mImage = null;
+            mResult = null;
+            mHasResult = false;
+        }
+
+    }
+
+    private final int mCapacity;
+    private final Listener<I> mListener;
+
+    /**
+     * Frames in order of arrival, oldest first.
+     */
+    private final ArrayDeque<Slot<I, R>> mSlots;
+
+    /**
+     * Slots that are not in use.
+     */
+    private final ArrayDeque<Slot<I, R>> mFreeSlots;
+
+    private int mImageCount;
+    private long mEvictedCount;
+    private long mDroppedResultCount;
+
+    /**
+     * @param capacity How many images may be held at once
+     * @param listener Releases the evicted images
+     */
+    ZslRingBuffer(int capacity, Listener<I> listener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mListener = listener;
+        // Leave room for as many results waiting for their image as there are images.
+        int slotCount = 2 * capacity;
+        mSlots = new ArrayDeque<>(slotCount);
+        mFreeSlots = new ArrayDeque<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            mFreeSlots.add(new Slot<I, R>());
+        }
+    }
+
+    /**
+     * Adds the image of a frame, evicting the oldest image if the buffer is full.
+     *
+     * @param timestamp The sensor timestamp of the image
+     * @param image     The image; the buffer owns it until it is taken or evicted
+     */
+    synchronized void addImage(long timestamp, I image) {
+        Slot<I, R> slot = find(timestamp);
+        if (slot == null) {
+            slot = obtainSlot(timestamp);
+        } else if (slot.mImage != null) {
+            // The same frame twice; keep the newer image.
+            evict(slot.mImage);
+            mImageCount--;
+        }
+        slot.mImage = image;
+        mImageCount++;
+        while (mImageCount > mCapacity) {
+            evictOldestImage();
+        }
+    }
+
+    /**
+     * Adds the capture result of a frame.
+     *
+     * @param timestamp The sensor timestamp of the result
+     * @param result    The capture result
+     * @param score     How good the frame is for a still, higher is better, or {@link #UNUSABLE}
+     * @see #score(int, int, int, long)
+     */
+    synchronized void addResult(long timestamp, R result, int score) {
+        Slot<I, R> slot = find(timestamp);
+        if (slot == null) {
+            slot = obtainSlot(timestamp);
+        }
+        slot.mResult = result;
+        slot.mScore = score;
+        slot.mHasResult = true;
+    }
+
+    /**
+     * Takes the best usable frame out of the buffer: the one with the highest score, and of
+     * those the most recent. Only frames whose image and result have both arrived are eligible.
+     *
+     * @param windowNanos How much older than the newest complete frame a frame may be
+     * @return The frame, or null if no frame is eligible
+     */
+    synchronized Frame<I, R> takeBest(long windowNanos) {
+        long newest = Long.MIN_VALUE;
+        for (Slot<I, R> slot : mSlots) {
+            if (isComplete(slot) && slot.mTimestamp > newest) {
+                newest = slot.mTimestamp;
+            }
+        }
+        Slot<I, R> best = null;
+        for (Slot<I, R> slot : mSlots) {
+            if (!isComplete(slot) || slot.mScore == UNUSABLE
+                    || newest - slot.mTimestamp > windowNanos) {
+                continue;
+            }
+            if (best == null || slot.mScore > best.mScore
+                    || (slot.mScore == best.mScore && slot.mTimestamp > best.mTimestamp)) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        Frame<I, R> frame = new Frame<>(best.mTimestamp, best.mImage, best.mResult, best.mScore);
+        mImageCount--;
+        mSlots.remove(best);
+        recycle(best);
+        return frame;
+    }
+
+    /**
+     * Evicts every image and drops every result, e.g. before the image reader is closed.
+     */
+    synchronized void clear() {
+        Iterator<Slot<I, R>> iterator = mSlots.iterator();
+        while (iterator.hasNext()) {
+            Slot<I, R> slot = iterator.next();
+            iterator.remove();
+            if (slot.mImage != null) {
+                evict(slot.mImage);
+            }
+            recycle(slot);
+        }
+        mImageCount = 0;
+    }
+
+    /**
+     * Returns the number of images held.
+     */
+    synchronized int getImageCount() {
+        return mImageCount;
+    }
+
+    /**
+     * Returns the number of frames whose image and result have both arrived.
+     */
+    synchronized int getCompleteCount() {
+        int count = 0;
+        for (Slot<I, R> slot : mSlots) {
+            if (isComplete(slot)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns how many images were evicted without being taken.
+     */
+    synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Returns how many results were dropped without ever being matched with an image.
+     */
+    synchronized long getDroppedResultCount() {
+        return mDroppedResultCount;
+    }
+
+    private static boolean isComplete(Slot<?, ?> slot) {
+        return slot.mImage != null && slot.mHasResult;
+    }
+
+    private Slot<I, R> find(long timestamp) {
+        // The frame is almost always one of the newest.
+        Iterator<Slot<I, R>> iterator = mSlots.descendingIterator();
+        while (iterator.hasNext()) {
+            Slot<I, R> slot = iterator.next();
+            if (slot.mTimestamp == timestamp) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot<I, R> obtainSlot(long timestamp) {
+        if (mFreeSlots.isEmpty()) {
+            // Every slot is in use, so the oldest frame goes, whatever it holds.
+            Slot<I, R> oldest = mSlots.pollFirst();
+            if (oldest.mImage != null) {
+                evict(oldest.mImage);
+                mImageCount--;
+            } else {
+                mDroppedResultCount++;
+            }
+            recycle(oldest);
+        }
+        Slot<I, R> slot = mFreeSlots.pollFirst();
+        slot.mTimestamp = timestamp;
+        mSlots.addLast(slot);
+        return slot;
+    }
+
+    private void evictOldestImage() {
+        // Results older than the oldest image will never be matched either.
+        while (!mSlots.isEmpty()) {
+            Slot<I, R> slot = mSlots.pollFirst();
+            if (slot.mImage != null) {
+                evict(slot.mImage);
+                mImageCount--;
+                recycle(slot);
+                return;
+            }
+            mDroppedResultCount++;
+            recycle(slot);
+        }
+    }
+
+    private void evict(I image) {
+        mEvictedCount++;
+        mListener.onEvicted(image);
+    }
+
+    private void recycle(Slot<I, R> slot) {
+        slot.clear();
+        mFreeSlots.addLast(slot);
+    }
+
+    /**
+     * Scores a frame for use as a still from the 3A state of its capture result: frames exposed
+     * before AF and AE converged or while the lens was moving are {@link #UNUSABLE}, and of the
+     * others, the shorter the exposure, the less motion blur and the higher the score.
+     *
+     * @param afState           The {@link CaptureResult#CONTROL_AF_STATE}, or -1 if unknown
+     * @param aeState           The {@link CaptureResult#CONTROL_AE_STATE}, or -1 if unknown
+     * @param lensState         The {@link CaptureResult#LENS_STATE}, or -1 if unknown
+     * @param exposureTimeNanos The {@link CaptureResult#SENSOR_EXPOSURE_TIME}, or -1 if unknown
+     * @return The score, or {@link #UNUSABLE}
+     */
+    static int score(int afState, int aeState, int lensState, long exposureTimeNanos) {
+        boolean afConverged = afState == -1
+                || afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+        // FLASH_REQUIRED isn't converged: a frame without the flash would come out too dark.
+        boolean aeConverged = aeState == -1
+                || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        if (!afConverged || !aeConverged || lensState == CaptureResult.LENS_STATE_MOVING) {
+            return UNUSABLE;
+        }
+        if (exposureTimeNanos <= 0) {
+            return 0;
+        }
+        // Exposures of a second or more all score 1.
+        long exposureMicros = Math.min(exposureTimeNanos / 1000, 999999);
+        return (int) (1000000 - exposureMicros);
+    }
+
+}
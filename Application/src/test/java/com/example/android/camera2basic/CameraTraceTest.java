@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CameraTrace}.
+ */
+public class CameraTraceTest {
+
+    @Test
+    public void recordsFinishedSpans() throws InterruptedException {
+        CameraTrace trace = new CameraTrace();
+        trace.begin(CameraTrace.OPEN, "0");
+        Thread.sleep(5);
+        long nanos = trace.end(CameraTrace.OPEN, "0");
+        assertTrue(nanos >= 5000000L);
+        assertEquals(1, trace.getHistogram(CameraTrace.OPEN).getCount());
+        assertTrue(trace.dump().contains(CameraTrace.OPEN));
+    }
+
+    @Test
+    public void keepsOverlappingSpansApart() {
+        CameraTrace trace = new CameraTrace();
+        trace.begin(CameraTrace.OPEN, "0");
+        trace.begin(CameraTrace.OPEN, "1");
+        assertTrue(trace.end(CameraTrace.OPEN, "1") >= 0);
+        assertTrue(trace.end(CameraTrace.OPEN, "0") >= 0);
+        assertEquals(2, trace.getHistogram(CameraTrace.OPEN).getCount());
+    }
+
+    @Test
+    public void ignoresUnstartedAndCancelledSpans() {
+        CameraTrace trace = new CameraTrace();
+        assertEquals(-1, trace.end(CameraTrace.CONFIGURE, "0"));
+        trace.begin(CameraTrace.CONFIGURE, "0");
+        trace.cancel(CameraTrace.CONFIGURE, "0");
+        assertEquals(-1, trace.end(CameraTrace.CONFIGURE, "0"));
+        assertEquals(0, trace.getHistogram(CameraTrace.CONFIGURE).getCount());
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CaptureJournal}, in a temporary directory.
+ */
+public class CaptureJournalTest {
+
+    private File mDirectory;
+    private CaptureJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("journal").toFile();
+        mJournal = new CaptureJournal(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private CaptureJournal reopen() throws IOException {
+        mJournal.close();
+        mJournal = new CaptureJournal(mDirectory);
+        return mJournal;
+    }
+
+    /**
+     * Appends {@code count} captures one second apart, alternating between cameras 0 and 1.
+     */
+    private void appendCaptures(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            mJournal.append(1000L * i, String.valueOf(i % 2), 5000L + i, "IMG_" + i + ".jpg",
+                    100 + i, 10000000L, 100 + i);
+        }
+    }
+
+    @Test
+    public void roundTripsRecords() throws IOException {
+        mJournal.append(1234, "0-1", 987654321L, "IMG_00000007_987654321_0-1.jpg", 4096,
+                33333333L, 400);
+        CaptureJournal.Record record = mJournal.get(0);
+        assertEquals(1234, record.getTimeMillis());
+        assertEquals("0-1", record.getCameraId());
+        assertEquals(987654321L, record.getSensorTimestamp());
+        assertEquals("IMG_00000007_987654321_0-1.jpg", record.getName());
+        assertEquals(4096, record.getSize());
+        assertEquals(33333333L, record.getExposureNanos());
+        assertEquals(400, record.getIso());
+        assertEquals(new File(mDirectory, record.getName()), mJournal.fileOf(record));
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        appendCaptures(10);
+        reopen();
+        assertEquals(10, mJournal.size());
+        assertEquals(5, mJournal.countOf("1"));
+        assertEquals("IMG_9.jpg", mJournal.get(9).getName());
+        mJournal.append(99000, "0", 1, "IMG_10.jpg", 1, -1, -1);
+        assertEquals(11, reopen().size());
+    }
+
+    @Test
+    public void growsTheIndex() throws IOException {
+        appendCaptures(3000);
+        assertEquals(3000, mJournal.size());
+        assertEquals("IMG_2999.jpg", mJournal.get(2999).getName());
+        assertEquals(3000, reopen().size());
+        assertEquals("IMG_1500.jpg", mJournal.get(1500).getName());
+    }
+
+    @Test
+    public void findsTimeRanges() throws IOException {
+        appendCaptures(2000);
+        List<CaptureJournal.Record> records = mJournal.range(1500000, 1503000);
+        assertEquals(3, records.size());
+        assertEquals("IMG_1500.jpg", records.get(0).getName());
+        assertEquals("IMG_1502.jpg", records.get(2).getName());
+        // Between two captures.
+        assertEquals("IMG_1501.jpg", mJournal.range(1500001, 1501001).get(0).getName());
+        assertEquals(0, mJournal.range(-5000, 0).size());
+        assertEquals(2000, mJournal.range(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void findsRangesOfOneCamera() throws IOException {
+        appendCaptures(2000);
+        List<CaptureJournal.Record> records = mJournal.range("1", 100000, 110000);
+        assertEquals(5, records.size());
+        for (CaptureJournal.Record record : records) {
+            assertEquals("1", record.getCameraId());
+        }
+        assertEquals("IMG_101.jpg", records.get(0).getName());
+        assertEquals(0, mJournal.range("2", Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        reopen();
+        assertEquals(5, mJournal.range("1", 100000, 110000).size());
+    }
+
+    @Test
+    public void listsTheLatestFirst() throws IOException {
+        appendCaptures(5);
+        List<CaptureJournal.Record> latest = mJournal.latest(3);
+        assertEquals(3, latest.size());
+        assertEquals("IMG_4.jpg", latest.get(0).getName());
+        assertEquals("IMG_2.jpg", latest.get(2).getName());
+        assertEquals(5, mJournal.latest(10).size());
+    }
+
+    @Test
+    public void keepsTimesFromDecreasing() throws IOException {
+        mJournal.append(5000, "0", 1, "a.jpg", 1, -1, -1);
+        // The clock was set back.
+        CaptureJournal.Record record = mJournal.append(2000, "0", 2, "b.jpg", 1, -1, -1);
+        assertEquals(5000, record.getTimeMillis());
+        assertEquals(2, mJournal.range(5000, 5001).size());
+    }
+
+    @Test
+    public void indexesRecordsMissingFromTheIndex() throws IOException {
+        appendCaptures(10);
+        mJournal.close();
+        // As if the app died after writing records 6 to 9 but before counting their entries.
+        RandomAccessFile index = new RandomAccessFile(
+                new File(mDirectory, CaptureJournal.INDEX_NAME), "rw");
+        index.seek(8);
+        index.writeInt(6);
+        index.close();
+
+        mJournal = new CaptureJournal(mDirectory);
+        assertEquals(10, mJournal.size());
+        assertEquals("IMG_9.jpg", mJournal.get(9).getName());
+        assertEquals(5, mJournal.range("1", Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void cutsOffATornRecord() throws IOException {
+        appendCaptures(3);
+        File journalFile = new File(mDirectory, CaptureJournal.JOURNAL_NAME);
+        long length = journalFile.length();
+        mJournal.close();
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.seek(length);
+        journal.write(new byte[]{0, 0, 0, 60, 1, 2, 3});
+        journal.close();
+
+        mJournal = new CaptureJournal(mDirectory);
+        assertEquals(3, mJournal.size());
+        assertEquals(length, journalFile.length());
+        mJournal.append(9000, "0", 1, "IMG_3.jpg", 1, -1, -1);
+        assertEquals("IMG_3.jpg", reopen().get(3).getName());
+    }
+
+    @Test
+    public void rebuildsAnUnreadableIndex() throws IOException {
+        appendCaptures(4);
+        mJournal.close();
+        RandomAccessFile index = new RandomAccessFile(
+                new File(mDirectory, CaptureJournal.INDEX_NAME), "rw");
+        index.writeInt(0xdeadbeef);
+        index.close();
+
+        mJournal = new CaptureJournal(mDirectory);
+        assertEquals(4, mJournal.size());
+        assertEquals(2, mJournal.countOf("0"));
+        assertEquals("IMG_3.jpg", mJournal.range(3000, 4000).get(0).getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongCameraIds() throws IOException {
+        mJournal.append(0, "0123456789abcdef0123456789abcdef0", 1, "a.jpg", 1, -1, -1);
+    }
+
+    @Test
+    public void failsAfterClosing() throws IOException {
+        mJournal.close();
+        try {
+            mJournal.append(0, "0", 1, "a.jpg", 1, -1, -1);
+            fail();
+        } catch (IOException expected) {
+            // Closed.
+        }
+        mJournal = new CaptureJournal(mDirectory);
+    }
+
+}
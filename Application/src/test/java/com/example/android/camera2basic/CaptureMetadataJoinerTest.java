@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CaptureMetadataJoiner}, with an executor that queues the joins.
+ */
+public class CaptureMetadataJoinerTest {
+
+    private final List<Runnable> mJobs = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private CaptureMetadataJoiner<String> mJoiner;
+
+    @Before
+    public void setUp() {
+        mJoiner = new CaptureMetadataJoiner<>(2, new Executor() {
+            @Override
+            public void execute(Runnable job) {
+                mJobs.add(job);
+            }
+        }, new CaptureMetadataJoiner.Listener<String>() {
+            @Override
+            public void onJoined(long timestamp, CaptureMetadataJoiner.Saved saved,
+                                 String result) {
+                mEvents.add(timestamp + " " + saved.getFile().getName() + " " + result);
+            }
+
+            @Override
+            public void onUnjoined(long timestamp, CaptureMetadataJoiner.Saved saved) {
+                mEvents.add(timestamp + " " + saved.getFile().getName());
+            }
+        });
+    }
+
+    private static CaptureMetadataJoiner.Saved saved(String name) {
+        return new CaptureMetadataJoiner.Saved("0", new File(name), 1);
+    }
+
+    private void runJobs() {
+        for (Runnable job : mJobs) {
+            job.run();
+        }
+        mJobs.clear();
+    }
+
+    @Test
+    public void joinsACaptureWhoseResultCameFirstOnTheCallingThread() {
+        mJoiner.offerResult("0", 10, "r10");
+        assertTrue(mEvents.isEmpty());
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        assertTrue(mJobs.isEmpty());
+        assertEquals("[10 a.jpg r10]", mEvents.toString());
+        assertEquals(1, mJoiner.getJoinedCount());
+    }
+
+    @Test
+    public void joinsAResultThatCameLastOnTheExecutor() {
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerResult("0", 10, "r10");
+        assertTrue(mEvents.isEmpty());
+        assertEquals(1, mJobs.size());
+        runJobs();
+        assertEquals("[10 a.jpg r10]", mEvents.toString());
+    }
+
+    @Test
+    public void matchesByTimestamp() {
+        mJoiner.offerResult("0", 20, "r20");
+        mJoiner.offerResult("0", 10, "r10");
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerCapture("0", 20, saved("b.jpg"));
+        assertEquals("[10 a.jpg r10, 20 b.jpg r20]", mEvents.toString());
+    }
+
+    @Test
+    public void matchesByCameraWhenTheTimestampsAreTheSame() {
+        mJoiner.offerResult("1", 10, "r10 of 1");
+        mJoiner.offerResult("0", 10, "r10 of 0");
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerCapture("1", 10, saved("b.jpg"));
+        assertEquals("[10 a.jpg r10 of 0, 10 b.jpg r10 of 1]", mEvents.toString());
+    }
+
+    @Test
+    public void givesUpOnTheOldestCaptureWhenFull() {
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerCapture("0", 20, saved("b.jpg"));
+        mJoiner.offerCapture("0", 30, saved("c.jpg"));
+        assertEquals("[10 a.jpg]", mEvents.toString());
+        assertEquals(1, mJoiner.getUnjoinedCount());
+        mJoiner.offerResult("0", 10, "r10");
+        assertTrue(mJobs.isEmpty());
+    }
+
+    @Test
+    public void dropsTheOldestResultWhenFull() {
+        mJoiner.offerResult("0", 10, "r10");
+        mJoiner.offerResult("0", 20, "r20");
+        mJoiner.offerResult("0", 30, "r30");
+        assertEquals(1, mJoiner.getDroppedResultCount());
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerCapture("0", 30, saved("c.jpg"));
+        assertEquals("[30 c.jpg r30]", mEvents.toString());
+    }
+
+    @Test
+    public void flushGivesUpOnEveryWaitingCapture() {
+        mJoiner.offerCapture("0", 10, saved("a.jpg"));
+        mJoiner.offerCapture("0", 20, saved("b.jpg"));
+        mJoiner.offerResult("0", 30, "r30");
+        mJoiner.flush();
+        assertEquals("[10 a.jpg, 20 b.jpg]", mEvents.toString());
+        assertEquals(2, mJoiner.getUnjoinedCount());
+        assertEquals(1, mJoiner.getDroppedResultCount());
+        mJoiner.offerCapture("0", 30, saved("c.jpg"));
+        mJoiner.flush();
+        assertEquals("[10 a.jpg, 20 b.jpg, 30 c.jpg]", mEvents.toString());
+    }
+
+}
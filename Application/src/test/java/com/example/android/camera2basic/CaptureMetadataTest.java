@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CaptureMetadata}, in a temporary directory.
+ */
+public class CaptureMetadataTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("metadata").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static CaptureMetadata sample() {
+        return new CaptureMetadata(123456789L, 42, 8_000_000L, 33_333_333L, 400, 1.8f, 4.38f,
+                2.5f, 2, 2, 2, 0, 90);
+    }
+
+    private static void assertSame(CaptureMetadata expected, CaptureMetadata actual) {
+        ByteBuffer first = ByteBuffer.allocate(CaptureMetadata.SIZE);
+        ByteBuffer second = ByteBuffer.allocate(CaptureMetadata.SIZE);
+        expected.writeTo(first);
+        actual.writeTo(second);
+        assertArrayEquals(first.array(), second.array());
+    }
+
+    @Test
+    public void roundTripsThroughItsBinaryForm() throws IOException {
+        CaptureMetadata metadata = sample();
+        ByteBuffer buffer = ByteBuffer.allocate(CaptureMetadata.SIZE);
+        metadata.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.flip();
+        CaptureMetadata read = CaptureMetadata.readFrom(buffer);
+        assertEquals(123456789L, read.getSensorTimestamp());
+        assertEquals(42, read.getFrameNumber());
+        assertEquals(8_000_000L, read.getExposureTimeNanos());
+        assertEquals(33_333_333L, read.getFrameDurationNanos());
+        assertEquals(400, read.getSensitivity());
+        assertEquals(1.8f, read.getAperture(), 0);
+        assertEquals(4.38f, read.getFocalLength(), 0);
+        assertEquals(2.5f, read.getFocusDistance(), 0);
+        assertEquals(90, read.getJpegOrientation());
+        assertSame(metadata, read);
+    }
+
+    @Test
+    public void keepsMissingValues() throws IOException {
+        CaptureMetadata metadata = new CaptureMetadata(-1, -1, -1, -1, -1, Float.NaN, Float.NaN,
+                Float.NaN, -1, -1, -1, -1, -1);
+        ByteBuffer buffer = ByteBuffer.allocate(CaptureMetadata.SIZE);
+        metadata.writeTo(buffer);
+        buffer.flip();
+        CaptureMetadata read = CaptureMetadata.readFrom(buffer);
+        assertEquals(-1, read.getExposureTimeNanos());
+        assertTrue(Float.isNaN(read.getFocusDistance()));
+    }
+
+    @Test
+    public void rejectsOtherData() {
+        try {
+            CaptureMetadata.readFrom(ByteBuffer.allocate(CaptureMetadata.SIZE));
+            fail();
+        } catch (IOException expected) {
+            // Expected.
+        }
+        try {
+            CaptureMetadata.readFrom(ByteBuffer.allocate(8));
+            fail();
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void namesTheSidecarAfterThePicture() {
+        assertEquals(new File(mDirectory, "IMG_00000003_5_0.meta"),
+                CaptureMetadata.sidecarOf(new File(mDirectory, "IMG_00000003_5_0.jpg")));
+        assertEquals(new File(mDirectory, "picture.meta"),
+                CaptureMetadata.sidecarOf(new File(mDirectory, "picture")));
+    }
+
+    @Test
+    public void writesAndReadsTheSidecar() throws IOException {
+        File picture = new File(mDirectory, "IMG_00000000_123456789_0.jpg");
+        new FileOutputStream(picture).close();
+        CaptureMetadata metadata = sample();
+        File sidecar = metadata.writeSidecar(picture);
+        assertEquals(CaptureMetadata.sidecarOf(picture), sidecar);
+        assertEquals(CaptureMetadata.SIZE, sidecar.length());
+        assertFalse(CaptureStore.tempFileOf(sidecar).exists());
+        assertSame(metadata, CaptureMetadata.readSidecar(picture));
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link CapturePairMatcher}, driven with synthetic sensor timestamps.
+ */
+public class CapturePairMatcherTest {
+
+    private static final long MS = 1000000L;
+
+    private final List<CapturePairMatcher.CapturePair<String>> mPairs = new ArrayList<>();
+    private final List<String> mUnmatched = new ArrayList<>();
+    private CapturePairMatcher<String> mMatcher;
+
+    @Before
+    public void setUp() {
+        mMatcher = new CapturePairMatcher<>(5 * MS, 2,
+                new CapturePairMatcher.Listener<String>() {
+                    @Override
+                    public void onPair(CapturePairMatcher.CapturePair<String> pair) {
+                        mPairs.add(pair);
+                    }
+
+                    @Override
+                    public void onUnmatched(int source, long timestamp, String capture) {
+                        mUnmatched.add(capture);
+                    }
+                });
+    }
+
+    @Test
+    public void pairsWithinTolerance() {
+        mMatcher.offer(0, 100 * MS, "a0");
+        mMatcher.offer(1, 103 * MS, "b0");
+        assertEquals(1, mPairs.size());
+        assertEquals("a0", mPairs.get(0).getFirst());
+        assertEquals("b0", mPairs.get(0).getSecond());
+        assertEquals(3 * MS, mPairs.get(0).getSkewNanos());
+        assertEquals(0, mMatcher.getPendingCount());
+        assertEquals(1, mMatcher.getSkew().getCount());
+    }
+
+    @Test
+    public void keepsSourceOrderWhenSecondCameraIsFirst() {
+        mMatcher.offer(1, 100 * MS, "b0");
+        mMatcher.offer(0, 98 * MS, "a0");
+        assertEquals("a0", mPairs.get(0).getFirst());
+        assertEquals("b0", mPairs.get(0).getSecond());
+        assertEquals(2 * MS, mPairs.get(0).getSkewNanos());
+    }
+
+    @Test
+    public void picksClosestCandidate() {
+        mMatcher.offer(1, 96 * MS, "b0");
+        mMatcher.offer(1, 99 * MS, "b1");
+        mMatcher.offer(0, 100 * MS, "a0");
+        assertEquals(1, mPairs.size());
+        assertEquals("b1", mPairs.get(0).getSecond());
+        // b0 stays pending: a later capture of camera 0 may still match it.
+        assertEquals(1, mMatcher.getPendingCount());
+    }
+
+    @Test
+    public void evictsCapturesTooOldToMatch() {
+        mMatcher.offer(1, 90 * MS, "b0");
+        mMatcher.offer(0, 100 * MS, "a0");
+        assertEquals(0, mPairs.size());
+        assertEquals(1, mUnmatched.size());
+        assertEquals("b0", mUnmatched.get(0));
+        assertEquals(1, mMatcher.getPendingCount());
+    }
+
+    @Test
+    public void boundsPendingCapturesPerCamera() {
+        mMatcher.offer(0, 100 * MS, "a0");
+        mMatcher.offer(0, 133 * MS, "a1");
+        mMatcher.offer(0, 166 * MS, "a2");
+        assertEquals(1, mUnmatched.size());
+        assertEquals("a0", mUnmatched.get(0));
+        assertEquals(2, mMatcher.getPendingCount());
+    }
+
+    @Test
+    public void flushReportsPendingAsUnmatched() {
+        mMatcher.offer(0, 100 * MS, "a0");
+        mMatcher.offer(1, 200 * MS, "b0");
+        mMatcher.flush();
+        assertEquals(0, mPairs.size());
+        assertEquals(2, mUnmatched.size());
+        assertEquals(0, mMatcher.getPendingCount());
+        assertEquals(2, mMatcher.getUnmatchedCount());
+    }
+
+    @Test
+    public void matchesInterleavedStreams() {
+        // Camera 1 runs 4ms behind camera 0 at 30fps, with one dropped frame.
+        for (int frame = 0; frame < 10; frame++) {
+            long t0 = frame * 33 * MS;
+            mMatcher.offer(0, t0, "a" + frame);
+            if (frame != 4) {
+                mMatcher.offer(1, t0 + 4 * MS, "b" + frame);
+            }
+        }
+        mMatcher.flush();
+        assertEquals(9, mPairs.size());
+        for (CapturePairMatcher.CapturePair<String> pair : mPairs) {
+            assertEquals(pair.getFirst().substring(1), pair.getSecond().substring(1));
+            assertEquals(4 * MS, pair.getSkewNanos());
+        }
+        assertEquals(1, mUnmatched.size());
+        assertEquals("a4", mUnmatched.get(0));
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CaptureStore}, in a temporary directory.
+ */
+public class CaptureStoreTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = new File(Files.createTempDirectory("captures").toFile(), "gallery");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mDirectory.delete();
+        mDirectory.getParentFile().delete();
+    }
+
+    @Test
+    public void createsTheDirectory() throws IOException {
+        assertFalse(mDirectory.exists());
+        new CaptureStore(mDirectory);
+        assertTrue(mDirectory.isDirectory());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenTheDirectoryCantBeCreated() throws IOException {
+        // A file where the directory should go.
+        assertTrue(mDirectory.createNewFile());
+        new CaptureStore(mDirectory);
+    }
+
+    @Test
+    public void namesBySequenceTimestampAndCamera() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        assertEquals("IMG_00000000_123456789_0.jpg",
+                store.newFile("0", 123456789L, CaptureStore.JPEG).getName());
+        assertEquals("IMG_00000001_123456789_1.jpg",
+                store.newFile("1", 123456789L, CaptureStore.JPEG).getName());
+        assertEquals(mDirectory, store.newFile("0", 1, CaptureStore.JPEG).getParentFile());
+    }
+
+    @Test
+    public void namesSortInCaptureOrder() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        List<String> names = new ArrayList<>();
+        // Sensor timestamps restart from zero on reboot; the sequence doesn't.
+        long[] timestamps = {900, 5, 10_000_000_000L, 42};
+        for (int i = 0; i < 120; i++) {
+            names.add(store.newFile("0", timestamps[i % timestamps.length], ".jpg").getName());
+        }
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(names, sorted);
+        assertEquals(names.size(), new HashSet<>(names).size());
+    }
+
+    @Test
+    public void resumesTheSequenceOfEarlierRuns() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        for (int i = 0; i < 12; i++) {
+            store.write("0", i, ByteBuffer.wrap(new byte[]{(byte) i}));
+        }
+        // Not captures.
+        assertTrue(new File(mDirectory, "IMG_abc_1_0.jpg").createNewFile());
+        assertTrue(new File(mDirectory, "notes.txt").createNewFile());
+
+        assertEquals("IMG_00000012_7_0.jpg",
+                new CaptureStore(mDirectory).newFile("0", 7, CaptureStore.JPEG).getName());
+    }
+
+    @Test
+    public void resumesTheSequenceFromTheJournalWithoutListing() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        CaptureJournal journal = new CaptureJournal(mDirectory);
+        try {
+            for (int i = 0; i < 3; i++) {
+                File file = store.write("0", i, ByteBuffer.wrap(new byte[]{(byte) i}));
+                journal.append("0", i, file, 1, -1, -1);
+            }
+            // Not in the journal, so not seen.
+            assertTrue(new File(mDirectory, "IMG_00000099_1_0.jpg").createNewFile());
+
+            assertEquals("IMG_00000003_7_0.jpg", new CaptureStore(mDirectory, journal)
+                    .newFile("0", 7, CaptureStore.JPEG).getName());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void resumesAfterTheHighestSequenceOfTheJournalWrittenOutOfOrder() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        CaptureJournal journal = new CaptureJournal(mDirectory);
+        try {
+            File first = store.write("0", 1, ByteBuffer.wrap(new byte[]{1}));
+            File second = store.write("0", 2, ByteBuffer.wrap(new byte[]{2}));
+            // The second capture was saved by another thread before the first.
+            journal.append("0", 2, second, 1, -1, -1);
+            journal.append("0", 1, first, 1, -1, -1);
+
+            assertEquals("IMG_00000002_7_0.jpg", new CaptureStore(mDirectory, journal)
+                    .newFile("0", 7, CaptureStore.JPEG).getName());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void listsTheDirectoryWhenTheJournalIsEmpty() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        store.write("0", 1, ByteBuffer.wrap(new byte[]{1}));
+        CaptureJournal journal = new CaptureJournal(mDirectory);
+        try {
+            assertEquals("IMG_00000001_7_0.jpg", new CaptureStore(mDirectory, journal)
+                    .newFile("0", 7, CaptureStore.JPEG).getName());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void writesAtomically() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        byte[] data = {1, 2, 3, 4, 5};
+        File file = store.write("0-1", 99, ByteBuffer.wrap(data));
+        assertEquals("IMG_00000000_99_0-1.jpg", file.getName());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertFalse(CaptureStore.tempFileOf(file).exists());
+        assertEquals(Arrays.asList(file.getName()), Arrays.asList(mDirectory.list()));
+    }
+
+    @Test
+    public void tempFilesAreHiddenSiblings() {
+        File file = new File(mDirectory, "IMG_00000003_5_0.jpg");
+        File temp = CaptureStore.tempFileOf(file);
+        assertEquals(mDirectory, temp.getParentFile());
+        assertTrue(temp.getName().startsWith("."));
+        assertEquals(-1, CaptureStore.sequenceOf(temp.getName()));
+    }
+
+    @Test
+    public void deletesLeftOverTempFiles() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        File file = store.newFile("0", 1, CaptureStore.JPEG);
+        File temp = CaptureStore.tempFileOf(file);
+        assertTrue(temp.createNewFile());
+
+        new CaptureStore(mDirectory);
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void deletesOnlyTheTempFilesOfEarlierRuns() throws IOException {
+        CaptureStore store = new CaptureStore(mDirectory);
+        File committed = store.write("0", 1, ByteBuffer.wrap(new byte[]{1}));
+        File leftOver = CaptureStore.tempFileOf(store.newFile("0", 2, CaptureStore.JPEG));
+        assertTrue(leftOver.createNewFile());
+        assertTrue(leftOver.setLastModified(System.currentTimeMillis() - 60000));
+        CaptureJournal journal = new CaptureJournal(mDirectory);
+        try {
+            journal.append("0", 1, committed, 1, -1, -1);
+            CaptureStore resumed = new CaptureStore(mDirectory, journal);
+            assertTrue(leftOver.exists());
+            // Being written while the left-over files are deleted.
+            File writing = CaptureStore.tempFileOf(resumed.newFile("0", 3, CaptureStore.JPEG));
+            assertTrue(writing.createNewFile());
+
+            resumed.deleteTempFiles();
+            assertFalse(leftOver.exists());
+            assertTrue(writing.exists());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void parsesSequences() {
+        assertEquals(42, CaptureStore.sequenceOf("IMG_00000042_1_0.jpg"));
+        assertEquals(123456789, CaptureStore.sequenceOf("IMG_123456789_1_0.jpg"));
+        assertEquals(-1, CaptureStore.sequenceOf("IMG__1_0.jpg"));
+        assertEquals(-1, CaptureStore.sequenceOf("IMG_00000042"));
+        assertEquals(-1, CaptureStore.sequenceOf("image_20170101_120000_123.jpg"));
+    }
+
+    @Test
+    public void sequencesAreUniqueAcrossThreads() throws InterruptedException, IOException {
+        final CaptureStore store = new CaptureStore(mDirectory);
+        final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        names.add(store.newFile("0", 1, CaptureStore.JPEG).getName());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2000, names.size());
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.android.camera2basic.FocusLockStateMachine.UNKNOWN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FocusLockStateMachine}, driven with scripted capture results.
+ */
+public class FocusLockStateMachineTest {
+
+    private static final long MS = 1000000L;
+
+    private static final int AF_SCANNING = CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN;
+    private static final int AF_LOCKED = CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+    private static final int AF_NOT_LOCKED = CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+    private static final int AF_PASSIVE_FOCUSED = CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+    private static final int AF_PASSIVE_SCAN = CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+    private static final int AE_SEARCHING = CaptureResult.CONTROL_AE_STATE_SEARCHING;
+    private static final int AE_CONVERGED = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+    private static final int AE_PRECAPTURE = CaptureResult.CONTROL_AE_STATE_PRECAPTURE;
+    private static final int AE_FLASH_REQUIRED = CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+
+    /**
+     * Actions of the state machine, in order: "precapture", "capture", "fast" or "timeout".
+     */
+    private final List<String> mActions = new ArrayList<>();
+    private FocusLockStateMachine mMachine;
+    private long mNow;
+
+    private final FocusLockStateMachine.Listener mListener = new FocusLockStateMachine.Listener() {
+        @Override
+        public void onPrecaptureNeeded() {
+            mActions.add("precapture");
+        }
+
+        @Override
+        public void onReadyToCapture(int reason) {
+            switch (reason) {
+                case FocusLockStateMachine.CAPTURE_LOCKED:
+                    mActions.add("capture");
+                    break;
+                case FocusLockStateMachine.CAPTURE_FAST_PATH:
+                    mActions.add("fast");
+                    break;
+                case FocusLockStateMachine.CAPTURE_TIMED_OUT:
+                    mActions.add("timeout");
+                    break;
+                default:
+                    throw new AssertionError("Unexpected reason " + reason);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mMachine = new FocusLockStateMachine(mListener, 1000 * MS);
+    }
+
+    /** Feeds one preview frame per 33ms with the given AF and AE states. */
+    private void frame(int afState, int aeState) {
+        mNow += 33 * MS;
+        mMachine.onResult(afState, aeState, mNow);
+    }
+
+    @Test
+    public void doesNothingWhilePreviewing() {
+        assertFalse(mMachine.isWaiting());
+        frame(AF_LOCKED, AE_CONVERGED);
+        assertEquals(FocusLockStateMachine.STATE_PREVIEW, mMachine.getState());
+        assertTrue(mActions.isEmpty());
+    }
+
+    @Test
+    public void capturesOnceFocusLocksWithExposureConverged() {
+        mMachine.onLockRequested(mNow);
+        assertTrue(mMachine.isWaiting());
+        frame(AF_SCANNING, AE_CONVERGED);
+        frame(AF_SCANNING, AE_CONVERGED);
+        assertTrue(mActions.isEmpty());
+        frame(AF_LOCKED, AE_CONVERGED);
+        assertEquals(1, mActions.size());
+        assertEquals("capture", mActions.get(0));
+        assertEquals(FocusLockStateMachine.STATE_PICTURE_TAKEN, mMachine.getState());
+        assertFalse(mMachine.isWaiting());
+    }
+
+    @Test
+    public void capturesWhenFocusFailsToLock() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_NOT_LOCKED, AE_CONVERGED);
+        assertEquals("capture", mActions.get(0));
+    }
+
+    @Test
+    public void runsPrecaptureSequenceWhenExposureNotConverged() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_SEARCHING);
+        assertEquals(1, mActions.size());
+        assertEquals("precapture", mActions.get(0));
+        assertEquals(FocusLockStateMachine.STATE_WAITING_PRECAPTURE, mMachine.getState());
+
+        frame(AF_LOCKED, AE_SEARCHING);
+        assertEquals(FocusLockStateMachine.STATE_WAITING_PRECAPTURE, mMachine.getState());
+        frame(AF_LOCKED, AE_PRECAPTURE);
+        assertEquals(FocusLockStateMachine.STATE_WAITING_NON_PRECAPTURE, mMachine.getState());
+        frame(AF_LOCKED, AE_PRECAPTURE);
+        assertEquals(1, mActions.size());
+        frame(AF_LOCKED, AE_CONVERGED);
+        assertEquals(2, mActions.size());
+        assertEquals("capture", mActions.get(1));
+    }
+
+    @Test
+    public void treatsFlashRequiredAsPrecaptureStarted() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_SEARCHING);
+        frame(AF_LOCKED, AE_FLASH_REQUIRED);
+        assertEquals(FocusLockStateMachine.STATE_WAITING_NON_PRECAPTURE, mMachine.getState());
+        frame(AF_LOCKED, AE_FLASH_REQUIRED);
+        assertEquals("capture", mActions.get(1));
+    }
+
+    @Test
+    public void capturesRightAwayWithoutAutoFocus() {
+        mMachine.onLockRequested(mNow);
+        frame(UNKNOWN, UNKNOWN);
+        assertEquals(1, mActions.size());
+        assertEquals("capture", mActions.get(0));
+    }
+
+    @Test
+    public void capturesWhenLockedWithoutExposureState() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, UNKNOWN);
+        assertEquals("capture", mActions.get(0));
+    }
+
+    @Test
+    public void timesOutWhenFocusNeverLocks() {
+        mMachine.onLockRequested(mNow);
+        // 30 frames of 33ms stay within the 1s deadline.
+        for (int i = 0; i < 30; i++) {
+            frame(AF_SCANNING, AE_CONVERGED);
+        }
+        assertTrue(mActions.isEmpty());
+        frame(AF_SCANNING, AE_CONVERGED);
+        assertEquals(1, mActions.size());
+        assertEquals("timeout", mActions.get(0));
+        assertEquals(FocusLockStateMachine.STATE_PICTURE_TAKEN, mMachine.getState());
+    }
+
+    @Test
+    public void timesOutWhenPrecaptureNeverStarts() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_SEARCHING);
+        // The deadline restarts with each state.
+        for (int i = 0; i < 30; i++) {
+            frame(AF_LOCKED, AE_SEARCHING);
+        }
+        assertEquals(1, mActions.size());
+        frame(AF_LOCKED, AE_SEARCHING);
+        assertEquals("timeout", mActions.get(1));
+    }
+
+    @Test
+    public void timesOutWhenPrecaptureNeverEnds() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_SEARCHING);
+        frame(AF_LOCKED, AE_PRECAPTURE);
+        for (int i = 0; i < 31; i++) {
+            frame(AF_LOCKED, AE_PRECAPTURE);
+        }
+        assertEquals("timeout", mActions.get(1));
+    }
+
+    @Test
+    public void capturesOnlyOncePerSequence() {
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_CONVERGED);
+        frame(AF_LOCKED, AE_CONVERGED);
+        frame(AF_LOCKED, AE_CONVERGED);
+        assertEquals(1, mActions.size());
+
+        mMachine.reset();
+        assertEquals(FocusLockStateMachine.STATE_PREVIEW, mMachine.getState());
+        mMachine.onLockRequested(mNow);
+        frame(AF_LOCKED, AE_CONVERGED);
+        assertEquals(2, mActions.size());
+    }
+
+    @Test
+    public void takesFastPathWhenPreviewConverged() {
+        frame(AF_PASSIVE_SCAN, AE_SEARCHING);
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertFalse(mMachine.onLockRequested(mNow + 10 * MS));
+        assertEquals(1, mActions.size());
+        assertEquals("fast", mActions.get(0));
+        assertEquals(FocusLockStateMachine.STATE_PICTURE_TAKEN, mMachine.getState());
+    }
+
+    @Test
+    public void locksWhenPreviewNotConverged() {
+        frame(AF_PASSIVE_SCAN, AE_CONVERGED);
+        assertTrue(mMachine.onLockRequested(mNow));
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertTrue(mActions.isEmpty());
+
+        mMachine.reset();
+        frame(AF_PASSIVE_FOCUSED, AE_SEARCHING);
+        assertTrue(mMachine.onLockRequested(mNow));
+        assertTrue(mActions.isEmpty());
+    }
+
+    @Test
+    public void locksWhenFlashRequired() {
+        frame(AF_PASSIVE_FOCUSED, AE_FLASH_REQUIRED);
+        assertTrue(mMachine.onLockRequested(mNow));
+        assertEquals(FocusLockStateMachine.STATE_WAITING_LOCK, mMachine.getState());
+    }
+
+    @Test
+    public void locksWhenPreviewResultIsStale() {
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertTrue(mMachine.onLockRequested(
+                mNow + FocusLockStateMachine.DEFAULT_FAST_PATH_MAX_AGE_NS + 1));
+        assertTrue(mActions.isEmpty());
+    }
+
+    @Test
+    public void locksAfterResetUntilPreviewResultsResume() {
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertFalse(mMachine.onLockRequested(mNow));
+        mMachine.reset();
+        assertTrue(mMachine.onLockRequested(mNow));
+    }
+
+    @Test
+    public void keepsReportedStatesAcrossPartialResults() {
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        frame(AF_PASSIVE_FOCUSED, UNKNOWN);
+        assertFalse(mMachine.onLockRequested(mNow));
+    }
+
+    @Test
+    public void takesFastPathWithExposureOnlyReportedOnceFocused() {
+        frame(AF_PASSIVE_FOCUSED, AE_SEARCHING);
+        // The exposure isn't read while the focus is scanning.
+        frame(AF_PASSIVE_SCAN, UNKNOWN);
+        assertFalse(FocusLockStateMachine.isFocusConverged(AF_PASSIVE_SCAN));
+        assertTrue(FocusLockStateMachine.isFocusConverged(AF_PASSIVE_FOCUSED));
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertFalse(mMachine.onLockRequested(mNow));
+        assertEquals("fast", mActions.get(0));
+    }
+
+    @Test
+    public void fastPathCanBeDisabled() {
+        mMachine.setFastPathMaxAgeNanos(0);
+        frame(AF_PASSIVE_FOCUSED, AE_CONVERGED);
+        assertTrue(mMachine.onLockRequested(mNow));
+    }
+
+    @Test
+    public void appliesDeadlinePerState() {
+        mMachine = new FocusLockStateMachine(mListener, 100 * MS, 200 * MS, 300 * MS);
+        mMachine.onLockRequested(mNow);
+        frame(AF_SCANNING, AE_SEARCHING);
+        frame(AF_SCANNING, AE_SEARCHING);
+        frame(AF_LOCKED, AE_SEARCHING);
+        assertEquals(FocusLockStateMachine.STATE_WAITING_PRECAPTURE, mMachine.getState());
+        assertEquals(200 * MS, mMachine.checkDeadline(mNow));
+        frame(AF_LOCKED, AE_PRECAPTURE);
+        assertEquals(300 * MS, mMachine.checkDeadline(mNow));
+        assertEquals(1, mActions.size());
+        assertEquals(1, mMachine.checkDeadline(mNow + 300 * MS - 1));
+        assertEquals(-1, mMachine.checkDeadline(mNow + 300 * MS));
+        assertEquals("timeout", mActions.get(1));
+    }
+
+    @Test
+    public void watchdogCapturesWithoutResults() {
+        mMachine.onLockRequested(mNow);
+        assertEquals(1000 * MS, mMachine.checkDeadline(mNow));
+        assertEquals(500 * MS, mMachine.checkDeadline(mNow + 500 * MS));
+        assertTrue(mActions.isEmpty());
+        assertEquals(-1, mMachine.checkDeadline(mNow + 1000 * MS));
+        assertEquals(1, mActions.size());
+        assertEquals("timeout", mActions.get(0));
+        // Nothing left to enforce.
+        assertEquals(-1, mMachine.checkDeadline(mNow + 2000 * MS));
+        assertEquals(1, mActions.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTimeout() {
+        new FocusLockStateMachine(mListener, 100 * MS, 0, 100 * MS);
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FrameAnalysisPipeline} and {@link YuvFrame}, with synthetic frames.
+ */
+public class FrameAnalysisPipelineTest {
+
+    /**
+     * Runs the scheduled stages only when asked, so the frame handoff can be stepped through.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final Queue<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mQueue.add(runnable);
+        }
+
+        void runAll() {
+            Runnable runnable;
+            while ((runnable = mQueue.poll()) != null) {
+                runnable.run();
+            }
+        }
+
+    }
+
+    /**
+     * Records the timestamps of the frames it sees.
+     */
+    private static class RecordingAnalyzer implements FrameAnalysisPipeline.Analyzer {
+
+        final List<Long> mTimestamps = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void analyze(YuvFrame frame) {
+            mTimestamps.add(frame.getTimestamp());
+        }
+
+    }
+
+    /**
+     * Counts how often it was closed.
+     */
+    private static class CountingOwner implements AutoCloseable {
+
+        final AtomicInteger mClosed = new AtomicInteger();
+
+        @Override
+        public void close() {
+            mClosed.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * Creates a 4x4 frame with semi-planar chroma, as most cameras deliver it, whose luma is
+     * {@code luma} everywhere.
+     */
+    static YuvFrame frame(long timestamp, int luma, AutoCloseable owner) {
+        ByteBuffer y = ByteBuffer.allocateDirect(16);
+        for (int i = 0; i < 16; i++) {
+            y.put(i, (byte) luma);
+        }
+        // U and V interleaved in one buffer, V one byte ahead of U.
+        ByteBuffer vu = ByteBuffer.allocateDirect(8);
+        ByteBuffer u = ((ByteBuffer) vu.duplicate().position(1)).slice();
+        return new YuvFrame(4, 4, timestamp, new ByteBuffer[]{y, u, vu},
+                new int[]{4, 4, 4}, new int[]{1, 2, 2}, owner);
+    }
+
+    @Test
+    public void frameIsClosedWithItsLastReference() {
+        CountingOwner owner = new CountingOwner();
+        YuvFrame frame = frame(1, 0, owner);
+        assertTrue(frame == frame.retain());
+        frame.release();
+        assertEquals(0, owner.mClosed.get());
+        assertFalse(frame.isReleased());
+        frame.release();
+        assertEquals(1, owner.mClosed.get());
+        assertTrue(frame.isReleased());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedFrameCannotBeRetained() {
+        YuvFrame frame = frame(1, 0, null);
+        frame.release();
+        frame.retain();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void frameCannotBeReleasedTwice() {
+        YuvFrame frame = frame(1, 0, null);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void analyzerSeesTheLatestFrameOnly() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(executor);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FrameAnalysisPipeline.Stage stage = pipeline.addAnalyzer("recorder", analyzer);
+
+        CountingOwner[] owners = new CountingOwner[3];
+        for (int i = 0; i < 3; i++) {
+            owners[i] = new CountingOwner();
+            assertTrue(pipeline.offer(frame(i, 0, owners[i])));
+        }
+        // Replaced frames are released right away, not when the analyzer gets around to it.
+        assertEquals(1, owners[0].mClosed.get());
+        assertEquals(1, owners[1].mClosed.get());
+        assertEquals(0, owners[2].mClosed.get());
+        // The stage is scheduled once however many frames arrive.
+        assertEquals(1, executor.mQueue.size());
+
+        executor.runAll();
+        assertEquals(Collections.singletonList(2L), analyzer.mTimestamps);
+        assertEquals(1, owners[2].mClosed.get());
+        assertEquals(1, stage.getAnalyzedCount());
+        assertEquals(2, stage.getDroppedCount());
+        assertEquals(1, stage.getLatency().getCount());
+        assertEquals(1, stage.getProcessingTime().getCount());
+    }
+
+    @Test
+    public void sharedFrameIsReleasedAfterTheLastAnalyzer() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(executor);
+        RecordingAnalyzer first = new RecordingAnalyzer();
+        RecordingAnalyzer second = new RecordingAnalyzer();
+        pipeline.addAnalyzer("first", first);
+        pipeline.addAnalyzer("second", second);
+        assertEquals(3, pipeline.getMaxFrames());
+
+        CountingOwner owner = new CountingOwner();
+        pipeline.offer(frame(7, 0, owner));
+        assertEquals(2, executor.mQueue.size());
+        executor.mQueue.poll().run();
+        assertEquals(0, owner.mClosed.get());
+        executor.mQueue.poll().run();
+        assertEquals(1, owner.mClosed.get());
+        assertEquals(Collections.singletonList(7L), first.mTimestamps);
+        assertEquals(Collections.singletonList(7L), second.mTimestamps);
+    }
+
+    @Test
+    public void stageIsRescheduledAfterItRanDry() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(executor);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        pipeline.addAnalyzer("recorder", analyzer);
+
+        pipeline.offer(frame(1, 0, null));
+        executor.runAll();
+        pipeline.offer(frame(2, 0, null));
+        assertEquals(1, executor.mQueue.size());
+        executor.runAll();
+        assertEquals(2, analyzer.mTimestamps.size());
+        assertEquals(0, pipeline.getStage("recorder").getDroppedCount());
+    }
+
+    @Test
+    public void failingAnalyzerIsCountedAndKeepsRunning() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(executor);
+        FrameAnalysisPipeline.Stage stage = pipeline.addAnalyzer("failing",
+                new FrameAnalysisPipeline.Analyzer() {
+                    @Override
+                    public void analyze(YuvFrame frame) {
+                        if (frame.getTimestamp() == 1) {
+                            throw new IllegalStateException("Expected by the test");
+                        }
+                    }
+                });
+
+        CountingOwner owner = new CountingOwner();
+        pipeline.offer(frame(1, 0, owner));
+        executor.runAll();
+        pipeline.offer(frame(2, 0, null));
+        executor.runAll();
+        assertEquals(1, owner.mClosed.get());
+        assertEquals(1, stage.getFailedCount());
+        assertEquals(1, stage.getAnalyzedCount());
+    }
+
+    @Test
+    public void closedPipelineReleasesFrames() {
+        ManualExecutor executor = new ManualExecutor();
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(executor);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        pipeline.addAnalyzer("recorder", analyzer);
+
+        CountingOwner waiting = new CountingOwner();
+        pipeline.offer(frame(1, 0, waiting));
+        // Nothing is being analyzed, so there is nothing to wait for.
+        assertTrue(pipeline.close(0));
+        assertEquals(1, waiting.mClosed.get());
+
+        CountingOwner late = new CountingOwner();
+        assertFalse(pipeline.offer(frame(2, 0, late)));
+        assertEquals(1, late.mClosed.get());
+        executor.runAll();
+        assertTrue(analyzer.mTimestamps.isEmpty());
+    }
+
+    @Test
+    public void slowAnalyzerDoesNotHoldUpTheOthers() throws InterruptedException {
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline("test", 2);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FrameAnalysisPipeline.Stage slow = pipeline.addAnalyzer("slow",
+                new FrameAnalysisPipeline.Analyzer() {
+                    @Override
+                    public void analyze(YuvFrame frame) {
+                        slowStarted.countDown();
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        final CountDownLatch fastDone = new CountDownLatch(11);
+        final long[] lumaSum = new long[1];
+        FrameAnalysisPipeline.Stage fast = pipeline.addAnalyzer("fast",
+                new FrameAnalysisPipeline.Analyzer() {
+                    @Override
+                    public void analyze(YuvFrame frame) {
+                        lumaSum[0] += frame.getBuffer(YuvFrame.Y).get(5) & 0xff;
+                        fastDone.countDown();
+                    }
+                });
+
+        pipeline.offer(frame(0, 200, null));
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        // The fast analyzer gets every frame, delivered one at a time, while the slow one is
+        // still busy with the first.
+        for (int i = 0; i <= 10; i++) {
+            if (i > 0) {
+                pipeline.offer(frame(i, 200, null));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (fast.getAnalyzedCount() <= i && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, fast.getDroppedCount());
+        assertEquals(11 * 200, lumaSum[0]);
+        // The slow analyzer kept the latest of the ten frames only.
+        assertEquals(9, slow.getDroppedCount());
+
+        release.countDown();
+        assertTrue(pipeline.close(5000));
+        assertNotNull(pipeline.getStage("slow"));
+        assertTrue(pipeline.toString(), pipeline.toString().contains("slow: "));
+    }
+
+    @Test
+    public void closeWaitsForTheFramesBeingAnalyzed() throws InterruptedException {
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline("test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pipeline.addAnalyzer("blocked", new FrameAnalysisPipeline.Analyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        CountingOwner owner = new CountingOwner();
+        pipeline.offer(frame(1, 0, owner));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertFalse(pipeline.close(20));
+        assertEquals(0, owner.mClosed.get());
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                release.countDown();
+            }
+        }).start();
+        assertTrue(pipeline.close(5000));
+        // The frame, and with it the image, was released before close returned.
+        assertEquals(1, owner.mClosed.get());
+    }
+
+}
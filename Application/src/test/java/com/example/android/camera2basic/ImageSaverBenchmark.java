@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link ImageSaver.Mode#COPY} and {@link ImageSaver.Mode#ZERO_COPY} save paths on
+ * a direct buffer the size of a full-resolution JPEG. Run with
+ * {@code -prof gc} to see the per-shot allocation of the copy path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ImageSaverBenchmark {
+
+    /**
+     * Encoded image size in bytes; roughly a 12MP JPEG and a 5MP JPEG.
+     */
+    @Param({"4194304", "1572864"})
+    public int size;
+
+    private ByteBuffer mJpeg;
+    private File mFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        // Image planes are direct buffers backed by the camera HAL.
+        mJpeg = ByteBuffer.allocateDirect(size);
+        mJpeg.put(bytes);
+        mFile = File.createTempFile("saver", ".jpg");
+    }
+
+    @TearDown(Level.Trial)
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        mJpeg.rewind();
+        byte[] bytes = ImageSaver.copy(mJpeg);
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+        return bytes.length;
+    }
+
+    @Benchmark
+    public long zeroCopy() throws IOException {
+        mJpeg.rewind();
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            return ImageSaver.writeDirect(mJpeg, output.getChannel());
+        } finally {
+            output.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ImageSaverBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JpegEncoder} encoding a whole frame on the calling thread, the single-threaded
+ * baseline, against encoding it in strips on a fork-join pool. One operation encodes one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JpegEncoderBenchmark {
+
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    /**
+     * 1 encodes without a pool, in a single restart interval.
+     */
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"75", "95"})
+    public int quality;
+
+    private YuvFrame mFrame;
+    private ForkJoinPool mPool;
+    private JpegEncoder mEncoder;
+    private ByteArrayOutputStream mOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        mFrame = JpegEncoderTest.gradientFrame(width, height);
+        mPool = threads == 1 ? null : new ForkJoinPool(threads);
+        mEncoder = new JpegEncoder(quality, mPool);
+        mOut = new ByteArrayOutputStream(width * height);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        mOut.reset();
+        mEncoder.encode(mFrame, mOut);
+        return mOut.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JpegEncoderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link JpegEncoder}, decoding its output with ImageIO.
+ */
+public class JpegEncoderTest {
+
+    private ForkJoinPool mPool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    /**
+     * Creates a frame of smooth gradients, with interleaved chroma as most cameras deliver it.
+     */
+    static YuvFrame gradientFrame(int width, int height) {
+        int rowStride = width + 5;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer y = ByteBuffer.allocateDirect((height - 1) * rowStride + width);
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                y.put(row * rowStride + column, (byte) (16 + 200 * (row + column)
+                        / (width + height)));
+            }
+        }
+        ByteBuffer uv = ByteBuffer.allocateDirect((chromaHeight - 1) * rowStride
+                + 2 * chromaWidth);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                uv.put(row * rowStride + 2 * column, (byte) (96 + 64 * column / chromaWidth));
+                uv.put(row * rowStride + 2 * column + 1, (byte) (160 - 64 * row / chromaHeight));
+            }
+        }
+        ByteBuffer u = uv.duplicate();
+        u.limit(uv.capacity() - 1);
+        ByteBuffer v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+        return new YuvFrame(width, height, 0, new ByteBuffer[]{y, u, v},
+                new int[]{rowStride, rowStride, rowStride}, new int[]{1, 2, 2}, null);
+    }
+
+    private static byte[] encode(JpegEncoder encoder, YuvFrame frame, int stripMcuRows)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(frame, stripMcuRows, out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("Not decodable", image);
+        return image;
+    }
+
+    /**
+     * The peak signal to noise ratio, in dB, of a decoded image against the frame it was
+     * encoded from, converted to RGB with the full-range BT.601 matrix of JFIF.
+     */
+    private static double psnr(YuvFrame frame, BufferedImage image) {
+        double squares = 0;
+        for (int row = 0; row < frame.getHeight(); row++) {
+            for (int column = 0; column < frame.getWidth(); column++) {
+                int y = frame.getBuffer(YuvFrame.Y).get(row * frame.getRowStride(YuvFrame.Y)
+                        + column) & 0xff;
+                int chroma = (row / 2) * frame.getRowStride(YuvFrame.U) + (column / 2) * 2;
+                int cb = (frame.getBuffer(YuvFrame.U).get(chroma) & 0xff) - 128;
+                int cr = (frame.getBuffer(YuvFrame.V).get(chroma) & 0xff) - 128;
+                int[] expected = {
+                        clamp(y + 1.402 * cr),
+                        clamp(y - 0.344136 * cb - 0.714136 * cr),
+                        clamp(y + 1.772 * cb),
+                };
+                int rgb = image.getRGB(column, row);
+                for (int i = 0; i < 3; i++) {
+                    int error = ((rgb >> (16 - 8 * i)) & 0xff) - expected[i];
+                    squares += error * error;
+                }
+            }
+        }
+        double mse = squares / (3.0 * frame.getWidth() * frame.getHeight());
+        return 10 * Math.log10(255.0 * 255.0 / Math.max(mse, 1e-9));
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static int countRestartMarkers(byte[] jpeg) {
+        int count = 0;
+        for (int i = 0; i < jpeg.length - 1; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xf8) == 0xd0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void decodesToTheFrame() throws IOException {
+        YuvFrame frame = gradientFrame(320, 240);
+        BufferedImage image = decode(encode(new JpegEncoder(90, null), frame, 15));
+        assertEquals(320, image.getWidth());
+        assertEquals(240, image.getHeight());
+        double psnr = psnr(frame, image);
+        assertTrue("PSNR " + psnr, psnr > 35);
+    }
+
+    @Test
+    public void padsPartialMcus() throws IOException {
+        YuvFrame frame = gradientFrame(37, 23);
+        BufferedImage image = decode(encode(new JpegEncoder(90, mPool), frame, 1));
+        assertEquals(37, image.getWidth());
+        assertEquals(23, image.getHeight());
+        double psnr = psnr(frame, image);
+        assertTrue("PSNR " + psnr, psnr > 30);
+    }
+
+    @Test
+    public void separatesStripsWithRestartMarkers() throws IOException {
+        YuvFrame frame = gradientFrame(256, 200);
+        // 13 MCU rows in strips of 2 make 7 strips.
+        byte[] jpeg = encode(new JpegEncoder(80, mPool), frame, 2);
+        assertEquals(6, countRestartMarkers(jpeg));
+        assertTrue(psnr(frame, decode(jpeg)) > 30);
+
+        byte[] whole = encode(new JpegEncoder(80, mPool), frame, 13);
+        assertEquals(0, countRestartMarkers(whole));
+    }
+
+    @Test
+    public void cyclesRestartMarkerNumbers() throws IOException {
+        YuvFrame frame = gradientFrame(64, 16 * 20);
+        byte[] jpeg = encode(new JpegEncoder(75, mPool), frame, 1);
+        assertEquals(19, countRestartMarkers(jpeg));
+        BufferedImage image = decode(jpeg);
+        assertTrue(psnr(frame, image) > 30);
+    }
+
+    @Test
+    public void parallelOutputMatchesSequential() throws IOException {
+        YuvFrame frame = YuvConverterTest.randomFrame(200, 150, true, 7);
+        byte[] sequential = encode(new JpegEncoder(85, null), frame, 2);
+        byte[] parallel = encode(new JpegEncoder(85, mPool), frame, 2);
+        assertArrayEquals(sequential, parallel);
+        decode(parallel);
+    }
+
+    @Test
+    public void encodesPlanarChroma() throws IOException {
+        YuvFrame frame = YuvConverterTest.randomFrame(64, 48, false, 3);
+        BufferedImage image = decode(encode(new JpegEncoder(95, mPool), frame, 1));
+        assertEquals(64, image.getWidth());
+    }
+
+    @Test
+    public void defaultStripsMatchPoolSize() throws IOException {
+        YuvFrame frame = gradientFrame(64, 16 * 64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(90, mPool).encode(frame, out);
+        // Four strips per worker.
+        assertEquals(15, countRestartMarkers(out.toByteArray()));
+
+        out.reset();
+        new JpegEncoder(90, null).encode(frame, out);
+        assertEquals(0, countRestartMarkers(out.toByteArray()));
+    }
+
+    @Test
+    public void higherQualityIsLargerAndCloser() throws IOException {
+        YuvFrame frame = gradientFrame(160, 120);
+        byte[] low = encode(new JpegEncoder(20, null), frame, 8);
+        byte[] high = encode(new JpegEncoder(95, null), frame, 8);
+        assertTrue(high.length > low.length);
+        assertTrue(psnr(frame, decode(high)) > psnr(frame, decode(low)));
+    }
+
+    @Test
+    public void scalesQuantizationLikeLibjpeg() {
+        int[] table = new int[64];
+        table[0] = 16;
+        table[1] = 200;
+        assertEquals(16, JpegEncoder.scaleQuantization(table, 50)[0]);
+        assertEquals(1, JpegEncoder.scaleQuantization(table, 100)[0]);
+        assertEquals(160, JpegEncoder.scaleQuantization(table, 5)[0]);
+        assertEquals(255, JpegEncoder.scaleQuantization(table, 5)[1]);
+        assertEquals(1, JpegEncoder.scaleQuantization(table, 5)[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQualityOutOfRange() {
+        new JpegEncoder(0, null);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram("empty");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(0.99));
+        assertEquals(0, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram("small");
+        for (int i = 1; i <= 10; i++) {
+            histogram.recordMicros(i);
+        }
+        assertEquals(5, histogram.getPercentileMicros(0.50));
+        assertEquals(10, histogram.getPercentileMicros(0.99));
+        assertEquals(10, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("uniform");
+        for (int i = 1; i <= 100000; i++) {
+            histogram.recordNanos(i * 1000L);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertWithin(50000, histogram.getPercentileMicros(0.50));
+        assertWithin(95000, histogram.getPercentileMicros(0.95));
+        assertWithin(99000, histogram.getPercentileMicros(0.99));
+        assertEquals(100000, histogram.getMaxMicros());
+        assertEquals(50000, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long previous = -1;
+        for (long micros = 0; micros < (1L << 20); micros += 7) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros <= LatencyHistogram.upperBoundOf(bucket));
+            assertTrue(bucket >= previous);
+            previous = bucket;
+        }
+        LatencyHistogram.bucketOf(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void resetClearsValues() {
+        LatencyHistogram histogram = new LatencyHistogram("reset");
+        histogram.recordMicros(1234);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " got " + actual,
+                Math.abs(actual - expected) <= expected * 0.07);
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PersistenceExecutor}.
+ */
+public class PersistenceExecutorTest {
+
+    /**
+     * A job that blocks its worker until released, so the queue can be filled deterministically.
+     */
+    private static class GateJob implements PersistenceExecutor.Droppable {
+
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease;
+        final List<String> mLog;
+        final String mName;
+
+        GateJob(String name, CountDownLatch release, List<String> log) {
+            mName = name;
+            mRelease = release;
+            mLog = log;
+        }
+
+        @Override
+        public void run() {
+            mStarted.countDown();
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mLog.add("ran " + mName);
+        }
+
+        @Override
+        public void drop() {
+            mLog.add("dropped " + mName);
+        }
+
+    }
+
+    private static List<String> newLog() {
+        return Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test
+    public void dropOldestEvictsQueuedJob() throws InterruptedException {
+        PersistenceExecutor executor = new PersistenceExecutor("test", 1, 1,
+                PersistenceExecutor.Backpressure.DROP_OLDEST);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> log = newLog();
+        GateJob running = new GateJob("a", release, log);
+        assertTrue(executor.submit(running));
+        running.mStarted.await(5, TimeUnit.SECONDS);
+        assertTrue(executor.submit(new GateJob("b", release, log)));
+        assertEquals(1, executor.getQueueDepth());
+        assertTrue(executor.submit(new GateJob("c", release, log)));
+        assertEquals(1, executor.getDroppedCount());
+        release.countDown();
+        assertTrue(executor.shutdown(5000));
+        assertEquals("dropped b", log.get(0));
+        assertTrue(log.contains("ran a"));
+        assertTrue(log.contains("ran c"));
+        assertEquals(2, executor.getCompletedCount());
+        assertEquals(2, executor.getLatency().getCount());
+    }
+
+    @Test
+    public void rejectDropsNewJob() throws InterruptedException {
+        PersistenceExecutor executor = new PersistenceExecutor("test", 1, 1,
+                PersistenceExecutor.Backpressure.REJECT);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> log = newLog();
+        GateJob running = new GateJob("a", release, log);
+        executor.submit(running);
+        running.mStarted.await(5, TimeUnit.SECONDS);
+        assertTrue(executor.submit(new GateJob("b", release, log)));
+        assertFalse(executor.submit(new GateJob("c", release, log)));
+        assertEquals(1, executor.getRejectedCount());
+        release.countDown();
+        assertTrue(executor.shutdown(5000));
+        assertEquals("dropped c", log.get(0));
+        assertEquals(2, executor.getCompletedCount());
+    }
+
+    @Test
+    public void blockWaitsForFreeSlot() throws InterruptedException {
+        final PersistenceExecutor executor = new PersistenceExecutor("test", 1, 1,
+                PersistenceExecutor.Backpressure.BLOCK);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> log = newLog();
+        GateJob running = new GateJob("a", release, log);
+        executor.submit(running);
+        running.mStarted.await(5, TimeUnit.SECONDS);
+        executor.submit(new GateJob("b", release, log));
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.submit(new GateJob("c", release, log));
+                submitted.countDown();
+            }
+        });
+        producer.start();
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.shutdown(5000));
+        assertEquals(3, executor.getCompletedCount());
+        assertEquals(0, executor.getDroppedCount() + executor.getRejectedCount());
+    }
+
+    @Test
+    public void submitAfterShutdownDropsJob() {
+        PersistenceExecutor executor = new PersistenceExecutor("test", 1, 1,
+                PersistenceExecutor.Backpressure.BLOCK);
+        executor.shutdown(0);
+        List<String> log = newLog();
+        assertFalse(executor.submit(new GateJob("a", new CountDownLatch(0), log)));
+        assertEquals("dropped a", log.get(0));
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares copying the planes of a semi-planar frame into new arrays, as a save path would,
+ * with packing them into a {@link PlaneBufferPool} buffer. One operation is one frame, so at
+ * 30 fps each has 33 ms. Run with {@code -prof gc}: once warmed up, the pooled path allocates
+ * nothing per frame ({@code gc.alloc.rate.norm} of about 0 B/op).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PlaneBufferPoolBenchmark {
+
+    /**
+     * Frame size: 1080p and 720p.
+     */
+    @Param({"1920x1080", "1280x720"})
+    public String size;
+
+    private YuvFrame mFrame;
+    private PlaneBufferPool mPool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        // Rows padded to a multiple of 64 bytes, as camera HALs commonly do.
+        mFrame = PlaneBufferPoolTest.semiPlanarFrame(width, height, (width + 63) & ~63);
+        mPool = new PlaneBufferPool(2, null);
+    }
+
+    @Benchmark
+    public int newArrays() {
+        int total = 0;
+        for (int plane = YuvFrame.Y; plane <= YuvFrame.V; plane++) {
+            ByteBuffer buffer = mFrame.getBuffer(plane).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            total += bytes.length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int pooled() {
+        PlaneBufferPool.Lease lease = mPool.packI420(mFrame);
+        int size = lease.getSize();
+        mPool.release(lease);
+        return size;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PlaneBufferPoolBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PlaneBufferPool}.
+ */
+public class PlaneBufferPoolTest {
+
+    /**
+     * Records every leak reported.
+     */
+    private static class RecordingLeakListener implements PlaneBufferPool.LeakListener {
+
+        final List<Integer> mSizes = new ArrayList<>();
+        final List<Throwable> mSites = new ArrayList<>();
+
+        @Override
+        public void onLeak(int size, long heldNanos, Throwable borrowSite) {
+            mSizes.add(size);
+            mSites.add(borrowSite);
+        }
+
+    }
+
+    private final RecordingLeakListener mLeaks = new RecordingLeakListener();
+    private final PlaneBufferPool mPool = new PlaneBufferPool(2, mLeaks);
+
+    /**
+     * Creates a semi-planar frame the way cameras deliver it: rows padded to {@code rowStride},
+     * and U and V interleaved in one buffer with a pixel stride of 2. Luma is {@code x + 10 * y},
+     * U is {@code 100 + x + 10 * y} and V is {@code 200 + x + 10 * y}.
+     */
+    static YuvFrame semiPlanarFrame(int width, int height, int rowStride) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        // The last row isn't padded.
+        ByteBuffer y = ByteBuffer.allocateDirect((height - 1) * rowStride + width);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                y.put(row * rowStride + x, (byte) (x + 10 * row));
+            }
+        }
+        ByteBuffer uv = ByteBuffer.allocateDirect((chromaHeight - 1) * rowStride
+                + 2 * chromaWidth);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                uv.put(row * rowStride + 2 * x, (byte) (100 + x + 10 * row));
+                uv.put(row * rowStride + 2 * x + 1, (byte) (200 + x + 10 * row));
+            }
+        }
+        // As on Android, the U plane ends before the last V byte.
+        ByteBuffer u = uv.duplicate();
+        u.limit(uv.capacity() - 1);
+        ByteBuffer v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+        return new YuvFrame(width, height, 0, new ByteBuffer[]{y, u, v},
+                new int[]{rowStride, rowStride, rowStride}, new int[]{1, 2, 2}, null);
+    }
+
+    @Test
+    public void reusesReturnedBuffers() {
+        PlaneBufferPool.Lease first = mPool.acquire(1024);
+        first.getBuffer().position(100);
+        mPool.release(first);
+        PlaneBufferPool.Lease second = mPool.acquire(1024);
+        assertSame(first, second);
+        assertEquals(0, second.getBuffer().position());
+        assertEquals(1024, second.getBuffer().limit());
+        assertTrue(second.getBuffer().isDirect());
+        assertEquals(1, mPool.getAllocationCount());
+        assertEquals(2, mPool.getAcquireCount());
+        assertEquals(1, mPool.getBorrowedCount());
+    }
+
+    @Test
+    public void keysBuffersBySize() {
+        PlaneBufferPool.Lease small = mPool.acquire(16);
+        mPool.release(small);
+        PlaneBufferPool.Lease large = mPool.acquire(32);
+        assertEquals(32, large.getSize());
+        assertEquals(2, mPool.getAllocationCount());
+        assertSame(small, mPool.acquire(16));
+    }
+
+    @Test
+    public void freesBuffersBeyondTheIdleLimit() {
+        PlaneBufferPool.Lease[] leases = new PlaneBufferPool.Lease[3];
+        for (int i = 0; i < leases.length; i++) {
+            leases[i] = mPool.acquire(64);
+        }
+        assertEquals(3 * 64, mPool.getAllocatedBytes());
+        for (PlaneBufferPool.Lease lease : leases) {
+            mPool.release(lease);
+        }
+        assertEquals(2 * 64, mPool.getAllocatedBytes());
+        mPool.acquire(64);
+        mPool.acquire(64);
+        assertEquals(3, mPool.getAllocationCount());
+        mPool.acquire(64);
+        assertEquals(4, mPool.getAllocationCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDoubleRelease() {
+        PlaneBufferPool.Lease lease = mPool.acquire(16);
+        mPool.release(lease);
+        mPool.release(lease);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsBuffersOfOtherPools() {
+        new PlaneBufferPool(1, null).release(mPool.acquire(16));
+    }
+
+    @Test
+    public void reportsEachLeakOnce() {
+        PlaneBufferPool.Lease returned = mPool.acquire(16);
+        mPool.acquire(32);
+        mPool.release(returned);
+        long later = System.nanoTime() + 1000000000L;
+        assertEquals(0, mPool.checkLeaks(later, 2000000000L));
+        assertEquals(1, mPool.checkLeaks(later, 500000000L));
+        assertEquals(1, mPool.checkLeaks(later, 500000000L));
+        assertEquals(1, mLeaks.mSizes.size());
+        assertEquals(32, (int) mLeaks.mSizes.get(0));
+        assertNull(mLeaks.mSites.get(0));
+        assertEquals(1, mPool.getLeakCount());
+    }
+
+    @Test
+    public void tracksBorrowSites() {
+        mPool.setTrackBorrowSites(true);
+        mPool.acquire(16);
+        mPool.checkLeaks(System.nanoTime() + 1, 0);
+        Throwable site = mLeaks.mSites.get(0);
+        assertNotNull(site);
+        assertEquals("tracksBorrowSites", site.getStackTrace()[1].getMethodName());
+    }
+
+    @Test
+    public void packsPaddedPlane() {
+        // Three rows of 11 pixels padded to 16, so both the 8-byte and the 1-byte paths run.
+        ByteBuffer src = ByteBuffer.allocateDirect(2 * 16 + 11);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+        ByteBuffer dst = ByteBuffer.allocateDirect(40).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(33, PlaneBufferPool.packPlane(src, 16, 1, 11, 3, dst, 5));
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 11; x++) {
+                assertEquals(y * 16 + x, dst.get(5 + y * 11 + x));
+            }
+        }
+        assertEquals(0, src.position());
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void packsSemiPlanarFrameAsI420() {
+        YuvFrame frame = semiPlanarFrame(10, 5, 16);
+        PlaneBufferPool.Lease lease = mPool.packI420(frame);
+        ByteBuffer packed = lease.getBuffer();
+        assertEquals(10 * 5 + 2 * 5 * 3, PlaneBufferPool.sizeOfI420(10, 5));
+        assertEquals(PlaneBufferPool.sizeOfI420(10, 5), lease.getSize());
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 10; x++) {
+                assertEquals((byte) (x + 10 * y), packed.get(y * 10 + x));
+            }
+        }
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 5; x++) {
+                assertEquals((byte) (100 + x + 10 * y), packed.get(50 + y * 5 + x));
+                assertEquals((byte) (200 + x + 10 * y), packed.get(65 + y * 5 + x));
+            }
+        }
+        mPool.release(lease);
+    }
+
+}
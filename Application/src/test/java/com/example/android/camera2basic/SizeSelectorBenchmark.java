@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a {@link SizeSelector} query with the scan the fragments used to do on every
+ * {@code setUpCameraOutputs()}: collect the matching sizes into lists, then take the min or max
+ * by area.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SizeSelectorBenchmark {
+
+    private static final Comparator<int[]> BY_AREA = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] lhs, int[] rhs) {
+            return Long.signum((long) lhs[0] * lhs[1] - (long) rhs[0] * rhs[1]);
+        }
+    };
+
+    private SizeSelector mSelector;
+    private SizeSelector.Constraints mConstraints;
+
+    @Setup
+    public void setUp() {
+        mSelector = SizeSelectorTest.create(SizeSelectorTest.SIZES);
+        mConstraints = new SizeSelector.Constraints(1080, 1000, 1920, 1080, 4032, 3024);
+    }
+
+    @Benchmark
+    public int select() {
+        return mSelector.select(mConstraints, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int[] linearScan() {
+        List<int[]> bigEnough = new ArrayList<>();
+        List<int[]> notBigEnough = new ArrayList<>();
+        int w = mConstraints.mRatioWidth;
+        int h = mConstraints.mRatioHeight;
+        for (int[] option : SizeSelectorTest.SIZES) {
+            if (option[0] <= mConstraints.mMaxWidth && option[1] <= mConstraints.mMaxHeight
+                    && option[1] == option[0] * h / w) {
+                if (option[0] >= mConstraints.mMinWidth
+                        && option[1] >= mConstraints.mMinHeight) {
+                    bigEnough.add(option);
+                } else {
+                    notBigEnough.add(option);
+                }
+            }
+        }
+        if (bigEnough.size() > 0) {
+            return Collections.min(bigEnough, BY_AREA);
+        } else if (notBigEnough.size() > 0) {
+            return Collections.max(notBigEnough, BY_AREA);
+        } else {
+            return SizeSelectorTest.SIZES[0];
+        }
+    }
+
+    @Benchmark
+    public int[] selectAllTwoStreams() {
+        return SizeSelector.selectAll(new SizeSelector[]{mSelector, mSelector},
+                new SizeSelector.Constraints[]{mConstraints, mConstraints}, 1920 * 1080);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SizeSelectorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
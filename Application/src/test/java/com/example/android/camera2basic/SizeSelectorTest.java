@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SizeSelector}, with a size table like that of a typical back camera.
+ */
+public class SizeSelectorTest {
+
+    /** Preview sizes of a 4:3 12MP sensor, in no particular order. */
+    static final int[][] SIZES = {
+            {4032, 3024}, {1920, 1080}, {1440, 1080}, {1280, 720}, {1280, 960}, {1088, 1088},
+            {1024, 768}, {960, 720}, {800, 600}, {720, 480}, {640, 480}, {640, 360},
+            {352, 288}, {320, 240}, {176, 144}, {3840, 2160}, {2560, 1440}, {2048, 1536},
+    };
+
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final SizeSelector mSelector = create(SIZES);
+
+    static SizeSelector create(int[][] sizes) {
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i][0];
+            heights[i] = sizes[i][1];
+        }
+        return new SizeSelector(widths, heights);
+    }
+
+    private String select(int minWidth, int minHeight, int maxWidth, int maxHeight,
+                          int ratioWidth, int ratioHeight, long maxPixels) {
+        return nameOf(mSelector, mSelector.select(new SizeSelector.Constraints(minWidth,
+                minHeight, maxWidth, maxHeight, ratioWidth, ratioHeight), maxPixels));
+    }
+
+    private static String nameOf(SizeSelector selector, int index) {
+        return index == -1 ? "none" : selector.getWidth(index) + "x" + selector.getHeight(index);
+    }
+
+    @Test
+    public void groupsByExactRatio() {
+        // 4:3, 16:9, 1:1, 3:2, 11:9
+        assertEquals(5, mSelector.getRatioCount());
+        assertEquals(SIZES.length, mSelector.size());
+    }
+
+    @Test
+    public void picksSmallestBigEnoughWithRatio() {
+        assertEquals("1440x1080", select(1200, 1000, 1920, 1080, 4, 3, Long.MAX_VALUE));
+        assertEquals("1920x1080", select(1600, 900, 1920, 1080, 16, 9, Long.MAX_VALUE));
+        // The ratio of the largest JPEG size, as the basic fragment asks.
+        assertEquals("1440x1080", select(1080, 1000, 1920, 1080, 4032, 3024, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void picksLargestWithinLimitsWhenNoneBigEnough() {
+        assertEquals("1440x1080", select(3000, 3000, 1920, 1080, 4, 3, Long.MAX_VALUE));
+        assertEquals("1920x1080", select(3000, 3000, 1920, 1080, 16, 9, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void honorsPixelLimit() {
+        assertEquals("1024x768", select(1200, 1000, 1920, 1080, 4, 3, 1000000));
+        assertEquals("960x720", select(1200, 1000, UNLIMITED, UNLIMITED, 4, 3, 1024 * 768 - 1));
+        assertEquals("320x240", select(0, 0, UNLIMITED, UNLIMITED, 4, 3, 1024 * 768 - 1));
+    }
+
+    @Test
+    public void fallsBackToClosestRatio() {
+        // 7:5 has no sizes; 4:3 is closer than 3:2.
+        assertEquals("1280x960", select(1250, 900, 1920, 1080, 7, 5, Long.MAX_VALUE));
+        // 5:4 is closest to 11:9.
+        assertEquals("352x288", select(300, 250, 1920, 1080, 5, 4, Long.MAX_VALUE));
+        // The only 1:1 size is too large, so the closest ratio with a size that fits is used.
+        assertEquals("352x288", select(300, 250, 1000, 1000, 1, 1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void fallsBackToSmallestWhenNothingFits() {
+        assertEquals("176x144", select(0, 0, 100, 100, 4, 3, Long.MAX_VALUE));
+        assertEquals("176x144", select(0, 0, UNLIMITED, UNLIMITED, 4, 3, 10));
+    }
+
+    @Test
+    public void returnsNoneWithoutSizes() {
+        SizeSelector empty = new SizeSelector(new int[0], new int[0]);
+        assertEquals(-1, empty.select(new SizeSelector.Constraints(0, 0, 1, 1, 4, 3), 1));
+        assertEquals(0, empty.getRatioCount());
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        int[] ratios = {4, 3, 16, 9, 1, 1, 3, 2, 5, 4, 9, 16};
+        int[] bounds = {0, 144, 480, 720, 1080, 1440, 3000, UNLIMITED};
+        for (int r = 0; r < ratios.length; r += 2) {
+            for (int min : bounds) {
+                for (int max : bounds) {
+                    SizeSelector.Constraints constraints = new SizeSelector.Constraints(
+                            min, min * 3 / 4, max, max, ratios[r], ratios[r + 1]);
+                    int index = mSelector.select(constraints, Long.MAX_VALUE);
+                    assertEquals(linearSelect(constraints), index);
+                }
+            }
+        }
+    }
+
+    /**
+     * The selection of {@link SizeSelector#select} with a scan of every size, for reference.
+     */
+    private static int linearSelect(SizeSelector.Constraints constraints) {
+        double target = Math.log((double) constraints.mRatioWidth / constraints.mRatioHeight);
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        boolean bestBigEnough = false;
+        int smallest = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            int width = SIZES[i][0];
+            int height = SIZES[i][1];
+            long area = (long) width * height;
+            if (area < (long) SIZES[smallest][0] * SIZES[smallest][1]) {
+                smallest = i;
+            }
+            if (width > constraints.mMaxWidth || height > constraints.mMaxHeight) {
+                continue;
+            }
+            double distance = Math.abs(Math.log((double) width / height) - target);
+            boolean bigEnough = width >= constraints.mMinWidth
+                    && height >= constraints.mMinHeight;
+            long bestArea = best == -1 ? 0 : (long) SIZES[best][0] * SIZES[best][1];
+            boolean better;
+            if (best == -1 || distance < bestDistance - 1e-12) {
+                better = true;
+            } else if (distance > bestDistance + 1e-12) {
+                better = false;
+            } else if (bigEnough != bestBigEnough) {
+                better = bigEnough;
+            } else {
+                better = bigEnough ? area < bestArea : area > bestArea;
+            }
+            if (better) {
+                best = i;
+                bestDistance = distance;
+                bestBigEnough = bigEnough;
+            }
+        }
+        return best == -1 ? smallest : best;
+    }
+
+    @Test
+    public void keepsStreamsWithinBudget() {
+        SizeSelector.Constraints preview = new SizeSelector.Constraints(1080, 1000, 1920, 1080,
+                4, 3);
+        SizeSelector[] selectors = {mSelector, mSelector};
+        SizeSelector.Constraints[] constraints = {preview, preview};
+
+        int[] alone = SizeSelector.selectAll(selectors, constraints, Long.MAX_VALUE);
+        assertEquals("1440x1080", nameOf(mSelector, alone[0]));
+        assertEquals("1440x1080", nameOf(mSelector, alone[1]));
+
+        long budget = 1920 * 1080;
+        int[] shared = SizeSelector.selectAll(selectors, constraints, budget);
+        assertTrue(mSelector.areaOf(shared[0]) + mSelector.areaOf(shared[1]) <= budget);
+        // The streams take turns coming down a step, so that neither starves.
+        assertEquals("1024x768", nameOf(mSelector, shared[0]));
+        assertEquals("1280x960", nameOf(mSelector, shared[1]));
+    }
+
+    @Test
+    public void shrinksLargestStreamFirst() {
+        SizeSelector.Constraints large = new SizeSelector.Constraints(4000, 3000,
+                UNLIMITED, UNLIMITED, 4, 3);
+        SizeSelector.Constraints small = new SizeSelector.Constraints(640, 480, 1920, 1080,
+                4, 3);
+        int[] chosen = SizeSelector.selectAll(new SizeSelector[]{mSelector, mSelector},
+                new SizeSelector.Constraints[]{large, small}, 4000 * 3000);
+        assertEquals("2048x1536", nameOf(mSelector, chosen[0]));
+        assertEquals("640x480", nameOf(mSelector, chosen[1]));
+    }
+
+    @Test
+    public void givesUpAtSmallestSizes() {
+        SizeSelector.Constraints any = new SizeSelector.Constraints(0, 0, UNLIMITED, UNLIMITED,
+                4, 3);
+        int[] chosen = SizeSelector.selectAll(new SizeSelector[]{mSelector},
+                new SizeSelector.Constraints[]{any}, 1);
+        assertEquals("176x144", nameOf(mSelector, chosen[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRatio() {
+        new SizeSelector.Constraints(0, 0, 1, 1, 0, 1);
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StereoCompositor}, decoding its output with ImageIO.
+ */
+public class StereoCompositorTest {
+
+    private final PlaneBufferPool mPool = new PlaneBufferPool(2, null);
+    private final StereoCompositor mCompositor =
+            new StereoCompositor(mPool, new JpegEncoder(95, null));
+
+    /**
+     * Creates a gray frame of a single luma value, with interleaved chroma.
+     */
+    private static YuvFrame grayFrame(int width, int height, int luma) {
+        int rowStride = width + 3;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer y = ByteBuffer.allocateDirect(height * rowStride);
+        for (int i = 0; i < y.capacity(); i++) {
+            y.put(i, (byte) luma);
+        }
+        ByteBuffer uv = ByteBuffer.allocateDirect(chromaHeight * rowStride + 1);
+        for (int i = 0; i < uv.capacity(); i++) {
+            uv.put(i, (byte) 128);
+        }
+        ByteBuffer v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+        return new YuvFrame(width, height, 0, new ByteBuffer[]{y, uv, v},
+                new int[]{rowStride, rowStride, rowStride}, new int[]{1, 2, 2}, null);
+    }
+
+    private static byte[] encode(YuvFrame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(90, null).encode(frame, out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg, int offset, int length) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg, offset, length));
+        assertNotNull("Not decodable", image);
+        return image;
+    }
+
+    private static int grayAt(BufferedImage image, int x, int y) {
+        return (image.getRGB(x, y) >> 8) & 0xff;
+    }
+
+    private static int intAt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private byte[] composeMpo(byte[] first, byte[] second) {
+        PlaneBufferPool.Lease lease =
+                mCompositor.composeMpo(ByteBuffer.wrap(first), ByteBuffer.wrap(second));
+        ByteBuffer buffer = lease.getBuffer();
+        byte[] mpo = new byte[buffer.remaining()];
+        buffer.get(mpo);
+        mPool.release(lease);
+        return mpo;
+    }
+
+    @Test
+    public void sideBySide() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCompositor.writeFrames(grayFrame(64, 48, 200), grayFrame(32, 32, 50),
+                StereoCompositor.Layout.SIDE_BY_SIDE, out);
+        byte[] jpeg = out.toByteArray();
+        BufferedImage image = decode(jpeg, 0, jpeg.length);
+        assertEquals(96, image.getWidth());
+        assertEquals(48, image.getHeight());
+        assertEquals(200, grayAt(image, 20, 20), 3);
+        assertEquals(50, grayAt(image, 80, 16), 3);
+        // Below the shorter second picture.
+        assertEquals(0, grayAt(image, 80, 44), 3);
+        assertEquals(1, mCompositor.getCompositeTime().getCount());
+    }
+
+    @Test
+    public void topBottomAlignsToEvenRows() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCompositor.writeFrames(grayFrame(40, 31, 180), grayFrame(40, 16, 60),
+                StereoCompositor.Layout.TOP_BOTTOM, out);
+        byte[] jpeg = out.toByteArray();
+        BufferedImage image = decode(jpeg, 0, jpeg.length);
+        assertEquals(40, image.getWidth());
+        assertEquals(32 + 16, image.getHeight());
+        assertEquals(180, grayAt(image, 20, 10), 3);
+        assertEquals(60, grayAt(image, 20, 40), 3);
+    }
+
+    @Test
+    public void compositeCopiesPlanesExactly() {
+        YuvFrame first = YuvConverterTest.randomFrame(6, 4, true, 1);
+        YuvFrame second = YuvConverterTest.randomFrame(5, 4, false, 2);
+        ByteBuffer dst = ByteBuffer.allocateDirect(PlaneBufferPool.sizeOfI420(11, 4));
+        YuvFrame composite = StereoCompositor.composite(first, second, true, 11, 4, dst);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 11; x++) {
+                YuvFrame source = x < 6 ? first : second;
+                int sourceX = x < 6 ? x : x - 6;
+                assertEquals(source.getBuffer(YuvFrame.Y).get(
+                        y * source.getRowStride(YuvFrame.Y) + sourceX),
+                        composite.getBuffer(YuvFrame.Y).get(y * 11 + x));
+            }
+        }
+        for (int plane = YuvFrame.U; plane <= YuvFrame.V; plane++) {
+            for (int y = 0; y < 2; y++) {
+                for (int x = 0; x < 6; x++) {
+                    YuvFrame source = x < 3 ? first : second;
+                    int sourceX = x < 3 ? x : x - 3;
+                    assertEquals(source.getBuffer(plane).get(y * source.getRowStride(plane)
+                                    + sourceX * source.getPixelStride(plane)),
+                            composite.getBuffer(plane).get(y * 6 + x));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mpoIndexesBothStills() throws IOException {
+        byte[] first = encode(grayFrame(32, 32, 200));
+        byte[] second = encode(grayFrame(48, 16, 40));
+        byte[] mpo = composeMpo(first, second);
+        assertEquals(first.length + second.length + 90 + 46, mpo.length);
+
+        // The first still shows through, at the start.
+        BufferedImage firstImage = decode(mpo, 0, mpo.length);
+        assertEquals(32, firstImage.getWidth());
+        assertEquals(200, grayAt(firstImage, 16, 16), 3);
+
+        int tiff = indexOf(mpo, new byte[]{'M', 'P', 'F', 0}, 0) + 4;
+        assertEquals(0x4d4d002a, intAt(mpo, tiff));
+        // The two MP entries follow the three-entry IFD.
+        int entries = tiff + 8 + 2 + 3 * 12 + 4;
+        assertEquals(0x20020002, intAt(mpo, entries));
+        int firstSize = intAt(mpo, entries + 4);
+        assertEquals(0, intAt(mpo, entries + 8));
+        int secondSize = intAt(mpo, entries + 16 + 4);
+        int secondOffset = intAt(mpo, entries + 16 + 8);
+        assertEquals(mpo.length, firstSize + secondSize);
+        assertEquals(firstSize, tiff + secondOffset);
+
+        BufferedImage secondImage = decode(mpo, tiff + secondOffset, secondSize);
+        assertEquals(48, secondImage.getWidth());
+        assertEquals(16, secondImage.getHeight());
+        assertEquals(40, grayAt(secondImage, 24, 8), 3);
+    }
+
+    @Test
+    public void mpoKeepsExifFirst() throws IOException {
+        byte[] jpeg = encode(grayFrame(16, 16, 128));
+        // SOI, then a stand-in Exif APP1 segment, then the rest.
+        byte[] exif = {(byte) 0xff, (byte) 0xe1, 0, 8, 'E', 'x', 'i', 'f', 0, 0};
+        byte[] withExif = new byte[jpeg.length + exif.length];
+        System.arraycopy(jpeg, 0, withExif, 0, 2);
+        System.arraycopy(exif, 0, withExif, 2, exif.length);
+        System.arraycopy(jpeg, 2, withExif, 2 + exif.length, jpeg.length - 2);
+
+        byte[] mpo = composeMpo(withExif, jpeg);
+        // SOI, the APP1, the JFIF APP0 of the encoder, then the APP2.
+        int app2 = 2 + exif.length + 18;
+        assertArrayEquals(exif, Arrays.copyOfRange(mpo, 2, 2 + exif.length));
+        assertEquals(0xffe2, (mpo[app2] & 0xff) << 8 | (mpo[app2 + 1] & 0xff));
+    }
+
+    @Test
+    public void mpoFromFramesDecodes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCompositor.writeFrames(grayFrame(32, 32, 100), grayFrame(32, 32, 150),
+                StereoCompositor.Layout.MPO, out);
+        byte[] mpo = out.toByteArray();
+        assertEquals(100, grayAt(decode(mpo, 0, mpo.length), 8, 8), 3);
+        assertEquals(1, mCompositor.getCompositeTime().getCount());
+        assertEquals(0, mPool.getBorrowedCount());
+    }
+
+    @Test
+    public void reusesPooledBuffers() throws IOException {
+        byte[] jpeg = encode(grayFrame(16, 16, 128));
+        for (int i = 0; i < 3; i++) {
+            composeMpo(jpeg, jpeg);
+        }
+        assertEquals(1, mPool.getAllocationCount());
+        assertEquals(3, mCompositor.getCompositeTime().getCount());
+        assertTrue(mCompositor.getCompositeTime().getMaxMicros() >= 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonJpeg() throws IOException {
+        mCompositor.composeMpo(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}),
+                ByteBuffer.wrap(encode(grayFrame(16, 16, 128))));
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StreamPlanner}, with the sizes of {@link SizeSelectorTest#SIZES} for every
+ * output and a 1080p display.
+ */
+public class StreamPlannerTest {
+
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final SizeSelector mSelector = SizeSelectorTest.create(SizeSelectorTest.SIZES);
+
+    private final StreamPlanner mPlanner = new StreamPlanner(1920, 1080, 1920, 1080);
+
+    /** A 4:3 preview filling a 1280x720 view. */
+    private StreamPlanner.Stream preview() {
+        return new StreamPlanner.Stream("preview", StreamPlanner.PRIV, mSelector,
+                new SizeSelector.Constraints(1280, 720, 1920, 1080, 4, 3), 30);
+    }
+
+    /** As large a 4:3 output as allowed. */
+    private StreamPlanner.Stream largest(String name, int kind) {
+        return new StreamPlanner.Stream(name, kind, mSelector,
+                new SizeSelector.Constraints(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED, 4, 3), 0);
+    }
+
+    private static String sizeOf(StreamPlanner.Plan plan, int stream) {
+        return plan.getWidth(stream) + "x" + plan.getHeight(stream);
+    }
+
+    @Test
+    public void legacyPreviewWithFullSizeStills() {
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                preview(), largest("still", StreamPlanner.JPEG));
+        assertTrue(plan.isGuaranteed());
+        assertEquals("1280x960", sizeOf(plan, 0));
+        assertEquals("4032x3024", sizeOf(plan, 1));
+        assertTrue(plan.toString(), plan.toString().contains("PRIV PREVIEW + JPEG MAXIMUM"));
+    }
+
+    @Test
+    public void concurrentCamerasAreHeldToConcurrentSizes() {
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, 2,
+                preview(), largest("still", StreamPlanner.JPEG));
+        assertTrue(plan.isGuaranteed());
+        // No 4:3 size is big enough for the view within 720p, so the largest that fits.
+        assertEquals("960x720", sizeOf(plan, 0));
+        assertEquals("1440x1080", sizeOf(plan, 1));
+        assertTrue(plan.toString(), plan.toString().contains("PRIV s720p + JPEG s1440p"));
+    }
+
+    @Test
+    public void higherLevelsAllowLargerAnalysisStreams() {
+        // On a 720p display, the PREVIEW size class is smaller than RECORD.
+        StreamPlanner planner = new StreamPlanner(1280, 720, 1920, 1080);
+        StreamPlanner.Plan legacy = planner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                preview(), largest("analysis", StreamPlanner.YUV));
+        assertEquals("960x720", sizeOf(legacy, 1));
+        assertTrue(legacy.toString(), legacy.toString().contains("PRIV PREVIEW + YUV PREVIEW"));
+
+        StreamPlanner.Plan limited = planner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED, 1,
+                preview(), largest("analysis", StreamPlanner.YUV));
+        assertEquals("1440x1080", sizeOf(limited, 1));
+        assertTrue(limited.toString(), limited.toString().contains("PRIV PREVIEW + YUV RECORD"));
+
+        StreamPlanner.Plan full = planner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, 1,
+                preview(), largest("analysis", StreamPlanner.YUV));
+        assertEquals("4032x3024", sizeOf(full, 1));
+        assertTrue(full.toString(), full.toString().contains("PRIV PREVIEW + YUV MAXIMUM"));
+    }
+
+    @Test
+    public void unknownCombinationFallsBackToPreviewSizes() {
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3, 1,
+                largest("a", StreamPlanner.JPEG), largest("b", StreamPlanner.JPEG));
+        assertFalse(plan.isGuaranteed());
+        assertEquals("1440x1080", sizeOf(plan, 0));
+        assertEquals("1440x1080", sizeOf(plan, 1));
+    }
+
+    @Test
+    public void rejectsSlotsEvenTheSmallestSizeExceeds() {
+        SizeSelector fullSizeOnly = SizeSelectorTest.create(new int[][]{{4032, 3024}});
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, 2,
+                new StreamPlanner.Stream("still", StreamPlanner.JPEG, fullSizeOnly,
+                        new SizeSelector.Constraints(0, 0, UNLIMITED, UNLIMITED, 4, 3), 0));
+        assertFalse(plan.isGuaranteed());
+    }
+
+    @Test
+    public void predictsPixelRateOfStreamingOutputsOnly() {
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                preview(), largest("still", StreamPlanner.JPEG));
+        assertEquals(1280L * 960 * 30, plan.getPredictedPixelRate());
+        assertEquals(1280L * 960 * 30, mPlanner.getPredictedPixelRate());
+    }
+
+    @Test
+    public void measuresFrameRateFromRecordedFrames() {
+        StreamPlanner.Plan plan = mPlanner.plan("0",
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                preview(), largest("still", StreamPlanner.JPEG));
+        assertEquals(0, plan.getMeasuredFps(0), 0);
+        // 31 frames a second apart from first to last: 30 fps.
+        long start = 5000000000L;
+        for (int i = 0; i <= 30; i++) {
+            plan.recordFrame(0, start + i * 1000000000L / 30);
+        }
+        plan.recordFrame(1, start);
+        assertEquals(31, plan.getFrameCount(0));
+        assertEquals(1, plan.getFrameCount(1));
+        assertEquals(30, plan.getMeasuredFps(0), 0.01);
+        assertEquals(0, plan.getMeasuredFps(1), 0);
+        assertEquals(1280 * 960 * 30, plan.getMeasuredPixelRate(), 1280 * 960 / 100);
+    }
+
+    @Test
+    public void replanningReplacesThePlanOfACamera() {
+        mPlanner.plan("0", CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1, preview());
+        mPlanner.plan("0", CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1, preview());
+        mPlanner.plan("1", CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1, preview());
+        assertEquals(2L * 1280 * 960 * 30, mPlanner.getPredictedPixelRate());
+        mPlanner.remove("1");
+        assertEquals(1280L * 960 * 30, mPlanner.getPredictedPixelRate());
+    }
+
+    @Test
+    public void reportListsEveryCamera() {
+        mPlanner.plan("1", CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                preview(), largest("still", StreamPlanner.JPEG));
+        mPlanner.plan("0", CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY, 1,
+                largest("a", StreamPlanner.JPEG), largest("b", StreamPlanner.JPEG));
+        String report = mPlanner.report();
+        assertTrue(report, report.startsWith("Stream plan: predicted 36.9 Mpx/s"));
+        assertTrue(report, report.indexOf("Camera 0: no guaranteed combination")
+                < report.indexOf("Camera 1: PRIV PREVIEW + JPEG MAXIMUM"));
+        assertTrue(report, report.contains("preview 1280x960, predicted 30 fps"));
+    }
+
+    @Test
+    public void ranksHardwareLevels() {
+        assertEquals(0, StreamPlanner.rankOf(CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY));
+        assertEquals(1, StreamPlanner.rankOf(CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED));
+        assertEquals(2, StreamPlanner.rankOf(CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL));
+        assertEquals(3, StreamPlanner.rankOf(CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownStreamKinds() {
+        new StreamPlanner.Stream("raw", 3, mSelector,
+                new SizeSelector.Constraints(0, 0, UNLIMITED, UNLIMITED, 4, 3), 0);
+    }
+
+}
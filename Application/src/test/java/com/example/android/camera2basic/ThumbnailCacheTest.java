@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ThumbnailCache}, with strings for thumbnails, in a temporary directory.
+ */
+public class ThumbnailCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Decodes strings, taking one byte of memory per character; "bad" doesn't decode.
+     */
+    private static final ThumbnailCache.Codec<String> CODEC = new ThumbnailCache.Codec<String>() {
+        @Override
+        public String decode(byte[] data) {
+            String thumbnail = new String(data, UTF_8);
+            return thumbnail.equals("bad") ? null : thumbnail;
+        }
+
+        @Override
+        public int sizeOf(String thumbnail) {
+            return thumbnail.length();
+        }
+    };
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = new File(Files.createTempDirectory("thumbnails").toFile(), ".thumbnails");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mDirectory.delete();
+        mDirectory.getParentFile().delete();
+    }
+
+    private static byte[] bytes(String thumbnail) {
+        return thumbnail.getBytes(UTF_8);
+    }
+
+    @Test
+    public void keepsThumbnailsInMemoryAndOnDisk() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        assertEquals("aaaa", cache.put("IMG_1", bytes("aaaa")));
+        assertEquals("aaaa", cache.peek("IMG_1"));
+        assertEquals("aaaa", cache.get("IMG_1"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMemoryBytes());
+        assertEquals(4, cache.getDiskBytes());
+        assertTrue(new File(mDirectory, "IMG_1.thumb").isFile());
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    @Test
+    public void countsMisses() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        assertNull(cache.peek("IMG_1"));
+        assertNull(cache.get("IMG_1"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFromMemory() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 10, 100, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.put("IMG_2", bytes("bbbb"));
+        cache.get("IMG_1");
+        cache.put("IMG_3", bytes("cccc"));
+        assertEquals(1, cache.getMemoryEvictionCount());
+        assertNull(cache.peek("IMG_2"));
+        assertEquals("aaaa", cache.peek("IMG_1"));
+        assertEquals(8, cache.getMemoryBytes());
+        // It is still on disk.
+        assertEquals("bbbb", cache.get("IMG_2"));
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals("bbbb", cache.peek("IMG_2"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFromDisk() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 10, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.put("IMG_2", bytes("bbbb"));
+        cache.put("IMG_3", bytes("cccc"));
+        assertEquals(1, cache.getDiskEvictionCount());
+        assertEquals(8, cache.getDiskBytes());
+        assertFalse(new File(mDirectory, "IMG_1.thumb").exists());
+        cache.clearMemory();
+        assertEquals(0, cache.getMemoryBytes());
+        assertNull(cache.get("IMG_1"));
+        assertEquals("bbbb", cache.get("IMG_2"));
+    }
+
+    @Test
+    public void doesNotKeepAThumbnailLargerThanTheMemoryInMemory() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 4, 100, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.put("IMG_2", bytes("bbbbbb"));
+        assertEquals("aaaa", cache.peek("IMG_1"));
+        assertNull(cache.peek("IMG_2"));
+        assertEquals("bbbbbb", cache.get("IMG_2"));
+        assertEquals(0, cache.getMemoryEvictionCount());
+    }
+
+    @Test
+    public void replacesAThumbnail() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.put("IMG_1", bytes("aa"));
+        assertEquals("aa", cache.get("IMG_1"));
+        assertEquals(2, cache.getMemoryBytes());
+        assertEquals(2, cache.getDiskBytes());
+    }
+
+    @Test
+    public void keepsUndecodableThumbnailsOnDiskOnly() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        assertNull(cache.put("IMG_1", bytes("bad")));
+        assertTrue(cache.contains("IMG_1"));
+        assertNull(cache.get("IMG_1"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void removesAThumbnail() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.remove("IMG_1");
+        assertFalse(cache.contains("IMG_1"));
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(0, cache.getDiskBytes());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void reopensTheDiskCacheInOrderOfUse() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        cache.put("IMG_1", bytes("aaaa"));
+        cache.put("IMG_2", bytes("bbbb"));
+        assertTrue(new File(mDirectory, "IMG_1.thumb").setLastModified(2000000000000L));
+        assertTrue(new File(mDirectory, "IMG_2.thumb").setLastModified(1000000000000L));
+        assertTrue(new File(mDirectory, ".IMG_3.thumb.tmp").createNewFile());
+
+        ThumbnailCache<String> reopened = new ThumbnailCache<>(mDirectory, 100, 6, CODEC);
+        assertFalse(new File(mDirectory, ".IMG_3.thumb.tmp").exists());
+        assertEquals(1, reopened.getDiskEvictionCount());
+        assertFalse(reopened.contains("IMG_2"));
+        assertEquals("aaaa", reopened.get("IMG_1"));
+        assertEquals(1, reopened.getDiskHitCount());
+    }
+
+    @Test
+    public void rejectsCaptureIdsThatAreNotFileNames() throws IOException {
+        ThumbnailCache<String> cache = new ThumbnailCache<>(mDirectory, 100, 100, CODEC);
+        try {
+            cache.put("../IMG_1", bytes("aaaa"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the parts of {@link ThumbnailStage} that don't need the Android graphics.
+ */
+public class ThumbnailStageTest {
+
+    private static final byte[] THUMBNAIL = {
+            (byte) 0xff, (byte) 0xd8, 1, 2, 3, 4, 5, (byte) 0xff, (byte) 0xd9};
+
+    /**
+     * Builds a JPEG with an APP0 segment and an Exif APP1 segment whose IFD1 points at
+     * {@link #THUMBNAIL}, followed by a stand-in for the rest of the picture.
+     *
+     * @param order     The byte order of the TIFF structure
+     * @param shortTags Whether the thumbnail tags are SHORTs rather than LONGs
+     */
+    static ByteBuffer jpegWithThumbnail(ByteOrder order, boolean shortTags) {
+        ByteBuffer tiff = ByteBuffer.allocate(8 + 2 + 12 + 4 + 2 + 2 * 12 + 4 + THUMBNAIL.length)
+                .order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) 42).putInt(8);
+        // IFD0, with one Orientation entry.
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 1)
+                .putShort((short) 0);
+        int ifd1 = tiff.position() + 4;
+        tiff.putInt(ifd1);
+        // IFD1, with the thumbnail.
+        int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        tiff.putShort((short) 2);
+        putEntry(tiff, 0x0201, shortTags, thumbnailOffset);
+        putEntry(tiff, 0x0202, shortTags, THUMBNAIL.length);
+        tiff.putInt(0);
+        tiff.put(THUMBNAIL);
+
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + 18 + 10 + tiff.capacity() + 6);
+        jpeg.putShort((short) 0xffd8);
+        jpeg.putShort((short) 0xffe0).putShort((short) 16).put("JFIF".getBytes()).put(new byte[10]);
+        jpeg.putShort((short) 0xffe1).putShort((short) (8 + tiff.capacity()));
+        jpeg.put("Exif".getBytes()).put((byte) 0).put((byte) 0);
+        jpeg.put(tiff.array());
+        jpeg.putShort((short) 0xffdb).putShort((short) 0).putShort((short) 0xffd9);
+        jpeg.flip();
+        return jpeg;
+    }
+
+    private static void putEntry(ByteBuffer tiff, int tag, boolean shortValue, int value) {
+        tiff.putShort((short) tag);
+        if (shortValue) {
+            tiff.putShort((short) 3).putInt(1).putShort((short) value).putShort((short) 0);
+        } else {
+            tiff.putShort((short) 4).putInt(1).putInt(value);
+        }
+    }
+
+    @Test
+    public void findsTheExifThumbnail() {
+        assertArrayEquals(THUMBNAIL, ThumbnailStage.findExifThumbnail(
+                jpegWithThumbnail(ByteOrder.BIG_ENDIAN, false)));
+        assertArrayEquals(THUMBNAIL, ThumbnailStage.findExifThumbnail(
+                jpegWithThumbnail(ByteOrder.LITTLE_ENDIAN, false)));
+        assertArrayEquals(THUMBNAIL, ThumbnailStage.findExifThumbnail(
+                jpegWithThumbnail(ByteOrder.LITTLE_ENDIAN, true)));
+    }
+
+    @Test
+    public void readsFromThePositionWithoutMovingIt() {
+        ByteBuffer jpeg = jpegWithThumbnail(ByteOrder.BIG_ENDIAN, false);
+        ByteBuffer shifted = ByteBuffer.allocateDirect(jpeg.remaining() + 3);
+        shifted.position(3);
+        shifted.put(jpeg);
+        shifted.position(3);
+        assertArrayEquals(THUMBNAIL, ThumbnailStage.findExifThumbnail(shifted));
+        assertEquals(3, shifted.position());
+    }
+
+    @Test
+    public void findsNoThumbnailWhereThereIsNone() {
+        ByteBuffer jpeg = jpegWithThumbnail(ByteOrder.BIG_ENDIAN, false);
+        // Not a JPEG.
+        assertNull(ThumbnailStage.findExifThumbnail(ByteBuffer.wrap(new byte[]{0, 0, 0, 0})));
+        // No IFD1.
+        ByteBuffer noIfd1 = ByteBuffer.wrap(jpeg.array().clone());
+        noIfd1.putInt(2 + 18 + 10 + 8 + 2 + 12, 0);
+        assertNull(ThumbnailStage.findExifThumbnail(noIfd1));
+        // A thumbnail that runs past the segment.
+        ByteBuffer truncated = ByteBuffer.wrap(jpeg.array().clone());
+        truncated.putShort(2 + 18 + 2, (short) 20);
+        assertNull(ThumbnailStage.findExifThumbnail(truncated));
+        // No Exif segment before the tables.
+        ByteBuffer noExif = ByteBuffer.wrap(jpeg.array().clone());
+        noExif.put(2 + 18 + 1, (byte) 0xdb);
+        assertNull(ThumbnailStage.findExifThumbnail(noExif));
+    }
+
+    @Test
+    public void subsamplesByPowersOfTwoDownToTheMaximumSize() {
+        assertEquals(8, ThumbnailStage.sampleSizeFor(4032, 3024, 320));
+        assertEquals(8, ThumbnailStage.sampleSizeFor(3024, 4032, 320));
+        assertEquals(2, ThumbnailStage.sampleSizeFor(640, 480, 320));
+        assertEquals(1, ThumbnailStage.sampleSizeFor(639, 480, 320));
+        assertEquals(1, ThumbnailStage.sampleSizeFor(100, 100, 320));
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link VideoEncoderLoop}, against a scripted encoder and a recording muxer.
+ */
+public class VideoEncoderLoopTest {
+
+    private static final String FORMAT = "video/avc 1920x1080";
+
+    /**
+     * Hands out a scripted sequence of outputs, then nothing but
+     * {@link VideoEncoderLoop#INFO_TRY_AGAIN_LATER}. Signalling the end of the input appends
+     * the end of stream, unless {@link #mIgnoreEndOfInput} is set.
+     */
+    private static final class FakeEncoder implements VideoEncoderLoop.Encoder<String> {
+
+        /**
+         * Each output: an {@code INFO_*} value, or the offset, size, presentation time and
+         * flags of a buffer.
+         */
+        final ArrayDeque<long[]> mOutputs = new ArrayDeque<>();
+        final List<ByteBuffer> mBuffers = new ArrayList<>();
+        final List<Integer> mReleased = new ArrayList<>();
+        boolean mIgnoreEndOfInput;
+        int mEndOfInputSignals;
+        int mDequeues;
+
+        FakeEncoder formatChanged() {
+            mOutputs.add(new long[]{VideoEncoderLoop.INFO_OUTPUT_FORMAT_CHANGED});
+            return this;
+        }
+
+        FakeEncoder buffer(int offset, int size, long presentationTimeUs, int flags) {
+            mOutputs.add(new long[]{offset, size, presentationTimeUs, flags});
+            return this;
+        }
+
+        FakeEncoder frame(long presentationTimeUs) {
+            return buffer(0, 100, presentationTimeUs, 0);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(VideoEncoderLoop.Sample sample, long timeoutUs) {
+            mDequeues++;
+            long[] output = mOutputs.poll();
+            if (null == output) {
+                return VideoEncoderLoop.INFO_TRY_AGAIN_LATER;
+            }
+            if (output.length == 1) {
+                return (int) output[0];
+            }
+            sample.set((int) output[0], (int) output[1], output[2], (int) output[3]);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+            mBuffers.add(buffer);
+            return mBuffers.size() - 1;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mBuffers.get(index);
+        }
+
+        @Override
+        public String getOutputFormat() {
+            return FORMAT;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mReleased.add(index);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mEndOfInputSignals++;
+            if (!mIgnoreEndOfInput) {
+                buffer(0, 0, 0, VideoEncoderLoop.FLAG_END_OF_STREAM);
+            }
+        }
+
+    }
+
+    /**
+     * Records what it is asked to write.
+     */
+    private static final class FakeMuxer implements VideoEncoderLoop.Muxer<String> {
+
+        final List<String> mEvents = new ArrayList<>();
+        final List<ByteBuffer> mWritten = new ArrayList<>();
+        boolean mFailOnWrite;
+
+        @Override
+        public int addTrack(String format) {
+            mEvents.add("addTrack " + format);
+            return 7;
+        }
+
+        @Override
+        public void start() {
+            mEvents.add("start");
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, VideoEncoderLoop.Sample sample) {
+            if (mFailOnWrite) {
+                throw new IllegalStateException("Muxer failed");
+            }
+            assertEquals(sample.mOffset, data.position());
+            assertEquals(sample.mOffset + sample.mSize, data.limit());
+            mEvents.add("write " + track + " " + sample.mPresentationTimeUs + " " + sample.mSize);
+            mWritten.add(data);
+        }
+
+        @Override
+        public void stop() {
+            mEvents.add("stop");
+        }
+
+    }
+
+    private final FakeEncoder mEncoder = new FakeEncoder();
+    private final FakeMuxer mMuxer = new FakeMuxer();
+    private final VideoEncoderLoop<String> mLoop =
+            new VideoEncoderLoop<>(mEncoder, mMuxer, /*frameRate*/30);
+
+    @Test
+    public void muxesTheEncoderBuffersThemselvesOnceTheFormatIsKnown() {
+        mEncoder.formatChanged()
+                .buffer(0, 20, 0, VideoEncoderLoop.FLAG_CODEC_CONFIG)
+                .buffer(0, 100, 0, VideoEncoderLoop.FLAG_KEY_FRAME)
+                .buffer(16, 50, 33333, 0)
+                .buffer(0, 60, 66666, 0)
+                .buffer(0, 0, 0, VideoEncoderLoop.FLAG_END_OF_STREAM);
+        mLoop.run();
+
+        assertEquals("[addTrack " + FORMAT + ", start, write 7 0 100, write 7 33333 50, "
+                + "write 7 66666 60, stop]", mMuxer.mEvents.toString());
+        // The config buffer isn't written, and nothing is copied.
+        assertSame(mEncoder.mBuffers.get(1), mMuxer.mWritten.get(0));
+        assertSame(mEncoder.mBuffers.get(2), mMuxer.mWritten.get(1));
+        assertEquals("[0, 1, 2, 3, 4]", mEncoder.mReleased.toString());
+        assertTrue(mLoop.hasReachedEndOfStream());
+        assertFalse(mLoop.hasFailed());
+        assertEquals(3, mLoop.getEncodedFrameCount());
+        assertEquals(1, mLoop.getKeyFrameCount());
+        assertEquals(210, mLoop.getByteCount());
+        assertEquals(66666, mLoop.getDurationUs());
+        assertEquals(0, mLoop.getDroppedFrameCount());
+        assertEquals(2, mLoop.getFrameInterval().getCount());
+    }
+
+    @Test
+    public void countsTheFramesMissingFromGaps() {
+        mEncoder.formatChanged()
+                .frame(0)
+                // Jitter of less than half a frame is not a drop.
+                .frame(45000)
+                .frame(66666)
+                // One frame missing.
+                .frame(133333)
+                // Three frames missing.
+                .frame(266666)
+                .buffer(0, 0, 0, VideoEncoderLoop.FLAG_END_OF_STREAM);
+        mLoop.run();
+        assertEquals(5, mLoop.getEncodedFrameCount());
+        assertEquals(4, mLoop.getDroppedFrameCount());
+    }
+
+    @Test
+    public void discardsSamplesItCannotMux() {
+        mEncoder.frame(0)
+                .formatChanged()
+                .frame(33333)
+                .frame(33333)
+                .frame(20000)
+                .frame(66666)
+                .buffer(0, 0, 0, VideoEncoderLoop.FLAG_END_OF_STREAM);
+        mLoop.run();
+        assertEquals(2, mLoop.getEncodedFrameCount());
+        assertEquals(3, mLoop.getDiscardedSampleCount());
+        assertEquals(6, mEncoder.mReleased.size());
+    }
+
+    @Test
+    public void endsTheInputWhenAskedToStop() {
+        mEncoder.formatChanged().frame(0).frame(33333);
+        mLoop.requestStop();
+        mLoop.run();
+        assertEquals(1, mEncoder.mEndOfInputSignals);
+        assertTrue(mLoop.hasReachedEndOfStream());
+        assertEquals(2, mLoop.getEncodedFrameCount());
+        assertEquals("stop", mMuxer.mEvents.get(mMuxer.mEvents.size() - 1));
+    }
+
+    @Test
+    public void givesUpOnAnEndOfStreamThatNeverComes() {
+        mEncoder.mIgnoreEndOfInput = true;
+        mEncoder.formatChanged().frame(0);
+        mLoop.requestStop();
+        mLoop.run();
+        assertFalse(mLoop.hasReachedEndOfStream());
+        assertEquals(1, mLoop.getEncodedFrameCount());
+        assertEquals("stop", mMuxer.mEvents.get(mMuxer.mEvents.size() - 1));
+        assertEquals(2 + 1 + VideoEncoderLoop.END_OF_STREAM_TIMEOUT_US
+                / VideoEncoderLoop.DEQUEUE_TIMEOUT_US, mEncoder.mDequeues);
+    }
+
+    @Test
+    public void doesNotStopAMuxerThatNeverStarted() {
+        mEncoder.buffer(0, 0, 0, VideoEncoderLoop.FLAG_END_OF_STREAM);
+        mLoop.run();
+        assertTrue(mMuxer.mEvents.isEmpty());
+        assertEquals(0, mLoop.getDurationUs());
+    }
+
+    @Test
+    public void reportsAFailingMuxerAndStillFinishes() throws InterruptedException {
+        mMuxer.mFailOnWrite = true;
+        mEncoder.formatChanged().frame(0).frame(33333);
+        mLoop.run();
+        assertTrue(mLoop.hasFailed());
+        assertTrue(mLoop.awaitTermination(0));
+        assertEquals("[0]", mEncoder.mReleased.toString());
+        assertEquals("stop", mMuxer.mEvents.get(mMuxer.mEvents.size() - 1));
+    }
+
+    @Test
+    public void runsOnItsOwnThreadUntilStopped() throws InterruptedException {
+        mEncoder.formatChanged().frame(0);
+        Thread thread = new Thread(mLoop, "VideoEncoder");
+        thread.start();
+        assertFalse(mLoop.awaitTermination(50));
+        mLoop.requestStop();
+        assertTrue(mLoop.awaitTermination(5000));
+        thread.join();
+        assertTrue(mLoop.hasReachedEndOfStream());
+        assertEquals(1, mLoop.getEncodedFrameCount());
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link YuvConverter} on semi-planar frames, as cameras deliver them, across frame
+ * sizes, stripe counts and downscale factors. One operation converts one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+
+    @Param({"640x480", "1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"1", "4"})
+    public int scale;
+
+    private YuvFrame mFrame;
+    private YuvConverter mConverter;
+    private byte[] mBytes;
+    private int[] mPixels;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        mFrame = YuvConverterTest.randomFrame(width, height, true, 42);
+        mConverter = new YuvConverter("benchmark", threads);
+        int scaledWidth = YuvConverter.scaled(width, scale);
+        int scaledHeight = YuvConverter.scaled(height, scale);
+        mBytes = new byte[PlaneBufferPool.sizeOfI420(scaledWidth, scaledHeight)];
+        mPixels = new int[scaledWidth * scaledHeight];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mConverter.close();
+    }
+
+    @Benchmark
+    public byte[] nv21() {
+        mConverter.toNv21(mFrame, scale, mBytes);
+        return mBytes;
+    }
+
+    @Benchmark
+    public byte[] i420() {
+        mConverter.toI420(mFrame, scale, mBytes);
+        return mBytes;
+    }
+
+    @Benchmark
+    public int[] argb() {
+        mConverter.toArgb(mFrame, scale, mPixels);
+        return mPixels;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(YuvConverterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link YuvConverter}, against a per-pixel reference conversion.
+ */
+public class YuvConverterTest {
+
+    private YuvConverter mConverter = new YuvConverter("test", 1);
+
+    @After
+    public void tearDown() {
+        mConverter.close();
+    }
+
+    /**
+     * Creates a frame of random pixels with padded rows, and chroma either planar or, as most
+     * cameras deliver it, interleaved with a pixel stride of 2.
+     */
+    static YuvFrame randomFrame(int width, int height, boolean interleaved, long seed) {
+        Random random = new Random(seed);
+        int rowStride = width + 7;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer y = randomBuffer(random, (height - 1) * rowStride + width);
+        ByteBuffer u;
+        ByteBuffer v;
+        int chromaRowStride;
+        int pixelStride;
+        if (interleaved) {
+            chromaRowStride = rowStride;
+            pixelStride = 2;
+            ByteBuffer uv = randomBuffer(random,
+                    (chromaHeight - 1) * chromaRowStride + 2 * chromaWidth);
+            u = uv.duplicate();
+            u.limit(uv.capacity() - 1);
+            v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+        } else {
+            chromaRowStride = chromaWidth + 3;
+            pixelStride = 1;
+            u = randomBuffer(random, (chromaHeight - 1) * chromaRowStride + chromaWidth);
+            v = randomBuffer(random, (chromaHeight - 1) * chromaRowStride + chromaWidth);
+        }
+        return new YuvFrame(width, height, 0, new ByteBuffer[]{y, u, v},
+                new int[]{rowStride, chromaRowStride, chromaRowStride},
+                new int[]{1, pixelStride, pixelStride}, null);
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).rewind();
+        return buffer;
+    }
+
+    private static int sample(YuvFrame frame, int plane, int x, int y) {
+        return frame.getBuffer(plane).get(y * frame.getRowStride(plane)
+                + x * frame.getPixelStride(plane)) & 0xff;
+    }
+
+    private static byte[] referenceI420(YuvFrame frame, int scale, boolean nv21) {
+        int width = frame.getWidth() / scale;
+        int height = frame.getHeight() / scale;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        byte[] out = new byte[PlaneBufferPool.sizeOfI420(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                out[y * width + x] = (byte) sample(frame, YuvFrame.Y, x * scale, y * scale);
+            }
+        }
+        int base = width * height;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                byte u = (byte) sample(frame, YuvFrame.U, x * scale, y * scale);
+                byte v = (byte) sample(frame, YuvFrame.V, x * scale, y * scale);
+                if (nv21) {
+                    out[base + 2 * (y * chromaWidth + x)] = v;
+                    out[base + 2 * (y * chromaWidth + x) + 1] = u;
+                } else {
+                    out[base + y * chromaWidth + x] = u;
+                    out[base + chromaWidth * chromaHeight + y * chromaWidth + x] = v;
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int referenceArgb(int luma, int cb, int cr) {
+        double r = luma + 1.402 * (cr - 128);
+        double g = luma - 0.344136 * (cb - 128) - 0.714136 * (cr - 128);
+        double b = luma + 1.772 * (cb - 128);
+        return 0xff000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.floor(value + 0.5)));
+    }
+
+    private void assertConverts(YuvFrame frame, int scale) {
+        int width = frame.getWidth() / scale;
+        int height = frame.getHeight() / scale;
+        byte[] nv21 = new byte[PlaneBufferPool.sizeOfI420(width, height)];
+        mConverter.toNv21(frame, scale, nv21);
+        assertArrayEquals(referenceI420(frame, scale, true), nv21);
+
+        byte[] i420 = new byte[PlaneBufferPool.sizeOfI420(width, height)];
+        mConverter.toI420(frame, scale, i420);
+        assertArrayEquals(referenceI420(frame, scale, false), i420);
+
+        int[] argb = new int[width * height];
+        mConverter.toArgb(frame, scale, argb);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sx = x * scale;
+                int sy = y * scale;
+                int expected = referenceArgb(sample(frame, YuvFrame.Y, sx, sy),
+                        sample(frame, YuvFrame.U, sx / 2, sy / 2),
+                        sample(frame, YuvFrame.V, sx / 2, sy / 2));
+                int actual = argb[y * width + x];
+                // Fixed-point rounding may be one off per channel.
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    int difference = Math.abs(((expected >> shift) & 0xff)
+                            - ((actual >> shift) & 0xff));
+                    if (difference > 1) {
+                        assertEquals("Pixel " + x + "," + y, Integer.toHexString(expected),
+                                Integer.toHexString(actual));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convertsInterleavedChroma() {
+        assertConverts(randomFrame(64, 48, true, 1), 1);
+    }
+
+    @Test
+    public void convertsPlanarChroma() {
+        assertConverts(randomFrame(64, 48, false, 2), 1);
+    }
+
+    @Test
+    public void convertsOddSizes() {
+        assertConverts(randomFrame(37, 23, true, 3), 1);
+        assertConverts(randomFrame(37, 23, false, 4), 1);
+    }
+
+    @Test
+    public void scalesDownWhileConverting() {
+        for (int scale = 2; scale <= 5; scale++) {
+            assertConverts(randomFrame(61, 45, true, scale), scale);
+            assertConverts(randomFrame(64, 48, false, scale), scale);
+        }
+    }
+
+    @Test
+    public void stripesGiveTheSameResult() {
+        for (int threads = 2; threads <= 5; threads++) {
+            mConverter.close();
+            mConverter = new YuvConverter("test", threads);
+            assertConverts(randomFrame(53, 41, true, threads), 1);
+            assertConverts(randomFrame(53, 41, false, threads), 3);
+        }
+    }
+
+    @Test
+    public void tinyFramesUseOneStripe() {
+        mConverter.close();
+        mConverter = new YuvConverter("test", 4);
+        assertConverts(randomFrame(3, 1, true, 5), 1);
+        assertConverts(randomFrame(2, 2, false, 6), 1);
+    }
+
+    private int convertPixel(int luma, int cb, int cr) {
+        ByteBuffer[] planes = new ByteBuffer[3];
+        int[] values = {luma, cb, cr};
+        for (int i = 0; i < 3; i++) {
+            planes[i] = ByteBuffer.allocateDirect(1);
+            planes[i].put(0, (byte) values[i]);
+        }
+        int[] pixel = new int[1];
+        mConverter.toArgb(new YuvFrame(1, 1, 0, planes, new int[]{1, 1, 1}, new int[]{1, 1, 1},
+                null), 1, pixel);
+        return pixel[0];
+    }
+
+    @Test
+    public void convertsKnownColors() {
+        assertEquals(0xff808080, convertPixel(128, 128, 128));
+        assertEquals(0xff000000, convertPixel(0, 128, 128));
+        assertEquals(0xffffffff, convertPixel(255, 128, 128));
+        // The JPEG YCbCr of pure red, clamped rather than wrapped around.
+        assertEquals(0xfffe0000, convertPixel(76, 85, 255));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortOutput() {
+        mConverter.toNv21(randomFrame(16, 16, true, 7), 1, new byte[16 * 16]);
+    }
+
+    @Test
+    public void leavesThePlanesAlone() {
+        YuvFrame frame = randomFrame(16, 16, true, 8);
+        mConverter.toI420(frame, 1, new byte[PlaneBufferPool.sizeOfI420(16, 16)]);
+        assertEquals(0, frame.getBuffer(YuvFrame.Y).position());
+        assertEquals(0, frame.getBuffer(YuvFrame.V).position());
+    }
+
+}
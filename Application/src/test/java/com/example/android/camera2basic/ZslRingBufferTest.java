@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ZslRingBuffer}, driven with synthetic frames 33ms apart.
+ */
+public class ZslRingBufferTest {
+
+    private static final long MS = 1000000L;
+    private static final long FRAME = 33 * MS;
+
+    private static final int AF_FOCUSED = CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+    private static final int AF_SCANNING = CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+    private static final int AE_CONVERGED = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+    private static final int AE_SEARCHING = CaptureResult.CONTROL_AE_STATE_SEARCHING;
+    private static final int AE_FLASH_REQUIRED = CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+    private static final int LENS_STATIONARY = CaptureResult.LENS_STATE_STATIONARY;
+    private static final int LENS_MOVING = CaptureResult.LENS_STATE_MOVING;
+
+    private final List<String> mEvicted = new ArrayList<>();
+    private ZslRingBuffer<String, String> mBuffer;
+
+    @Before
+    public void setUp() {
+        mBuffer = new ZslRingBuffer<>(3, new ZslRingBuffer.Listener<String>() {
+            @Override
+            public void onEvicted(String image) {
+                mEvicted.add(image);
+            }
+        });
+    }
+
+    /** Adds the image and the result of frame {@code n}, in that order. */
+    private void frame(int n, int score) {
+        mBuffer.addImage(n * FRAME, "image" + n);
+        mBuffer.addResult(n * FRAME, "result" + n, score);
+    }
+
+    @Test
+    public void pairsImagesAndResultsInEitherOrder() {
+        mBuffer.addImage(1 * FRAME, "image1");
+        mBuffer.addResult(2 * FRAME, "result2", 5);
+        assertEquals(0, mBuffer.getCompleteCount());
+        mBuffer.addResult(1 * FRAME, "result1", 5);
+        mBuffer.addImage(2 * FRAME, "image2");
+        assertEquals(2, mBuffer.getCompleteCount());
+
+        ZslRingBuffer.Frame<String, String> frame = mBuffer.takeBest(Long.MAX_VALUE);
+        assertEquals("image2", frame.getImage());
+        assertEquals("result2", frame.getResult());
+        assertEquals(2 * FRAME, frame.getTimestamp());
+        frame = mBuffer.takeBest(Long.MAX_VALUE);
+        assertEquals("image1", frame.getImage());
+        assertEquals("result1", frame.getResult());
+        assertNull(mBuffer.takeBest(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void evictsOldestImageBeyondCapacity() {
+        for (int n = 1; n <= 5; n++) {
+            frame(n, 5);
+            assertTrue(mBuffer.getImageCount() <= 3);
+        }
+        assertEquals(3, mBuffer.getImageCount());
+        assertEquals(2, mEvicted.size());
+        assertEquals("image1", mEvicted.get(0));
+        assertEquals("image2", mEvicted.get(1));
+        assertEquals(2, mBuffer.getEvictedCount());
+    }
+
+    @Test
+    public void takesHighestScoreThenNewest() {
+        frame(1, 10);
+        frame(2, 30);
+        frame(3, 20);
+        assertEquals("image2", mBuffer.takeBest(Long.MAX_VALUE).getImage());
+
+        frame(4, 20);
+        assertEquals("image4", mBuffer.takeBest(Long.MAX_VALUE).getImage());
+        assertEquals(2, mBuffer.getImageCount());
+        assertTrue(mEvicted.isEmpty());
+    }
+
+    @Test
+    public void skipsUnusableFrames() {
+        frame(1, 10);
+        frame(2, ZslRingBuffer.UNUSABLE);
+        frame(3, ZslRingBuffer.UNUSABLE);
+        assertEquals("image1", mBuffer.takeBest(Long.MAX_VALUE).getImage());
+        assertNull(mBuffer.takeBest(Long.MAX_VALUE));
+        assertEquals(2, mBuffer.getImageCount());
+    }
+
+    @Test
+    public void onlyConsidersFramesWithinWindowOfNewest() {
+        frame(1, 30);
+        frame(2, 10);
+        frame(3, 10);
+        // Frame 1 is the best, but two frames older than frame 3.
+        assertEquals("image3", mBuffer.takeBest(FRAME).getImage());
+    }
+
+    @Test
+    public void ignoresFramesWithoutResult() {
+        frame(1, 10);
+        mBuffer.addImage(2 * FRAME, "image2");
+        assertEquals(1, mBuffer.getCompleteCount());
+        assertEquals("image1", mBuffer.takeBest(0).getImage());
+        assertNull(mBuffer.takeBest(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void dropsResultsThatNeverGetAnImage() {
+        // Requests that don't target the ZSL stream only produce results.
+        for (int n = 1; n <= 10; n++) {
+            mBuffer.addResult(n * FRAME, "result" + n, 10);
+        }
+        frame(11, 10);
+        frame(12, 10);
+        assertEquals(2, mBuffer.getCompleteCount());
+        assertTrue(mBuffer.getDroppedResultCount() >= 6);
+        assertTrue(mEvicted.isEmpty());
+    }
+
+    @Test
+    public void evictingImageDropsOlderResults() {
+        mBuffer.addResult(1 * FRAME, "result1", 10);
+        frame(2, 10);
+        frame(3, 10);
+        frame(4, 10);
+        frame(5, 10);
+        assertEquals(1, mEvicted.size());
+        assertEquals("image2", mEvicted.get(0));
+        assertEquals(1, mBuffer.getDroppedResultCount());
+    }
+
+    @Test
+    public void clearEvictsEverything() {
+        frame(1, 10);
+        frame(2, 10);
+        mBuffer.addResult(3 * FRAME, "result3", 10);
+        mBuffer.clear();
+        assertEquals(0, mBuffer.getImageCount());
+        assertEquals(2, mEvicted.size());
+        assertNull(mBuffer.takeBest(Long.MAX_VALUE));
+
+        // The slots are reused.
+        for (int n = 4; n <= 10; n++) {
+            frame(n, 10);
+        }
+        assertEquals(3, mBuffer.getCompleteCount());
+    }
+
+    @Test
+    public void scoresConvergedFramesByExposure() {
+        int fast = ZslRingBuffer.score(AF_FOCUSED, AE_CONVERGED, LENS_STATIONARY, 1 * MS);
+        int slow = ZslRingBuffer.score(AF_FOCUSED, AE_CONVERGED, LENS_STATIONARY, 30 * MS);
+        assertTrue(fast > slow);
+        assertTrue(slow > 0);
+        assertEquals(1, ZslRingBuffer.score(AF_FOCUSED, AE_CONVERGED, LENS_STATIONARY,
+                5000 * MS));
+        assertEquals(0, ZslRingBuffer.score(-1, -1, -1, -1));
+    }
+
+    @Test
+    public void scoresUnconvergedFramesUnusable() {
+        assertEquals(ZslRingBuffer.UNUSABLE,
+                ZslRingBuffer.score(AF_SCANNING, AE_CONVERGED, LENS_STATIONARY, MS));
+        assertEquals(ZslRingBuffer.UNUSABLE,
+                ZslRingBuffer.score(AF_FOCUSED, AE_SEARCHING, LENS_STATIONARY, MS));
+        assertEquals(ZslRingBuffer.UNUSABLE,
+                ZslRingBuffer.score(AF_FOCUSED, AE_FLASH_REQUIRED, LENS_STATIONARY, MS));
+        assertEquals(ZslRingBuffer.UNUSABLE,
+                ZslRingBuffer.score(AF_FOCUSED, AE_CONVERGED, LENS_MOVING, MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new ZslRingBuffer<String, String>(0, null);
+    }
+
+}